@@ -0,0 +1,24 @@
+-- wrk2 script for POST /auth/check
+-- Mixes valid pairs from initial-values.sql with random keys, the share of guesses is set by GUESS_RATIO
+
+local valid = {
+    { "first", "keyfirst" },
+    { "second", "secondkey" },
+}
+
+local guessRatio = tonumber(os.getenv("GUESS_RATIO") or "0.9")
+
+wrk.method = "POST"
+wrk.headers["Content-Type"] = "application/json"
+
+local function body(username, streamKey)
+    return string.format('{"username":"%s","streamKey":"%s"}', username, streamKey)
+end
+
+request = function()
+    if math.random() < guessRatio then
+        return wrk.format(nil, nil, nil, body("first", string.format("guess-%08x", math.random(0, 0x7fffffff))))
+    end
+    local pair = valid[math.random(#valid)]
+    return wrk.format(nil, nil, nil, body(pair[1], pair[2]))
+end
@@ -0,0 +1,36 @@
+#!/usr/bin/env bash
+# p99 latency of /auth/check with the stream key index on and off, run with wrk2 in PATH:
+#   ./bench/run.sh [rate] [duration]
+# The service is started twice from target/authservice-*.jar with AUTH_INDEX_ENABLED=true and false,
+# database settings are taken from the environment like in docker-compose
+set -euo pipefail
+
+RATE=${1:-10000}
+DURATION=${2:-60s}
+CONNECTIONS=${CONNECTIONS:-100}
+THREADS=${THREADS:-4}
+URL=${URL:-http://localhost:8083/auth/check}
+DIR=$(cd "$(dirname "$0")" && pwd)
+JAR=$(ls "$DIR"/../target/authservice-*.jar | head -n 1)
+
+run() {
+    local enabled=$1
+    AUTH_INDEX_ENABLED=$enabled java -jar "$JAR" --logging.level.com.qbasic=WARN > "$DIR/service-$enabled.log" 2>&1 &
+    local pid=$!
+    trap "kill $pid 2>/dev/null" EXIT
+    until curl -s -o /dev/null -X POST -H 'Content-Type: application/json' -d '{}' "$URL"; do sleep 1; done
+
+    # Warm up connection pools and JIT before the measured run
+    wrk -t"$THREADS" -c"$CONNECTIONS" -d15s -R"$RATE" -s "$DIR/check.lua" "$URL" > /dev/null
+    echo "== index enabled=$enabled, $RATE rps for $DURATION"
+    wrk -t"$THREADS" -c"$CONNECTIONS" -d"$DURATION" -R"$RATE" --latency -s "$DIR/check.lua" "$URL" \
+        | tee "$DIR/result-$enabled.txt" \
+        | grep -E '^ +(50\.000|99\.000|99\.900)%|Requests/sec'
+
+    kill "$pid"
+    wait "$pid" 2>/dev/null || true
+    trap - EXIT
+}
+
+run true
+run false
@@ -7,20 +7,42 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
 
 @Service
 @Getter
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
+@Slf4j
 public class AuthService {
 
     @Autowired
     private UserRepository repository;
+
+    @Autowired
+    private StreamKeyIndex index;
+
+    @Autowired
+    private WebClient.Builder webClientBuilder;
+
+    // Streaming server caching stream key checks, empty when it is not told about changes
+    @Value("${streaming.server:}")
+    private String streamingAddress;
+
     public Mono<Boolean> checkCredentials(String username, String streamKey) {
+        if (index.isEnabled()) {
+            // Index holds every pair, guessed keys never reach the database
+            return index.contains(username, streamKey);
+        }
         return repository.existsByUsernameAndStreamKey(username, streamKey);
     }
 
@@ -29,7 +51,25 @@ public class AuthService {
                 .username(username)
                 .password(password)
                 .streamKey(streamKey)
-                .build());
+                .build())
+                .doOnNext(user -> {
+                    index.add(user.getUsername(), user.getStreamKey());
+                    invalidateStreamingCache(user.getUsername());
+                });
+    }
+
+    // Cached checks of the user are dropped, a previous stream key is not accepted until the cache expires
+    private void invalidateStreamingCache(String username) {
+        if (streamingAddress == null || streamingAddress.isBlank()) {
+            return;
+        }
+        webClientBuilder.build()
+                .delete()
+                .uri(streamingAddress + "/auth/cache/{username}", username)
+                .retrieve()
+                .toBodilessEntity()
+                .retryWhen(Retry.backoff(3, Duration.ofMillis(500)))
+                .subscribe(response -> { }, error -> log.warn("Failed to invalidate cached stream keys of {}", username, error));
     }
 
 }
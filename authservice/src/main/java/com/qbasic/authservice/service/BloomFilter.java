@@ -0,0 +1,48 @@
+package com.qbasic.authservice.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over 128 bit digests, bit positions are derived from the digest halves
+ * with double hashing. Concurrent adds are lock free, the filter is never shrunk
+ * */
+class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashes;
+
+    BloomFilter(long expectedEntries, double falsePositiveRate) {
+        long entries = Math.max(1, expectedEntries);
+        long size = (long) Math.ceil(-entries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) Math.max(1, (size + 63) >>> 6));
+        this.bitCount = (long) bits.length() << 6;
+        this.hashes = (int) Math.max(1, Math.round((double) bitCount / entries * Math.log(2)));
+    }
+
+    void add(long high, long low) {
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(high, low, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                // Retry on a concurrent update of the same word
+            }
+        }
+    }
+
+    boolean mightContain(long high, long low) {
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(high, low, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(long high, long low, int i) {
+        return Math.floorMod(high + i * low, bitCount);
+    }
+}
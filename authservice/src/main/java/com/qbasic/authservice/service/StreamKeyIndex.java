@@ -0,0 +1,187 @@
+package com.qbasic.authservice.service;
+
+import com.qbasic.authservice.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of all username and stream key pairs, answers credential checks without the database.
+ * Pairs are kept as keyed digests with a per-process secret, so plain stream keys are not held in memory.
+ * A bloom filter in front of the digest set rejects most invalid keys with a few bit reads.
+ * The index is loaded at startup and periodically reloaded to pick up rows written outside of this service.
+ * A failed initial load is retried with backoff, checks issued before a load succeeds are answered by the database
+ * */
+@Component
+@Slf4j
+public class StreamKeyIndex {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private record Digest(long high, long low) {
+    }
+
+    private record Snapshot(Set<Digest> digests, BloomFilter filter) {
+    }
+
+    @Autowired
+    private UserRepository repository;
+
+    @Getter
+    @Value("${auth.index.enabled:true}")
+    private boolean enabled;
+
+    @Value("${auth.index.refresh-interval:5m}")
+    private Duration refreshInterval;
+
+    @Value("${auth.index.false-positive-rate:0.01}")
+    private double falsePositiveRate;
+
+    // First delay between attempts of the initial load, doubled up to the refresh interval
+    @Value("${auth.index.retry-backoff:1s}")
+    private Duration retryBackoff;
+
+    private final SecretKeySpec secret;
+    private final ThreadLocal<Mac> mac;
+
+    private volatile Snapshot snapshot;
+    // Pairs saved while a reload is running, the reloaded rows may not include them yet
+    private List<Digest> savedDuringLoad;
+
+    public StreamKeyIndex() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.secret = new SecretKeySpec(key, MAC_ALGORITHM);
+        this.mac = ThreadLocal.withInitial(this::newMac);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            log.info("Stream key index is disabled, credentials are checked in the database");
+            return;
+        }
+        // Reloads start after the initial load, so loads never overlap
+        load().retryWhen(Retry.backoff(Long.MAX_VALUE, retryBackoff)
+                        .maxBackoff(refreshInterval)
+                        .doBeforeRetry(signal -> log.error("Stream key index initial load failed, retrying",
+                                signal.failure())))
+                .thenMany(Flux.interval(refreshInterval, refreshInterval))
+                .onBackpressureDrop()
+                .concatMap(tick -> load().onErrorResume(error -> {
+                    log.warn("Stream key index reload failed, keeping previous index", error);
+                    return Mono.empty();
+                }))
+                .subscribe();
+    }
+
+    public Mono<Boolean> contains(String username, String streamKey) {
+        if (username == null || streamKey == null) {
+            return Mono.just(false);
+        }
+        Snapshot current = snapshot;
+        if (current != null) {
+            return Mono.just(contains(current, digest(username, streamKey)));
+        }
+        // Not loaded yet, or the database was unavailable at startup
+        return repository.existsByUsernameAndStreamKey(username, streamKey);
+    }
+
+    public void add(String username, String streamKey) {
+        if (username == null || streamKey == null) {
+            return;
+        }
+        Digest digest = digest(username, streamKey);
+        synchronized (this) {
+            if (savedDuringLoad != null) {
+                savedDuringLoad.add(digest);
+            }
+            Snapshot current = snapshot;
+            if (current != null) {
+                current.digests().add(digest);
+                current.filter().add(digest.high(), digest.low());
+            }
+        }
+    }
+
+    private Mono<Void> load() {
+        long started = System.nanoTime();
+        return Mono.fromRunnable(this::beginLoad)
+                // Queried again on every attempt
+                .thenMany(Flux.defer(repository::findAll))
+                .filter(user -> user.getUsername() != null && user.getStreamKey() != null)
+                .map(user -> digest(user.getUsername(), user.getStreamKey()))
+                .collectList()
+                .doOnNext(digests -> {
+                    Snapshot loaded = swap(digests);
+                    log.info("Stream key index loaded {} entries in {} ms",
+                            loaded.digests().size(), (System.nanoTime() - started) / 1_000_000);
+                })
+                .doOnError(error -> endLoad())
+                .then();
+    }
+
+    private synchronized void beginLoad() {
+        savedDuringLoad = new ArrayList<>();
+    }
+
+    private synchronized void endLoad() {
+        savedDuringLoad = null;
+    }
+
+    private synchronized Snapshot swap(List<Digest> digests) {
+        digests.addAll(savedDuringLoad);
+        savedDuringLoad = null;
+        // Headroom for registrations until the next reload
+        BloomFilter filter = new BloomFilter(Math.max(1024, digests.size() * 2L), falsePositiveRate);
+        Set<Digest> set = ConcurrentHashMap.newKeySet(digests.size() * 2);
+        for (Digest digest : digests) {
+            set.add(digest);
+            filter.add(digest.high(), digest.low());
+        }
+        Snapshot loaded = new Snapshot(set, filter);
+        snapshot = loaded;
+        return loaded;
+    }
+
+    private static boolean contains(Snapshot snapshot, Digest digest) {
+        return snapshot.filter().mightContain(digest.high(), digest.low()) && snapshot.digests().contains(digest);
+    }
+
+    private Digest digest(String username, String streamKey) {
+        Mac hmac = mac.get();
+        hmac.update(username.getBytes(StandardCharsets.UTF_8));
+        // Separator keeps ("ab", "c") and ("a", "bc") apart
+        hmac.update((byte) 0);
+        ByteBuffer hash = ByteBuffer.wrap(hmac.doFinal(streamKey.getBytes(StandardCharsets.UTF_8)));
+        return new Digest(hash.getLong(), hash.getLong());
+    }
+
+    private Mac newMac() {
+        try {
+            Mac instance = Mac.getInstance(MAC_ALGORITHM);
+            instance.init(secret);
+            return instance;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can not create " + MAC_ALGORITHM, e);
+        }
+    }
+}
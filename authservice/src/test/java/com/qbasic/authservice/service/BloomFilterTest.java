@@ -0,0 +1,94 @@
+package com.qbasic.authservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BloomFilterTest {
+
+    @Test
+    void containsEveryAddedEntry() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        SplittableRandom random = new SplittableRandom(1);
+        long[] entries = new long[20_000];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = random.nextLong();
+        }
+        for (int i = 0; i < entries.length; i += 2) {
+            filter.add(entries[i], entries[i + 1]);
+        }
+
+        for (int i = 0; i < entries.length; i += 2) {
+            assertThat(filter.mightContain(entries[i], entries[i + 1])).isTrue();
+        }
+    }
+
+    @Test
+    void falsePositiveRateStaysNearConfiguredRate() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        SplittableRandom random = new SplittableRandom(2);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add(random.nextLong(), random.nextLong());
+        }
+
+        int falsePositives = 0;
+        int checks = 100_000;
+        for (int i = 0; i < checks; i++) {
+            if (filter.mightContain(random.nextLong(), random.nextLong())) {
+                falsePositives++;
+            }
+        }
+        // Expected around 1 percent
+        assertThat((double) falsePositives / checks).isLessThan(0.02);
+    }
+
+    @Test
+    void emptyFilterContainsNothing() {
+        BloomFilter filter = new BloomFilter(0, 0.01);
+        SplittableRandom random = new SplittableRandom(3);
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(filter.mightContain(random.nextLong(), random.nextLong())).isFalse();
+        }
+        // Negative digest halves map to valid bits
+        filter.add(Long.MIN_VALUE, -1);
+        assertThat(filter.mightContain(Long.MIN_VALUE, -1)).isTrue();
+    }
+
+    @Test
+    void concurrentAddsAreNotLost() throws Exception {
+        BloomFilter filter = new BloomFilter(40_000, 0.01);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<long[]>> results = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                int seed = thread;
+                results.add(executor.submit(() -> {
+                    SplittableRandom random = new SplittableRandom(seed);
+                    long[] entries = new long[20_000];
+                    for (int i = 0; i < entries.length; i += 2) {
+                        entries[i] = random.nextLong();
+                        entries[i + 1] = random.nextLong();
+                        filter.add(entries[i], entries[i + 1]);
+                    }
+                    return entries;
+                }));
+            }
+            for (Future<long[]> result : results) {
+                long[] entries = result.get();
+                for (int i = 0; i < entries.length; i += 2) {
+                    assertThat(filter.mightContain(entries[i], entries[i + 1])).isTrue();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.qbasic.authservice.service;
+
+import com.qbasic.authservice.model.UserAccount;
+import com.qbasic.authservice.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StreamKeyIndexTest {
+
+    private final UserRepository repository = mock(UserRepository.class);
+    private StreamKeyIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new StreamKeyIndex();
+        ReflectionTestUtils.setField(index, "repository", repository);
+        ReflectionTestUtils.setField(index, "enabled", true);
+        // No periodic reload during a test
+        ReflectionTestUtils.setField(index, "refreshInterval", Duration.ofHours(1));
+        ReflectionTestUtils.setField(index, "falsePositiveRate", 0.01);
+        ReflectionTestUtils.setField(index, "retryBackoff", Duration.ofMillis(10));
+    }
+
+    @Test
+    void answersFromIndexOnceLoaded() {
+        when(repository.findAll()).thenReturn(Flux.just(
+                user("alice", "key1"), user("bob", "key2"), user("carol", null)));
+        index.start();
+
+        StepVerifier.create(index.contains("alice", "key1")).expectNext(true).verifyComplete();
+        StepVerifier.create(index.contains("bob", "key2")).expectNext(true).verifyComplete();
+        StepVerifier.create(index.contains("alice", "key2")).expectNext(false).verifyComplete();
+        StepVerifier.create(index.contains("carol", "")).expectNext(false).verifyComplete();
+        StepVerifier.create(index.contains("alice", null)).expectNext(false).verifyComplete();
+        verify(repository, never()).existsByUsernameAndStreamKey(any(), any());
+    }
+
+    @Test
+    void checksDatabaseUntilLoaded() {
+        Sinks.Many<UserAccount> rows = Sinks.many().unicast().onBackpressureBuffer();
+        when(repository.findAll()).thenReturn(rows.asFlux());
+        when(repository.existsByUsernameAndStreamKey("alice", "key1")).thenReturn(Mono.just(true));
+        index.start();
+
+        StepVerifier.create(index.contains("alice", "key1")).expectNext(true).verifyComplete();
+        verify(repository).existsByUsernameAndStreamKey("alice", "key1");
+
+        rows.tryEmitNext(user("alice", "key1"));
+        rows.tryEmitComplete();
+        StepVerifier.create(index.contains("alice", "key1")).expectNext(true).verifyComplete();
+        verify(repository, times(1)).existsByUsernameAndStreamKey("alice", "key1");
+    }
+
+    @Test
+    void retriesFailedInitialLoad() throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+        when(repository.findAll()).thenAnswer(invocation -> attempts.getAndIncrement() < 2
+                ? Flux.error(new IllegalStateException("Database unavailable"))
+                : Flux.just(user("alice", "key1")));
+        // The database row is gone, only the index still has the pair
+        when(repository.existsByUsernameAndStreamKey("alice", "key1")).thenReturn(Mono.just(false));
+        index.start();
+
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!Boolean.TRUE.equals(index.contains("alice", "key1").block())) {
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+        assertThat(attempts).hasValue(3);
+    }
+
+    @Test
+    void keepsPairsSavedWhileLoading() {
+        Sinks.Many<UserAccount> rows = Sinks.many().unicast().onBackpressureBuffer();
+        when(repository.findAll()).thenReturn(rows.asFlux());
+        index.start();
+
+        // Saved after the rows were read
+        index.add("dave", "key4");
+        rows.tryEmitNext(user("alice", "key1"));
+        rows.tryEmitComplete();
+
+        StepVerifier.create(index.contains("dave", "key4")).expectNext(true).verifyComplete();
+        StepVerifier.create(index.contains("alice", "key1")).expectNext(true).verifyComplete();
+        verify(repository, never()).existsByUsernameAndStreamKey(any(), any());
+    }
+
+    @Test
+    void addsPairsSavedAfterLoad() {
+        when(repository.findAll()).thenReturn(Flux.empty());
+        index.start();
+
+        index.add("erin", "key5");
+
+        StepVerifier.create(index.contains("erin", "key5")).expectNext(true).verifyComplete();
+        StepVerifier.create(index.contains("erin", "key6")).expectNext(false).verifyComplete();
+    }
+
+    private static UserAccount user(String username, String streamKey) {
+        return UserAccount.builder().username(username).password("password").streamKey(streamKey).build();
+    }
+}
@@ -1,49 +1,329 @@
 package com.qbasic.contentservice.controller;
 
+import com.qbasic.contentservice.model.FileMetadata;
+import com.qbasic.contentservice.model.PlaylistState;
+import com.qbasic.contentservice.service.FileIndex;
+import com.qbasic.contentservice.service.LivePlaylistRegistry;
+import com.qbasic.contentservice.service.SegmentCache;
 import lombok.extern.slf4j.Slf4j;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.http.*;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
-import java.nio.file.Files;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 @RestController
 @Slf4j
 public class PlaylistController {
 
-    @Value("${stream.directory}")
-    private String path;
+    // Partial segment of Low-Latency HLS: data{segment}.{part}.ts
+    private static final Pattern PART = Pattern.compile("data(\\d+)\\.(\\d+)\\.ts");
+    private static final String PREFIX = "/streams/";
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+    private static final Duration SEGMENT_MAX_AGE = Duration.ofDays(365);
+
+    // Requested bytes of a file, null from of() when the range can not be satisfied
+    private record ByteRange(long start, long length) {
+
+        static ByteRange of(List<HttpRange> ranges, long length) {
+            // Multiple ranges are answered with the whole file
+            if (ranges.size() != 1) {
+                return new ByteRange(0, length);
+            }
+            try {
+                HttpRange range = ranges.get(0);
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                return start < length ? new ByteRange(start, end - start + 1) : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    // Three target durations, a live playlist is expected to change sooner
+    @Value("${playlist.blocking-timeout:12s}")
+    private Duration blockingTimeout;
+
+    // Master playlists change only when a stream starts
+    @Value("${playlist.master-max-age:5s}")
+    private Duration masterMaxAge;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private LivePlaylistRegistry registry;
+
+    @Autowired
+    private SegmentCache segmentCache;
 
     @GetMapping(value = "/streams/**")
-    public Mono<Void> downloadM3u8(ServerHttpRequest request,
-                                   ServerHttpResponse response) {
-        Path file = Paths.get(path);
-        String requestUrl = request.getPath().toString();
-        String fileName = requestUrl.split("/streams/")[1];
-
-        ZeroCopyHttpOutputMessage zeroCopyResponse =
-                (ZeroCopyHttpOutputMessage) response;
+    public Mono<Void> downloadM3u8(ServerWebExchange exchange,
+                                   @RequestParam(name = "_HLS_msn", required = false) Long msn,
+                                   @RequestParam(name = "_HLS_part", required = false) Integer part) {
+        ServerHttpResponse response = exchange.getResponse();
+        Path file = fileIndex.getRoot();
+        String requestUrl = exchange.getRequest().getPath().pathWithinApplication().value();
+        String fileName = requestUrl.substring(PREFIX.length());
+
         HttpHeaders headers = response.getHeaders();
-        headers.setContentDispositionFormData(fileName, fileName);
         headers.setAccessControlAllowOrigin("*");
-        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-        headers.setCacheControl(CacheControl.noCache());
 
-        Path ans = file.resolve(fileName);
-        log.info(ans.toAbsolutePath().toString());
-        if (!Files.exists(ans)) {
+        Path ans = file.resolve(fileName).normalize();
+        log.info(ans.toString());
+        if (!ans.startsWith(file) || ans.equals(file)) {
             response.setStatusCode(HttpStatus.NOT_FOUND);
-            return zeroCopyResponse.setComplete();
+            return response.setComplete();
+        }
+
+        if (msn != null && registry.find(ans) != null) {
+            return blockingReload(exchange, ans, msn, part == null ? -1 : part);
+        }
+        Matcher partName = PART.matcher(ans.getFileName().toString());
+        if (partName.matches()) {
+            // Parts are listed in the playlist named after their directory
+            Path playlist = ans.getParent().resolveSibling(ans.getParent().getFileName() + ".m3u8");
+            long segment = Long.parseLong(partName.group(1));
+            int partIndex = Integer.parseInt(partName.group(2));
+            PlaylistState state = registry.find(playlist);
+            if (state != null && !isComplete(state, segment, partIndex)) {
+                return streamPart(response, ans, playlist, segment, partIndex);
+            }
+        }
+
+        return writeFile(exchange, ans, false);
+    }
+
+    /**
+     * Complete files are served from the segment cache, files too large for it with zero-copy from disk.
+     * Answers conditional requests with 304 and a single byte range with 206
+     * */
+    private Mono<Void> writeFile(ServerWebExchange exchange, Path file, boolean blocking) {
+        ServerHttpResponse response = exchange.getResponse();
+        FileMetadata metadata = fileIndex.get(file);
+        if (metadata == null) {
+            response.setStatusCode(HttpStatus.NOT_FOUND);
+            return response.setComplete();
+        }
+        HttpHeaders headers = response.getHeaders();
+        headers.setContentType(MediaType.parseMediaType(metadata.contentType()));
+        headers.setCacheControl(cacheControl(file, blocking));
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        // Sets ETag and Last-Modified, and 304 status when the client copy is current
+        if (exchange.checkNotModified(metadata.etag(), Instant.ofEpochMilli(metadata.lastModified()))) {
+            return response.setComplete();
+        }
+        List<HttpRange> ranges = requestedRanges(exchange.getRequest(), metadata);
+
+        return segmentCache.get(file)
+                .flatMap(cached -> {
+                    long length = cached.map(data -> (long) data.remaining()).orElse(metadata.size());
+                    ByteRange range = ByteRange.of(ranges, length);
+                    if (range == null) {
+                        response.setStatusCode(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                        headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                        return response.setComplete();
+                    }
+                    if (range.length() != length) {
+                        response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+                        headers.set(HttpHeaders.CONTENT_RANGE,
+                                "bytes " + range.start() + "-" + (range.start() + range.length() - 1) + "/" + length);
+                    }
+                    headers.setContentLength(range.length());
+                    if (cached.isPresent()) {
+                        ByteBuffer data = cached.get();
+                        data.limit((int) (range.start() + range.length())).position((int) range.start());
+                        segmentCache.servedFromMemory(range.length());
+                        return response.writeWith(Mono.just(response.bufferFactory().wrap(data)));
+                    }
+                    if (response instanceof ZeroCopyHttpOutputMessage zeroCopyResponse) {
+                        segmentCache.servedFromDisk(range.length());
+                        return zeroCopyResponse.writeWith(file, range.start(), range.length());
+                    }
+                    // HEAD responses are not zero-copy and have no body
+                    return response.setComplete();
+                })
+                .onErrorResume(NoSuchFileException.class, e -> {
+                    response.setStatusCode(HttpStatus.NOT_FOUND);
+                    return response.setComplete();
+                });
+    }
+
+    /**
+     * Segments and parts never change once listed. A playlist may be cached for half its target duration,
+     * a blocking reload response is only valid for its msn and part and may be cached longer
+     * */
+    private CacheControl cacheControl(Path file, boolean blocking) {
+        PlaylistState state = registry.find(file);
+        if (state == null) {
+            return file.getFileName().toString().endsWith(".m3u8")
+                    ? CacheControl.noCache()
+                    : CacheControl.maxAge(SEGMENT_MAX_AGE).cachePublic().immutable();
+        }
+        if (state.isMaster()) {
+            return CacheControl.maxAge(masterMaxAge).cachePublic();
+        }
+        if (blocking) {
+            long millis = state.partTarget() > 0
+                    ? (long) (state.partTarget() * 6000)
+                    : state.targetDuration() * 1000;
+            return CacheControl.maxAge(Duration.ofMillis(millis)).cachePublic();
+        }
+        if (state.ended()) {
+            return CacheControl.maxAge(Duration.ofSeconds(state.targetDuration())).cachePublic();
+        }
+        return CacheControl.maxAge(Duration.ofSeconds(Math.max(1, state.targetDuration() / 2))).cachePublic();
+    }
+
+    // Range is ignored when If-Range does not match the current representation
+    private static List<HttpRange> requestedRanges(ServerHttpRequest request, FileMetadata metadata) {
+        HttpHeaders headers = request.getHeaders();
+        String ifRange = headers.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(metadata.etag())) {
+            try {
+                long date = headers.getFirstDate(HttpHeaders.IF_RANGE);
+                if (date / 1000 != metadata.lastModified() / 1000) {
+                    return List.of();
+                }
+            } catch (IllegalArgumentException e) {
+                return List.of();
+            }
+        }
+        try {
+            return headers.getRange();
+        } catch (IllegalArgumentException e) {
+            // Malformed ranges are ignored like an absent header
+            return List.of();
+        }
+    }
+
+    // Holds the request until the playlist has the requested segment or part
+    private Mono<Void> blockingReload(ServerWebExchange exchange, Path playlist, long msn, int part) {
+        ServerHttpResponse response = exchange.getResponse();
+        PlaylistState state = registry.state(playlist);
+        if (msn > state.lastSegment() + 2) {
+            response.setStatusCode(HttpStatus.BAD_REQUEST);
+            return response.setComplete();
         }
+        return registry.await(playlist, msn, part)
+                .timeout(blockingTimeout)
+                .then(Mono.defer(() -> writeFile(exchange, playlist, true)))
+                .onErrorResume(TimeoutException.class, e -> {
+                    response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+                    return response.setComplete();
+                });
+    }
 
-        return zeroCopyResponse
-                .writeWith(ans, 0, ans.toFile().length());
+    // Sends a part being written chunk by chunk until the playlist lists it as complete
+    private Mono<Void> streamPart(ServerHttpResponse response, Path file, Path playlist, long segment, int part) {
+        response.getHeaders().setCacheControl(CacheControl.noCache());
+        response.getHeaders().setContentType(MediaType.parseMediaType(FileMetadata.contentType(file.toString())));
+        Flux<DataBuffer> body = awaitFile(file, playlist, segment, part)
+                .thenMany(Flux.using(
+                        () -> FileChannel.open(file, StandardOpenOption.READ),
+                        channel -> tail(channel, 0, file, playlist, segment, part, response.bufferFactory()),
+                        PlaylistController::closeQuietly))
+                .timeout(blockingTimeout)
+                .subscribeOn(Schedulers.boundedElastic());
+        return response.writeAndFlushWith(body.map(Flux::just))
+                .onErrorResume(NoSuchFileException.class, e -> {
+                    response.setStatusCode(HttpStatus.NOT_FOUND);
+                    return response.setComplete();
+                });
+    }
+
+    private Mono<Void> awaitFile(Path file, Path playlist, long segment, int part) {
+        return Mono.defer(() -> {
+            if (fileIndex.get(file) != null) {
+                return Mono.empty();
+            }
+            if (isComplete(registry.state(playlist), segment, part)) {
+                // Listed as complete but removed, or the stream ended before the part was started
+                return Mono.error(new NoSuchFileException(file.toString()));
+            }
+            Mono<Void> change = registry.nextChange(file, playlist);
+            if (fileIndex.get(file) != null) {
+                // Registered needlessly, removes the registration
+                change.subscribe().dispose();
+                return Mono.empty();
+            }
+            return change.then(awaitFile(file, playlist, segment, part));
+        });
+    }
+
+    private Flux<DataBuffer> tail(FileChannel channel, long position, Path file, Path playlist,
+                                  long segment, int part, DataBufferFactory factory) {
+        return Flux.defer(() -> {
+            // Completion is checked before the size, so all bytes of a complete part are visible
+            boolean complete = isComplete(registry.state(playlist), segment, part);
+            Mono<Void> change = complete ? Mono.empty() : registry.nextChange(file, playlist);
+            long size;
+            try {
+                size = channel.size();
+            } catch (IOException e) {
+                change.subscribe().dispose();
+                return Flux.error(e);
+            }
+            Flux<DataBuffer> available = size > position ? read(channel, position, size, factory) : Flux.empty();
+            segmentCache.servedFromDisk(size - position);
+            if (complete) {
+                return available;
+            }
+            return available
+                    .concatWith(change.then(Mono.empty()))
+                    .concatWith(tail(channel, size, file, playlist, segment, part, factory));
+        });
+    }
+
+    private static Flux<DataBuffer> read(FileChannel channel, long position, long end, DataBufferFactory factory) {
+        return Flux.defer(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(end - position, READ_CHUNK_SIZE));
+            try {
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                    // Reads until the chunk is full
+                }
+            } catch (IOException e) {
+                return Flux.error(e);
+            }
+            buffer.flip();
+            long next = position + buffer.limit();
+            Flux<DataBuffer> chunk = Flux.just(factory.wrap(buffer));
+            return next < end && buffer.limit() > 0 ? chunk.concatWith(read(channel, next, end, factory)) : chunk;
+        });
+    }
+
+    private static boolean isComplete(PlaylistState state, long segment, int part) {
+        return state.ended() || state.contains(segment, part);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close part file", e);
+        }
     }
 }
@@ -0,0 +1,28 @@
+package com.qbasic.contentservice.model;
+
+import java.util.Locale;
+
+public record FileMetadata(long size, long lastModified, String contentType) {
+
+    // Files are replaced, not modified in place, so size and modification time identify the contents
+    public String etag() {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    public static String contentType(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".m3u8")) {
+            return "application/vnd.apple.mpegurl";
+        }
+        if (name.endsWith(".ts")) {
+            return "video/mp2t";
+        }
+        if (name.endsWith(".m4s") || name.endsWith(".mp4")) {
+            return "video/mp4";
+        }
+        if (name.endsWith(".aac")) {
+            return "audio/aac";
+        }
+        return "application/octet-stream";
+    }
+}
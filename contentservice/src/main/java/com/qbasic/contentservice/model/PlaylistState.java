@@ -0,0 +1,83 @@
+package com.qbasic.contentservice.model;
+
+import java.util.List;
+
+/**
+ * Progress of a live media playlist: the latest complete segment and
+ * the latest complete part of the segment after it, -1 when it has none yet.
+ * URIs of the latest segment and part are relative to the playlist, null when not listed.
+ * Target durations are in seconds, zero for a master playlist or a playlist without parts
+ * */
+public record PlaylistState(long lastSegment, int lastPart, boolean ended, String lastSegmentUri, String lastPartUri,
+                            long targetDuration, double partTarget) {
+
+    public static final PlaylistState EMPTY = new PlaylistState(-1, -1, false, null, null, 0, 0);
+
+    private static final String URI_ATTRIBUTE = "URI=\"";
+    private static final String PART_TARGET_ATTRIBUTE = "PART-TARGET=";
+
+    public static PlaylistState parse(List<String> lines) {
+        long mediaSequence = 0;
+        int segments = 0;
+        int trailingParts = 0;
+        boolean ended = false;
+        String segmentUri = null;
+        String partUri = null;
+        boolean segmentUriNext = false;
+        long targetDuration = 0;
+        double partTarget = 0;
+        for (String line : lines) {
+            if (segmentUriNext && !line.isBlank() && !line.startsWith("#")) {
+                segmentUri = line.trim();
+                segmentUriNext = false;
+                continue;
+            }
+            if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                mediaSequence = Long.parseLong(line.substring("#EXT-X-MEDIA-SEQUENCE:".length()).trim());
+            } else if (line.startsWith("#EXTINF:")) {
+                segments++;
+                segmentUriNext = true;
+                // Parts listed before a segment belong to it
+                trailingParts = 0;
+            } else if (line.startsWith("#EXT-X-PART:")) {
+                trailingParts++;
+                partUri = attributeUri(line);
+            } else if (line.startsWith("#EXT-X-ENDLIST")) {
+                ended = true;
+            } else if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+                targetDuration = Long.parseLong(line.substring("#EXT-X-TARGETDURATION:".length()).trim());
+            } else if (line.startsWith("#EXT-X-PART-INF:")) {
+                int start = line.indexOf(PART_TARGET_ATTRIBUTE);
+                if (start >= 0) {
+                    int end = line.indexOf(',', start);
+                    partTarget = Double.parseDouble(line.substring(start + PART_TARGET_ATTRIBUTE.length(),
+                            end < 0 ? line.length() : end).trim());
+                }
+            }
+        }
+        return new PlaylistState(mediaSequence + segments - 1, trailingParts - 1, ended, segmentUri, partUri,
+                targetDuration, partTarget);
+    }
+
+    private static String attributeUri(String line) {
+        int start = line.indexOf(URI_ATTRIBUTE);
+        if (start < 0) {
+            return null;
+        }
+        start += URI_ATTRIBUTE.length();
+        int end = line.indexOf('"', start);
+        return end < 0 ? null : line.substring(start, end);
+    }
+
+    public boolean isMaster() {
+        return targetDuration == 0;
+    }
+
+    /** Whether the playlist has segment msn, or part of it when part is not negative */
+    public boolean contains(long msn, int part) {
+        if (msn <= lastSegment) {
+            return true;
+        }
+        return part >= 0 && msn == lastSegment + 1 && part <= lastPart;
+    }
+}
@@ -0,0 +1,236 @@
+package com.qbasic.contentservice.service;
+
+import com.qbasic.contentservice.model.FileMetadata;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Metadata of every file under the stream directory, so requests are answered without metadata syscalls.
+ * Kept current by file system notifications, a periodic rescan catches changes notifications miss,
+ * like writes from other hosts on network volumes. Notifications and rescans are handled by one thread,
+ * listeners are told about every changed path on it after the index is updated. Temporary files are not indexed
+ * */
+@Service
+@Slf4j
+public class FileIndex {
+
+    @Value("${stream.directory}")
+    private String path;
+
+    @Value("${index.rescan-interval:30s}")
+    private Duration rescanInterval;
+
+    @Getter
+    private Path root;
+
+    private final Map<Path, FileMetadata> files = new ConcurrentHashMap<>();
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+    private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+
+    private WatchService watchService;
+
+    @PostConstruct
+    public void start() throws IOException {
+        root = Paths.get(path).toAbsolutePath().normalize();
+        Files.createDirectories(root);
+        watchService = FileSystems.getDefault().newWatchService();
+        register(root);
+
+        Thread watcher = new Thread(this::watch, "file-index-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        log.info("Indexed {} files under {}", files.size(), root);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        watchService.close();
+    }
+
+    /** Metadata of an indexed file, null when it does not exist */
+    public FileMetadata get(Path file) {
+        return files.get(file);
+    }
+
+    public Set<Path> paths() {
+        return files.keySet();
+    }
+
+    public void addListener(Consumer<Path> listener) {
+        listeners.add(listener);
+    }
+
+    private void watch() {
+        long interval = rescanInterval.toNanos();
+        long nextRescan = System.nanoTime() + interval;
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.poll(Math.max(0, nextRescan - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            if (System.nanoTime() - nextRescan >= 0) {
+                rescan();
+                nextRescan = System.nanoTime() + interval;
+            }
+            if (key == null) {
+                continue;
+            }
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    log.warn("File notifications overflow, rescanning {}", root);
+                    rescan();
+                    continue;
+                }
+                Path file = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    remove(file);
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file)) {
+                    register(file);
+                } else {
+                    refresh(file);
+                }
+            }
+            if (!key.reset()) {
+                directories.remove(directory);
+            }
+        }
+    }
+
+    // Registers the directory and everything below it, files created before registration are indexed
+    private void register(Path directory) {
+        try (Stream<Path> tree = Files.walk(directory)) {
+            for (Path entry : (Iterable<Path>) tree::iterator) {
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    if (directories.add(entry)) {
+                        entry.register(watchService,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY,
+                                StandardWatchEventKinds.ENTRY_DELETE);
+                    }
+                } else {
+                    refresh(entry);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            log.info("Directory {} was removed before it was indexed", directory);
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Failed to index directory {}", directory, e);
+        }
+    }
+
+    private void refresh(Path file) {
+        if (isTemporary(file)) {
+            return;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isRegularFile()) {
+                return;
+            }
+            FileMetadata metadata = new FileMetadata(
+                    attributes.size(),
+                    attributes.lastModifiedTime().toMillis(),
+                    FileMetadata.contentType(file.getFileName().toString()));
+            FileMetadata previous = files.put(file, metadata);
+            if (!metadata.equals(previous)) {
+                notifyListeners(file);
+            }
+        } catch (NoSuchFileException e) {
+            remove(file);
+        } catch (IOException e) {
+            log.warn("Failed to read attributes of {}", file, e);
+        }
+    }
+
+    private void remove(Path path) {
+        if (files.remove(path) != null) {
+            notifyListeners(path);
+            return;
+        }
+        // A removed directory takes its files with it
+        if (directories.remove(path)) {
+            files.keySet().removeIf(file -> {
+                if (file.startsWith(path)) {
+                    notifyListeners(file);
+                    return true;
+                }
+                return false;
+            });
+            directories.removeIf(directory -> directory.startsWith(path));
+        }
+    }
+
+    // Walks the whole tree and applies differences from the index
+    private void rescan() {
+        Map<Path, FileMetadata> seen = new HashMap<>();
+        try (Stream<Path> tree = Files.walk(root)) {
+            for (Path entry : (Iterable<Path>) tree::iterator) {
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!directories.contains(entry)) {
+                        register(entry);
+                    }
+                } else if (!isTemporary(entry)) {
+                    refresh(entry);
+                    FileMetadata metadata = files.get(entry);
+                    if (metadata != null) {
+                        seen.put(entry, metadata);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Rescan of {} failed", root, e);
+            return;
+        }
+        for (Path file : files.keySet()) {
+            if (!seen.containsKey(file) && !Files.exists(file)) {
+                remove(file);
+            }
+        }
+    }
+
+    private void notifyListeners(Path file) {
+        for (Consumer<Path> listener : listeners) {
+            try {
+                listener.accept(file);
+            } catch (RuntimeException e) {
+                log.error("File index listener failed for {}", file, e);
+            }
+        }
+    }
+
+    private static boolean isTemporary(Path file) {
+        return file.getFileName().toString().endsWith(".tmp");
+    }
+}
@@ -0,0 +1,162 @@
+package com.qbasic.contentservice.service;
+
+import com.qbasic.contentservice.model.PlaylistState;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Live playlist progress kept in memory and updated from changes reported by the file index.
+ * Blocking playlist reloads and readers of parts being written wait in in-memory lists
+ * and are woken by the changes, nothing polls the disk
+ * */
+@Service
+@Slf4j
+public class LivePlaylistRegistry {
+
+    private record Waiter(long msn, int part, Sinks.One<PlaylistState> sink) {
+    }
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private SegmentCache segmentCache;
+
+    private final ConcurrentHashMap<Path, PlaylistState> states = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, Queue<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, Queue<Sinks.Empty<Void>>> changeWaiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        fileIndex.addListener(this::onChange);
+        // Playlists indexed before the listener was added
+        fileIndex.paths().stream().filter(LivePlaylistRegistry::isPlaylist).forEach(this::update);
+    }
+
+    // Playlists are known from the index, null for paths that are not playlists in the stream directory
+    public PlaylistState find(Path playlist) {
+        return states.get(playlist);
+    }
+
+    public PlaylistState state(Path playlist) {
+        return states.computeIfAbsent(playlist, LivePlaylistRegistry::read);
+    }
+
+    /** Completes once the playlist has segment msn, or its part when part is not negative, or has ended */
+    public Mono<PlaylistState> await(Path playlist, long msn, int part) {
+        PlaylistState current = state(playlist);
+        if (current.ended() || current.contains(msn, part)) {
+            return Mono.just(current);
+        }
+        Waiter waiter = new Waiter(msn, part, Sinks.one());
+        Queue<Waiter> queue = waiters.computeIfAbsent(playlist, key -> new ConcurrentLinkedQueue<>());
+        queue.add(waiter);
+        // Update may have been processed before the waiter was added
+        current = state(playlist);
+        if (current.ended() || current.contains(msn, part)) {
+            queue.remove(waiter);
+            return Mono.just(current);
+        }
+        return waiter.sink().asMono().doFinally(signal -> queue.remove(waiter));
+    }
+
+    /**
+     * Registers for the next change of any of the files, the returned mono completes on it.
+     * Registered before the files are read, so a change in between is not missed
+     * */
+    public Mono<Void> nextChange(Path... files) {
+        Sinks.Empty<Void> sink = Sinks.empty();
+        for (Path file : files) {
+            changeWaiters.computeIfAbsent(file, key -> new ConcurrentLinkedQueue<>()).add(sink);
+        }
+        return sink.asMono().doFinally(signal -> {
+            for (Path file : files) {
+                Queue<Sinks.Empty<Void>> queue = changeWaiters.get(file);
+                if (queue != null) {
+                    queue.remove(sink);
+                }
+            }
+        });
+    }
+
+    private void onChange(Path file) {
+        // Dropped before waiters are woken, they must not be served the previous contents
+        segmentCache.invalidate(file);
+        if (isPlaylist(file)) {
+            if (fileIndex.get(file) == null) {
+                states.remove(file);
+            } else {
+                update(file);
+            }
+        }
+        notifyChange(file);
+    }
+
+    private void update(Path playlist) {
+        PlaylistState state = read(playlist);
+        PlaylistState previous = states.put(playlist, state);
+        prefetch(playlist, previous, state);
+        Queue<Waiter> queue = waiters.get(playlist);
+        if (queue == null) {
+            return;
+        }
+        for (Waiter waiter : queue) {
+            if (state.ended() || state.contains(waiter.msn(), waiter.part())) {
+                queue.remove(waiter);
+                waiter.sink().tryEmitValue(state);
+            }
+        }
+    }
+
+    // Newly listed segment and part are read before viewers request them
+    private void prefetch(Path playlist, PlaylistState previous, PlaylistState state) {
+        Path directory = playlist.getParent();
+        if (state.lastSegmentUri() != null && (previous == null || previous.lastSegment() != state.lastSegment())) {
+            segmentCache.prefetch(directory.resolve(state.lastSegmentUri()).normalize());
+        }
+        if (state.lastPartUri() != null && (previous == null || !state.lastPartUri().equals(previous.lastPartUri()))) {
+            segmentCache.prefetch(directory.resolve(state.lastPartUri()).normalize());
+        }
+    }
+
+    private void notifyChange(Path file) {
+        Queue<Sinks.Empty<Void>> queue = changeWaiters.get(file);
+        if (queue == null) {
+            return;
+        }
+        Sinks.Empty<Void> sink;
+        while ((sink = queue.poll()) != null) {
+            sink.tryEmitEmpty();
+        }
+    }
+
+    private static boolean isPlaylist(Path file) {
+        return file.getFileName().toString().endsWith(".m3u8");
+    }
+
+    private static PlaylistState read(Path playlist) {
+        try {
+            List<String> lines = Files.readAllLines(playlist, StandardCharsets.UTF_8);
+            return PlaylistState.parse(lines);
+        } catch (NoSuchFileException e) {
+            return PlaylistState.EMPTY;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to read playlist {}", playlist, e);
+            return PlaylistState.EMPTY;
+        }
+    }
+}
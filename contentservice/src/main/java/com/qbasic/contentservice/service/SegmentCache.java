@@ -0,0 +1,192 @@
+package com.qbasic.contentservice.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recently requested segments and playlists held in direct memory, bounded by total size with LRU eviction.
+ * Concurrent misses of a file share one disk read. Entries are dropped on file system notifications
+ * of their file, segments of a playlist are prefetched when the playlist lists them.
+ * Evicted buffers are freed by the garbage collector once responses using them are written
+ * */
+@Service
+@Slf4j
+public class SegmentCache {
+
+    private static final class Entry {
+        final ByteBuffer data;
+        volatile long lastAccess;
+
+        Entry(ByteBuffer data) {
+            this.data = data;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    private static final class Load {
+        Mono<Optional<ByteBuffer>> result;
+        // Set when the file changed during the read, the stale data is not cached
+        boolean invalidated;
+    }
+
+    @Value("${cache.max-size:256MB}")
+    private DataSize maxSize;
+
+    // Larger files are served from disk
+    @Value("${cache.max-file-size:16MB}")
+    private DataSize maxFileSize;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Path, Load> loading = new ConcurrentHashMap<>();
+    // Written with the lock held
+    private volatile long size;
+
+    private Counter hits;
+    private Counter misses;
+    private Counter evictions;
+    private Counter loadedBytes;
+    private Counter memoryBytes;
+    private Counter diskBytes;
+
+    @PostConstruct
+    public void bindMetrics() {
+        hits = Counter.builder("content.cache.requests").tag("result", "hit").register(meterRegistry);
+        misses = Counter.builder("content.cache.requests").tag("result", "miss").register(meterRegistry);
+        evictions = Counter.builder("content.cache.evictions").register(meterRegistry);
+        loadedBytes = Counter.builder("content.cache.loaded.bytes").baseUnit("bytes").register(meterRegistry);
+        memoryBytes = Counter.builder("content.served.bytes").tag("source", "memory").baseUnit("bytes").register(meterRegistry);
+        diskBytes = Counter.builder("content.served.bytes").tag("source", "disk").baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("content.cache.size", this, cache -> cache.size).baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("content.cache.entries", entries, Map::size).register(meterRegistry);
+        Gauge.builder("content.cache.hit.ratio", this, SegmentCache::hitRatio).register(meterRegistry);
+    }
+
+    /**
+     * Contents of the file, read from disk at most once for concurrent requests.
+     * Empty when the file is too large to cache, errors with NoSuchFileException when it does not exist
+     * */
+    public Mono<Optional<ByteBuffer>> get(Path file) {
+        Entry entry = entries.get(file);
+        if (entry != null) {
+            entry.lastAccess = System.nanoTime();
+            hits.increment();
+            return Mono.just(Optional.of(entry.data.duplicate()));
+        }
+        misses.increment();
+        return load(file).map(data -> data.map(ByteBuffer::duplicate));
+    }
+
+    // Loads the file in the background unless it is cached or being read
+    public void prefetch(Path file) {
+        if (!entries.containsKey(file)) {
+            load(file).subscribe(data -> { }, error -> log.debug("Prefetch of {} failed", file, error));
+        }
+    }
+
+    public void invalidate(Path file) {
+        synchronized (this) {
+            Entry entry = entries.remove(file);
+            if (entry != null) {
+                size -= entry.data.capacity();
+            }
+            Load load = loading.remove(file);
+            if (load != null) {
+                load.invalidated = true;
+            }
+        }
+    }
+
+    public void servedFromMemory(long bytes) {
+        memoryBytes.increment(bytes);
+    }
+
+    public void servedFromDisk(long bytes) {
+        diskBytes.increment(bytes);
+    }
+
+    private Mono<Optional<ByteBuffer>> load(Path file) {
+        return loading.computeIfAbsent(file, key -> {
+            Load load = new Load();
+            load.result = Mono.fromCallable(() -> read(key))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .doOnNext(data -> data.ifPresent(buffer -> insert(key, load, buffer)))
+                    .doFinally(signal -> loading.remove(key, load))
+                    .cache();
+            return load;
+        }).result;
+    }
+
+    private Optional<ByteBuffer> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > maxFileSize.toBytes()) {
+                return Optional.empty();
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Reads the whole file
+            }
+            buffer.flip();
+            loadedBytes.increment(buffer.remaining());
+            return Optional.of(buffer.asReadOnlyBuffer());
+        }
+    }
+
+    private synchronized void insert(Path file, Load load, ByteBuffer data) {
+        if (load.invalidated) {
+            return;
+        }
+        Entry previous = entries.put(file, new Entry(data));
+        if (previous != null) {
+            size -= previous.data.capacity();
+        }
+        size += data.capacity();
+        if (size > maxSize.toBytes()) {
+            evict();
+        }
+    }
+
+    // Removes least recently used entries until the cache fits, called with the lock held
+    private void evict() {
+        List<Map.Entry<Path, Entry>> candidates = new ArrayList<>(entries.entrySet());
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.getValue().lastAccess));
+        for (Map.Entry<Path, Entry> candidate : candidates) {
+            if (size <= maxSize.toBytes()) {
+                break;
+            }
+            if (entries.remove(candidate.getKey(), candidate.getValue())) {
+                size -= candidate.getValue().data.capacity();
+                evictions.increment();
+            }
+        }
+    }
+
+    private double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+}
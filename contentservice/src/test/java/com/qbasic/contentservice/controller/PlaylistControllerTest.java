@@ -0,0 +1,390 @@
+package com.qbasic.contentservice.controller;
+
+import com.qbasic.contentservice.model.FileMetadata;
+import com.qbasic.contentservice.model.PlaylistState;
+import com.qbasic.contentservice.service.FileIndex;
+import com.qbasic.contentservice.service.LivePlaylistRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Requests against a stream directory in a temporary folder, kept current by the real file index.
+ * Every test uses its own stream so notifications of one do not reach another
+ * */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"playlist.blocking-timeout=1s", "cache.max-file-size=1KB"})
+class PlaylistControllerTest {
+
+    private static final String PLAYLIST = """
+            #EXTM3U
+            #EXT-X-VERSION:6
+            #EXT-X-TARGETDURATION:1
+            #EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=1.500
+            #EXT-X-PART-INF:PART-TARGET=0.500
+            #EXT-X-MEDIA-SEQUENCE:4
+            #EXTINF:1.000,
+            {stream}_0/data4.ts
+            #EXTINF:1.000,
+            {stream}_0/data5.ts
+            #EXT-X-PART:DURATION=0.500,URI="{stream}_0/data6.0.ts",INDEPENDENT=YES
+            #EXT-X-PART:DURATION=0.500,URI="{stream}_0/data6.1.ts"
+            """;
+
+    private static final String NEXT_PART = """
+            #EXT-X-PART:DURATION=0.500,URI="{stream}_0/data6.2.ts"
+            """;
+
+    @TempDir
+    static Path directory;
+
+    @DynamicPropertySource
+    static void streamDirectory(DynamicPropertyRegistry registry) {
+        registry.add("stream.directory", () -> directory.toString());
+    }
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private LivePlaylistRegistry registry;
+
+    @Test
+    void blockingReloadAnswersAtOnceWhenPartIsListed() throws Exception {
+        Path playlist = writePlaylist("listed", PLAYLIST);
+
+        client.get().uri("/streams/listed/listed_0.m3u8?_HLS_msn=6&_HLS_part=1")
+                .exchange()
+                .expectStatus().isOk()
+                // Six part targets
+                .expectHeader().cacheControl(CacheControl.maxAge(Duration.ofSeconds(3)).cachePublic())
+                .expectBody(String.class).isEqualTo(Files.readString(playlist));
+        // Segment before the parts
+        client.get().uri("/streams/listed/listed_0.m3u8?_HLS_msn=5")
+                .exchange()
+                .expectStatus().isOk();
+    }
+
+    @Test
+    void blockingReloadRejectsMsnMoreThanTwoAhead() throws Exception {
+        writePlaylist("ahead", PLAYLIST);
+
+        // Last segment is 5
+        client.get().uri("/streams/ahead/ahead_0.m3u8?_HLS_msn=8")
+                .exchange()
+                .expectStatus().isBadRequest();
+        client.get().uri("/streams/ahead/ahead_0.m3u8?_HLS_msn=8&_HLS_part=0")
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    void blockingReloadWaitsForPart() throws Exception {
+        Path playlist = writePlaylist("waiting", PLAYLIST);
+
+        CompletableFuture<Void> update = later(() -> writePlaylist("waiting", PLAYLIST + NEXT_PART));
+        client.get().uri("/streams/waiting/waiting_0.m3u8?_HLS_msn=6&_HLS_part=2")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).value(body -> assertThat(body).contains("waiting_0/data6.2.ts"));
+        update.join();
+        assertThat(registry.find(playlist).lastPart()).isEqualTo(2);
+    }
+
+    @Test
+    void blockingReloadAnswersEndedPlaylist() throws Exception {
+        writePlaylist("ending", PLAYLIST);
+
+        CompletableFuture<Void> update = later(() -> writePlaylist("ending", PLAYLIST + "#EXT-X-ENDLIST\n"));
+        // The part will never be written
+        client.get().uri("/streams/ending/ending_0.m3u8?_HLS_msn=7")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).value(body -> assertThat(body).endsWith("#EXT-X-ENDLIST\n"));
+        update.join();
+    }
+
+    @Test
+    void blockingReloadTimesOut() throws Exception {
+        writePlaylist("stalled", PLAYLIST);
+
+        client.get().uri("/streams/stalled/stalled_0.m3u8?_HLS_msn=7")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @Test
+    void streamsPartBeingWrittenUntilItIsListed() throws Exception {
+        writePlaylist("part", PLAYLIST);
+        Path part = directory.resolve("part").resolve("part_0").resolve("data6.2.ts");
+
+        // Requested before the part file exists, completes once the playlist lists it
+        CompletableFuture<Void> writer = later(() -> {
+            Files.writeString(part, "first ");
+            Thread.sleep(200);
+            Files.writeString(part, "second", StandardOpenOption.APPEND);
+            Thread.sleep(200);
+            writePlaylist("part", PLAYLIST + NEXT_PART);
+        });
+        client.get().uri("/streams/part/part_0/data6.2.ts")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType("video/mp2t")
+                .expectBody(String.class).isEqualTo("first second");
+        writer.join();
+    }
+
+    @Test
+    void servesCompletePartAsFile() throws Exception {
+        writePlaylist("complete", PLAYLIST);
+        Path part = writeFile("complete/complete_0/data6.1.ts", "complete part");
+
+        client.get().uri("/streams/complete/complete_0/data6.1.ts")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentLength(Files.size(part))
+                .expectBody(String.class).isEqualTo("complete part");
+    }
+
+    @Test
+    void missingPartOfEndedPlaylistIsNotFound() throws Exception {
+        writePlaylist("gone", PLAYLIST + "#EXT-X-ENDLIST\n");
+
+        client.get().uri("/streams/gone/gone_0/data6.2.ts")
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    @Test
+    void answersConditionalRequestWithNotModified() throws Exception {
+        Path segment = writeFile("cached/cached_0/data1.ts", "0123456789");
+        FileMetadata metadata = fileIndex.get(segment);
+
+        client.get().uri("/streams/cached/cached_0/data1.ts")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, metadata.etag())
+                .expectHeader().valueEquals(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .expectHeader().cacheControl(CacheControl.maxAge(Duration.ofDays(365)).cachePublic().immutable());
+        client.get().uri("/streams/cached/cached_0/data1.ts")
+                .ifNoneMatch(metadata.etag())
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectBody().isEmpty();
+        client.get().uri("/streams/cached/cached_0/data1.ts")
+                .headers(headers -> headers.setIfModifiedSince(metadata.lastModified()))
+                .exchange()
+                .expectStatus().isNotModified();
+        // Changed since the client copy
+        client.get().uri("/streams/cached/cached_0/data1.ts")
+                .ifNoneMatch("\"stale\"")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("0123456789");
+    }
+
+    @Test
+    void servesSingleRange() throws Exception {
+        writeFile("range/range_0/data1.ts", "0123456789");
+
+        client.get().uri("/streams/range/range_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 2-5/10")
+                .expectHeader().contentLength(4)
+                .expectBody(String.class).isEqualTo("2345");
+        client.get().uri("/streams/range/range_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=8-")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 8-9/10")
+                .expectBody(String.class).isEqualTo("89");
+        // End past the file is cut to its length
+        client.get().uri("/streams/range/range_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=6-100")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 6-9/10")
+                .expectBody(String.class).isEqualTo("6789");
+    }
+
+    @Test
+    void servesSuffixRange() throws Exception {
+        writeFile("suffix/suffix_0/data1.ts", "0123456789");
+
+        client.get().uri("/streams/suffix/suffix_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=-3")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 7-9/10")
+                .expectBody(String.class).isEqualTo("789");
+        // Suffix longer than the file is the whole file
+        client.get().uri("/streams/suffix/suffix_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=-20")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(HttpHeaders.CONTENT_RANGE)
+                .expectBody(String.class).isEqualTo("0123456789");
+    }
+
+    @Test
+    void rejectsUnsatisfiableRange() throws Exception {
+        writeFile("unsatisfiable/unsatisfiable_0/data1.ts", "0123456789");
+
+        client.get().uri("/streams/unsatisfiable/unsatisfiable_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=10-")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes */10")
+                .expectBody().isEmpty();
+    }
+
+    @Test
+    void answersMultipleRangesWithWholeFile() throws Exception {
+        writeFile("multiple/multiple_0/data1.ts", "0123456789");
+
+        client.get().uri("/streams/multiple/multiple_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=0-1,4-5")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(HttpHeaders.CONTENT_RANGE)
+                .expectHeader().contentLength(10)
+                .expectBody(String.class).isEqualTo("0123456789");
+    }
+
+    @Test
+    void ignoresMalformedRange() throws Exception {
+        writeFile("malformed/malformed_0/data1.ts", "0123456789");
+
+        client.get().uri("/streams/malformed/malformed_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=five-six")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("0123456789");
+    }
+
+    @Test
+    void ignoresRangeWhenIfRangeIsStale() throws Exception {
+        Path segment = writeFile("ifrange/ifrange_0/data1.ts", "0123456789");
+        FileMetadata metadata = fileIndex.get(segment);
+
+        client.get().uri("/streams/ifrange/ifrange_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, "\"stale\"")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("0123456789");
+        client.get().uri("/streams/ifrange/ifrange_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .headers(headers -> headers.setDate(HttpHeaders.IF_RANGE, metadata.lastModified() - 60_000))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("0123456789");
+        // Current validators keep the range
+        client.get().uri("/streams/ifrange/ifrange_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, metadata.etag())
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectBody(String.class).isEqualTo("2345");
+        client.get().uri("/streams/ifrange/ifrange_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .headers(headers -> headers.setDate(HttpHeaders.IF_RANGE, metadata.lastModified()))
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectBody(String.class).isEqualTo("2345");
+    }
+
+    @Test
+    void servesRangeOfFileTooLargeToCacheFromDisk() throws Exception {
+        // Larger than cache.max-file-size of the test
+        String text = "0123456789".repeat(300);
+        writeFile("large/large_0/data1.ts", text);
+
+        client.get().uri("/streams/large/large_0/data1.ts")
+                .header(HttpHeaders.RANGE, "bytes=1000-2009")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 1000-2009/3000")
+                .expectBody(String.class).isEqualTo(text.substring(1000, 2010));
+        client.get().uri("/streams/large/large_0/data1.ts")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentLength(3000)
+                .expectBody(String.class).isEqualTo(text);
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    // Runs the action shortly after the request is sent
+    private static CompletableFuture<Void> later(Action action) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                Thread.sleep(200);
+                action.run();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    // Replaced atomically like the segmenter does, returns once the registry has the new contents
+    private Path writePlaylist(String stream, String template) throws IOException, InterruptedException {
+        String text = template.replace("{stream}", stream);
+        Path playlist = directory.resolve(stream).resolve(stream + "_0.m3u8");
+        Files.createDirectories(playlist.resolveSibling(stream + "_0"));
+        Path temporary = playlist.resolveSibling(playlist.getFileName() + ".tmp");
+        Files.writeString(temporary, text);
+        Files.move(temporary, playlist, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        PlaylistState expected = PlaylistState.parse(List.of(text.split("\n")));
+        await(() -> expected.equals(registry.find(playlist)));
+        return playlist;
+    }
+
+    // Returns once the file index has the file
+    private Path writeFile(String name, String text) throws IOException, InterruptedException {
+        Path file = directory.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, text);
+        long size = text.getBytes(StandardCharsets.UTF_8).length;
+        await(() -> fileIndex.get(file) != null && fileIndex.get(file).size() == size);
+        return file;
+    }
+
+    // File notifications are handled on the index thread
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("File index did not catch up");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
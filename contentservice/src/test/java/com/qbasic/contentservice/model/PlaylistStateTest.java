@@ -0,0 +1,128 @@
+package com.qbasic.contentservice.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlaylistStateTest {
+
+    private static final String LOW_LATENCY = """
+            #EXTM3U
+            #EXT-X-VERSION:6
+            #EXT-X-TARGETDURATION:1
+            #EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=1.500
+            #EXT-X-PART-INF:PART-TARGET=0.500
+            #EXT-X-MEDIA-SEQUENCE:3
+            #EXTINF:1.000,
+            user_0/data3.ts
+            #EXT-X-PART:DURATION=0.500,URI="user_0/data4.0.ts",INDEPENDENT=YES
+            #EXT-X-PART:DURATION=0.500,URI="user_0/data4.1.ts"
+            #EXTINF:1.000,
+            user_0/data4.ts
+            #EXT-X-PART:DURATION=0.500,URI="user_0/data5.0.ts",INDEPENDENT=YES
+            #EXT-X-PART:DURATION=0.480,URI="user_0/data5.1.ts"
+            #EXT-X-PRELOAD-HINT:TYPE=PART,URI="user_0/data5.2.ts"
+            """;
+
+    @Test
+    void parsesLastSegmentAndPartsOfTheNextSegment() {
+        PlaylistState state = parse(LOW_LATENCY);
+
+        // Media sequence 3 and two segments
+        assertThat(state.lastSegment()).isEqualTo(4);
+        // Parts after the last segment, the preload hint is not complete
+        assertThat(state.lastPart()).isEqualTo(1);
+        assertThat(state.lastSegmentUri()).isEqualTo("user_0/data4.ts");
+        assertThat(state.lastPartUri()).isEqualTo("user_0/data5.1.ts");
+        assertThat(state.targetDuration()).isEqualTo(1);
+        assertThat(state.partTarget()).isEqualTo(0.5);
+        assertThat(state.ended()).isFalse();
+        assertThat(state.isMaster()).isFalse();
+    }
+
+    @Test
+    void partsBeforeLastSegmentBelongToIt() {
+        PlaylistState state = parse(LOW_LATENCY.substring(0, LOW_LATENCY.indexOf("#EXT-X-PART:DURATION=0.500,URI=\"user_0/data5.0.ts\"")));
+
+        assertThat(state.lastSegment()).isEqualTo(4);
+        assertThat(state.lastPart()).isEqualTo(-1);
+        assertThat(state.lastPartUri()).isEqualTo("user_0/data4.1.ts");
+    }
+
+    @Test
+    void mediaSequenceDefaultsToZero() {
+        PlaylistState state = parse("""
+                #EXTM3U
+                #EXT-X-TARGETDURATION:4
+                #EXTINF:4.000,
+                user_0/data0.ts
+                #EXTINF:4.000,
+                user_0/data1.ts
+                #EXT-X-ENDLIST
+                """);
+
+        assertThat(state.lastSegment()).isEqualTo(1);
+        assertThat(state.lastPart()).isEqualTo(-1);
+        assertThat(state.lastPartUri()).isNull();
+        assertThat(state.partTarget()).isZero();
+        assertThat(state.ended()).isTrue();
+    }
+
+    @Test
+    void playlistWithoutSegmentsHasNone() {
+        PlaylistState state = parse("""
+                #EXTM3U
+                #EXT-X-TARGETDURATION:4
+                #EXT-X-MEDIA-SEQUENCE:7
+                """);
+
+        assertThat(state.lastSegment()).isEqualTo(6);
+        assertThat(state.lastSegmentUri()).isNull();
+        assertThat(state.contains(6, -1)).isTrue();
+        assertThat(state.contains(7, -1)).isFalse();
+        assertThat(state.contains(7, 0)).isFalse();
+    }
+
+    @Test
+    void masterPlaylistHasNoTargetDuration() {
+        PlaylistState state = parse("""
+                #EXTM3U
+                #EXT-X-STREAM-INF:BANDWIDTH=3000000,RESOLUTION=1280x720
+                user_0.m3u8
+                #EXT-X-STREAM-INF:BANDWIDTH=1000000,RESOLUTION=640x360
+                user_1.m3u8
+                """);
+
+        assertThat(state.isMaster()).isTrue();
+        assertThat(state.lastSegment()).isEqualTo(-1);
+        assertThat(state.lastSegmentUri()).isNull();
+    }
+
+    @Test
+    void containsListedSegmentsAndPartsOfTheNextOne() {
+        PlaylistState state = parse(LOW_LATENCY);
+
+        assertThat(state.contains(3, -1)).isTrue();
+        assertThat(state.contains(4, -1)).isTrue();
+        // Parts of a listed segment are complete
+        assertThat(state.contains(4, 7)).isTrue();
+        assertThat(state.contains(5, -1)).isFalse();
+        assertThat(state.contains(5, 0)).isTrue();
+        assertThat(state.contains(5, 1)).isTrue();
+        assertThat(state.contains(5, 2)).isFalse();
+        assertThat(state.contains(6, 0)).isFalse();
+    }
+
+    @Test
+    void emptyContainsNothing() {
+        assertThat(PlaylistState.EMPTY.contains(0, -1)).isFalse();
+        assertThat(PlaylistState.EMPTY.contains(0, 0)).isFalse();
+        assertThat(PlaylistState.EMPTY.contains(-1, -1)).isTrue();
+    }
+
+    private static PlaylistState parse(String playlist) {
+        return PlaylistState.parse(List.of(playlist.split("\n")));
+    }
+}
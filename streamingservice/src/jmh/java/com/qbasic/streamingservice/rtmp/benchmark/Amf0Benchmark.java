@@ -0,0 +1,151 @@
+package com.qbasic.streamingservice.rtmp.benchmark;
+
+import com.qbasic.streamingservice.rtmp.amf0.Amf0Command;
+import com.qbasic.streamingservice.rtmp.amf0.Amf0Rules;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command and data messages of a session: connect and onMetaData as sent by OBS,
+ * onStatus as sent by the server
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Amf0Benchmark {
+
+    private ByteBuf connect;
+    private ByteBuf publish;
+    private ByteBuf metadata;
+    private List<Object> onStatus;
+
+    @Setup
+    public void setup() {
+        connect = encode(connectCommand());
+        publish = encode(publishCommand());
+        metadata = encode(setDataFrame());
+        onStatus = onStatus();
+    }
+
+    @TearDown
+    public void tearDown() {
+        connect.release();
+        publish.release();
+        metadata.release();
+    }
+
+    @Benchmark
+    public List<Object> decodeConnect() {
+        return Amf0Rules.decodeAll(connect.duplicate());
+    }
+
+    // Handler path, command name and transaction id first, then the command object
+    @Benchmark
+    public Object readConnectCommand() {
+        return Amf0Command.read(connect.duplicate()).get(2);
+    }
+
+    // Publish needs the name and type only, command object is skipped
+    @Benchmark
+    public String readPublishCommand() {
+        return (String) Amf0Command.read(publish.duplicate()).get(4);
+    }
+
+    @Benchmark
+    public List<Object> decodeMetadata() {
+        return Amf0Rules.decodeAll(metadata.duplicate());
+    }
+
+    @Benchmark
+    public int encodeOnStatus() {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.heapBuffer(256);
+        Amf0Rules.encodeList(buf, onStatus);
+        int size = buf.readableBytes();
+        buf.release();
+        return size;
+    }
+
+    private static ByteBuf encode(List<Object> values) {
+        ByteBuf buf = Unpooled.buffer();
+        Amf0Rules.encodeList(buf, values);
+        return buf;
+    }
+
+    private static List<Object> connectCommand() {
+        Amf0Rules.Amf0Object command = new Amf0Rules.Amf0Object();
+        command.put("app", "live");
+        command.put("type", "nonprivate");
+        command.put("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
+        command.put("swfUrl", "rtmp://localhost:1935/live");
+        command.put("tcUrl", "rtmp://localhost:1935/live");
+
+        List<Object> values = new ArrayList<>();
+        values.add("connect");
+        values.add(1.0);
+        values.add(command);
+        return values;
+    }
+
+    private static List<Object> publishCommand() {
+        List<Object> values = new ArrayList<>();
+        values.add("publish");
+        values.add(5.0);
+        values.add(null);
+        values.add("0123456789abcdef");
+        values.add("live");
+        return values;
+    }
+
+    private static List<Object> setDataFrame() {
+        Amf0Rules.Amf0Object metadata = new Amf0Rules.Amf0Object();
+        metadata.put("duration", 0.0);
+        metadata.put("fileSize", 0.0);
+        metadata.put("width", 1280.0);
+        metadata.put("height", 720.0);
+        metadata.put("videocodecid", 7.0);
+        metadata.put("videodatarate", 2500.0);
+        metadata.put("framerate", 30.0);
+        metadata.put("audiocodecid", 10.0);
+        metadata.put("audiodatarate", 128.0);
+        metadata.put("audiosamplerate", 44100.0);
+        metadata.put("audiosamplesize", 16.0);
+        metadata.put("audiochannels", 2.0);
+        metadata.put("stereo", true);
+        metadata.put("2.1", false);
+        metadata.put("3.1", false);
+        metadata.put("4.0", false);
+        metadata.put("4.1", false);
+        metadata.put("5.1", false);
+        metadata.put("7.1", false);
+        metadata.put("encoder", "obs-output module (libobs version 29.0.2)");
+
+        List<Object> values = new ArrayList<>();
+        values.add("@setDataFrame");
+        values.add("onMetaData");
+        values.add(metadata);
+        return values;
+    }
+
+    private static List<Object> onStatus() {
+        Amf0Rules.Amf0Object status = new Amf0Rules.Amf0Object();
+        status.put("level", "status");
+        status.put("code", "NetStream.Play.Start");
+        status.put("description", "Start live");
+
+        List<Object> values = new ArrayList<>();
+        values.add("onStatus");
+        values.add(0);
+        values.add(null);
+        values.add(status);
+        return values;
+    }
+}
@@ -0,0 +1,68 @@
+package com.qbasic.streamingservice.rtmp.benchmark;
+
+import com.qbasic.streamingservice.rtmp.handlers.ChunkDecoder;
+import com.qbasic.streamingservice.rtmp.metrics.RtmpMetrics;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a publisher chunk stream delivered in socket sized reads.
+ * One operation is the whole frame set, two keyframe intervals by default
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkDecoderBenchmark {
+
+    @Param({"128", "4096", "65536"})
+    public int chunkSize;
+
+    // Type 0 chunk for every message or type 1, 2 and 3 chunks where possible
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    @Param({"65536"})
+    public int readSize;
+
+    private ByteBuf input;
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() {
+        ByteBuf stream = MediaFrames.chunkStream(MediaFrames.load(), chunkSize, compressed);
+        input = PooledByteBufAllocator.DEFAULT.directBuffer(stream.readableBytes());
+        input.writeBytes(stream);
+        stream.release();
+        // Instrumented as in the server
+        channel = new EmbeddedChannel(new ChunkDecoder(new RtmpMetrics(new SimpleMeterRegistry()).getDecode()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        input.release();
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        int length = input.readableBytes();
+        for (int offset = 0; offset < length; offset += readSize) {
+            channel.writeInbound(input.retainedSlice(offset, Math.min(readSize, length - offset)));
+            RtmpMessage message;
+            while ((message = channel.readInbound()) != null) {
+                blackhole.consume(message.header());
+                message.payload().release();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.qbasic.streamingservice.rtmp.benchmark;
+
+import com.qbasic.streamingservice.rtmp.handlers.ChunkEncoder;
+import com.qbasic.streamingservice.rtmp.model.messages.EncodedMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import com.qbasic.streamingservice.rtmp.model.util.ChunkProvider;
+import com.qbasic.streamingservice.rtmp.model.util.MessageProvider;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Egress of the frame set to one subscriber, either encoded by the connection
+ * or as chunks shared by the stream fan-out
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkEncoderBenchmark {
+
+    @Param({"128", "5000"})
+    public int chunkSize;
+
+    private List<RtmpMediaMessage> messages;
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() {
+        messages = new ArrayList<>();
+        for (RtmpMessage message : MediaFrames.messages(MediaFrames.load())) {
+            messages.add(RtmpMediaMessage.fromRtmpMessage(PooledByteBufAllocator.DEFAULT, message));
+        }
+        channel = new EmbeddedChannel(new ChunkEncoder());
+        channel.writeOutbound(MessageProvider.setChunkSize(chunkSize));
+        // First media message of every type is sent with an absolute timestamp
+        channel.writeOutbound(RtmpMediaMessage.toRtmpMessage(messages.get(0)));
+        channel.writeOutbound(RtmpMediaMessage.toRtmpMessage(messages.get(1)));
+        channel.releaseOutbound();
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        messages.forEach(RtmpMediaMessage::release);
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        for (RtmpMediaMessage message : messages) {
+            channel.writeOutbound(RtmpMediaMessage.toRtmpMessage(message));
+            drain(blackhole);
+        }
+    }
+
+    // Chunking of the fan-out is paid once per frame for all subscribers with this chunk size
+    @Benchmark
+    public void sharedChunks(Blackhole blackhole) {
+        for (RtmpMediaMessage message : messages) {
+            ByteBuf chunks = ChunkProvider.mediaChunks(channel.alloc(), message, chunkSize);
+            channel.writeOutbound(new EncodedMediaMessage(message.retain(), chunkSize, chunks));
+            drain(blackhole);
+        }
+    }
+
+    private void drain(Blackhole blackhole) {
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            blackhole.consume(buf.readableBytes());
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.qbasic.streamingservice.rtmp.benchmark;
+
+import com.qbasic.streamingservice.rtmp.config.RtmpProperties;
+import com.qbasic.streamingservice.rtmp.handlers.ChunkEncoder;
+import com.qbasic.streamingservice.rtmp.metrics.RtmpMetrics;
+import com.qbasic.streamingservice.rtmp.model.context.Stream;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import com.qbasic.streamingservice.rtmp.model.util.MessageProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.*;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_DEFAULT_OUTPUT_CHUNK_SIZE;
+
+/**
+ * Broadcast of the frame set from a publisher to many subscribers on local channels.
+ * SHARDED keeps subscribers spread over all event loops, COLOCATED puts them on the publisher loop
+ * as rtmp.fanout.strategy does. An operation ends when every loop wrote the last frame to its subscribers
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+
+    @Param({"SHARDED", "COLOCATED"})
+    public RtmpProperties.FanoutProperties.Strategy strategy;
+
+    @Param({"100", "1000"})
+    public int subscribers;
+
+    @Param({"4"})
+    public int eventLoops;
+
+    private EventLoopGroup group;
+    private EventLoopGroup peerGroup;
+    private Channel server;
+    private EventLoop publisherLoop;
+    private Stream stream;
+    private List<RtmpMessage> messages;
+    private final List<Channel> channels = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        group = new DefaultEventLoopGroup(eventLoops);
+        peerGroup = new DefaultEventLoopGroup(eventLoops);
+        publisherLoop = group.next();
+
+        LocalAddress address = new LocalAddress("rtmp-fanout-benchmark");
+        server = new ServerBootstrap()
+                .group(peerGroup)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        ReferenceCountUtil.release(msg);
+                    }
+                })
+                .bind(address).sync().channel();
+
+        stream = new Stream("benchmark", new RtmpProperties(), new RtmpMetrics(new SimpleMeterRegistry()));
+        stream.setPublisher(new EmbeddedChannel());
+        messages = MediaFrames.messages(MediaFrames.load());
+
+        for (int i = 0; i < subscribers; i++) {
+            EventLoopGroup loop = strategy == RtmpProperties.FanoutProperties.Strategy.COLOCATED ? publisherLoop : group;
+            Channel channel = new Bootstrap()
+                    .group(loop)
+                    .channel(LocalChannel.class)
+                    .handler(new ChunkEncoder())
+                    .connect(address).sync().channel();
+            channel.writeAndFlush(MessageProvider.setChunkSize(RTMP_DEFAULT_OUTPUT_CHUNK_SIZE)).sync();
+            channel.eventLoop().submit(() -> stream.addSubscriber(channel)).sync();
+            channels.add(channel);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        publisherLoop.submit(() -> stream.closeStream()).sync();
+        for (Channel channel : channels) {
+            channel.closeFuture().await(1, TimeUnit.SECONDS);
+        }
+        messages.forEach(message -> message.payload().release());
+        server.close().sync();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        peerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    @Benchmark
+    public void broadcast() throws Exception {
+        publisherLoop.submit(() -> {
+            for (RtmpMessage message : messages) {
+                stream.addMedia(RtmpMediaMessage.fromRtmpMessage(stream.getPublisher().alloc(), message));
+            }
+        }).sync();
+        // Loops run tasks in order, a task queued after the frames completes once they are written
+        List<Future<?>> barriers = new ArrayList<>();
+        for (EventExecutor loop : group) {
+            barriers.add(loop.submit(() -> {}));
+        }
+        for (Future<?> barrier : barriers) {
+            barrier.sync();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.qbasic.streamingservice.rtmp.benchmark;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpHeader;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import com.qbasic.streamingservice.rtmp.model.util.ChunkProvider;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
+
+/**
+ * Media frames fed to benchmarks. A capture is read from the FLV file given by -Drtmp.bench.flv,
+ * otherwise frames are generated with sizes of a 720p30 x264 stream at 2500 kbps
+ * with 2 s keyframe interval, B-frames and 128 kbps AAC at 44.1 kHz
+ * */
+public class MediaFrames {
+
+    public record Frame(short type, int timestamp, byte[] data) {
+        public boolean isVideo() {
+            return type == RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+        }
+    }
+
+    public static final int AUDIO_CID = 4;
+    public static final int VIDEO_CID = 6;
+    private static final int STREAM_ID = 1;
+
+    public static List<Frame> load() {
+        String capture = System.getProperty("rtmp.bench.flv");
+        return capture == null ? generate(2) : readFlv(Path.of(capture));
+    }
+
+    // Frames of the given number of keyframe intervals
+    public static List<Frame> generate(int gops) {
+        Random random = new Random(42);
+        List<Frame> frames = new ArrayList<>();
+        frames.add(new Frame((short) RTMP_MSG_USER_CONTROL_TYPE_VIDEO, 0, avcSequenceHeader()));
+        frames.add(new Frame((short) RTMP_MSG_USER_CONTROL_TYPE_AUDIO, 0, new byte[] {(byte) 0xaf, 0x00, 0x12, 0x10}));
+
+        int videoFrames = gops * 60;
+        int audioFrames = (int) (videoFrames / 30.0 * 44100 / 1024);
+        int video = 0;
+        int audio = 0;
+        while (video < videoFrames || audio < audioFrames) {
+            int videoTimestamp = video * 1000 / 30;
+            int audioTimestamp = (int) (audio * 1024 * 1000L / 44100);
+            if (video < videoFrames && (audio >= audioFrames || videoTimestamp <= audioTimestamp)) {
+                frames.add(new Frame((short) RTMP_MSG_USER_CONTROL_TYPE_VIDEO, videoTimestamp, videoFrame(random, video % 60)));
+                video++;
+            } else {
+                frames.add(new Frame((short) RTMP_MSG_USER_CONTROL_TYPE_AUDIO, audioTimestamp, audioFrame(random)));
+                audio++;
+            }
+        }
+        return frames;
+    }
+
+    public static List<Frame> readFlv(Path path) {
+        ByteBuffer flv;
+        try {
+            flv = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<Frame> frames = new ArrayList<>();
+        // Header, then previous tag size before every tag
+        flv.position(flv.getInt(5) + 4);
+        while (flv.remaining() >= 11) {
+            int tagType = flv.get() & 0xff;
+            int dataSize = medium(flv);
+            int timestamp = medium(flv) | (flv.get() & 0xff) << 24;
+            medium(flv);
+            if (flv.remaining() < dataSize + 4) {
+                break;
+            }
+            byte[] data = new byte[dataSize];
+            flv.get(data);
+            flv.getInt();
+            if (tagType == RTMP_MSG_USER_CONTROL_TYPE_AUDIO || tagType == RTMP_MSG_USER_CONTROL_TYPE_VIDEO) {
+                frames.add(new Frame((short) tagType, timestamp, data));
+            }
+        }
+        return frames;
+    }
+
+    // Messages as the chunk decoder outputs them, with timestamp deltas per message type
+    public static List<RtmpMessage> messages(List<Frame> frames) {
+        List<RtmpMessage> messages = new ArrayList<>(frames.size());
+        int[] previous = new int[2];
+        for (Frame frame : frames) {
+            int index = frame.isVideo() ? 1 : 0;
+            RtmpHeader header = header(frame, frame.timestamp() - previous[index]);
+            previous[index] = frame.timestamp();
+            messages.add(new RtmpMessage(header, Unpooled.wrappedBuffer(frame.data())));
+        }
+        return messages;
+    }
+
+    /**
+     * Chunk stream as sent by a publisher, starting with set chunk size.
+     * Compressed headers use type 1, 2 and 3 chunks whenever the previous message
+     * of the chunk stream allows it, otherwise every message starts with a type 0 chunk
+     * */
+    public static ByteBuf chunkStream(List<Frame> frames, int chunkSize, boolean compressed) {
+        ByteBuf buf = Unpooled.buffer();
+        ChunkProvider.writeBasicHeader(buf, RTMP_CHUNK_TYPE_0, 2);
+        buf.writeMedium(0);
+        buf.writeMedium(4);
+        buf.writeByte(RTMP_MSG_CONTROL_TYPE_SET_CHUNK_SIZE);
+        buf.writeIntLE(0);
+        buf.writeInt(chunkSize);
+
+        int[] lastTimestamp = new int[2];
+        int[] lastDelta = new int[2];
+        int[] lastLength = {-1, -1};
+        for (Frame frame : frames) {
+            int index = frame.isVideo() ? 1 : 0;
+            int cid = frame.isVideo() ? VIDEO_CID : AUDIO_CID;
+            int length = frame.data().length;
+            int delta = frame.timestamp() - lastTimestamp[index];
+
+            if (!compressed || lastLength[index] < 0) {
+                ChunkProvider.writeBasicHeader(buf, RTMP_CHUNK_TYPE_0, cid);
+                buf.writeMedium(frame.timestamp());
+                buf.writeMedium(length);
+                buf.writeByte(frame.type());
+                buf.writeIntLE(STREAM_ID);
+            } else if (length != lastLength[index]) {
+                ChunkProvider.writeBasicHeader(buf, RTMP_CHUNK_TYPE_1, cid);
+                buf.writeMedium(delta);
+                buf.writeMedium(length);
+                buf.writeByte(frame.type());
+            } else if (delta != lastDelta[index]) {
+                ChunkProvider.writeBasicHeader(buf, RTMP_CHUNK_TYPE_2, cid);
+                buf.writeMedium(delta);
+            } else {
+                ChunkProvider.writeBasicHeader(buf, RTMP_CHUNK_TYPE_3, cid);
+            }
+            lastTimestamp[index] = frame.timestamp();
+            lastDelta[index] = delta;
+            lastLength[index] = length;
+
+            int offset = Math.min(chunkSize, length);
+            buf.writeBytes(frame.data(), 0, offset);
+            while (offset < length) {
+                ChunkProvider.writeBasicHeader(buf, RTMP_CHUNK_TYPE_3, cid);
+                int min = Math.min(chunkSize, length - offset);
+                buf.writeBytes(frame.data(), offset, min);
+                offset += min;
+            }
+        }
+        return buf;
+    }
+
+    private static RtmpHeader header(Frame frame, int delta) {
+        RtmpHeader header = new RtmpHeader();
+        header.setFmt(RTMP_CHUNK_TYPE_1);
+        header.setCid(frame.isVideo() ? VIDEO_CID : AUDIO_CID);
+        header.setTimestamp(frame.timestamp());
+        header.setTimestampDelta(delta);
+        header.setMessageLength(frame.data().length);
+        header.setType(frame.type());
+        header.setStreamId(STREAM_ID);
+        return header;
+    }
+
+    private static byte[] avcSequenceHeader() {
+        byte[] data = new byte[40];
+        data[0] = 0x17;
+        data[1] = 0x00;
+        return data;
+    }
+
+    /*
+        FLV video tag body: frame type and codec, AVC packet type, composition time,
+        then NAL units with 4 byte length prefix
+    */
+    private static byte[] videoFrame(Random random, int position) {
+        int size;
+        int frameType;
+        int nalHeader;
+        if (position == 0) {
+            // IDR
+            size = 55_000 + random.nextInt(15_000);
+            frameType = 0x17;
+            nalHeader = 0x65;
+        } else if (position % 3 == 0) {
+            // Reference P-frame
+            size = 8_000 + random.nextInt(6_000);
+            frameType = 0x27;
+            nalHeader = 0x41;
+        } else {
+            // Non reference B-frame
+            size = 2_500 + random.nextInt(3_000);
+            frameType = 0x27;
+            nalHeader = 0x01;
+        }
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        data[0] = (byte) frameType;
+        data[1] = 0x01;
+        data[2] = 0;
+        data[3] = 0;
+        data[4] = 0;
+        ByteBuffer.wrap(data, 5, 4).putInt(size - 9);
+        data[9] = (byte) nalHeader;
+        return data;
+    }
+
+    private static byte[] audioFrame(Random random) {
+        byte[] data = new byte[340 + random.nextInt(64)];
+        random.nextBytes(data);
+        data[0] = (byte) 0xaf;
+        data[1] = 0x01;
+        return data;
+    }
+
+    private static int medium(ByteBuffer buf) {
+        return (buf.get() & 0xff) << 16 | (buf.get() & 0xff) << 8 | buf.get() & 0xff;
+    }
+}
@@ -0,0 +1,62 @@
+package com.qbasic.streamingservice.rtmp.benchmark;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion between decoded messages and media kept by the stream, one operation is the whole frame set
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RtmpMediaMessageBenchmark {
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    private List<RtmpMessage> messages;
+    private List<RtmpMediaMessage> mediaMessages;
+
+    @Setup
+    public void setup() {
+        messages = MediaFrames.messages(MediaFrames.load());
+        mediaMessages = new ArrayList<>();
+        for (RtmpMessage message : messages) {
+            mediaMessages.add(RtmpMediaMessage.fromRtmpMessage(allocator, message));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        messages.forEach(message -> message.payload().release());
+        mediaMessages.forEach(RtmpMediaMessage::release);
+    }
+
+    @Benchmark
+    public void fromRtmpMessage(Blackhole blackhole) {
+        for (RtmpMessage message : messages) {
+            RtmpMediaMessage media = RtmpMediaMessage.fromRtmpMessage(allocator, message);
+            blackhole.consume(media.isKeyframe());
+            media.release();
+        }
+    }
+
+    @Benchmark
+    public void toRtmpMessage(Blackhole blackhole) {
+        for (RtmpMediaMessage media : mediaMessages) {
+            RtmpMessage message = RtmpMediaMessage.toRtmpMessage(media);
+            blackhole.consume(message.header());
+            message.payload().release();
+        }
+    }
+}
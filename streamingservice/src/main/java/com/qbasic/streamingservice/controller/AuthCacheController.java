@@ -0,0 +1,27 @@
+package com.qbasic.streamingservice.controller;
+
+import com.qbasic.streamingservice.service.StreamKeyValidator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/auth/cache")
+public class AuthCacheController {
+
+    private final StreamKeyValidator validator;
+
+    @Autowired
+    public AuthCacheController(StreamKeyValidator validator) {
+        this.validator = validator;
+    }
+
+    @DeleteMapping("/{username}")
+    ResponseEntity<Void> invalidate(@PathVariable("username") String username) {
+        validator.invalidate(username);
+        return ResponseEntity.noContent().build();
+    }
+}
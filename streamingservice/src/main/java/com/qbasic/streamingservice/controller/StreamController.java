@@ -0,0 +1,34 @@
+package com.qbasic.streamingservice.controller;
+
+import com.qbasic.streamingservice.dto.SubscriberStats;
+import com.qbasic.streamingservice.rtmp.model.context.Stream;
+import com.qbasic.streamingservice.rtmp.model.context.StreamContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/streams")
+public class StreamController {
+
+    private final StreamContext context;
+
+    @Autowired
+    public StreamController(StreamContext context) {
+        this.context = context;
+    }
+
+    @GetMapping("/{name}/subscribers")
+    ResponseEntity<List<SubscriberStats>> subscribers(@PathVariable("name") String name) {
+        Stream stream = context.getStream(name);
+        if (stream == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(stream.subscriberStats());
+    }
+}
@@ -0,0 +1,78 @@
+package com.qbasic.streamingservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * Published source as described by onMetaData, passed to the transcoding server to build the ladder.
+ * Zero means the encoder did not send the field
+ * */
+@Data
+@AllArgsConstructor
+public class SourceInfo {
+
+    private static final int AVC_CODEC_ID = 7;
+    private static final int AAC_SOUND_FORMAT = 10;
+
+    int width;
+    int height;
+    double frameRate;
+    // Kilobits per second
+    int videoBitrate;
+    int audioBitrate;
+    boolean audio;
+    boolean video;
+    // Passthrough rendition {owner}_0 is written by this service, the master playlist lists it
+    boolean sourceRendition;
+
+    public static SourceInfo from(Map<String, Object> metadata, boolean segmented) {
+        if (metadata == null) {
+            // Nothing is known, the transcoding server uses the full ladder
+            return new SourceInfo(0, 0, 0, 0, 0, true, true, segmented);
+        }
+        double frameRate = number(metadata, "framerate");
+        boolean video = metadata.containsKey("videocodecid") || metadata.containsKey("videodatarate")
+                || number(metadata, "height") > 0;
+        return new SourceInfo(
+                (int) number(metadata, "width"),
+                (int) number(metadata, "height"),
+                frameRate > 0 ? frameRate : number(metadata, "videoframerate"),
+                (int) number(metadata, "videodatarate"),
+                (int) number(metadata, "audiodatarate"),
+                metadata.containsKey("audiocodecid") || metadata.containsKey("audiodatarate"),
+                video,
+                segmented
+                        && codec(metadata, "videocodecid", AVC_CODEC_ID, "avc1")
+                        && codec(metadata, "audiocodecid", AAC_SOUND_FORMAT, "mp4a"));
+    }
+
+    // Codec the segmenter supports, or not announced and left to the segmenter to check
+    private static boolean codec(Map<String, Object> metadata, String name, int id, String fourCc) {
+        Object value = metadata.get(name);
+        if (value == null) {
+            return true;
+        }
+        if (value instanceof String string && string.equals(fourCc)) {
+            return true;
+        }
+        return number(metadata, name) == id;
+    }
+
+    // AMF0 numbers are decoded as doubles, some encoders send them as strings
+    private static double number(Map<String, Object> metadata, String name) {
+        Object value = metadata.get(name);
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        if (value instanceof String string) {
+            try {
+                return Double.parseDouble(string);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+}
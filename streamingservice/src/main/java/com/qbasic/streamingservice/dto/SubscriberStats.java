@@ -0,0 +1,16 @@
+package com.qbasic.streamingservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class SubscriberStats {
+    String address;
+    String state;
+    long lagMillis;
+    long pendingBytes;
+    long bytesPerSecond;
+    long droppedFrames;
+    long keyframeSkips;
+}
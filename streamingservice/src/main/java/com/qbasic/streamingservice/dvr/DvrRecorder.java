@@ -0,0 +1,247 @@
+package com.qbasic.streamingservice.dvr;
+
+import com.qbasic.streamingservice.rtmp.model.context.Stream;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Records published streams to FLV files off the event loops.
+ * Recordings are spread over a fixed number of writer threads, a writer commits every recording
+ * of its own once per commit interval, or sooner when one has queued the commit size.
+ * Memory held by queued frames is bounded per recording and in total, frames over either bound are dropped
+ * */
+@Slf4j
+public class DvrRecorder {
+
+    @Getter
+    private final Path directory;
+    private final long commitIntervalNanos;
+    private final long commitBytes;
+    private final long maxStreamPending;
+    private final long maxPending;
+    private final boolean fsync;
+    // Initial capacity of a keyframe index
+    @Getter
+    private final int indexEntries;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final Writer[] writers;
+    private final AtomicInteger nextWriter = new AtomicInteger();
+    private final Map<Recording, Writer> assignments = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    private final Counter recordedBytes;
+    private final Counter droppedFrames;
+    private final Timer commitTimer;
+    private final AtomicInteger playbacks = new AtomicInteger();
+    private final Counter playedBytes;
+
+    public DvrRecorder(String directory, int writerThreads, Duration commitInterval, long commitBytes,
+                       long maxStreamPending, long maxPending, boolean fsync, int indexEntries, MeterRegistry registry) {
+        this.directory = Paths.get(directory);
+        this.commitIntervalNanos = commitInterval.toNanos();
+        this.commitBytes = commitBytes;
+        this.maxStreamPending = maxStreamPending;
+        this.maxPending = maxPending;
+        this.fsync = fsync;
+        this.indexEntries = indexEntries;
+
+        this.recordedBytes = Counter.builder("dvr.recorded.bytes")
+                .baseUnit("bytes")
+                .register(registry);
+        this.droppedFrames = Counter.builder("dvr.dropped.frames")
+                .description("Frames not recorded because the writers fell behind")
+                .register(registry);
+        this.commitTimer = Timer.builder("dvr.commit")
+                .description("Time to write the queued frames of a recording")
+                .register(registry);
+        Gauge.builder("dvr.pending.bytes", pending, AtomicLong::get)
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("dvr.recordings", assignments, Map::size)
+                .register(registry);
+        Gauge.builder("dvr.playbacks", playbacks, AtomicInteger::get)
+                .description("Viewers played from a recording")
+                .register(registry);
+        this.playedBytes = Counter.builder("dvr.played.bytes")
+                .description("Media sent to viewers from recordings")
+                .baseUnit("bytes")
+                .register(registry);
+
+        this.writers = new Writer[Math.max(1, writerThreads)];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Writer("dvr-writer-" + i);
+        }
+    }
+
+    // Called when a stream is published, the metadata supplier is read when the file is opened
+    public Recording start(String streamName, Supplier<RtmpMessage> metadata) {
+        Recording recording = new Recording(streamName, this, directory, metadata);
+        Writer writer = writers[Math.floorMod(nextWriter.getAndIncrement(), writers.length)];
+        assignments.put(recording, writer);
+        writer.recordings.add(recording);
+        return recording;
+    }
+
+    // Newest recording of a stream that is no longer published
+    public Optional<Path> latest(String streamName) {
+        if (!Stream.isSafePathName(streamName)) {
+            return Optional.empty();
+        }
+        Path latest = null;
+        long latestStart = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory.resolve(streamName), "*.flv")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long start = Long.parseLong(name.substring(0, name.length() - ".flv".length()));
+                    if (start > latestStart) {
+                        latest = file;
+                        latestStart = start;
+                    }
+                } catch (NumberFormatException e) {
+                    // Not written by the recorder
+                }
+            }
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(latest);
+    }
+
+    public void close() {
+        running = false;
+        for (Writer writer : writers) {
+            writer.wake();
+        }
+    }
+
+    boolean reserve(Recording recording, int size) {
+        if (recording.pendingBytes() + size > maxStreamPending) {
+            return false;
+        }
+        if (pending.addAndGet(size) > maxPending) {
+            pending.addAndGet(-size);
+            return false;
+        }
+        return true;
+    }
+
+    void release(long bytes) {
+        pending.addAndGet(-bytes);
+    }
+
+    void appended(Recording recording) {
+        if (recording.pendingBytes() >= commitBytes) {
+            wake(recording);
+        }
+    }
+
+    void closed(Recording recording) {
+        wake(recording);
+    }
+
+    void dropped() {
+        droppedFrames.increment();
+    }
+
+    void committed(long bytes) {
+        recordedBytes.increment(bytes);
+    }
+
+    void playbackStarted() {
+        playbacks.incrementAndGet();
+    }
+
+    void playbackStopped() {
+        playbacks.decrementAndGet();
+    }
+
+    void played(long bytes) {
+        playedBytes.increment(bytes);
+    }
+
+    private void wake(Recording recording) {
+        Writer writer = assignments.get(recording);
+        if (writer != null) {
+            writer.wake();
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        private final Set<Recording> recordings = ConcurrentHashMap.newKeySet();
+        private final Thread thread;
+
+        private Writer(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void wake() {
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                LockSupport.parkNanos(commitIntervalNanos);
+                for (Recording recording : recordings) {
+                    commit(recording);
+                }
+            }
+            for (Recording recording : recordings) {
+                commit(recording);
+                finish(recording);
+            }
+        }
+
+        private void commit(Recording recording) {
+            // Read before the commit, frames queued before close are still written
+            boolean closed = recording.isClosed();
+            long start = System.nanoTime();
+            try {
+                if (recording.commit(fsync)) {
+                    commitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            } catch (IOException e) {
+                log.error("Recording of {} failed, stopping it", recording.getStreamName(), e);
+                // Later frames of the stream are no longer queued
+                recording.close();
+                closed = true;
+            }
+            if (closed) {
+                finish(recording);
+            }
+        }
+
+        private void finish(Recording recording) {
+            if (recordings.remove(recording)) {
+                assignments.remove(recording);
+                recording.finish();
+            }
+        }
+    }
+}
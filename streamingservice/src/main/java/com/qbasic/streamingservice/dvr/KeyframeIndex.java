@@ -0,0 +1,118 @@
+package com.qbasic.streamingservice.dvr;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped index of keyframes of a recording, media timestamp to offset of the FLV tag.
+ * Layout: magic, version, wall clock time of the first frame in millis, entry count, then entries of
+ * timestamp and offset as longs in timestamp order. An entry is written before the count that covers it
+ * and only after its tag has been written to the recording, so a reader never sees an offset past the data.
+ * The mapping grows by doubling. Written by one thread, read by any after open
+ * */
+public class KeyframeIndex implements AutoCloseable {
+
+    static final int MAGIC = 0x44565249; // DVRI
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int ENTRY_SIZE = 16;
+
+    private static final int START_OFFSET = 8;
+    private static final int COUNT_OFFSET = 16;
+
+    private final FileChannel channel;
+    private final boolean writable;
+    private MappedByteBuffer buffer;
+
+    private KeyframeIndex(FileChannel channel, boolean writable) {
+        this.channel = channel;
+        this.writable = writable;
+    }
+
+    public static KeyframeIndex create(Path file, long startMillis, int initialEntries) throws IOException {
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        KeyframeIndex index = new KeyframeIndex(channel, true);
+        index.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) initialEntries * ENTRY_SIZE);
+        index.buffer.putInt(0, MAGIC);
+        index.buffer.putInt(4, VERSION);
+        index.buffer.putLong(START_OFFSET, startMillis);
+        index.buffer.putLong(COUNT_OFFSET, 0);
+        return index;
+    }
+
+    public static KeyframeIndex open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        KeyframeIndex index = new KeyframeIndex(channel, false);
+        index.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (index.buffer.capacity() < HEADER_SIZE || index.buffer.getInt(0) != MAGIC || index.buffer.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException("Not a keyframe index: " + file);
+        }
+        return index;
+    }
+
+    public long startMillis() {
+        return buffer.getLong(START_OFFSET);
+    }
+
+    // Entries written so far, a read-only index of a live recording is remapped when it grew
+    public int size() throws IOException {
+        long count = buffer.getLong(COUNT_OFFSET);
+        if (!writable && HEADER_SIZE + count * ENTRY_SIZE > buffer.capacity()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return (int) Math.min(count, (buffer.capacity() - HEADER_SIZE) / ENTRY_SIZE);
+    }
+
+    public long timestamp(int entry) {
+        return buffer.getLong(HEADER_SIZE + entry * ENTRY_SIZE);
+    }
+
+    public long offset(int entry) {
+        return buffer.getLong(HEADER_SIZE + entry * ENTRY_SIZE + 8);
+    }
+
+    public void append(long timestamp, long offset) throws IOException {
+        int count = (int) buffer.getLong(COUNT_OFFSET);
+        int position = HEADER_SIZE + count * ENTRY_SIZE;
+        if (position + ENTRY_SIZE > buffer.capacity()) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) (buffer.capacity() - HEADER_SIZE) * 2);
+        }
+        buffer.putLong(position, timestamp);
+        buffer.putLong(position + 8, offset);
+        buffer.putLong(COUNT_OFFSET, count + 1);
+    }
+
+    /** Last entry at or before the timestamp, -1 when the timestamp is before the first keyframe */
+    public int floor(long timestamp) throws IOException {
+        int low = 0;
+        int high = size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (timestamp(middle) <= timestamp) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    public void force() {
+        if (writable) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
@@ -0,0 +1,283 @@
+package com.qbasic.streamingservice.dvr;
+
+import com.qbasic.streamingservice.rtmp.model.context.Stream;
+import com.qbasic.streamingservice.rtmp.model.messages.RecordedMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.util.MessageTemplates;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
+
+/**
+ * Time-shifted playback of a recording to one viewer, runs on the event loop of the viewer channel.
+ * Starts from the keyframe at or before the requested time, after the script data and codec configs
+ * of the recording. Tag headers are read with positional reads, payloads go to the socket as file regions.
+ * Frames are sent by timestamp at the catch-up rate with a lead over real time. A viewer that reaches
+ * the end of a recording still being written joins the live fan-out of the stream, at the end of
+ * a finished recording it gets the end of stream
+ * */
+@Slf4j
+public class Playback {
+
+    // FLV header and the first previous tag size
+    private static final int FLV_HEADER_SIZE = 13;
+    private static final int TAG_HEADER_SIZE = 11;
+    private static final int PREVIOUS_TAG_SIZE = 4;
+    private static final int TAG_SCRIPT = 18;
+    // Tags read from the start of the file looking for script data and configs
+    private static final int MAX_HEADER_TAGS = 8;
+    // Wait for the writer or for the channel to become writable
+    private static final long POLL_MILLIS = 50;
+
+    private record Tag(int type, int timestamp, long position, int size) {
+
+        long payload() {
+            return position + TAG_HEADER_SIZE;
+        }
+
+        long end() {
+            return position + TAG_HEADER_SIZE + size + PREVIOUS_TAG_SIZE;
+        }
+    }
+
+    private final Channel channel;
+    private final DvrRecorder recorder;
+    private final Path path;
+    // Null when the stream is no longer published
+    private final Recording recording;
+    private final Stream stream;
+    private final long leadMillis;
+    private final double rate;
+
+    private final FileChannel file;
+    private final ByteBuffer header = ByteBuffer.allocate(TAG_HEADER_SIZE);
+    private final ByteBuffer probe = ByteBuffer.allocate(2);
+    private long position;
+    // Timestamp of the first frame sent, pacing is relative to it
+    private int firstTimestamp;
+    // Of the last frame sent, -1 before the first one
+    private int lastTimestamp = -1;
+    private long startNanos;
+    private ScheduledFuture<?> scheduled;
+    private boolean closed;
+
+    private Playback(Channel channel, DvrRecorder recorder, Path path, Recording recording, Stream stream,
+                     Duration lead, double rate) throws IOException {
+        this.channel = channel;
+        this.recorder = recorder;
+        this.path = path;
+        this.recording = recording;
+        this.stream = stream;
+        this.leadMillis = lead.toMillis();
+        this.rate = rate;
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    // Recording of a published stream, the viewer joins the stream once it catches up
+    public static Playback live(Channel channel, DvrRecorder recorder, Stream stream, Duration lead, double rate) throws IOException {
+        Recording recording = stream.getRecording();
+        return new Playback(channel, recorder, recording.getFile(), recording, stream, lead, rate);
+    }
+
+    // Finished recording played to its end
+    public static Playback finished(Channel channel, DvrRecorder recorder, Path path, Duration lead, double rate) throws IOException {
+        return new Playback(channel, recorder, path, null, null, lead, rate);
+    }
+
+    /**
+     * Starts at the given milliseconds from the start of the recording,
+     * negative values count back from its newest keyframe. Called on the event loop of the channel
+     * */
+    public void start(long startMillis) throws IOException {
+        List<Tag> headers;
+        try {
+            headers = seek(startMillis);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        // Configs are sent with the timestamp of the first frame, the viewer timeline does not go back
+        for (Tag tag : headers) {
+            send(tag, firstTimestamp);
+        }
+        channel.flush();
+        log.info("Playing {} to {} from {} ms", path, channel.remoteAddress(), firstTimestamp);
+
+        startNanos = System.nanoTime();
+        recorder.playbackStarted();
+        channel.closeFuture().addListener(future -> close());
+        pump();
+    }
+
+    // Positions the playback on the keyframe, returns the header tags to send first
+    private List<Tag> seek(long startMillis) throws IOException {
+        long limit = limit();
+        List<Tag> headers = new ArrayList<>();
+        long offset = FLV_HEADER_SIZE;
+        Tag tag;
+        while (headers.size() < MAX_HEADER_TAGS && (tag = readTag(offset, limit)) != null && isHeader(tag)) {
+            headers.add(tag);
+            offset = tag.end();
+        }
+        position = offset;
+
+        Path indexFile = path.resolveSibling(path.getFileName().toString().replace(".flv", ".idx"));
+        try (KeyframeIndex index = KeyframeIndex.open(indexFile)) {
+            int entries = index.size();
+            if (entries > 0) {
+                long target = startMillis >= 0 ? startMillis : index.timestamp(entries - 1) + startMillis;
+                int entry = index.floor(target);
+                if (entry >= 0 && index.offset(entry) < limit) {
+                    position = Math.max(position, index.offset(entry));
+                }
+            }
+        }
+
+        Tag first = readTag(position, limit);
+        firstTimestamp = first == null ? 0 : first.timestamp();
+        return headers;
+    }
+
+    private void pump() {
+        scheduled = null;
+        if (closed) {
+            return;
+        }
+        try {
+            // Read before the limit, data committed before the writer finished is not missed
+            boolean finished = recording == null || recording.isFinished();
+            long limit = limit();
+            long due = (long) ((System.nanoTime() - startNanos) / 1_000_000 * rate) + leadMillis;
+            long delay = POLL_MILLIS;
+            boolean written = false;
+            while (channel.isWritable()) {
+                Tag tag = readTag(position, limit);
+                if (tag == null) {
+                    if (finished) {
+                        end();
+                        return;
+                    }
+                    if (!recording.isClosed()) {
+                        joinLive();
+                        return;
+                    }
+                    // Frames queued before the stream closed are still being written
+                    break;
+                }
+                long at = tag.timestamp() - firstTimestamp;
+                if (at > due) {
+                    delay = Math.max(1, (long) ((at - due) / rate));
+                    break;
+                }
+                send(tag, tag.timestamp());
+                lastTimestamp = tag.timestamp();
+                position = tag.end();
+                written = true;
+            }
+            if (written) {
+                channel.flush();
+            }
+            scheduled = channel.eventLoop().schedule(this::pump, delay, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            log.error("Playback of {} failed", path, e);
+            channel.close();
+        }
+    }
+
+    private void send(Tag tag, int timestamp) {
+        // Timestamps of a published stream are put back on its timeline for the switch to live
+        int streamTimestamp = recording == null ? timestamp : recording.getBaseTimestamp() + timestamp;
+        channel.write(new RecordedMediaMessage((short) tag.type(), streamTimestamp, file, tag.payload(), tag.size()));
+        recorder.played(tag.size());
+    }
+
+    private void joinLive() {
+        log.info("Playback of {} caught up with the live stream", path);
+        // Regions already queued still read the file
+        channel.write(Unpooled.EMPTY_BUFFER).addListener(future -> close());
+        if (lastTimestamp < 0) {
+            stream.addSubscriber(channel);
+        } else {
+            stream.resumeSubscriber(channel, recording.getBaseTimestamp() + lastTimestamp);
+        }
+    }
+
+    private void end() {
+        log.info("Playback of {} reached the end of the recording", path);
+        channel.writeAndFlush(MessageTemplates.STREAM_EOF_EVENT.message()).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        recorder.playbackStopped();
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.warn("Failed to close {}", path, e);
+        }
+    }
+
+    private long limit() throws IOException {
+        return recording == null ? file.size() : recording.committed();
+    }
+
+    // Null when the tag is not completely written yet
+    private Tag readTag(long offset, long limit) throws IOException {
+        if (offset + TAG_HEADER_SIZE + PREVIOUS_TAG_SIZE > limit) {
+            return null;
+        }
+        readFully(header, offset);
+        int type = header.get(0) & 0x1f;
+        int size = ((header.get(1) & 0xff) << 16) | ((header.get(2) & 0xff) << 8) | (header.get(3) & 0xff);
+        // Upper 8 bits of the timestamp come last
+        int timestamp = ((header.get(7) & 0xff) << 24)
+                | ((header.get(4) & 0xff) << 16) | ((header.get(5) & 0xff) << 8) | (header.get(6) & 0xff);
+        Tag tag = new Tag(type, timestamp, offset, size);
+        return tag.end() <= limit ? tag : null;
+    }
+
+    // Script data and codec configs at the start of the recording
+    private boolean isHeader(Tag tag) throws IOException {
+        if (tag.type() == TAG_SCRIPT) {
+            return true;
+        }
+        if (tag.size() < 2) {
+            return false;
+        }
+        readFully(probe, tag.payload());
+        return switch (tag.type()) {
+            case RTMP_MSG_USER_CONTROL_TYPE_AUDIO -> probe.get(1) == 0x00;
+            case RTMP_MSG_USER_CONTROL_TYPE_VIDEO -> probe.get(0) == 0x17 && probe.get(1) == 0x00;
+            default -> false;
+        };
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+        }
+        buffer.flip();
+    }
+}
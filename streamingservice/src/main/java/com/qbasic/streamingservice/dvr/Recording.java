@@ -0,0 +1,298 @@
+package com.qbasic.streamingservice.dvr;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+
+/**
+ * FLV recording of one publish session, {directory}/{stream}/{start millis}.flv with its keyframe index next to it.
+ * The publisher event loop only queues retained frames, a writer thread of the recorder commits them
+ * in groups with one gathering write. Frames over the pending limits are dropped rather than waited for,
+ * recording resumes on the next keyframe so the file stays decodable. Tag timestamps start from zero
+ * */
+@Slf4j
+public class Recording {
+
+    private static final int TAG_HEADER_SIZE = 11;
+    private static final int PREVIOUS_TAG_SIZE = 4;
+    private static final byte TAG_SCRIPT = 18;
+    // FLV signature, version 1, audio and video present, header size 9, first previous tag size 0
+    private static final byte[] FLV_HEADER = {'F', 'L', 'V', 1, 0x05, 0, 0, 0, 9, 0, 0, 0, 0};
+    // Audio only streams are indexed on a frame at most this often
+    private static final long AUDIO_INDEX_INTERVAL = 1000;
+
+    @Getter
+    private final String streamName;
+    private final DvrRecorder recorder;
+    @Getter
+    private final Path file;
+    private final Path indexFile;
+    // Wall clock time the publish started, media timestamps of the index are relative to it
+    private final long startMillis;
+    // onMetaData of the stream, written as the first tag
+    private final Supplier<RtmpMessage> metadata;
+
+    private final Queue<RtmpMediaMessage> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile boolean closed;
+    private volatile boolean finished;
+    // End of the data written so far, playback reads up to it
+    private volatile long committed;
+    // Stream timestamp of the first frame, tag timestamps are relative to it
+    @Getter
+    private volatile int baseTimestamp = -1;
+
+    // Publisher event loop only, a recording started mid-stream begins with the codec configs and a keyframe
+    private boolean waitingKeyframe = true;
+    private boolean video;
+
+    // Writer thread only
+    private FileChannel channel;
+    private KeyframeIndex index;
+    private long position;
+    private long lastIndexed = Long.MIN_VALUE;
+    private ByteBuffer headers = ByteBuffer.allocateDirect(64 * (TAG_HEADER_SIZE + PREVIOUS_TAG_SIZE));
+    private final List<RtmpMediaMessage> batch = new ArrayList<>();
+
+    Recording(String streamName, DvrRecorder recorder, Path directory, Supplier<RtmpMessage> metadata) {
+        this.streamName = streamName;
+        this.recorder = recorder;
+        this.startMillis = System.currentTimeMillis();
+        this.file = directory.resolve(streamName).resolve(startMillis + ".flv");
+        this.indexFile = directory.resolve(streamName).resolve(startMillis + ".idx");
+        this.metadata = metadata;
+    }
+
+    /** Called on the publisher event loop, never blocks. The caller keeps its reference */
+    public void append(RtmpMediaMessage message) {
+        if (closed) {
+            return;
+        }
+        boolean isVideo = message.header().getType() == RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+        video |= isVideo;
+        if (waitingKeyframe && !message.isVideoConfig() && !message.isAudioConfig()) {
+            if (video && !(isVideo && message.isKeyframe())) {
+                recorder.dropped();
+                return;
+            }
+            waitingKeyframe = false;
+        }
+        int size = message.size();
+        if (!recorder.reserve(this, size)) {
+            waitingKeyframe = true;
+            recorder.dropped();
+            return;
+        }
+        pendingBytes.addAndGet(size);
+        queue.add(message.retain());
+        recorder.appended(this);
+    }
+
+    public void close() {
+        closed = true;
+        recorder.closed(this);
+    }
+
+    long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // Every frame queued before close has been written or dropped, committed data is final
+    boolean isFinished() {
+        return finished;
+    }
+
+    long committed() {
+        return committed;
+    }
+
+    // Media was written, the file and its index exist
+    public boolean hasMedia() {
+        return baseTimestamp >= 0 && committed > 0;
+    }
+
+    /**
+     * Writes queued frames with one gathering write, called by the writer thread of the recording.
+     * Returns false when nothing was queued
+     * */
+    boolean commit(boolean fsync) throws IOException {
+        RtmpMediaMessage message;
+        while ((message = queue.poll()) != null) {
+            batch.add(message);
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+        long released = 0;
+        try {
+            if (channel == null) {
+                open();
+            }
+            ensureHeaderCapacity(batch.size());
+            headers.clear();
+            ByteBuffer[] buffers = new ByteBuffer[batch.size() * 3];
+            long[] offsets = new long[batch.size()];
+            long offset = position;
+            for (int i = 0; i < batch.size(); i++) {
+                RtmpMediaMessage frame = batch.get(i);
+                int size = frame.size();
+                offsets[i] = offset;
+                buffers[i * 3] = tagHeader(frame.header().getType(), timestamp(frame.header().getTimestamp()), size);
+                buffers[i * 3 + 1] = frame.payload().nioBuffer(frame.payload().readerIndex(), size);
+                buffers[i * 3 + 2] = previousTagSize(TAG_HEADER_SIZE + size);
+                offset += TAG_HEADER_SIZE + size + PREVIOUS_TAG_SIZE;
+            }
+            writeFully(buffers);
+            position = offset;
+            if (fsync) {
+                channel.force(false);
+            }
+            committed = position;
+            // Index entries only point at data already written
+            for (int i = 0; i < batch.size(); i++) {
+                indexFrame(batch.get(i), offsets[i]);
+            }
+            recorder.committed(position - offsets[0]);
+            return true;
+        } finally {
+            for (RtmpMediaMessage frame : batch) {
+                released += frame.size();
+                frame.release();
+            }
+            batch.clear();
+            pendingBytes.addAndGet(-released);
+            recorder.release(released);
+        }
+    }
+
+    // Releases frames that were never written and closes the files, called by the writer thread
+    void finish() {
+        RtmpMediaMessage message;
+        long released = 0;
+        while ((message = queue.poll()) != null) {
+            released += message.size();
+            message.release();
+        }
+        pendingBytes.addAndGet(-released);
+        recorder.release(released);
+        try {
+            if (index != null) {
+                index.close();
+            }
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close recording {}", file, e);
+        }
+        finished = true;
+        log.info("Recording of {} finished, {} bytes in {}", streamName, position, file);
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(file.getParent());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        index = KeyframeIndex.create(indexFile, startMillis, recorder.getIndexEntries());
+        ByteBuffer header = ByteBuffer.wrap(FLV_HEADER);
+        writeFully(new ByteBuffer[]{header});
+        position = FLV_HEADER.length;
+
+        RtmpMessage script = metadata.get();
+        if (script != null) {
+            ByteBuf payload = script.payload();
+            try {
+                int size = payload.readableBytes();
+                ensureHeaderCapacity(1);
+                headers.clear();
+                writeFully(new ByteBuffer[]{
+                        tagHeader(TAG_SCRIPT, 0, size),
+                        payload.nioBuffer(payload.readerIndex(), size),
+                        previousTagSize(TAG_HEADER_SIZE + size)});
+                position += TAG_HEADER_SIZE + size + PREVIOUS_TAG_SIZE;
+            } finally {
+                payload.release();
+            }
+        }
+        log.info("Recording {} to {}", streamName, file);
+    }
+
+    private void indexFrame(RtmpMediaMessage frame, long offset) throws IOException {
+        int timestamp = timestamp(frame.header().getTimestamp());
+        if (frame.header().getType() == RTMP_MSG_USER_CONTROL_TYPE_VIDEO) {
+            if (!frame.isKeyframe() || frame.isVideoConfig()) {
+                return;
+            }
+        } else if (video || frame.isAudioConfig() || timestamp - lastIndexed < AUDIO_INDEX_INTERVAL) {
+            return;
+        }
+        index.append(timestamp, offset);
+        lastIndexed = timestamp;
+    }
+
+    private int timestamp(int timestamp) {
+        if (baseTimestamp < 0) {
+            baseTimestamp = timestamp;
+        }
+        return Math.max(0, timestamp - baseTimestamp);
+    }
+
+    private ByteBuffer tagHeader(int type, int timestamp, int size) {
+        ByteBuffer header = headers.slice(headers.position(), TAG_HEADER_SIZE);
+        header.put((byte) type);
+        header.put((byte) (size >>> 16)).put((byte) (size >>> 8)).put((byte) size);
+        header.put((byte) (timestamp >>> 16)).put((byte) (timestamp >>> 8)).put((byte) timestamp);
+        // Upper 8 bits of the timestamp
+        header.put((byte) (timestamp >>> 24));
+        // Stream id is always 0
+        header.put((byte) 0).put((byte) 0).put((byte) 0);
+        headers.position(headers.position() + TAG_HEADER_SIZE);
+        return header.flip();
+    }
+
+    private ByteBuffer previousTagSize(int size) {
+        ByteBuffer trailer = headers.slice(headers.position(), PREVIOUS_TAG_SIZE);
+        trailer.putInt(size);
+        headers.position(headers.position() + PREVIOUS_TAG_SIZE);
+        return trailer.flip();
+    }
+
+    private void ensureHeaderCapacity(int frames) {
+        int required = frames * (TAG_HEADER_SIZE + PREVIOUS_TAG_SIZE);
+        if (headers.capacity() < required) {
+            headers = ByteBuffer.allocateDirect(Integer.highestOneBit(required) << 1);
+        }
+    }
+
+    // Gathering writes may be partial
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        int first = 0;
+        while (first < buffers.length) {
+            channel.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.qbasic.streamingservice.hls;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * AAC AudioSpecificConfig from the FLV sequence header, enough to build ADTS headers.
+ * HE-AAC is signalled as LC, decoders find SBR in the stream implicitly
+ * */
+public record AacConfig(int profile, int samplingIndex, int channels) {
+
+    public static final int ADTS_HEADER_SIZE = 7;
+
+    private static final int[] SAMPLING_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    // Payload starts with FLV audio tag header of 2 bytes
+    public static AacConfig parse(ByteBuf payload) {
+        int index = payload.readerIndex() + 2;
+        if (payload.writerIndex() - index < 2) {
+            throw new IllegalArgumentException("AudioSpecificConfig is truncated");
+        }
+        int first = payload.getUnsignedByte(index);
+        int second = payload.getUnsignedByte(index + 1);
+        int objectType = first >> 3;
+        int samplingIndex = ((first & 0x07) << 1) | (second >> 7);
+        int channels = (second >> 3) & 0x0f;
+        if (samplingIndex >= SAMPLING_RATES.length) {
+            throw new IllegalArgumentException("Explicit AAC sampling rate is not supported");
+        }
+        // ADTS profile is object type minus one and has two bits only
+        int profile = objectType >= 1 && objectType <= 4 ? objectType - 1 : 1;
+        return new AacConfig(profile, samplingIndex, channels);
+    }
+
+    public int sampleRate() {
+        return SAMPLING_RATES[samplingIndex];
+    }
+
+    public void writeAdtsHeader(ByteBuf out, int rawLength) {
+        int frameLength = ADTS_HEADER_SIZE + rawLength;
+        out.writeByte(0xff);
+        // MPEG-4, layer 0, no CRC
+        out.writeByte(0xf1);
+        out.writeByte((profile << 6) | (samplingIndex << 2) | (channels >> 2));
+        out.writeByte(((channels & 0x03) << 6) | (frameLength >> 11));
+        out.writeByte(frameLength >> 3);
+        // Buffer fullness 0x7ff, one raw data block
+        out.writeByte(((frameLength & 0x07) << 5) | 0x1f);
+        out.writeByte(0xfc);
+    }
+}
@@ -0,0 +1,57 @@
+package com.qbasic.streamingservice.hls;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * H.264 decoder configuration from the FLV sequence header.
+ * Parameter sets are kept in Annex B form, ready to be repeated in front of every keyframe
+ * */
+public record AvcConfig(int nalLengthSize, byte[] parameterSets) {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    /**
+     * Parses AVCDecoderConfigurationRecord of a video config message,
+     * payload starts with FLV video tag header of 5 bytes
+     * */
+    public static AvcConfig parse(ByteBuf payload) {
+        int index = payload.readerIndex() + 5;
+        int end = payload.writerIndex();
+        if (end - index < 7) {
+            throw new IllegalArgumentException("AVC decoder configuration record is truncated");
+        }
+        int nalLengthSize = (payload.getByte(index + 4) & 0x03) + 1;
+        ByteArrayOutputStream parameterSets = new ByteArrayOutputStream();
+
+        index += 5;
+        int spsCount = payload.getByte(index++) & 0x1f;
+        index = readParameterSets(payload, index, end, spsCount, parameterSets);
+        if (index >= end) {
+            throw new IllegalArgumentException("AVC decoder configuration record has no PPS");
+        }
+        int ppsCount = payload.getByte(index++) & 0xff;
+        readParameterSets(payload, index, end, ppsCount, parameterSets);
+        return new AvcConfig(nalLengthSize, parameterSets.toByteArray());
+    }
+
+    private static int readParameterSets(ByteBuf payload, int index, int end, int count, ByteArrayOutputStream out) {
+        for (int i = 0; i < count; i++) {
+            if (index + 2 > end) {
+                throw new IllegalArgumentException("AVC parameter set is truncated");
+            }
+            int length = payload.getUnsignedShort(index);
+            index += 2;
+            if (index + length > end) {
+                throw new IllegalArgumentException("AVC parameter set is truncated");
+            }
+            byte[] nal = new byte[length];
+            payload.getBytes(index, nal);
+            out.writeBytes(START_CODE);
+            out.writeBytes(nal);
+            index += length;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,264 @@
+package com.qbasic.streamingservice.hls;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import lombok.extern.slf4j.Slf4j;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+
+/**
+ * Cuts published H.264/AAC media into MPEG-TS segments of the passthrough rendition.
+ * Segments start on keyframes once the target duration is reached, so they are never shorter than the target
+ * and longer by at most one group of pictures. A stream that sends no video for a target duration of audio
+ * is segmented on audio frames instead. The playlist target duration is pinned at stream start from the interval
+ * of the first two keyframes. A segment is built in memory and handed to the writer when cut.
+ * With low latency enabled every segment is also split into partial segments on frame boundaries,
+ * bytes of the current part are passed to the writer after each frame so it can be served while being written.
+ * Fed on the publisher event loop, streams with other codecs are not segmented
+ * */
+@Slf4j
+public class HlsSegmenter {
+
+    private static final int AVC_CODEC_ID = 7;
+    private static final int AAC_SOUND_FORMAT = 10;
+    private static final int MIN_SEGMENT_CAPACITY = 64 * 1024;
+
+    private final String streamName;
+    private final HlsWriter writer;
+    private final long targetDurationMs;
+    // Zero disables partial segments
+    private final long partTargetMs;
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private final TsMuxer muxer = new TsMuxer();
+
+    private AvcConfig avcConfig;
+    private AacConfig aacConfig;
+
+    private ByteBuf segment;
+    // Starts from the publish time so segment names of a republished stream are never reused
+    private long index = System.currentTimeMillis() / 1000;
+    private int segmentStart;
+    private int lastTimestamp;
+    private int lastDelta;
+    // Any video message was received
+    private boolean video;
+    // Segments are cut on audio frames, set once when audio spans a target duration without video
+    private boolean audioOnly;
+    // Timestamp of the first audio frame, -1 before it
+    private int firstAudio = -1;
+    // Timestamp of the first keyframe, -1 before it
+    private int firstKeyframe = -1;
+    private boolean targetPinned;
+    // Previous segment size, avoids growing the buffer of the next one
+    private int segmentCapacity = MIN_SEGMENT_CAPACITY;
+    private boolean closed;
+
+    private int part;
+    private int partStart;
+    private boolean partIndependent;
+    // Segment bytes already passed to the writer as part data
+    private int flushed;
+
+    public HlsSegmenter(String streamName, HlsWriter writer, long targetDurationMs, long partTargetMs) {
+        this.streamName = streamName;
+        this.writer = writer;
+        this.targetDurationMs = targetDurationMs;
+        this.partTargetMs = partTargetMs;
+    }
+
+    // False once the segmenter gave up on the stream or was closed
+    public synchronized boolean isActive() {
+        return !closed;
+    }
+
+    // Reads the message only, the caller keeps its reference
+    public synchronized void onMedia(RtmpMediaMessage message) {
+        if (closed || message.size() < 2) {
+            return;
+        }
+        try {
+            if (message.header().getType() == RTMP_MSG_USER_CONTROL_TYPE_VIDEO) {
+                onVideo(message);
+            } else {
+                onAudio(message);
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("Stream {} has malformed codec configuration, {}", streamName, e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (segment != null) {
+            if (lastTimestamp > segmentStart) {
+                int end = lastTimestamp + lastDelta;
+                finishPart(end);
+                writer.segment(streamName, index, (end - segmentStart) / 1000.0, segment);
+            } else {
+                segment.release();
+            }
+            segment = null;
+        }
+        writer.finish(streamName);
+        muxer.release();
+    }
+
+    private void onVideo(RtmpMediaMessage message) {
+        video = true;
+        // Tables of the segments have no video stream
+        if (audioOnly) {
+            return;
+        }
+        ByteBuf payload = message.payload();
+        int codec = payload.getByte(payload.readerIndex()) & 0x0f;
+        if (codec != AVC_CODEC_ID) {
+            unsupported("video codec " + codec);
+            return;
+        }
+        if (message.isVideoConfig()) {
+            avcConfig = AvcConfig.parse(payload);
+            return;
+        }
+        // Only NAL unit packets, not end of sequence
+        if (avcConfig == null || payload.getByte(payload.readerIndex() + 1) != 1 || message.size() < 5) {
+            return;
+        }
+        int timestamp = message.header().getTimestamp();
+        boolean keyframe = message.isKeyframe();
+        cutOn(timestamp, keyframe);
+        if (segment != null) {
+            muxer.writeVideo(segment, message, avcConfig);
+            lastTimestamp = timestamp;
+            flushPart();
+        }
+    }
+
+    private void onAudio(RtmpMediaMessage message) {
+        ByteBuf payload = message.payload();
+        int format = (payload.getByte(payload.readerIndex()) & 0xf0) >> 4;
+        if (format != AAC_SOUND_FORMAT) {
+            unsupported("sound format " + format);
+            return;
+        }
+        if (message.isAudioConfig()) {
+            aacConfig = AacConfig.parse(payload);
+            return;
+        }
+        if (aacConfig == null) {
+            return;
+        }
+        int timestamp = message.header().getTimestamp();
+        if (!video && !audioOnly) {
+            if (firstAudio < 0) {
+                firstAudio = timestamp;
+            }
+            audioOnly = timestamp - firstAudio >= targetDurationMs;
+        }
+        if (audioOnly) {
+            // Every audio frame can start a segment
+            cutOn(timestamp, true);
+        }
+        if (segment != null) {
+            muxer.writeAudio(segment, message, aacConfig, audioOnly);
+            if (audioOnly) {
+                lastTimestamp = timestamp;
+            }
+            flushPart();
+        }
+    }
+
+    // Starts or cuts segments and parts before a frame of the stream segments are cut on is written
+    private void cutOn(int timestamp, boolean independent) {
+        if (independent && !targetPinned) {
+            pinTargetDuration(timestamp);
+        }
+        if (segment != null) {
+            lastDelta = Math.max(0, timestamp - lastTimestamp);
+        }
+        if (independent && segment == null) {
+            start(timestamp);
+        } else if (independent && timestamp - segmentStart >= targetDurationMs) {
+            cut(timestamp);
+        } else if (segment != null && partTargetMs > 0 && timestamp - partStart + lastDelta > partTargetMs) {
+            // Part would be longer than the target with this frame
+            finishPart(timestamp);
+            startPart(timestamp, independent);
+        }
+    }
+
+    // Segments are cut on the first keyframe past the target, so they last a whole number of keyframe intervals
+    private void pinTargetDuration(int timestamp) {
+        long segmentMs;
+        if (audioOnly) {
+            // Longer than the target by less than a frame
+            segmentMs = targetDurationMs;
+        } else if (firstKeyframe < 0) {
+            firstKeyframe = timestamp;
+            return;
+        } else {
+            long interval = timestamp - firstKeyframe;
+            if (interval <= 0) {
+                return;
+            }
+            segmentMs = (targetDurationMs + interval - 1) / interval * interval;
+        }
+        targetPinned = true;
+        writer.start(streamName, (segmentMs + 999) / 1000);
+    }
+
+    private void start(int timestamp) {
+        segment = allocator.directBuffer(segmentCapacity);
+        segmentStart = timestamp;
+        flushed = 0;
+        part = 0;
+        startPart(timestamp, true);
+    }
+
+    private void cut(int timestamp) {
+        finishPart(timestamp);
+        segmentCapacity = Math.max(MIN_SEGMENT_CAPACITY, segment.readableBytes());
+        writer.segment(streamName, index++, (timestamp - segmentStart) / 1000.0, segment);
+        segment = null;
+        start(timestamp);
+    }
+
+    // Every part starts with program tables so it can be decoded on its own
+    private void startPart(int timestamp, boolean independent) {
+        partStart = timestamp;
+        partIndependent = independent;
+        muxer.writeTables(segment, !audioOnly, aacConfig != null);
+    }
+
+    private void finishPart(int timestamp) {
+        if (partTargetMs <= 0) {
+            return;
+        }
+        flushPart();
+        writer.partComplete(streamName, index, part++, (timestamp - partStart) / 1000.0, partIndependent);
+    }
+
+    private void flushPart() {
+        if (partTargetMs <= 0) {
+            return;
+        }
+        int length = segment.writerIndex() - flushed;
+        if (length == 0) {
+            return;
+        }
+        // Copied since the segment buffer keeps growing on this thread while the writer reads the data
+        ByteBuf data = allocator.directBuffer(length, length);
+        data.writeBytes(segment, flushed, length);
+        flushed = segment.writerIndex();
+        writer.appendPart(streamName, index, part, data);
+    }
+
+    private void unsupported(String codec) {
+        log.warn("Stream {} uses {}, passthrough rendition is not segmented", streamName, codec);
+        close();
+    }
+}
@@ -0,0 +1,302 @@
+package com.qbasic.streamingservice.hls;
+
+import io.netty.buffer.ByteBuf;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Writes segments and media playlists of the passthrough rendition off the event loops.
+ * Layout matches the ffmpeg HLS muxer used by the transcoding service:
+ * {directory}/{stream}/{stream}_{rendition}.m3u8 and {directory}/{stream}/{stream}_{rendition}/data{n}.ts.
+ * Segments and playlists are written to a temporary name and renamed, readers never see a partial one.
+ * Partial segments data{n}.{part}.ts are appended in place while being produced, a part is complete
+ * once the playlist lists it. Target duration of a playlist is pinned when its stream starts and never changes,
+ * a low latency playlist is first written once it is pinned. A single thread keeps writes of a stream in order
+ * */
+@Slf4j
+public class HlsWriter {
+
+    private record Part(int index, double duration, boolean independent) {
+    }
+
+    private record Segment(long index, double duration, List<Part> parts) {
+    }
+
+    private static class Playlist {
+        final Deque<Segment> segments = new ArrayDeque<>();
+        List<Part> openParts = new ArrayList<>();
+        long openSegment;
+        // Zero until pinned
+        long targetDuration;
+        // Part being appended
+        FileChannel partChannel;
+        long partSegment = -1;
+        int partIndex = -1;
+    }
+
+    // Parts are listed for the latest segments only, older ones are played as whole segments
+    private static final int SEGMENTS_WITH_PARTS = 2;
+
+    private final Path directory;
+    private final String rendition;
+    private final int listSize;
+    private final long targetDuration;
+    // Zero when partial segments are disabled
+    private final double partTarget;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "hls-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Accessed by the writer thread only
+    private final Map<String, Playlist> playlists = new HashMap<>();
+
+    public HlsWriter(String directory, String rendition, int listSize, long targetDurationSeconds, double partTargetSeconds) {
+        this.directory = Paths.get(directory);
+        this.rendition = rendition;
+        this.listSize = listSize;
+        this.targetDuration = targetDurationSeconds;
+        this.partTarget = partTargetSeconds;
+    }
+
+    /**
+     * Pins the target duration of the stream playlist, called before its first segment is cut.
+     * It is never below the configured target
+     * */
+    public void start(String stream, long targetDurationSeconds) {
+        submit(() -> {
+            try {
+                Playlist playlist = playlist(stream);
+                if (playlist.targetDuration > 0) {
+                    return;
+                }
+                playlist.targetDuration = Math.max(targetDuration, targetDurationSeconds);
+                // Parts completed meanwhile are listed now
+                if (!playlist.openParts.isEmpty()) {
+                    writePlaylist(stream, playlist, false);
+                }
+            } catch (IOException e) {
+                log.error("Failed to write HLS playlist of stream {}", stream, e);
+            }
+        }, null);
+    }
+
+    /** Takes ownership of the data buffer */
+    public void appendPart(String stream, long segment, int part, ByteBuf data) {
+        submit(() -> {
+            try {
+                Playlist playlist = playlist(stream);
+                if (playlist.partSegment != segment || playlist.partIndex != part) {
+                    closePart(playlist);
+                    Path file = renditionDirectory(stream).resolve("data" + segment + "." + part + ".ts");
+                    Files.createDirectories(file.getParent());
+                    playlist.partChannel = FileChannel.open(file,
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    playlist.partSegment = segment;
+                    playlist.partIndex = part;
+                }
+                int index = data.readerIndex();
+                int end = data.writerIndex();
+                while (index < end) {
+                    index += data.getBytes(index, playlist.partChannel, end - index);
+                }
+            } catch (IOException e) {
+                log.error("Failed to write HLS part {}.{} of stream {}", segment, part, stream, e);
+            } finally {
+                data.release();
+            }
+        }, data);
+    }
+
+    public void partComplete(String stream, long segment, int part, double duration, boolean independent) {
+        submit(() -> {
+            try {
+                Playlist playlist = playlist(stream);
+                closePart(playlist);
+                if (playlist.openSegment != segment) {
+                    playlist.openSegment = segment;
+                    playlist.openParts = new ArrayList<>();
+                }
+                playlist.openParts.add(new Part(part, duration, independent));
+                if (playlist.targetDuration > 0) {
+                    writePlaylist(stream, playlist, false);
+                }
+            } catch (IOException e) {
+                log.error("Failed to complete HLS part {}.{} of stream {}", segment, part, stream, e);
+            }
+        }, null);
+    }
+
+    /** Takes ownership of the segment buffer */
+    public void segment(String stream, long index, double duration, ByteBuf data) {
+        submit(() -> {
+            try {
+                Path file = renditionDirectory(stream).resolve("data" + index + ".ts");
+                Files.createDirectories(file.getParent());
+                writeAtomically(file, data);
+                Playlist playlist = playlist(stream);
+                if (playlist.targetDuration == 0) {
+                    // Stream ended before the target duration was known
+                    playlist.targetDuration = Math.max(targetDuration, (long) Math.ceil(duration));
+                } else if (Math.round(duration) > playlist.targetDuration) {
+                    log.warn("HLS segment {} of stream {} is {} s, longer than the target duration of {} s",
+                            index, stream, decimal(duration), playlist.targetDuration);
+                }
+                List<Part> parts = playlist.openSegment == index ? playlist.openParts : List.of();
+                playlist.segments.addLast(new Segment(index, duration, parts));
+                playlist.openSegment = index + 1;
+                playlist.openParts = new ArrayList<>();
+                while (playlist.segments.size() > listSize) {
+                    playlist.segments.removeFirst();
+                }
+                writePlaylist(stream, playlist, false);
+            } catch (IOException e) {
+                log.error("Failed to write HLS segment {} of stream {}", index, stream, e);
+            } finally {
+                data.release();
+            }
+        }, data);
+    }
+
+    // Marks the playlist of an ended stream, players stop reloading it
+    public void finish(String stream) {
+        submit(() -> {
+            Playlist playlist = playlists.remove(stream);
+            if (playlist == null) {
+                return;
+            }
+            try {
+                closePart(playlist);
+                playlist.openParts = new ArrayList<>();
+                if (playlist.targetDuration == 0) {
+                    playlist.targetDuration = targetDuration;
+                }
+                writePlaylist(stream, playlist, true);
+            } catch (IOException e) {
+                log.error("Failed to finish HLS playlist of stream {}", stream, e);
+            }
+        }, null);
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void submit(Runnable task, ByteBuf data) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.info("HLS writer is shut down, segment is not written");
+            if (data != null) {
+                data.release();
+            }
+        }
+    }
+
+    private Playlist playlist(String stream) {
+        return playlists.computeIfAbsent(stream, name -> new Playlist());
+    }
+
+    private static void closePart(Playlist playlist) throws IOException {
+        if (playlist.partChannel != null) {
+            playlist.partChannel.close();
+            playlist.partChannel = null;
+            playlist.partSegment = -1;
+            playlist.partIndex = -1;
+        }
+    }
+
+    private void writePlaylist(String stream, Playlist playlist, boolean ended) throws IOException {
+        boolean lowLatency = partTarget > 0;
+        StringBuilder builder = new StringBuilder(1024);
+        builder.append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:").append(lowLatency ? 6 : 3).append('\n')
+                .append("#EXT-X-TARGETDURATION:").append(playlist.targetDuration).append('\n');
+        if (lowLatency) {
+            builder.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=")
+                    .append(decimal(partTarget * 3)).append('\n')
+                    .append("#EXT-X-PART-INF:PART-TARGET=").append(decimal(partTarget)).append('\n');
+        }
+        builder.append("#EXT-X-MEDIA-SEQUENCE:")
+                .append(playlist.segments.isEmpty() ? playlist.openSegment : playlist.segments.getFirst().index())
+                .append('\n');
+
+        String prefix = stream + "_" + rendition + "/data";
+        int withParts = playlist.segments.size() - SEGMENTS_WITH_PARTS;
+        int position = 0;
+        for (Segment segment : playlist.segments) {
+            if (lowLatency && position++ >= withParts) {
+                appendParts(builder, prefix, segment.index(), segment.parts());
+            }
+            builder.append("#EXTINF:").append(decimal(segment.duration())).append(",\n")
+                    .append(prefix).append(segment.index()).append(".ts\n");
+        }
+        if (ended) {
+            builder.append("#EXT-X-ENDLIST\n");
+        } else if (lowLatency) {
+            appendParts(builder, prefix, playlist.openSegment, playlist.openParts);
+            // Next part is requested ahead and served as it is written
+            int nextPart = playlist.openParts.isEmpty() ? 0 : playlist.openParts.get(playlist.openParts.size() - 1).index() + 1;
+            builder.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"")
+                    .append(prefix).append(playlist.openSegment).append('.').append(nextPart).append(".ts\"\n");
+        }
+
+        Path file = directory.resolve(stream).resolve(stream + "_" + rendition + ".m3u8");
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+        Files.writeString(temporary, builder, StandardCharsets.US_ASCII);
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void appendParts(StringBuilder builder, String prefix, long segment, List<Part> parts) {
+        for (Part part : parts) {
+            builder.append("#EXT-X-PART:DURATION=").append(decimal(part.duration()))
+                    .append(",URI=\"").append(prefix).append(segment).append('.').append(part.index()).append(".ts\"");
+            if (part.independent()) {
+                builder.append(",INDEPENDENT=YES");
+            }
+            builder.append('\n');
+        }
+    }
+
+    private static String decimal(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private Path renditionDirectory(String stream) {
+        return directory.resolve(stream).resolve(stream + "_" + rendition);
+    }
+
+    private static void writeAtomically(Path file, ByteBuf data) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int index = data.readerIndex();
+            int end = data.writerIndex();
+            while (index < end) {
+                index += data.getBytes(index, channel, index - data.readerIndex(), end - index);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
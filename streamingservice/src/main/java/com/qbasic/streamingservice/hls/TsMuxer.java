@@ -0,0 +1,266 @@
+package com.qbasic.streamingservice.hls;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Arrays;
+
+/**
+ * Remuxes FLV H.264 and AAC frames into MPEG-TS packets of a single program.
+ * Every frame is one PES packet: video is converted from length prefixed NAL units to Annex B
+ * with parameter sets repeated on keyframes, audio gets ADTS headers.
+ * Continuity counters run across segments, every segment starts with PAT and PMT
+ * */
+public class TsMuxer {
+
+    public static final int PACKET_SIZE = 188;
+
+    private static final int PAT_PID = 0x0000;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x0100;
+    private static final int AUDIO_PID = 0x0101;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_TYPE_AAC = 0x0f;
+    private static final int VIDEO_STREAM_ID = 0xe0;
+    private static final int AUDIO_STREAM_ID = 0xc0;
+
+    // Timestamps are shifted ahead of the clock reference to give decoders buffering time
+    private static final long PCR_DELAY = 63_000;
+    private static final long TIMESTAMP_MASK = 0x1ffffffffL;
+
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    private static final int[] CRC_TABLE = crcTable();
+    private static final byte[] STUFFING = stuffing();
+
+    private int patCounter;
+    private int pmtCounter;
+    private int videoCounter;
+    private int audioCounter;
+
+    // Reused PES buffer, the muxer is used by one thread at a time
+    private final ByteBuf pes = Unpooled.buffer(64 * 1024);
+
+    // Clock reference is carried by video, by audio when the program has no video
+    public void writeTables(ByteBuf out, boolean video, boolean audio) {
+        ByteBuf section = Unpooled.buffer(32);
+        section.writeByte(0x00);
+        section.writeShort(0xb000 | 13);
+        // Transport stream id
+        section.writeShort(0x0001);
+        section.writeByte(0xc1);
+        section.writeByte(0x00);
+        section.writeByte(0x00);
+        // Program 1 maps to the PMT
+        section.writeShort(0x0001);
+        section.writeShort(0xe000 | PMT_PID);
+        writeSection(out, PAT_PID, patCounter++, section);
+
+        section.clear();
+        section.writeByte(0x02);
+        section.writeShort(0xb000 | (13 + (video ? 5 : 0) + (audio ? 5 : 0)));
+        section.writeShort(0x0001);
+        section.writeByte(0xc1);
+        section.writeByte(0x00);
+        section.writeByte(0x00);
+        section.writeShort(0xe000 | (video ? VIDEO_PID : AUDIO_PID));
+        section.writeShort(0xf000);
+        if (video) {
+            writeElementaryStream(section, STREAM_TYPE_H264, VIDEO_PID);
+        }
+        if (audio) {
+            writeElementaryStream(section, STREAM_TYPE_AAC, AUDIO_PID);
+        }
+        writeSection(out, PMT_PID, pmtCounter++, section);
+    }
+
+    /** Payload is an AVC NALU packet: FLV video tag header of 5 bytes followed by length prefixed NAL units */
+    public void writeVideo(ByteBuf out, RtmpMediaMessage message, AvcConfig config) {
+        ByteBuf payload = message.payload();
+        int start = payload.readerIndex();
+        int end = payload.writerIndex();
+        boolean keyframe = message.isKeyframe();
+        // Composition time offset is signed 24 bit
+        int compositionTime = (payload.getMedium(start + 2) << 8) >> 8;
+        long dts = (message.header().getTimestamp() * 90L + PCR_DELAY) & TIMESTAMP_MASK;
+        long pts = (dts + compositionTime * 90L) & TIMESTAMP_MASK;
+
+        pes.clear();
+        writePesHeader(pes, VIDEO_STREAM_ID, 0, pts, dts);
+        pes.writeBytes(ACCESS_UNIT_DELIMITER);
+        if (keyframe) {
+            pes.writeBytes(config.parameterSets());
+        }
+        int lengthSize = config.nalLengthSize();
+        int index = start + 5;
+        while (index + lengthSize <= end) {
+            int length = readLength(payload, index, lengthSize);
+            index += lengthSize;
+            if (length <= 0 || index + length > end) {
+                break;
+            }
+            int nalType = payload.getByte(index) & 0x1f;
+            // Delimiters are written above, parameter sets already precede keyframes
+            boolean skip = nalType == 9 || (keyframe && (nalType == 7 || nalType == 8));
+            if (!skip) {
+                pes.writeInt(1);
+                pes.writeBytes(payload, index, length);
+            }
+            index += length;
+        }
+        writePes(out, VIDEO_PID, true, keyframe, (dts - PCR_DELAY) & TIMESTAMP_MASK);
+    }
+
+    /**
+     * Payload is an AAC raw packet: FLV audio tag header of 2 bytes followed by one raw frame.
+     * Frames carry the clock reference when the program has no video
+     * */
+    public void writeAudio(ByteBuf out, RtmpMediaMessage message, AacConfig config, boolean withPcr) {
+        ByteBuf payload = message.payload();
+        int rawLength = payload.readableBytes() - 2;
+        if (rawLength <= 0) {
+            return;
+        }
+        long pts = (message.header().getTimestamp() * 90L + PCR_DELAY) & TIMESTAMP_MASK;
+
+        pes.clear();
+        writePesHeader(pes, AUDIO_STREAM_ID, AacConfig.ADTS_HEADER_SIZE + rawLength, pts, -1);
+        config.writeAdtsHeader(pes, rawLength);
+        pes.writeBytes(payload, payload.readerIndex() + 2, rawLength);
+        writePes(out, AUDIO_PID, false, false, withPcr ? (pts - PCR_DELAY) & TIMESTAMP_MASK : -1);
+    }
+
+    public void release() {
+        pes.release();
+    }
+
+    private static void writePesHeader(ByteBuf out, int streamId, int dataLength, long pts, long dts) {
+        boolean withDts = dts >= 0 && dts != pts;
+        int headerLength = withDts ? 10 : 5;
+        out.writeMedium(0x000001);
+        out.writeByte(streamId);
+        // Unbounded length is allowed for video only, large frames do not fit 16 bits anyway
+        int packetLength = dataLength > 0 ? 3 + headerLength + dataLength : 0;
+        out.writeShort(packetLength > 0xffff ? 0 : packetLength);
+        out.writeByte(0x80);
+        out.writeByte(withDts ? 0xc0 : 0x80);
+        out.writeByte(headerLength);
+        writeTimestamp(out, withDts ? 0x3 : 0x2, pts);
+        if (withDts) {
+            writeTimestamp(out, 0x1, dts);
+        }
+    }
+
+    private static void writeTimestamp(ByteBuf out, int prefix, long timestamp) {
+        out.writeByte((prefix << 4) | (int) ((timestamp >> 29) & 0x0e) | 0x01);
+        out.writeByte((int) (timestamp >> 22));
+        out.writeByte((int) ((timestamp >> 14) & 0xfe) | 0x01);
+        out.writeByte((int) (timestamp >> 7));
+        out.writeByte((int) ((timestamp << 1) & 0xfe) | 0x01);
+    }
+
+    /**
+     * Splits the PES buffer into transport packets, the last one is padded with adaptation field stuffing.
+     * The clock reference is written on the first packet when not negative, every frame of the clock stream
+     * carries one so the interval stays well under the 100 ms required by the standard
+     * */
+    private void writePes(ByteBuf out, int pid, boolean video, boolean keyframe, long pcr) {
+        out.ensureWritable((pes.readableBytes() / 184 + 2) * PACKET_SIZE);
+        boolean first = true;
+        while (pes.isReadable()) {
+            int remaining = pes.readableBytes();
+            // Keyframes start with random access indicator
+            boolean randomAccess = first && keyframe;
+            boolean withPcr = first && pcr >= 0;
+            int adaptationLength = withPcr ? 8 : randomAccess ? 2 : 0;
+            int payloadLength = 184 - adaptationLength;
+            if (remaining < payloadLength) {
+                adaptationLength += payloadLength - remaining;
+                payloadLength = remaining;
+            }
+
+            int counter = video ? videoCounter++ : audioCounter++;
+            out.writeByte(0x47);
+            out.writeByte((first ? 0x40 : 0x00) | (pid >> 8));
+            out.writeByte(pid);
+            out.writeByte((adaptationLength > 0 ? 0x30 : 0x10) | (counter & 0x0f));
+            if (adaptationLength > 0) {
+                out.writeByte(adaptationLength - 1);
+                if (adaptationLength > 1) {
+                    out.writeByte((randomAccess ? 0x40 : 0x00) | (withPcr ? 0x10 : 0x00));
+                    int written = 2;
+                    if (withPcr) {
+                        writePcr(out, pcr);
+                        written += 6;
+                    }
+                    out.writeBytes(STUFFING, 0, adaptationLength - written);
+                }
+            }
+            out.writeBytes(pes, payloadLength);
+            first = false;
+        }
+    }
+
+    private static void writePcr(ByteBuf out, long base) {
+        out.writeInt((int) (base >> 1));
+        // Last bit of the base, reserved bits and zero extension
+        out.writeByte((int) ((base & 0x01) << 7) | 0x7e);
+        out.writeByte(0x00);
+    }
+
+    private static void writeElementaryStream(ByteBuf section, int streamType, int pid) {
+        section.writeByte(streamType);
+        section.writeShort(0xe000 | pid);
+        section.writeShort(0xf000);
+    }
+
+    // Writes a single packet PSI section with pointer field, CRC and 0xff padding
+    private static void writeSection(ByteBuf out, int pid, int counter, ByteBuf section) {
+        int crc = crc32(section);
+        section.writeInt(crc);
+        out.writeByte(0x47);
+        out.writeByte(0x40 | (pid >> 8));
+        out.writeByte(pid);
+        out.writeByte(0x10 | (counter & 0x0f));
+        out.writeByte(0x00);
+        int length = section.readableBytes();
+        out.writeBytes(section, section.readerIndex(), length);
+        out.writeBytes(STUFFING, 0, PACKET_SIZE - 5 - length);
+    }
+
+    private static int readLength(ByteBuf buf, int index, int size) {
+        return switch (size) {
+            case 1 -> buf.getUnsignedByte(index);
+            case 2 -> buf.getUnsignedShort(index);
+            case 3 -> buf.getUnsignedMedium(index);
+            default -> buf.getInt(index);
+        };
+    }
+
+    // MPEG-2 CRC32: polynomial 0x04c11db7, not reflected, no final xor
+    private static int crc32(ByteBuf buf) {
+        int crc = 0xffffffff;
+        for (int i = buf.readerIndex(); i < buf.writerIndex(); i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ buf.getUnsignedByte(i)) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int[] crcTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            table[i] = crc;
+        }
+        return table;
+    }
+
+    private static byte[] stuffing() {
+        byte[] bytes = new byte[PACKET_SIZE];
+        Arrays.fill(bytes, (byte) 0xff);
+        return bytes;
+    }
+}
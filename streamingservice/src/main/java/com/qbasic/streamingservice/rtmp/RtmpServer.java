@@ -1,9 +1,19 @@
 package com.qbasic.streamingservice.rtmp;
 
-import com.qbasic.streamingservice.rtmp.entity.User;
+import com.qbasic.streamingservice.dto.SourceInfo;
+import com.qbasic.streamingservice.rtmp.config.RtmpProperties;
 import com.qbasic.streamingservice.rtmp.handlers.*;
 import com.qbasic.streamingservice.rtmp.model.context.Stream;
+import com.qbasic.streamingservice.rtmp.model.context.StreamContext;
+import com.qbasic.streamingservice.service.StreamKeyValidator;
+import com.qbasic.streamingservice.service.TranscodingAdmission;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -11,14 +21,15 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
 import reactor.netty.*;
+import reactor.netty.resources.LoopResources;
 import reactor.netty.tcp.TcpServer;
 import reactor.util.retry.Retry;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 
 @NoArgsConstructor
@@ -28,6 +39,7 @@ import java.time.Duration;
 public abstract class RtmpServer implements CommandLineRunner {
 
     protected abstract RtmpMessageHandler getRtmpMessageHandler();
+    protected abstract FlushCoalescingHandler getFlushCoalescingHandler();
     protected abstract InboundConnectionLogger getInboundConnectionLogger();
     protected abstract HandshakeHandler getHandshakeHandler();
     protected abstract ChunkDecoder getChunkDecoder();
@@ -36,48 +48,56 @@ public abstract class RtmpServer implements CommandLineRunner {
     @Autowired
     private WebClient webClient;
 
+    @Autowired
+    private RtmpProperties properties;
+
+    @Autowired
+    private StreamContext streamContext;
+
+    @Autowired
+    private StreamKeyValidator streamKeyValidator;
+
+    @Autowired
+    private TranscodingAdmission transcodingAdmission;
+
     @Value("${transcoding.server}")
     private String transcodingAddress;
 
-    @Value("${auth.server}")
-    private String authAddress;
-
     @Override
     public void run(String... args) {
-        DisposableServer server = TcpServer.create()
+        RtmpProperties.ServerProperties serverProperties = properties.getServer();
+        TcpServer server = configure(TcpServer.create(), serverProperties)
                 //.host("0.0.0.0")
-                .port(1935)
                 .doOnBound(disposableServer ->
                         log.info("RTMP server started on port {}", disposableServer.port()))
                 .doOnConnection(connection -> connection
+                        // Closest to the socket to consolidate flushes of all handlers
+                        .addHandlerLast(getFlushCoalescingHandler())
                         .addHandlerLast(getInboundConnectionLogger())
                         .addHandlerLast(getHandshakeHandler())
                         .addHandlerLast(getChunkDecoder())
                         .addHandlerLast(getChunkEncoder())
                         .addHandlerLast(getRtmpMessageHandler()))
-                .option(ChannelOption.SO_BACKLOG, 128)
-                .childOption(ChannelOption.SO_KEEPALIVE, true)
                 .handle((in, out) -> in
                         .receiveObject()
                         .cast(Stream.class)
-                        .flatMap(stream ->
-                                webClient
-                                .post()
-                                .uri(authAddress + "/auth/check")
-                                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                                .body(Mono.just(new User(stream.getStreamName(), stream.getStreamKey())), User.class)
-                                .retrieve()
-                                .bodyToMono(Boolean.class)
-                                .retryWhen(Retry.fixedDelay(3, Duration.ofMillis(500)))
-                                .doOnError(error -> log.info(error.getMessage()))
-                                .onErrorReturn(Boolean.FALSE)
+                        .flatMap(stream -> streamKeyValidator
+                                .validate(stream.getStreamName(), stream.getStreamKey())
+                                .flatMap(valid -> valid
+                                        ? transcodingAdmission.admit(stream.getStreamName())
+                                        : Mono.just(Boolean.FALSE))
                                 .flatMap(ans -> {
                                     log.info("User {} stream key validation", stream.getStreamName());
                                     if (ans) {
+                                        // Only a validated publisher is visible to players and writes files
+                                        streamContext.addStream(stream);
+                                        stream.startOutputs();
                                         stream.sendPublishMessage();
                                         stream.getReadyToBroadcast().thenRun(() -> webClient
-                                                .get()
+                                                .post()
                                                 .uri(transcodingAddress + "/ffmpeg/" + stream.getStreamName())
+                                                // Metadata is sent before the first keyframe, the ladder is built for the source
+                                                .bodyValue(SourceInfo.from(stream.getMetadata(), stream.isSegmented()))
                                                 .retrieve()
                                                 .bodyToMono(Long.class)
                                                 //.delaySubscription(Duration.ofSeconds(10L))
@@ -88,14 +108,80 @@ public abstract class RtmpServer implements CommandLineRunner {
                                                     stream.getPublisher().disconnect();
                                                 })
                                                 .onErrorComplete()
-                                                .subscribe((s) -> log.info("Transcoding server started ffmpeg with pid " + s.toString())));
+                                                .subscribe((s) -> {
+                                                    if (s < 0) {
+                                                        log.info("Transcoding server is over budget, {} is passthrough only", stream.getStreamName());
+                                                    } else {
+                                                        log.info("Transcoding server started ffmpeg with pid " + s.toString());
+                                                    }
+                                                }));
                                     } else {
                                         stream.getPublisher().disconnect();
                                     }
                                     return Mono.empty();
                                 }))
-                        .then())
-                .bindNow();
-        server.onDispose().block();
+                        .then());
+
+        // With SO_REUSEPORT every bind is a separate accept queue, binds are spread over boss loops
+        int acceptors = reusePort(serverProperties) ? Math.max(1, serverProperties.getAcceptors()) : 1;
+        List<Mono<Void>> disposed = new ArrayList<>();
+        for (int i = 0; i < acceptors; i++) {
+            disposed.add(server.bindNow().onDispose());
+        }
+        Mono.when(disposed).block();
+    }
+
+    private TcpServer configure(TcpServer server, RtmpProperties.ServerProperties serverProperties) {
+        LoopResources loops = LoopResources.create(
+                "rtmp",
+                serverProperties.getBossThreads(),
+                serverProperties.getWorkerThreads() > 0
+                        ? serverProperties.getWorkerThreads()
+                        : LoopResources.DEFAULT_IO_WORKER_COUNT,
+                true);
+        log.info("RTMP server transport {}", serverProperties.isNativeTransport() && Epoll.isAvailable() ? "epoll" : "nio");
+
+        server = server
+                .port(serverProperties.getPort())
+                .runOn(loops, serverProperties.isNativeTransport())
+                .option(ChannelOption.SO_BACKLOG, serverProperties.getBacklog())
+                .childOption(ChannelOption.SO_KEEPALIVE, serverProperties.isKeepAlive())
+                .childOption(ChannelOption.TCP_NODELAY, serverProperties.isTcpNoDelay())
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        (int) serverProperties.getWriteBufferLowWaterMark().toBytes(),
+                        (int) serverProperties.getWriteBufferHighWaterMark().toBytes()))
+                .childOption(ChannelOption.ALLOCATOR, allocator(serverProperties.getAllocator()));
+
+        if (serverProperties.getSendBufferSize() != null) {
+            server = server.childOption(ChannelOption.SO_SNDBUF, (int) serverProperties.getSendBufferSize().toBytes());
+        }
+        if (serverProperties.getReceiveBufferSize() != null) {
+            // Set on the listening socket so accepted sockets get it before the handshake
+            server = server.option(ChannelOption.SO_RCVBUF, (int) serverProperties.getReceiveBufferSize().toBytes());
+        }
+        if (reusePort(serverProperties)) {
+            server = server.option(EpollChannelOption.SO_REUSEPORT, true);
+        } else if (serverProperties.getAcceptors() > 1) {
+            log.warn("Multiple acceptors require epoll transport, binding a single acceptor");
+        }
+        return server;
+    }
+
+    private static boolean reusePort(RtmpProperties.ServerProperties serverProperties) {
+        return serverProperties.isNativeTransport() && Epoll.isAvailable();
+    }
+
+    // Pools shared with the web server and clients, another pool would duplicate the arenas of every thread
+    private static ByteBufAllocator allocator(RtmpProperties.ServerProperties.Allocator allocator) {
+        return switch (allocator) {
+            case POOLED_DIRECT  -> PooledByteBufAllocator.DEFAULT;
+            case POOLED_HEAP    -> HeapAllocator.INSTANCE;
+            case UNPOOLED       -> UnpooledByteBufAllocator.DEFAULT;
+        };
+    }
+
+    // Created on first use, the heap pool is not allocated unless configured
+    private static final class HeapAllocator {
+        static final ByteBufAllocator INSTANCE = new PooledByteBufAllocator(false);
     }
 }
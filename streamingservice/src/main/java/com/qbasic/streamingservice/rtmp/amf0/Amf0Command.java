@@ -0,0 +1,57 @@
+package com.qbasic.streamingservice.rtmp.amf0;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command message decoded on demand. Command name and transaction id are read at once,
+ * following values are decoded when first accessed. Indexes match the AMF0 value positions,
+ * 0 is the command name and 1 the transaction id. The payload must stay readable while the command is used
+ * */
+public class Amf0Command {
+
+    private final Amf0Reader reader;
+    @Getter
+    private final String name;
+    @Getter
+    private final double transactionId;
+    private List<Object> values;
+
+    private Amf0Command(Amf0Reader reader, String name, double transactionId) {
+        this.reader = reader;
+        this.name = name;
+        this.transactionId = transactionId;
+    }
+
+    public static Amf0Command read(ByteBuf payload) {
+        Amf0Reader reader = new Amf0Reader(payload);
+        String name = reader.readString();
+        double transactionId = reader.hasNext() ? reader.readNumber() : 0;
+        return new Amf0Command(reader, name, transactionId);
+    }
+
+    public Object get(int index) {
+        if (index == 0) {
+            return name;
+        }
+        if (index == 1) {
+            return transactionId;
+        }
+        int position = index - 2;
+        if (values == null) {
+            values = new ArrayList<>(4);
+        }
+        while (values.size() <= position && reader.hasNext()) {
+            values.add(reader.readValue());
+        }
+        return position < values.size() ? values.get(position) : null;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + transactionId + ")";
+    }
+}
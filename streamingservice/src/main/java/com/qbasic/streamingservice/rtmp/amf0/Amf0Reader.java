@@ -0,0 +1,237 @@
+package com.qbasic.streamingservice.rtmp.amf0;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Streaming AMF0 reader. Values are read one by one from the buffer,
+ * so a caller can stop after the fields it needs or skip values without materializing them.
+ * Strings are decoded as UTF-8 straight from the buffer, well known command names
+ * and property keys are returned as shared constants
+ * */
+public class Amf0Reader {
+
+    // 0x09 end marker preceded by empty key
+    private static final int OBJECT_END_MARKER = 0x000009;
+
+    private final ByteBuf buf;
+
+    public Amf0Reader(ByteBuf buf) {
+        this.buf = buf;
+    }
+
+    public boolean hasNext() {
+        return buf.isReadable();
+    }
+
+    public Amf0Rules.Type peekType() {
+        return Amf0Rules.Type.getFromHexValue(buf.getUnsignedByte(buf.readerIndex()));
+    }
+
+    /** String value, null for null and undefined markers */
+    public String readString() {
+        Amf0Rules.Type type = Amf0Rules.Type.getFromHexValue(buf.readUnsignedByte());
+        return switch (type) {
+            case STRING         -> readUtf8(buf.readUnsignedShort());
+            case LONG_STRING    -> readUtf8(buf.readInt());
+            case    NULL,
+                    UNDEFINED   -> null;
+            default             -> throw new RuntimeException("Expected string, got " + type);
+        };
+    }
+
+    /** Number value, NaN for null and undefined markers */
+    public double readNumber() {
+        Amf0Rules.Type type = Amf0Rules.Type.getFromHexValue(buf.readUnsignedByte());
+        return switch (type) {
+            case NUMBER         -> buf.readDouble();
+            case    NULL,
+                    UNDEFINED   -> Double.NaN;
+            default             -> throw new RuntimeException("Expected number, got " + type);
+        };
+    }
+
+    public Object readValue() {
+        Amf0Rules.Type type = Amf0Rules.Type.getFromHexValue(buf.readUnsignedByte());
+
+        return switch (type) {
+            case NUMBER         -> buf.readDouble();
+            case BOOLEAN        -> buf.readByte() != 0x00;
+            case STRING         -> readUtf8(buf.readUnsignedShort());
+            case ECMA_ARRAY     -> {
+                // Associative count is a hint only, the array ends with object end marker
+                buf.skipBytes(4);
+                yield readProperties();
+            }
+            case OBJECT         -> readProperties();
+            case STRICT_ARRAY   -> readArray();
+            case DATE           -> readDate();
+            case LONG_STRING    -> readUtf8(buf.readInt());
+            case    NULL,
+                    UNDEFINED,
+                    UNSUPPORTED -> null;
+            default             -> throw new RuntimeException("Unsupported type " + type);
+        };
+    }
+
+    public void skipValue() {
+        Amf0Rules.Type type = Amf0Rules.Type.getFromHexValue(buf.readUnsignedByte());
+
+        switch (type) {
+            case NUMBER         -> buf.skipBytes(8);
+            case BOOLEAN        -> buf.skipBytes(1);
+            case STRING         -> buf.skipBytes(buf.readUnsignedShort());
+            case ECMA_ARRAY     -> {
+                buf.skipBytes(4);
+                skipProperties();
+            }
+            case OBJECT         -> skipProperties();
+            case STRICT_ARRAY   -> {
+                int length = buf.readInt();
+                for (int i = 0; i < length; i++) {
+                    skipValue();
+                }
+            }
+            case DATE           -> buf.skipBytes(10);
+            case LONG_STRING    -> buf.skipBytes(buf.readInt());
+            case    NULL,
+                    UNDEFINED,
+                    UNSUPPORTED -> {}
+            default             -> throw new RuntimeException("Unsupported type " + type);
+        }
+    }
+
+    private Map<String, Object> readProperties() {
+        Map<String, Object> map = new Amf0Rules.Amf0Object();
+        while (!isObjectEnd()) {
+            String key = readUtf8(buf.readUnsignedShort());
+            map.put(key, readValue());
+        }
+        return map;
+    }
+
+    private void skipProperties() {
+        while (!isObjectEnd()) {
+            buf.skipBytes(buf.readUnsignedShort());
+            skipValue();
+        }
+    }
+
+    private boolean isObjectEnd() {
+        if (buf.readableBytes() < 3) {
+            // Truncated object, treat the rest of the buffer as its end
+            buf.skipBytes(buf.readableBytes());
+            return true;
+        }
+        if (buf.getUnsignedMedium(buf.readerIndex()) == OBJECT_END_MARKER) {
+            buf.skipBytes(3);
+            return true;
+        }
+        return false;
+    }
+
+    private Object[] readArray() {
+        int length = buf.readInt();
+        Object[] array = new Object[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = readValue();
+        }
+        return array;
+    }
+
+    // Milliseconds since epoch as double followed by reserved time zone
+    private Instant readDate() {
+        double millis = buf.readDouble();
+        buf.skipBytes(2);
+        return Instant.ofEpochMilli((long) millis);
+    }
+
+    private String readUtf8(int length) {
+        int index = buf.readerIndex();
+        String known = KnownStrings.find(buf, index, length);
+        String value = known != null ? known : buf.toString(index, length, StandardCharsets.UTF_8);
+        buf.skipBytes(length);
+        return value;
+    }
+
+    /**
+     * Command names and property keys seen in every session.
+     * Lookup hashes bytes in place, only the matching constant is compared
+     * */
+    private static class KnownStrings {
+
+        private static final String[] VALUES = {
+                // Commands
+                "connect", "createStream", "publish", "play", "closeStream", "deleteStream",
+                "releaseStream", "FCPublish", "FCUnpublish", "getStreamLength", "_checkbw",
+                "@setDataFrame", "onMetaData", "live",
+                // Connect command object
+                "app", "type", "flashVer", "swfUrl", "tcUrl", "fpad", "capabilities",
+                "audioCodecs", "videoCodecs", "videoFunction", "pageUrl", "objectEncoding",
+                // Metadata
+                "duration", "fileSize", "filesize", "width", "height", "videocodecid", "videodatarate",
+                "framerate", "audiocodecid", "audiodatarate", "audiosamplerate", "audiosamplesize",
+                "audiochannels", "stereo", "encoder", "2.1", "3.1", "4.0", "4.1", "5.1", "7.1",
+                // Status objects
+                "level", "code", "description", "status", "error"
+        };
+
+        private static final String[][] BUCKETS = new String[256][];
+
+        static {
+            for (String value : VALUES) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                int bucket = hash(bytes) & (BUCKETS.length - 1);
+                String[] previous = BUCKETS[bucket];
+                String[] values = previous == null ? new String[1] : Arrays.copyOf(previous, previous.length + 1);
+                values[values.length - 1] = value;
+                BUCKETS[bucket] = values;
+            }
+        }
+
+        static String find(ByteBuf buf, int index, int length) {
+            if (length == 0 || length > 32) {
+                return length == 0 ? "" : null;
+            }
+            int hash = 1;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + buf.getByte(index + i);
+            }
+            String[] candidates = BUCKETS[hash & (BUCKETS.length - 1)];
+            if (candidates == null) {
+                return null;
+            }
+            for (String candidate : candidates) {
+                if (matches(candidate, buf, index, length)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        // Known strings are ASCII, so characters map to bytes one to one
+        private static boolean matches(String candidate, ByteBuf buf, int index, int length) {
+            if (candidate.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buf.getByte(index + i) != candidate.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(byte[] bytes) {
+            int hash = 1;
+            for (byte b : bytes) {
+                hash = 31 * hash + b;
+            }
+            return hash;
+        }
+    }
+}
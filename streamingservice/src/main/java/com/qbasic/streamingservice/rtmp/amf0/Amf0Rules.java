@@ -3,6 +3,7 @@ package com.qbasic.streamingservice.rtmp.amf0;
 
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.Serial;
@@ -44,8 +45,8 @@ public class Amf0Rules {
         XML_DOCUMENT(0x0F),
         TYPED_OBJECT(0x10);
 
-        // 0x09 end marker
-        private static final byte[] OBJECT_END_MARKER = new byte[] { 0x00, 0x00, 0x09 };
+        // 0x09 end marker preceded by empty key
+        private static final int OBJECT_END_MARKER = 0x000009;
         private final int value;
         Type(int value) {
             this.value = value;
@@ -116,20 +117,15 @@ public class Amf0Rules {
      * in network byte order
      * **/
     private static void encodeNumber(ByteBuf buf, Number number) {
-        // case double
-        if (number instanceof Double) {
-            buf.writeLong(Double.doubleToLongBits((Double) number));
-        // other cases
-        } else {
-            buf.writeLong(Double.doubleToLongBits(Double.parseDouble(number.toString())));
-        }
+        buf.writeDouble(number.doubleValue());
     }
 
+    // UTF-8 is written straight into the buffer, length is computed without encoding
     private static void encodeString(ByteBuf buf, String string) {
-        byte[] bytes = string.getBytes();
+        int length = ByteBufUtil.utf8Bytes(string);
         // length of the string
-        buf.writeShort((short) bytes.length);
-        buf.writeBytes(bytes);
+        buf.writeShort(length);
+        ByteBufUtil.reserveAndWriteUtf8(buf, string, length);
     }
 
     private static void encodeBoolean(ByteBuf buf, Boolean bool) {
@@ -141,7 +137,7 @@ public class Amf0Rules {
             encodeString(buf, entry.getKey());
             encode(buf, entry.getValue());
         }
-        buf.writeBytes(Type.OBJECT_END_MARKER);
+        buf.writeMedium(Type.OBJECT_END_MARKER);
     }
 
     private static void encodeEcmaArray(ByteBuf buf, Map<String, Object> map) {
@@ -156,9 +152,9 @@ public class Amf0Rules {
         }
     }
 
+    // Milliseconds since epoch followed by reserved time zone
     private static void encodeDate(ByteBuf buf, Instant instant) {
-        long epochSecond = instant.getEpochSecond();
-        buf.writeLong(Double.doubleToLongBits(epochSecond));
+        buf.writeDouble(instant.toEpochMilli());
         buf.writeShort(0);
     }
 
@@ -170,86 +166,16 @@ public class Amf0Rules {
 
 
     public static Object decode(ByteBuf buf) {
-        Type type = Type.getFromHexValue(buf.readByte());
-
-        return switch (type) {
-            case NUMBER         -> decodeNumber(buf);
-            case BOOLEAN        -> decodeBoolean(buf);
-            case STRING         -> decodeString(buf);
-            case ECMA_ARRAY     -> decodeEcmaArray(buf);
-            case OBJECT         -> decodeAmf0Object(buf);
-            case STRICT_ARRAY   -> decodeArray(buf);
-            case DATE           -> decodeDate(buf);
-            case LONG_STRING    -> decodeLongString(buf);
-            case    NULL,
-                    UNDEFINED,
-                    UNSUPPORTED -> null;
-            default             -> throw new RuntimeException("Unsupported type " + type);
-        };
+        return new Amf0Reader(buf).readValue();
     }
 
     public static List<Object> decodeAll(ByteBuf buf) {
+        Amf0Reader reader = new Amf0Reader(buf);
         List<Object> result = new ArrayList<>();
-        while (buf.isReadable()) {
-            Object obj = decode(buf);
-            result.add(obj);
+        while (reader.hasNext()) {
+            result.add(reader.readValue());
         }
         return result;
     }
 
-    private static Object decodeNumber(ByteBuf buf) {
-        return Double.longBitsToDouble(buf.readLong());
-    }
-
-    private static Boolean decodeBoolean(ByteBuf buf) {
-        return buf.readByte() == 0x01;
-    }
-
-    private static String decodeString(ByteBuf buf) {
-        short size = buf.readShort();
-        byte[] bytes = new byte[size];
-        buf.readBytes(bytes);
-        return new String(bytes);
-    }
-
-    private static Object decodeAmf0Object(ByteBuf buf) {
-        Map<String, Object> map = new Amf0Object();
-        byte[] endMarker = new byte[3];
-        while (buf.isReadable()) {
-            buf.getBytes(buf.readerIndex(), endMarker);
-            if (Arrays.equals(endMarker, Type.OBJECT_END_MARKER)) {
-                buf.skipBytes(3);
-                break;
-            }
-            map.put(decodeString(buf), decode(buf));
-        }
-        return map;
-    }
-
-    private static Object decodeEcmaArray(ByteBuf buf) {
-        buf.readInt();
-        return decodeAmf0Object(buf);
-    }
-
-    private static Object[] decodeArray(ByteBuf buf) {
-        int len = buf.readInt();
-        final Object[] array = new Object[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = decode(buf);
-        }
-        return array;
-    }
-
-    private static Instant decodeDate(ByteBuf buf) {
-        long epochSecond = buf.readLong();
-        return Instant.ofEpochSecond(epochSecond);
-    }
-
-    private static String decodeLongString(ByteBuf buf) {
-        int size = buf.readInt();
-        byte[] bytes = new byte[size];
-        buf.readBytes(bytes);
-        return new String(bytes);
-    }
-
 }
@@ -1,10 +1,17 @@
 package com.qbasic.streamingservice.rtmp.config;
 
+import com.qbasic.streamingservice.dvr.DvrRecorder;
+import com.qbasic.streamingservice.hls.HlsWriter;
 import com.qbasic.streamingservice.rtmp.RtmpServer;
 import com.qbasic.streamingservice.rtmp.handlers.*;
+import com.qbasic.streamingservice.rtmp.metrics.RtmpMetrics;
 import com.qbasic.streamingservice.rtmp.model.context.StreamContext;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.NoArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.DependsOn;
@@ -12,21 +19,66 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.web.reactive.function.client.WebClient;
 
 @Configuration
+@EnableConfigurationProperties(RtmpProperties.class)
 @NoArgsConstructor
 public class HandlerConfig {
 
+    @Autowired
+    private RtmpProperties properties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Absent when the output is disabled
+    @Autowired
+    private ObjectProvider<HlsWriter> hlsWriter;
+
+    @Autowired
+    private ObjectProvider<DvrRecorder> dvrRecorder;
+
     @Bean
     public WebClient getWebClient() {
         return WebClient.create();
     }
     @Bean
+    public RtmpMetrics rtmpMetrics() {
+        return new RtmpMetrics(meterRegistry);
+    }
+    // Writer threads and meters exist only when the output is enabled
+    @Bean
+    @ConditionalOnProperty(prefix = "rtmp.hls", name = "enabled", havingValue = "true", matchIfMissing = true)
+    public HlsWriter hlsWriter() {
+        RtmpProperties.HlsProperties hls = properties.getHls();
+        return new HlsWriter(
+                hls.getDirectory(),
+                hls.getRendition(),
+                hls.getListSize(),
+                hls.getSegmentDuration().toSeconds(),
+                hls.getPartDuration().toMillis() / 1000.0);
+    }
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "rtmp.dvr", name = "enabled", havingValue = "true")
+    public DvrRecorder dvrRecorder() {
+        RtmpProperties.DvrProperties dvr = properties.getDvr();
+        return new DvrRecorder(
+                dvr.getDirectory(),
+                dvr.getWriterThreads(),
+                dvr.getCommitInterval(),
+                dvr.getCommitSize().toBytes(),
+                dvr.getMaxStreamPending().toBytes(),
+                dvr.getMaxPending().toBytes(),
+                dvr.isFsync(),
+                dvr.getIndexEntries(),
+                meterRegistry);
+    }
+    @Bean
     public StreamContext streamContext() {
-        return new StreamContext();
+        return new StreamContext(properties, rtmpMetrics(), hlsWriter.getIfAvailable(), dvrRecorder.getIfAvailable());
     }
     @Bean
     @Scope(value = "prototype")
     public ChunkDecoder chunkDecoder() {
-        return new ChunkDecoder();
+        return new ChunkDecoder(rtmpMetrics().getDecode());
     }
 
     @Bean
@@ -35,10 +87,16 @@ public class HandlerConfig {
         return new ChunkEncoder();
     }
 
+    @Bean
+    @Scope(value = "prototype")
+    public FlushCoalescingHandler flushCoalescingHandler() {
+        return new FlushCoalescingHandler(properties.getFlush());
+    }
+
     @Bean
     @Scope(value = "prototype")
     public HandshakeHandler handshakeHandler() {
-        return new HandshakeHandler();
+        return new HandshakeHandler(rtmpMetrics().getHandshake());
     }
 
     @Bean
@@ -62,6 +120,10 @@ public class HandlerConfig {
                 return rtmpMessageHandler();
             }
             @Override
+            protected FlushCoalescingHandler getFlushCoalescingHandler() {
+                return flushCoalescingHandler();
+            }
+            @Override
             protected InboundConnectionLogger getInboundConnectionLogger() {
                 return inboundConnectionLogger();
             }
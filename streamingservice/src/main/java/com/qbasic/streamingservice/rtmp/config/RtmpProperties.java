@@ -0,0 +1,159 @@
+package com.qbasic.streamingservice.rtmp.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "rtmp")
+@NoArgsConstructor
+@Getter
+@Setter
+public class RtmpProperties {
+
+    private final ServerProperties server = new ServerProperties();
+    private final GopCacheProperties gopCache = new GopCacheProperties();
+    private final SubscriberProperties subscriber = new SubscriberProperties();
+    private final FlushProperties flush = new FlushProperties();
+    private final FanoutProperties fanout = new FanoutProperties();
+    private final HlsProperties hls = new HlsProperties();
+    private final DvrProperties dvr = new DvrProperties();
+
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class ServerProperties {
+
+        public enum Allocator {
+            POOLED_DIRECT, POOLED_HEAP, UNPOOLED
+        }
+
+        private int port = 1935;
+        // Accept queue length, capped by net.core.somaxconn of the host
+        private int backlog = 1024;
+        private boolean keepAlive = true;
+        // Epoll transport when available, falls back to NIO otherwise
+        private boolean nativeTransport = true;
+        // Sockets bound to the port with SO_REUSEPORT, kernel balances accepts between them. Requires epoll
+        private int acceptors = 1;
+        // Event loops accepting connections, 0 accepts on worker loops
+        private int bossThreads = 1;
+        // Event loops serving connections, 0 uses one per core
+        private int workerThreads = 0;
+        private boolean tcpNoDelay = true;
+        // Socket buffer sizes, OS defaults when not set
+        private DataSize sendBufferSize;
+        private DataSize receiveBufferSize;
+        // Default outbound buffer limits, viewers get rtmp.subscriber water marks on play
+        private DataSize writeBufferLowWaterMark = DataSize.ofKilobytes(32);
+        private DataSize writeBufferHighWaterMark = DataSize.ofKilobytes(64);
+        private Allocator allocator = Allocator.POOLED_DIRECT;
+    }
+
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class GopCacheProperties {
+        // Payload bytes kept per stream
+        private DataSize maxSize = DataSize.ofMegabytes(8);
+        // Media time between the oldest and the newest cached frame
+        private Duration maxDuration = Duration.ofSeconds(6);
+    }
+
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class SubscriberProperties {
+        // Outbound buffer of a viewer channel is unwritable above high and writable again below low water mark
+        private DataSize writeBufferLowWaterMark = DataSize.ofKilobytes(512);
+        private DataSize writeBufferHighWaterMark = DataSize.ofMegabytes(2);
+        // Estimated time to drain the outbound buffer after which video skips to the next keyframe
+        private Duration maxLag = Duration.ofSeconds(2);
+        // Viewer channel unwritable for longer is closed
+        private Duration unwritableTimeout = Duration.ofSeconds(10);
+        // Acknowledgement window requested from viewers, smaller window gives finer throughput estimate
+        private DataSize ackWindow = DataSize.ofKilobytes(256);
+    }
+
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class FlushProperties {
+        private final FlushRoleProperties publisher = new FlushRoleProperties(16, Duration.ZERO);
+        private final FlushRoleProperties subscriber = new FlushRoleProperties(64, Duration.ofMillis(5));
+    }
+
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Getter
+    @Setter
+    public static class FlushRoleProperties {
+        // Flushes merged into a single socket write at most
+        private int maxPendingFlushes;
+        // Delay of a flush requested outside of inbound read, zero flushes once queued tasks of the event loop ran
+        private Duration window;
+    }
+
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class FanoutProperties {
+
+        public enum Strategy {
+            // Subscribers stay on their event loop, each frame is one task per loop with subscribers
+            SHARDED,
+            // Experimental: subscribers are moved to the event loop of the publisher and written without task hand-off.
+            // Re-registration of the channel is not covered by tests, use SHARDED unless measured
+            COLOCATED
+        }
+
+        private Strategy strategy = Strategy.SHARDED;
+    }
+
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class HlsProperties {
+        // Source rendition segmented in process, ffmpeg only encodes the downscaled ones
+        private boolean enabled = true;
+        // Volume shared with the transcoding and content services
+        private String directory = "/home/streams";
+        // Variant name of the source rendition in {stream}_{rendition}.m3u8
+        private String rendition = "0";
+        // Segments are cut on the first keyframe after the target duration
+        private Duration segmentDuration = Duration.ofSeconds(4);
+        // Low latency partial segments cut on video frames, zero disables them
+        private Duration partDuration = Duration.ofMillis(333);
+        // Segments listed in the media playlist
+        private int listSize = 6;
+    }
+
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class DvrProperties {
+        // Published media recorded to FLV with a keyframe index for time-shifted playback
+        private boolean enabled = false;
+        private String directory = "/home/recordings";
+        private int writerThreads = 2;
+        // Queued frames of a recording are written together at most this late
+        private Duration commitInterval = Duration.ofMillis(250);
+        // Or as soon as this much is queued
+        private DataSize commitSize = DataSize.ofMegabytes(1);
+        // Frames over either bound are dropped until the next keyframe
+        private DataSize maxStreamPending = DataSize.ofMegabytes(8);
+        private DataSize maxPending = DataSize.ofMegabytes(512);
+        // Force every commit to disk, the index is forced on close only
+        private boolean fsync = false;
+        // Initial capacity of the keyframe index, it doubles when full
+        private int indexEntries = 4096;
+        // Recorded frames are sent this far ahead of real time
+        private Duration playbackLead = Duration.ofSeconds(2);
+        // Speed of sending recorded frames, above 1 a rewound viewer reaches the live edge and joins the fan-out
+        private double catchUpRate = 1.0;
+    }
+}
@@ -1,125 +1,131 @@
 package com.qbasic.streamingservice.rtmp.handlers;
 
 import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
+import com.qbasic.streamingservice.rtmp.model.context.Subscriber;
 import com.qbasic.streamingservice.rtmp.model.messages.RtmpHeader;
 import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
 import com.qbasic.streamingservice.rtmp.model.util.MessageProvider;
+import io.micrometer.core.instrument.Timer;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk stream decoder. One call of decode reads exactly one chunk or nothing,
+ * so a short read never replays a partially parsed header.
+ * State of every chunk stream lives in primitive arrays indexed by chunk stream id
+ * and message payloads are slices of inbound buffers, no garbage is produced per chunk
+ * */
 @Slf4j
-public class ChunkDecoder extends ReplayingDecoder<ChunkDecoder.DecodeState> {
+public class ChunkDecoder extends ByteToMessageDecoder {
+    private static final int INITIAL_CHUNK_STREAMS = 16;
+    // A chunk never needs to be longer than the largest message, 24 bit message length
+    private static final int MAX_CHUNK_SIZE = 0xffffff;
+
     private int clientChunkSize = RTMP_DEFAULT_CHUNK_SIZE;
     private int ackSize;
     private int bytesReceived;
     private int lastResponseSize;
-
-    private final Map<Integer, RtmpHeader> completeHeaders = new HashMap<>();
-    private final Map<Integer, ByteBuf> payloadParts = new HashMap<>(4);
-
-    private RtmpHeader currentHeader;
-    private ByteBuf currentPayload;
-    public enum DecodeState {
-        READ_HEADER, PROCESS_HEADER, PROCESS_PAYLOAD
+    // Set when the peer violated the protocol, the rest of the input is discarded while the channel closes
+    private boolean rejected;
+
+    // Decoding time of chunks since the last complete message
+    private final Timer decodeTimer;
+    private long decodeNanos;
+
+    // Last complete header of every chunk stream
+    private int[] timestamps = new int[INITIAL_CHUNK_STREAMS];
+    private int[] timestampDeltas = new int[INITIAL_CHUNK_STREAMS];
+    private int[] messageLengths = new int[INITIAL_CHUNK_STREAMS];
+    private short[] types = new short[INITIAL_CHUNK_STREAMS];
+    private int[] streamIds = new int[INITIAL_CHUNK_STREAMS];
+    private boolean[] extended = new boolean[INITIAL_CHUNK_STREAMS];
+    private long[] extendedTimestamps = new long[INITIAL_CHUNK_STREAMS];
+
+    // Message currently assembled on every chunk stream
+    private int[] bytesRemaining = new int[INITIAL_CHUNK_STREAMS];
+    private ByteBuf[] payloads = new ByteBuf[INITIAL_CHUNK_STREAMS];
+
+    public ChunkDecoder(Timer decodeTimer) {
+        this.decodeTimer = decodeTimer;
     }
 
     @Override
     protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf, List<Object> out) throws Exception {
-        //log.info("In decode");
-        DecodeState state = state();
-        if (state == null) {
-            state = DecodeState.READ_HEADER;
+        if (rejected) {
+            byteBuf.skipBytes(byteBuf.readableBytes());
+            return;
         }
+        int start = byteBuf.readerIndex();
+        int messages = out.size();
+        long startNanos = System.nanoTime();
+        boolean read = readChunk(channelHandlerContext, byteBuf, out);
+        decodeNanos += System.nanoTime() - startNanos;
+        if (!read) {
+            // Wait for the rest of the chunk
+            byteBuf.readerIndex(start);
+            return;
+        }
+        if (out.size() > messages) {
+            decodeTimer.record(decodeNanos, TimeUnit.NANOSECONDS);
+            decodeNanos = 0;
+        }
+        sendAcknowledgement(channelHandlerContext, byteBuf.readerIndex() - start);
+    }
 
-        switch (state) {
-            case READ_HEADER -> {
-                currentHeader = readHeader(byteBuf);
-                restoreHeader(currentHeader);
-                checkpoint(DecodeState.PROCESS_HEADER);
-            }
-            case PROCESS_HEADER -> {
-                int messageLength = currentHeader.getMessageLength();
-
-                if (currentHeader.getFmt() != RTMP_CHUNK_TYPE_3) {
-                    ByteBuf buf = Unpooled.buffer(messageLength, messageLength);
-                    payloadParts.put(currentHeader.getCid(), buf);
-                    completeHeaders.put(currentHeader.getCid(), currentHeader);
-                }
-                // Rare case when format 3 encoding is used and body completely read
-                payloadParts.putIfAbsent(currentHeader.getCid(), Unpooled.buffer(messageLength, messageLength));
-
-                currentPayload = payloadParts.get(currentHeader.getCid());
-
-                checkpoint(DecodeState.PROCESS_PAYLOAD);
-            }
-            case PROCESS_PAYLOAD -> {
-                byte[] bytes = new byte[Math.min(clientChunkSize, currentPayload.writableBytes())];
-                byteBuf.readBytes(bytes);
-                currentPayload.writeBytes(bytes);
-                checkpoint(DecodeState.READ_HEADER);
-
-                if (currentPayload.isWritable()) {
-                    return;
-                }
-
-                payloadParts.remove(currentHeader.getCid());
-
-                RtmpMessage message = new RtmpMessage(currentHeader, currentPayload);
-
-                sendAcknowledgement(channelHandlerContext, currentHeader.getHeaderLength() + currentHeader.getMessageLength());
-
-                switch (currentHeader.getType()) {
-                    case RTMP_MSG_CONTROL_TYPE_SET_CHUNK_SIZE               -> handleChunkSize(currentPayload);
-                    case RTMP_MSG_CONTROL_TYPE_WINDOW_ACKNOWLEDGEMENT_SIZE  -> handleWindowAckSize(currentPayload);
-                    case RTMP_MSG_CONTROL_TYPE_ACKNOWLEDGEMENT              -> handleAck(currentPayload);
-                    case RTMP_MSG_CONTROL_TYPE_ABORT                        -> handleAbort(currentPayload);
-                    default                                                 -> out.add(message);
-                }
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        for (int cid = 0; cid < payloads.length; cid++) {
+            if (payloads[cid] != null) {
+                payloads[cid].release();
+                payloads[cid] = null;
             }
         }
+        super.handlerRemoved0(ctx);
     }
 
-    private RtmpHeader readHeader(ByteBuf buf) {
-        /*
+    /*
                 +--------------+----------------+--------------------+--------------+
                 | Basic Header | Message Header | Extended Timestamp |  Chunk Data  |
                 +--------------+----------------+--------------------+--------------+
                 |                                                    |
                 |<------------------- Chunk Header ----------------->|
-        */
-
-        RtmpHeader header = new RtmpHeader();
-        int headerLength = 0;
-        byte firstByte = buf.readByte();
-        headerLength++;
+    */
+    private boolean readChunk(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) {
+        int headerStart = buf.readerIndex();
 
         // Decode Basic Header
-        int fmt = (firstByte & 0xff) >> 6;
+        int firstByte = buf.readUnsignedByte();
+        int fmt = firstByte >> 6;
         int cid = firstByte & 0x3f;
 
         if (cid == 0) {
             // 2 byte form
-            cid = buf.readByte() & 0xff + 64;
-            headerLength++;
+            if (!buf.isReadable()) {
+                return false;
+            }
+            cid = buf.readUnsignedByte() + 64;
         } else if (cid == 1) {
             // 3 byte form
-            byte secondByte = buf.readByte();
-            byte thirdByte = buf.readByte();
-            cid = (thirdByte & 0xff) * 256 + (secondByte & 0xff) + 64;
-            headerLength += 2;
+            if (buf.readableBytes() < 2) {
+                return false;
+            }
+            cid = buf.readUnsignedShortLE() + 64;
         }
+        ensureCapacity(cid);
 
-        header.setCid(cid);
-        header.setFmt(fmt);
-
-        // Read Message Header
+        // Read Message Header into locals, chunk stream state is only changed once the whole chunk is readable
+        int timestamp = 0;
+        int messageLength = messageLengths[cid];
+        short type = types[cid];
+        int messageStreamId = streamIds[cid];
         switch (fmt) {
             /* 11 bytes
             0                   1                   2                   3
@@ -133,24 +139,14 @@ public class ChunkDecoder extends ReplayingDecoder<ChunkDecoder.DecodeState> {
             +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
             */
             case RTMP_CHUNK_TYPE_0 -> {
-                // Read 24 bits
-                int timestamp = buf.readMedium();
-                int messageLength = buf.readMedium();
-                short type = (short) (buf.readByte() & 0xff);
-                // This field occupies 4 bytes in the chunk header in little endian format.
-                int messageStreamId = buf.readIntLE();
-                headerLength += 11;
-                // Presence of extended timestamp
-                if (timestamp == RTMP_MAX_TIMESTAMP) {
-                    long extendedTimestamp = buf.readInt();
-                    header.setExtendedTimestamp(extendedTimestamp);
-                    headerLength += 4;
+                if (buf.readableBytes() < 11) {
+                    return false;
                 }
-
-                header.setTimestamp(timestamp);
-                header.setMessageLength(messageLength);
-                header.setType(type);
-                header.setStreamId(messageStreamId);
+                timestamp = buf.readUnsignedMedium();
+                messageLength = buf.readUnsignedMedium();
+                type = buf.readUnsignedByte();
+                // This field occupies 4 bytes in the chunk header in little endian format.
+                messageStreamId = buf.readIntLE();
             }
             /* 7 bytes
             0                   1                   2                   3
@@ -162,21 +158,12 @@ public class ChunkDecoder extends ReplayingDecoder<ChunkDecoder.DecodeState> {
             +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
             */
             case RTMP_CHUNK_TYPE_1 -> {
-                int timestampDelta = buf.readMedium();
-                int messageLength = buf.readMedium();
-                short type = (short) (buf.readByte() & 0xff);
-
-                headerLength += 7;
-                // Presence of extended timestamp
-                if (timestampDelta == RTMP_MAX_TIMESTAMP) {
-                    long extendedTimestamp = buf.readInt();
-                    header.setExtendedTimestamp(extendedTimestamp);
-                    headerLength += 4;
+                if (buf.readableBytes() < 7) {
+                    return false;
                 }
-
-                header.setTimestampDelta(timestampDelta);
-                header.setMessageLength(messageLength);
-                header.setType(type);
+                timestamp = buf.readUnsignedMedium();
+                messageLength = buf.readUnsignedMedium();
+                type = buf.readUnsignedByte();
             }
             /* 3 bytes
             0                   1                   2
@@ -186,16 +173,10 @@ public class ChunkDecoder extends ReplayingDecoder<ChunkDecoder.DecodeState> {
             +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
             */
             case RTMP_CHUNK_TYPE_2 -> {
-                int timestampDelta = buf.readMedium();
-                headerLength += 3;
-                // Presence of extended timestamp
-                if (timestampDelta == RTMP_MAX_TIMESTAMP) {
-                    long extendedTimestamp = buf.readInt();
-                    header.setExtendedTimestamp(extendedTimestamp);
-                    headerLength += 4;
+                if (buf.readableBytes() < 3) {
+                    return false;
                 }
-                header.setTimestampDelta(timestampDelta);
-
+                timestamp = buf.readUnsignedMedium();
             }
             /*
             Type 3 chunks have no message header.
@@ -205,36 +186,118 @@ public class ChunkDecoder extends ReplayingDecoder<ChunkDecoder.DecodeState> {
             case RTMP_CHUNK_TYPE_3 -> {/* Do nothing */}
             default -> throw new RuntimeException("Illegal format type");
         }
-        header.setHeaderLength(headerLength);
 
-        return header;
-    }
+        // Presence of extended timestamp. Type 3 chunks repeat it if the preceding header had one
+        boolean hasExtendedTimestamp = fmt == RTMP_CHUNK_TYPE_3 ? extended[cid] : timestamp == RTMP_MAX_TIMESTAMP;
+        long extendedTimestamp = extendedTimestamps[cid];
+        if (hasExtendedTimestamp) {
+            if (buf.readableBytes() < 4) {
+                return false;
+            }
+            extendedTimestamp = buf.readUnsignedInt();
+        }
 
-    private void restoreHeader(RtmpHeader header) {
-        int cid = header.getCid();
-        RtmpHeader completeHeader = completeHeaders.get(cid);
-        if (completeHeader == null) {
-            return;
+        boolean newMessage = fmt != RTMP_CHUNK_TYPE_3 || bytesRemaining[cid] == 0;
+        int remaining = newMessage ? messageLength : bytesRemaining[cid];
+        int chunkLength = Math.min(clientChunkSize, remaining);
+        if (buf.readableBytes() < chunkLength) {
+            return false;
         }
-        switch (header.getFmt()) {
-            case RTMP_CHUNK_TYPE_3 -> {
-                header.setStreamId(completeHeader.getStreamId());
-                header.setTimestamp(completeHeader.getTimestamp());
-                header.setTimestampDelta(completeHeader.getTimestampDelta());
-                header.setMessageLength(completeHeader.getMessageLength());
-                header.setType(completeHeader.getType());
+
+        // Whole chunk is available, update chunk stream state
+        if (newMessage) {
+            if (payloads[cid] != null) {
+                log.info("Incomplete message on chunk stream {} discarded", cid);
+                payloads[cid].release();
+                payloads[cid] = null;
             }
-            case RTMP_CHUNK_TYPE_2 -> {
-                header.setStreamId(completeHeader.getStreamId());
-                header.setTimestamp(completeHeader.getTimestamp());
-                header.setMessageLength(completeHeader.getMessageLength());
-                header.setType(completeHeader.getType());
+            int value = hasExtendedTimestamp ? (int) extendedTimestamp : timestamp;
+            switch (fmt) {
+                case RTMP_CHUNK_TYPE_0 -> {
+                    timestamps[cid] = value;
+                    timestampDeltas[cid] = 0;
+                }
+                case RTMP_CHUNK_TYPE_1, RTMP_CHUNK_TYPE_2 -> {
+                    timestampDeltas[cid] = value;
+                    timestamps[cid] += value;
+                }
+                default -> timestamps[cid] += timestampDeltas[cid];
             }
-            case RTMP_CHUNK_TYPE_1 -> {
-                header.setStreamId(completeHeader.getStreamId());
-                header.setTimestamp(completeHeader.getTimestamp());
+            if (fmt != RTMP_CHUNK_TYPE_3) {
+                extended[cid] = hasExtendedTimestamp;
+                extendedTimestamps[cid] = extendedTimestamp;
             }
+            messageLengths[cid] = messageLength;
+            types[cid] = type;
+            streamIds[cid] = messageStreamId;
+            bytesRemaining[cid] = messageLength;
+        }
+
+        // Payload slices reference inbound buffer, no intermediate copy
+        ByteBuf payload = payloads[cid];
+        if (payload == null) {
+            if (chunkLength == messageLength) {
+                // Message fits in a single chunk
+                payload = chunkLength == 0 ? Unpooled.EMPTY_BUFFER : buf.readRetainedSlice(chunkLength);
+            } else {
+                int chunks = (messageLength + clientChunkSize - 1) / clientChunkSize;
+                CompositeByteBuf composite = ctx.alloc().compositeBuffer(chunks);
+                composite.addComponent(true, buf.readRetainedSlice(chunkLength));
+                payload = composite;
+            }
+        } else {
+            ((CompositeByteBuf) payload).addComponent(true, buf.readRetainedSlice(chunkLength));
+        }
+        bytesRemaining[cid] -= chunkLength;
+
+        if (bytesRemaining[cid] > 0) {
+            payloads[cid] = payload;
+            return true;
         }
+        payloads[cid] = null;
+
+        RtmpHeader header = completeHeader(cid, fmt, buf.readerIndex() - headerStart - chunkLength);
+        switch (header.getType()) {
+            case RTMP_MSG_CONTROL_TYPE_SET_CHUNK_SIZE               -> handleChunkSize(ctx, payload);
+            case RTMP_MSG_CONTROL_TYPE_WINDOW_ACKNOWLEDGEMENT_SIZE  -> handleWindowAckSize(payload);
+            case RTMP_MSG_CONTROL_TYPE_ACKNOWLEDGEMENT              -> handleAck(ctx, payload);
+            case RTMP_MSG_CONTROL_TYPE_ABORT                        -> handleAbort(payload);
+            default                                                 -> out.add(new RtmpMessage(header, payload));
+        }
+        return true;
+    }
+
+    // Timestamp of the returned header is absolute, timestamp delta is the one received on the chunk stream
+    private RtmpHeader completeHeader(int cid, int fmt, int headerLength) {
+        RtmpHeader header = new RtmpHeader();
+        header.setFmt(fmt);
+        header.setCid(cid);
+        header.setTimestamp(timestamps[cid]);
+        header.setTimestampDelta(timestampDeltas[cid]);
+        header.setMessageLength(messageLengths[cid]);
+        header.setType(types[cid]);
+        header.setStreamId(streamIds[cid]);
+        if (extended[cid]) {
+            header.setExtendedTimestamp(extendedTimestamps[cid]);
+        }
+        header.setHeaderLength(headerLength);
+        return header;
+    }
+
+    private void ensureCapacity(int cid) {
+        if (cid < timestamps.length) {
+            return;
+        }
+        int size = Math.max(cid + 1, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, size);
+        timestampDeltas = Arrays.copyOf(timestampDeltas, size);
+        messageLengths = Arrays.copyOf(messageLengths, size);
+        types = Arrays.copyOf(types, size);
+        streamIds = Arrays.copyOf(streamIds, size);
+        extended = Arrays.copyOf(extended, size);
+        extendedTimestamps = Arrays.copyOf(extendedTimestamps, size);
+        bytesRemaining = Arrays.copyOf(bytesRemaining, size);
+        payloads = Arrays.copyOf(payloads, size);
     }
 
     /*
@@ -243,11 +306,12 @@ public class ChunkDecoder extends ReplayingDecoder<ChunkDecoder.DecodeState> {
     This message specifies the sequence number, which is the number of the bytes received so far.
         SEQUENCE NUMBER (32 bits): This field holds the number of bytes received so far.
     */
+    // Written from the tail of the pipeline, chunk encoder is after this handler
     private void sendAcknowledgement(ChannelHandlerContext channelHandlerContext, int inSize) {
         bytesReceived += inSize;
         // handle overflow
         if (bytesReceived > 0x70000000) {
-            channelHandlerContext.writeAndFlush(MessageProvider.acknowledgement(bytesReceived));
+            channelHandlerContext.channel().writeAndFlush(MessageProvider.acknowledgement(bytesReceived));
             bytesReceived = 0;
             lastResponseSize = 0;
             return;
@@ -255,7 +319,7 @@ public class ChunkDecoder extends ReplayingDecoder<ChunkDecoder.DecodeState> {
 
         if (ackSize > 0 && bytesReceived - lastResponseSize >= ackSize) {
             lastResponseSize = bytesReceived;
-            channelHandlerContext.writeAndFlush(MessageProvider.acknowledgement(lastResponseSize));
+            channelHandlerContext.channel().writeAndFlush(MessageProvider.acknowledgement(lastResponseSize));
         }
     }
 
@@ -265,20 +329,42 @@ public class ChunkDecoder extends ReplayingDecoder<ChunkDecoder.DecodeState> {
         payload.release();
     }
 
-    private void handleChunkSize(ByteBuf payload) {
-        log.info("Changing chunk size");
-        clientChunkSize = payload.readInt();
+    private void handleChunkSize(ChannelHandlerContext ctx, ByteBuf payload) {
+        // The first bit MUST be zero
+        int chunkSize = payload.readInt() & 0x7fffffff;
         payload.release();
+        // Zero would never advance, larger values overflow the chunk count of a message
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            log.warn("Invalid chunk size {} from {}, closing connection", chunkSize, ctx.channel().remoteAddress());
+            rejected = true;
+            ctx.close();
+            return;
+        }
+        log.info("Changing chunk size to {}", chunkSize);
+        clientChunkSize = chunkSize;
     }
 
-    private void handleAck(ByteBuf payload) {
-        log.info("Sequence {} received", payload.readInt());
+    private void handleAck(ChannelHandlerContext ctx, ByteBuf payload) {
+        long sequence = payload.readUnsignedInt();
         payload.release();
+        // Viewer acknowledgements feed throughput estimate of the drop policy
+        Subscriber subscriber = ctx.channel().attr(Subscriber.SUBSCRIBER).get();
+        if (subscriber != null) {
+            subscriber.onAcknowledgement(sequence);
+        } else {
+            log.info("Sequence {} received", sequence);
+        }
     }
 
     private void handleAbort(ByteBuf payload) {
-        log.info("Abort message {}", payload.readInt());
+        int cid = payload.readInt();
+        log.info("Abort message {}", cid);
         payload.release();
+        if (cid >= 0 && cid < payloads.length && payloads[cid] != null) {
+            payloads[cid].release();
+            payloads[cid] = null;
+            bytesRemaining[cid] = 0;
+        }
     }
 
 }
@@ -1,28 +1,130 @@
 package com.qbasic.streamingservice.rtmp.handlers;
 
+import com.qbasic.streamingservice.rtmp.model.messages.EncodedMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RecordedMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpHeader;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
 import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import com.qbasic.streamingservice.rtmp.model.util.ChunkProvider;
 import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
 import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.PromiseCombiner;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.channels.FileChannel;
+
 @Slf4j
 public class ChunkEncoder extends MessageToByteEncoder<RtmpMessage> {
 
+    // Outbound chunk size of the connection, read by the stream fan-out to pick a shared encoding
+    public static final AttributeKey<Integer> CHUNK_SIZE = AttributeKey.valueOf("rtmpOutboundChunkSize");
+
     private final long start = System.currentTimeMillis();
     private int chunkSize = RTMP_DEFAULT_CHUNK_SIZE;
 
     private boolean videoFirstMessage = true;
     private boolean audioFirstMessage = true;
 
+    // Set by the first recorded message, maps stream timestamps to the timeline of the connection
+    private boolean recorded;
+    private long timestampShift;
+
+    public static int chunkSize(Channel channel) {
+        Integer chunkSize = channel.attr(CHUNK_SIZE).get();
+        return chunkSize == null ? RTMP_DEFAULT_CHUNK_SIZE : chunkSize;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        ctx.channel().attr(CHUNK_SIZE).set(chunkSize);
+    }
+
+    /**
+     * Media already chunked by the stream is passed to the socket as is.
+     * The shared encoding is only valid after the first message of its type
+     * was sent with an absolute timestamp and while chunk sizes match,
+     * otherwise the message is encoded for this connection
+     * */
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof RecordedMediaMessage recordedMessage) {
+            writeRecorded(ctx, recordedMessage, promise);
+            return;
+        }
+        if (msg instanceof EncodedMediaMessage encoded) {
+            if (encoded.chunkSize() == chunkSize && !isFirstMessage(encoded.source().header().getType())) {
+                encoded.source().release();
+                ctx.write(encoded.chunks(), promise);
+                return;
+            }
+            msg = RtmpMediaMessage.toRtmpMessage(encoded.source());
+            encoded.release();
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    /**
+     * Recorded media is sent as chunk headers around regions of the recording file, the payload is not copied.
+     * Every message starts with a type 0 chunk, so does the first live message of each type after them.
+     * Live media keeps the shift of the recorded messages and continues their timeline
+     * */
+    private void writeRecorded(ChannelHandlerContext ctx, RecordedMediaMessage message, ChannelPromise promise) {
+        if (!recorded) {
+            recorded = true;
+            timestampShift = System.currentTimeMillis() - start - message.timestamp();
+        }
+        audioFirstMessage = true;
+        videoFirstMessage = true;
+
+        PromiseCombiner combiner = new PromiseCombiner(ctx.executor());
+        long timestamp = Math.max(0, message.timestamp() + timestampShift);
+        int cid = message.cid();
+        int offset = 0;
+        do {
+            int size = Math.min(chunkSize, message.length() - offset);
+            ByteBuf header = ctx.alloc().directBuffer(offset == 0 ? 18 : 3);
+            if (offset == 0) {
+                writeFmt0Header(header, cid, timestamp, message.length(), message.type(), RTMP_DEFAULT_MESSAGE_STREAM_ID_VALUE);
+            } else {
+                ChunkProvider.writeBasicHeader(header, RTMP_CHUNK_TYPE_3, cid);
+            }
+            combiner.add(ctx.write(header));
+            if (size > 0) {
+                combiner.add(ctx.write(region(message.file(), message.position() + offset, size)));
+            }
+            offset += size;
+        } while (offset < message.length());
+        combiner.finish(promise);
+    }
+
+    // The recording file is shared by all messages of a playback and closed by it
+    private static FileRegion region(FileChannel file, long position, int count) {
+        return new DefaultFileRegion(file, position, count) {
+            @Override
+            protected void deallocate() {
+            }
+        };
+    }
+
     @Override
     protected void encode(ChannelHandlerContext channelHandlerContext, RtmpMessage message, ByteBuf byteBuf) {
-        switch (message.header().getType()) {
-            case RTMP_MSG_CONTROL_TYPE_SET_CHUNK_SIZE   -> handleSetChunkSize(message, byteBuf);
-            case RTMP_MSG_USER_CONTROL_TYPE_AUDIO       -> handleAudioMessage(message, byteBuf);
-            case RTMP_MSG_USER_CONTROL_TYPE_VIDEO       -> handleVideoMessage(message, byteBuf);
-            default                                     -> handleDefault(message, byteBuf);
+        try {
+            switch (message.header().getType()) {
+                case RTMP_MSG_CONTROL_TYPE_SET_CHUNK_SIZE   -> handleSetChunkSize(channelHandlerContext, message, byteBuf);
+                case RTMP_MSG_USER_CONTROL_TYPE_AUDIO       -> handleAudioMessage(message, byteBuf);
+                case RTMP_MSG_USER_CONTROL_TYPE_VIDEO       -> handleVideoMessage(message, byteBuf);
+                default                                     -> handleDefault(message, byteBuf);
+            }
+        } finally {
+            // Media payloads are pooled buffers
+            message.payload().release();
         }
     }
 
@@ -53,11 +155,20 @@ public class ChunkEncoder extends MessageToByteEncoder<RtmpMessage> {
         }
     }
 
-    private void handleSetChunkSize(RtmpMessage message, ByteBuf buf) {
-        chunkSize = message.payload().copy().readInt();
+    private void handleSetChunkSize(ChannelHandlerContext ctx, RtmpMessage message, ByteBuf buf) {
+        chunkSize = message.payload().getInt(message.payload().readerIndex());
+        ctx.channel().attr(CHUNK_SIZE).set(chunkSize);
         handleDefault(message, buf);
     }
 
+    private boolean isFirstMessage(short type) {
+        return switch (type) {
+            case RTMP_MSG_USER_CONTROL_TYPE_AUDIO -> audioFirstMessage;
+            case RTMP_MSG_USER_CONTROL_TYPE_VIDEO -> videoFirstMessage;
+            default -> true;
+        };
+    }
+
 
     /*
                 +--------------+----------------+--------------------+--------------+
@@ -81,13 +192,17 @@ public class ChunkEncoder extends MessageToByteEncoder<RtmpMessage> {
             +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
     **/
     private void encodeFmt0(RtmpMessage message, ByteBuf buf) {
-        boolean extendedTimestamp = false;
+        RtmpHeader header = message.header();
+        writeFmt0Header(buf, header.getCid(), timestamp(header), header.getMessageLength(), header.getType(), header.getStreamId());
+
+        int min = Math.min(chunkSize, message.payload().readableBytes());
+        buf.writeBytes(message.payload(), min);
+    }
 
-        int cid = message.header().getCid();
-        byte[] basicHeader = encodeFmtAndChunkId(RTMP_CHUNK_TYPE_0, cid);
-        buf.writeBytes(basicHeader);
+    private static void writeFmt0Header(ByteBuf buf, int cid, long timestamp, int messageLength, short type, int streamId) {
+        boolean extendedTimestamp = false;
 
-        long timestamp = System.currentTimeMillis() - start;
+        ChunkProvider.writeBasicHeader(buf, RTMP_CHUNK_TYPE_0, cid);
 
         if (timestamp >= RTMP_MAX_TIMESTAMP) {
             extendedTimestamp = true;
@@ -96,16 +211,22 @@ public class ChunkEncoder extends MessageToByteEncoder<RtmpMessage> {
             buf.writeMedium((int) timestamp);
         }
 
-        buf.writeMedium(message.header().getMessageLength());
-        buf.writeByte(message.header().getType());
-        buf.writeIntLE(message.header().getStreamId());
+        buf.writeMedium(messageLength);
+        buf.writeByte(type);
+        buf.writeIntLE(streamId);
 
         if (extendedTimestamp) {
             buf.writeInt((int) timestamp);
         }
+    }
 
-        int min = Math.min(chunkSize, message.payload().readableBytes());
-        buf.writeBytes(message.payload(), min);
+    // Media following a recording continues its timeline, anything else carries the connection time
+    private long timestamp(RtmpHeader header) {
+        boolean media = header.getType() == RTMP_MSG_USER_CONTROL_TYPE_AUDIO || header.getType() == RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+        if (recorded && media) {
+            return Math.max(0, header.getTimestamp() + timestampShift);
+        }
+        return System.currentTimeMillis() - start;
     }
 
     /** 7 bytes
@@ -118,9 +239,7 @@ public class ChunkEncoder extends MessageToByteEncoder<RtmpMessage> {
             +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
     **/
     private void encodeFmt1(RtmpMessage message, ByteBuf buf) {
-        int cid = message.header().getCid();
-        byte[] basicHeader = encodeFmtAndChunkId(RTMP_CHUNK_TYPE_1, cid);
-        buf.writeBytes(basicHeader);
+        ChunkProvider.writeBasicHeader(buf, RTMP_CHUNK_TYPE_1, message.header().getCid());
 
         buf.writeMedium(message.header().getTimestampDelta());
         buf.writeMedium(message.header().getMessageLength());
@@ -131,29 +250,6 @@ public class ChunkEncoder extends MessageToByteEncoder<RtmpMessage> {
     }
 
     private void encodeFmt3(RtmpMessage message, ByteBuf buf) {
-        int cid = message.header().getCid();
-        byte[] basicHeader = encodeFmtAndChunkId(RTMP_CHUNK_TYPE_3, cid);
-        while (message.payload().isReadable()) {
-            buf.writeBytes(basicHeader);
-
-            int min = Math.min(chunkSize, message.payload().readableBytes());
-            buf.writeBytes(message.payload(), min);
-        }
-    }
-
-    private byte[] encodeFmtAndChunkId(int fmt, int cid) {
-        if (cid >= 64 + 255) {
-            return new byte[] {
-                    (byte) ((fmt << 6) | 1),
-                    (byte) ((cid - 64) & 0xff),
-                    (byte) (((cid - 64) >> 8) & 0xff)};
-        } else if (cid >= 64) {
-            return new byte[] {
-                    (byte) ((fmt << 6)),
-                    (byte) ((cid - 64) & 0xff)
-            };
-        } else {
-            return new byte[] { (byte) ((fmt << 6) | cid) };
-        }
+        ChunkProvider.encodeFmt3(message.payload(), message.header().getCid(), chunkSize, buf);
     }
 }
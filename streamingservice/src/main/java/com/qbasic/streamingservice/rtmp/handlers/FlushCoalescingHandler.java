@@ -0,0 +1,143 @@
+package com.qbasic.streamingservice.rtmp.handlers;
+
+import com.qbasic.streamingservice.rtmp.config.RtmpProperties;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consolidates flushes of a connection into fewer socket writes.
+ * Flushes requested while an inbound read batch is processed are delayed until the batch completes.
+ * Outside of a read flushes are delayed by the micro window of the connection role,
+ * or until the event loop runs out of queued tasks when the window is zero.
+ * Flush happens at once after the configured number of pending flushes
+ * */
+@Slf4j
+public class FlushCoalescingHandler extends ChannelDuplexHandler {
+
+    public enum Role {
+        PUBLISHER, SUBSCRIBER
+    }
+
+    private final RtmpProperties.FlushProperties properties;
+
+    private int maxPendingFlushes;
+    private long windowNanos;
+
+    private ChannelHandlerContext ctx;
+    private boolean readInProgress;
+    private int pendingFlushes;
+    private Future<?> scheduledFlush;
+
+    private final Runnable flushTask = () -> {
+        scheduledFlush = null;
+        if (pendingFlushes > 0 && !readInProgress) {
+            flushNow(ctx);
+        }
+    };
+
+    public FlushCoalescingHandler(RtmpProperties.FlushProperties properties) {
+        this.properties = properties;
+        // Connections start with publisher settings until play or publish command
+        apply(properties.getPublisher());
+    }
+
+    // Called from the event loop of the connection
+    public void setRole(Role role) {
+        log.info("Flush consolidation role {}", role);
+        apply(role == Role.PUBLISHER ? properties.getPublisher() : properties.getSubscriber());
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        if (++pendingFlushes >= maxPendingFlushes) {
+            flushNow(ctx);
+            return;
+        }
+        if (readInProgress || scheduledFlush != null) {
+            // Flushed at the end of read batch or by already scheduled task
+            return;
+        }
+        if (windowNanos > 0) {
+            scheduledFlush = ctx.executor().schedule(flushTask, windowNanos, TimeUnit.NANOSECONDS);
+        } else {
+            scheduledFlush = ctx.executor().submit(flushTask);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        readInProgress = false;
+        if (pendingFlushes > 0) {
+            flushNow(ctx);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // Do not hold data back from a socket that can not keep up
+        if (!ctx.channel().isWritable() && pendingFlushes > 0) {
+            flushNow(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        flushPending(ctx);
+        ctx.fireExceptionCaught(cause);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushPending(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushPending(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        flushPending(ctx);
+    }
+
+    private void apply(RtmpProperties.FlushRoleProperties role) {
+        this.maxPendingFlushes = Math.max(1, role.getMaxPendingFlushes());
+        this.windowNanos = role.getWindow().toNanos();
+    }
+
+    private void flushPending(ChannelHandlerContext ctx) {
+        if (pendingFlushes > 0) {
+            flushNow(ctx);
+        }
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        pendingFlushes = 0;
+        ctx.flush();
+    }
+}
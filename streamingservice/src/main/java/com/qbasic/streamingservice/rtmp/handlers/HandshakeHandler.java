@@ -1,6 +1,7 @@
 package com.qbasic.streamingservice.rtmp.handlers;
 
 import com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants;
+import io.micrometer.core.instrument.Timer;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
@@ -9,6 +10,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class HandshakeHandler extends ByteToMessageDecoder {
@@ -19,6 +21,18 @@ public class HandshakeHandler extends ByteToMessageDecoder {
 
     private byte[] clientBytes = new byte[RtmpConstants.RTMP_HANDSHAKE_SIZE - 8];
 
+    private final Timer handshakeTimer;
+    private long startNanos;
+
+    public HandshakeHandler(Timer handshakeTimer) {
+        this.handshakeTimer = handshakeTimer;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        startNanos = System.nanoTime();
+    }
+
     @Override
     protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf, List<Object> list) throws Exception {
         if (completed) {
@@ -58,6 +72,7 @@ public class HandshakeHandler extends ByteToMessageDecoder {
             // Clear buffer
             clientBytes = null;
             completed = true;
+            handshakeTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
             // Handshake is completed. Remove this handler from the pipeline
             channelHandlerContext.channel().pipeline().remove(this);
         }
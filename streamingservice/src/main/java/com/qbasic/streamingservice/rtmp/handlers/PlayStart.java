@@ -0,0 +1,36 @@
+package com.qbasic.streamingservice.rtmp.handlers;
+
+/**
+ * Start argument of play decoded before it is used as an offset.
+ * -2 plays live with the latest recording as fallback and -1 live only, the specification gives them
+ * in seconds while Flash and ffmpeg send -2000 and -1000. Other values are milliseconds into the recording,
+ * or behind live when negative
+ * */
+record PlayStart(Mode mode, long millis) {
+
+    enum Mode {
+        LIVE,
+        // Live, or the latest recording from its start when the stream is not published
+        ANY,
+        // Recording from the offset, live when the stream has none
+        RECORDED
+    }
+
+    static final PlayStart LIVE = new PlayStart(Mode.LIVE, 0);
+    static final PlayStart ANY = new PlayStart(Mode.ANY, 0);
+
+    // Missing argument plays any
+    static PlayStart decode(Number argument) {
+        if (argument == null) {
+            return ANY;
+        }
+        double value = argument.doubleValue();
+        if (value == -2 || value == -2000) {
+            return ANY;
+        }
+        if (value == -1 || value == -1000) {
+            return LIVE;
+        }
+        return new PlayStart(Mode.RECORDED, (long) value);
+    }
+}
@@ -1,19 +1,28 @@
 package com.qbasic.streamingservice.rtmp.handlers;
 
-import com.qbasic.streamingservice.rtmp.amf0.Amf0Rules;
+import com.qbasic.streamingservice.dvr.DvrRecorder;
+import com.qbasic.streamingservice.dvr.Playback;
+import com.qbasic.streamingservice.dvr.Recording;
+import com.qbasic.streamingservice.rtmp.amf0.Amf0Command;
+import com.qbasic.streamingservice.rtmp.amf0.Amf0Reader;
+import com.qbasic.streamingservice.rtmp.config.RtmpProperties;
 import com.qbasic.streamingservice.rtmp.model.context.Stream;
 import com.qbasic.streamingservice.rtmp.model.context.StreamContext;
 import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
 import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
-import com.qbasic.streamingservice.rtmp.model.util.MessageProvider;
+import com.qbasic.streamingservice.rtmp.model.util.MessageTemplates;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 
 import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
@@ -22,6 +31,8 @@ import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
 public class RtmpMessageHandler extends MessageToMessageDecoder<RtmpMessage> {
 
     private String currentSessionStream;
+    // Stream of this connection when it publishes, registered in the context only after key validation
+    private Stream publishedStream;
     private final StreamContext context;
 
     public RtmpMessageHandler(StreamContext context) {
@@ -31,13 +42,10 @@ public class RtmpMessageHandler extends MessageToMessageDecoder<RtmpMessage> {
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
 
-        Stream stream = context.getStream(currentSessionStream);
-        if (stream != null) {
-            // In case of broadcaster crash shutdown stream normally for all subscribers
-            if (ctx.channel().id().equals(stream.getPublisher().id())) {
-                stream.closeStream();
-                context.deleteStream(currentSessionStream);
-            }
+        // In case of broadcaster crash shutdown stream normally for all subscribers
+        if (publishedStream != null) {
+            publishedStream.closeStream();
+            context.deleteStream(publishedStream);
         }
         super.handlerRemoved(ctx);
     }
@@ -52,7 +60,7 @@ public class RtmpMessageHandler extends MessageToMessageDecoder<RtmpMessage> {
             case    RTMP_MSG_COMMAND_TYPE_AMF0          -> handleCommand(channelHandlerContext, payload, out);
             case    RTMP_MSG_DATA_TYPE_AMF0             -> handleData(payload);
             case    RTMP_MSG_USER_CONTROL_TYPE_AUDIO,
-                    RTMP_MSG_USER_CONTROL_TYPE_VIDEO    -> handleMedia(in);
+                    RTMP_MSG_USER_CONTROL_TYPE_VIDEO    -> handleMedia(channelHandlerContext, in);
             case    RTMP_MSG_USER_CONTROL_TYPE_EVENT    -> handleEvent(in);
             default                                     -> log.info("Unsupported message. Type id: {}", type);
         }
@@ -62,27 +70,29 @@ public class RtmpMessageHandler extends MessageToMessageDecoder<RtmpMessage> {
 
 
     private void handleCommand(ChannelHandlerContext ctx, ByteBuf payload, List<Object> out) {
-        List<Object> decoded = Amf0Rules.decodeAll(payload);
-        String command = (String) decoded.get(0);
-        log.info(command + " >>> " + decoded);
-        switch (command) {
-            case "connect"      -> onConnect(ctx, decoded);
-            case "createStream" -> onCreate(ctx, decoded);
-            case "publish"      -> onPublish(ctx, decoded, out);
-            case "play"         -> onPlay(ctx, decoded);
+        // Arguments are decoded only by the handler that reads them
+        Amf0Command command = Amf0Command.read(payload);
+        log.info("Command {}", command);
+        switch (command.getName()) {
+            case "connect"      -> onConnect(ctx, command);
+            case "createStream" -> onCreate(ctx, command);
+            case "publish"      -> onPublish(ctx, command, out);
+            case "play"         -> onPlay(ctx, command);
             case "closeStream"  -> onClose(ctx);
             case "deleteStream" -> onDelete(ctx);
-            default             -> log.info("Unsupported command type {}", command);
+            default             -> log.info("Unsupported command type {}", command.getName());
         }
     }
 
-    private void onConnect(ChannelHandlerContext ctx, List<Object> message) {
+    private void onConnect(ChannelHandlerContext ctx, Amf0Command message) {
         log.info("Client connection from {}, channel id is {}", ctx.channel().remoteAddress(), ctx.channel().id());
 
-        String app = (String) ((Map<String, Object>) message.get(2)).get("app");
-        Integer clientEncodingFormat = (Integer) ((Map<String, Object>) message.get(2)).get("objectEncoding");
+        Map<String, Object> commandObject = (Map<String, Object>) message.get(2);
+        String app = commandObject == null ? null : (String) commandObject.get("app");
+        // AMF0 numbers are decoded as doubles
+        Number clientEncodingFormat = commandObject == null ? null : (Number) commandObject.get("objectEncoding");
 
-        if (clientEncodingFormat != null && clientEncodingFormat == 3) {
+        if (clientEncodingFormat != null && clientEncodingFormat.intValue() == 3) {
             log.error("AMF3 format is not supported. Closing connection to {}", ctx.channel().remoteAddress());
             ctx.close();
             return;
@@ -94,95 +104,150 @@ public class RtmpMessageHandler extends MessageToMessageDecoder<RtmpMessage> {
 
         // window acknowledgement size
         log.info("Sending window ack size message");
-        ctx.writeAndFlush(MessageProvider.setWindowAcknowledgement(RTMP_DEFAULT_OUTPUT_ACK_SIZE));
+        ctx.write(MessageTemplates.WINDOW_ACKNOWLEDGEMENT.message());
 
         // set peer bandwidth
         log.info("Sending set peer bandwidth message");
-        ctx.writeAndFlush(MessageProvider.setPeerBandwidth(RTMP_DEFAULT_OUTPUT_ACK_SIZE, 2));
+        ctx.write(MessageTemplates.PEER_BANDWIDTH.message());
 
         // set chunk size
         log.info("Sending set chunk size message");
-        ctx.writeAndFlush(MessageProvider.setChunkSize(RTMP_DEFAULT_OUTPUT_CHUNK_SIZE));
-
-        List<Object> result = new ArrayList<>();
+        ctx.write(MessageTemplates.CHUNK_SIZE.message());
 
-        Amf0Rules.Amf0Object cmdObj = new Amf0Rules.Amf0Object();
-        cmdObj.put("fmsVer", "FMS/3,0,1,123");
-        cmdObj.put("capabilities", 31);
-
-        Amf0Rules.Amf0Object info = new Amf0Rules.Amf0Object();
-        info.put("level", "status");
-        info.put("code", "NetConnection.Connect.Success");
-        info.put("description", "Connection succeeded");
-        info.put("objectEncoding", 0);
-
-        result.add("_result");
-        result.add(message.get(1)); // transaction id
-        result.add(cmdObj);
-        result.add(info);
-
-        ctx.writeAndFlush(MessageProvider.commandMessage(result));
+        // Connect response goes out with a single flush
+        ctx.write(MessageTemplates.CONNECT_RESULT.message(ctx.alloc(), message.getTransactionId()));
+        ctx.flush();
     }
 
-    private void onCreate(ChannelHandlerContext ctx, List<Object> message) {
+    private void onCreate(ChannelHandlerContext ctx, Amf0Command message) {
         log.info("Create stream");
 
-        List<Object> result = new ArrayList<Object>();
-        result.add("_result");
-        result.add(message.get(1)); // transaction id
-        result.add(null); // properties
-        result.add(RTMP_DEFAULT_MESSAGE_STREAM_ID_VALUE); // stream id
-
-        ctx.writeAndFlush(MessageProvider.commandMessage(result));
+        ctx.writeAndFlush(MessageTemplates.CREATE_STREAM_RESULT.message(ctx.alloc(), message.getTransactionId()));
     }
 
-    private void onPublish(ChannelHandlerContext ctx, List<Object> message, List<Object> output) {
+    private void onPublish(ChannelHandlerContext ctx, Amf0Command message, List<Object> output) {
         log.info("Stream publishing");
+        setFlushRole(ctx, FlushCoalescingHandler.Role.PUBLISHER);
         String streamType = (String) message.get(4);
         if (!"live".equals(streamType)) {
             log.error("Stream type {} is not supported", streamType);
             ctx.channel().disconnect();
         }
 
-        Stream stream = new Stream(currentSessionStream);
+        Stream stream = context.createStream(currentSessionStream);
         String secret = (String) message.get(3);
         stream.setStreamKey(secret);
         stream.setPublisher(ctx.channel());
-        context.addStream(stream);
+        publishedStream = stream;
 
-        // Push stream further and handle everything(metadata, credentials, etc)
+        // Push stream further and handle everything(metadata, credentials, etc),
+        // it is registered and segmented only once the stream key is validated
         output.add(stream);
     }
 
-    private void onPlay(ChannelHandlerContext ctx, List<Object> message) {
+    private void onPlay(ChannelHandlerContext ctx, Amf0Command message) {
         log.info("Stream play");
 
         // TODO auth can be handled for subscribers
         // String secret = (String) message.get(3);
 
+        PlayStart start = PlayStart.decode((Number) message.get(4));
+
         Stream stream = context.getStream(currentSessionStream);
         if (stream != null) {
-            ctx.writeAndFlush(MessageProvider.userControlMessageEvent(STREAM_BEGIN));
-            ctx.writeAndFlush(MessageProvider.onStatus("status", "NetStream.Play.Start", "Start live"));
+            EventLoop publisherLoop = stream.getPublisher().eventLoop();
+            if (context.getProperties().getFanout().getStrategy() == RtmpProperties.FanoutProperties.Strategy.COLOCATED
+                    && !publisherLoop.inEventLoop()) {
+                moveToEventLoop(ctx, publisherLoop, () -> startPlayback(ctx, stream, start));
+            } else {
+                startPlayback(ctx, stream, start);
+            }
+        } else if (!playRecording(ctx, start)) {
+            log.info("Stream doesn't exist");
+            ctx.writeAndFlush(MessageTemplates.PLAY_STREAM_NOT_FOUND.message());
+            ctx.channel().close();
+        }
+    }
+
+    private void startPlayback(ChannelHandlerContext ctx, Stream stream, PlayStart start) {
+        writePlayResponse(ctx);
+
+        DvrRecorder recorder = context.getDvrRecorder();
+        Recording recording = stream.getRecording();
+        if (start.mode() == PlayStart.Mode.RECORDED && recording != null && recording.hasMedia()) {
+            RtmpProperties.DvrProperties dvr = context.getProperties().getDvr();
+            try {
+                // Sends metadata and configs of the recording, joins the stream once it catches up
+                Playback.live(ctx.channel(), recorder, stream, dvr.getPlaybackLead(), dvr.getCatchUpRate()).start(start.millis());
+                return;
+            } catch (IOException e) {
+                log.error("Failed to play the recording of {}, playing live", stream.getStreamName(), e);
+            }
+        }
+        // Encoded once per stream when metadata is set
+        ctx.write(stream.getMetadataMessage().message());
 
-            List<Object> args = new ArrayList<>();
-            args.add("|RtmpSampleAccess");
-            args.add(true);
-            args.add(true);
-            ctx.writeAndFlush(MessageProvider.commandMessage(args));
+        // Flushes play response together with configs and group of pictures
+        stream.addSubscriber(ctx.channel());
+    }
 
+    // Latest recording of a stream that is not published, false when there is none
+    private boolean playRecording(ChannelHandlerContext ctx, PlayStart start) {
+        DvrRecorder recorder = context.getDvrRecorder();
+        if (recorder == null || start.mode() == PlayStart.Mode.LIVE) {
+            return false;
+        }
+        Optional<Path> file = recorder.latest(currentSessionStream);
+        if (file.isEmpty()) {
+            return false;
+        }
+        RtmpProperties.DvrProperties dvr = context.getProperties().getDvr();
+        try {
+            Playback playback = Playback.finished(ctx.channel(), recorder, file.get(), dvr.getPlaybackLead(), dvr.getCatchUpRate());
+            writePlayResponse(ctx);
+            playback.start(start.millis());
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to play recording {}", file.get(), e);
+            return false;
+        }
+    }
 
-            List<Object> metadata = new ArrayList<>();
-            metadata.add("onMetaData");
-            metadata.add(stream.getMetadata());
-            ctx.writeAndFlush(MessageProvider.dataMessage(metadata));
+    private void writePlayResponse(ChannelHandlerContext ctx) {
+        setFlushRole(ctx, FlushCoalescingHandler.Role.SUBSCRIBER);
+        // Frequent acknowledgements from viewers give throughput estimate for the drop policy
+        int ackWindow = (int) context.getProperties().getSubscriber().getAckWindow().toBytes();
+        ctx.write(MessageTemplates.windowAcknowledgement(ackWindow).message());
+        ctx.write(MessageTemplates.STREAM_BEGIN_EVENT.message());
+        ctx.write(MessageTemplates.PLAY_START.message());
+        ctx.write(MessageTemplates.SAMPLE_ACCESS.message());
+    }
 
-            stream.addSubscriber(ctx.channel());
+    // Re-registers the channel on another event loop, pipeline state is kept
+    private void moveToEventLoop(ChannelHandlerContext ctx, EventLoop target, Runnable then) {
+        Channel channel = ctx.channel();
+        log.info("Moving subscriber {} to the publisher event loop", channel.remoteAddress());
+        channel.deregister().addListener(deregistered -> {
+            if (!deregistered.isSuccess()) {
+                log.error("Failed to deregister subscriber", deregistered.cause());
+                channel.close();
+                return;
+            }
+            target.register(channel).addListener(registered -> {
+                if (registered.isSuccess()) {
+                    then.run();
+                } else {
+                    log.error("Failed to register subscriber on the publisher event loop", registered.cause());
+                    channel.close();
+                }
+            });
+        });
+    }
 
-        } else {
-            log.info("Stream doesn't exist");
-            ctx.writeAndFlush(MessageProvider.onStatus("error", "NetStream.Play.StreamNotFound", "No Such Stream"));
-            ctx.channel().close();
+    private void setFlushRole(ChannelHandlerContext ctx, FlushCoalescingHandler.Role role) {
+        FlushCoalescingHandler handler = ctx.pipeline().get(FlushCoalescingHandler.class);
+        if (handler != null) {
+            handler.setRole(role);
         }
     }
 
@@ -190,14 +255,14 @@ public class RtmpMessageHandler extends MessageToMessageDecoder<RtmpMessage> {
         log.info("Stream close");
 
         Stream stream = context.getStream(currentSessionStream);
-        if (stream == null) {
-            log.info("Stream doesn't exist");
-            ctx.writeAndFlush(MessageProvider.onStatus("status", "NetStream.Unpublish.Success", "Stop publishing"));
-        } else if (ctx.channel().id().equals(stream.getPublisher().id())) {
-            ctx.writeAndFlush(MessageProvider.onStatus("status", "NetStream.Unpublish.Success", "Stop publishing"));
-            stream.closeStream();
-            context.deleteStream(stream.getStreamName());
+        if (publishedStream != null) {
+            ctx.writeAndFlush(MessageTemplates.UNPUBLISH_SUCCESS.message());
+            publishedStream.closeStream();
+            context.deleteStream(publishedStream);
             ctx.close();
+        } else if (stream == null) {
+            log.info("Stream doesn't exist");
+            ctx.writeAndFlush(MessageTemplates.UNPUBLISH_SUCCESS.message());
         } else {
             log.info("Subscriber closed stream");
         }
@@ -209,31 +274,30 @@ public class RtmpMessageHandler extends MessageToMessageDecoder<RtmpMessage> {
 
 
     private void handleData(ByteBuf payload) {
-        List<Object> decoded = Amf0Rules.decodeAll(payload);
-        String dataType = (String) decoded.get(0);
+        Amf0Reader reader = new Amf0Reader(payload);
+        String dataType = reader.readString();
         log.info("Handling data message {}", dataType);
         if ("@setDataFrame".equals(dataType)) {
-            // handle metadata
-            Map<String, Object> metadata = (Map<String, Object>) decoded.get(2);
+            // handle metadata, onMetaData name is followed by the properties
+            reader.skipValue();
+            Map<String, Object> metadata = (Map<String, Object>) reader.readValue();
             metadata.remove("filesize");
             String encoder = (String) metadata.get("encoder");
             if (encoder != null && encoder.contains("obs")) {
                 log.info("OBS client detected");
             }
-            Stream stream = context.getStream(this.currentSessionStream);
-            if (stream != null) {
+            if (publishedStream != null) {
                 log.info("Stream metadata set");
-                stream.setMetadata(metadata);
+                publishedStream.setMetadata(metadata);
             }
         }
 
     }
 
-    private void handleMedia(RtmpMessage message) {
+    private void handleMedia(ChannelHandlerContext ctx, RtmpMessage message) {
 
-        Stream stream = context.getStream(currentSessionStream);
-        if (stream != null) {
-            stream.addMedia(RtmpMediaMessage.fromRtmpMessage(message));
+        if (publishedStream != null) {
+            publishedStream.addMedia(RtmpMediaMessage.fromRtmpMessage(ctx.alloc(), message));
         } else {
             log.info("Stream does not exist");
         }
@@ -0,0 +1,51 @@
+package com.qbasic.streamingservice.rtmp.metrics;
+
+import com.qbasic.streamingservice.rtmp.model.context.Stream;
+import com.qbasic.streamingservice.rtmp.model.context.StreamContext;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+
+/**
+ * Meters of the RTMP server. Meters used per chunk or per frame are resolved once
+ * and recorded with primitive values, so the hot path does not allocate
+ * */
+@Getter
+public class RtmpMetrics {
+
+    private final MeterRegistry registry;
+    private final Timer handshake;
+    private final Timer decode;
+
+    public RtmpMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.handshake = Timer.builder("rtmp.handshake")
+                .description("Time from connection to completed handshake")
+                .register(registry);
+        this.decode = Timer.builder("rtmp.decode")
+                .description("Chunk decoding time per message")
+                .register(registry);
+    }
+
+    public void bind(StreamContext context) {
+        Gauge.builder("rtmp.publishers", context, c -> c.context.size())
+                .description("Active publishers")
+                .register(registry);
+        Gauge.builder("rtmp.subscribers", context, RtmpMetrics::subscriberCount)
+                .description("Active subscribers of all streams")
+                .register(registry);
+    }
+
+    public StreamMetrics forStream(Stream stream) {
+        return new StreamMetrics(registry, stream);
+    }
+
+    private static double subscriberCount(StreamContext context) {
+        int count = 0;
+        for (Stream stream : context.context.values()) {
+            count += stream.getSubscriberCount();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,94 @@
+package com.qbasic.streamingservice.rtmp.metrics;
+
+import com.qbasic.streamingservice.rtmp.model.context.Stream;
+import com.qbasic.streamingservice.rtmp.model.context.Subscriber;
+import com.qbasic.streamingservice.rtmp.model.context.SubscriberGroup;
+import io.micrometer.core.instrument.*;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Meters of a single stream, tagged with the stream name and removed from the registry when the stream closes.
+ * Pending outbound bytes are reported as total and maximum over subscribers
+ * to keep one series per stream instead of one per viewer
+ * */
+public class StreamMetrics {
+
+    private final MeterRegistry registry;
+    private final List<Meter> meters = new ArrayList<>();
+
+    private final Counter ingestBytes;
+    private final Counter ingestFrames;
+    @Getter
+    private final Timer fanout;
+
+    StreamMetrics(MeterRegistry registry, Stream stream) {
+        this.registry = registry;
+        Tags tags = Tags.of("stream", stream.getStreamName());
+
+        ingestBytes = register(Counter.builder("rtmp.stream.ingest.bytes")
+                .description("Media payload bytes received from the publisher")
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(registry));
+        ingestFrames = register(Counter.builder("rtmp.stream.ingest.frames")
+                .description("Audio and video frames received from the publisher")
+                .tags(tags)
+                .register(registry));
+        fanout = register(Timer.builder("rtmp.stream.fanout.latency")
+                .description("Time from frame ingest to the write to the last subscriber")
+                .tags(tags)
+                .register(registry));
+
+        register(Gauge.builder("rtmp.stream.gop.frames", stream, s -> s.getRtmpGopCache().size())
+                .tags(tags)
+                .register(registry));
+        register(Gauge.builder("rtmp.stream.gop.bytes", stream, s -> s.getRtmpGopCache().bytes())
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(registry));
+        register(Gauge.builder("rtmp.stream.subscribers", stream, Stream::getSubscriberCount)
+                .tags(tags)
+                .register(registry));
+        register(Gauge.builder("rtmp.stream.subscriber.pending", stream, s -> pendingBytes(s, false))
+                .description("Outbound bytes queued for all subscribers")
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(registry));
+        register(Gauge.builder("rtmp.stream.subscriber.pending.max", stream, s -> pendingBytes(s, true))
+                .description("Outbound bytes queued for the slowest subscriber")
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(registry));
+    }
+
+    public void ingest(int bytes) {
+        ingestBytes.increment(bytes);
+        ingestFrames.increment();
+    }
+
+    public void close() {
+        for (Meter meter : meters) {
+            registry.remove(meter);
+        }
+        meters.clear();
+    }
+
+    private <T extends Meter> T register(T meter) {
+        meters.add(meter);
+        return meter;
+    }
+
+    private static double pendingBytes(Stream stream, boolean max) {
+        long result = 0;
+        for (SubscriberGroup group : stream.getGroups().values()) {
+            for (Subscriber subscriber : group.getSubscribers()) {
+                long pending = subscriber.getPendingBytes();
+                result = max ? Math.max(result, pending) : result + pending;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+package com.qbasic.streamingservice.rtmp.model.context;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.util.ChunkProvider;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.micrometer.core.instrument.Timer;
+import io.netty.util.AbstractReferenceCounted;
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Media message on its way to subscriber groups. Chunks are encoded once per chunk size
+ * and shared by all event loops, the frame is released once every group delivered it
+ * */
+public class FanoutFrame extends AbstractReferenceCounted {
+
+    @Getter
+    private final RtmpMediaMessage message;
+    // Position of the message in the GOP cache
+    @Getter
+    private final long sequence;
+
+    private final int chunkSize;
+    private final ByteBuf chunks;
+    private Map<Integer, ByteBuf> otherChunks;
+
+    // Recorded when the last group released the frame
+    private final Timer latency;
+    private final long createdNanos = System.nanoTime();
+
+    // Takes ownership of the message reference
+    public FanoutFrame(RtmpMediaMessage message, long sequence, ByteBufAllocator allocator, int chunkSize, Timer latency) {
+        this.message = message;
+        this.latency = latency;
+        this.sequence = sequence;
+        this.chunkSize = chunkSize;
+        this.chunks = ChunkProvider.mediaChunks(allocator, message, chunkSize);
+    }
+
+    // Chunks shared by subscribers, caller retains what it keeps
+    public ByteBuf chunks(ByteBufAllocator allocator, int size) {
+        if (size == chunkSize) {
+            return chunks;
+        }
+        synchronized (this) {
+            if (otherChunks == null) {
+                otherChunks = new HashMap<>(2);
+            }
+            return otherChunks.computeIfAbsent(size, s -> ChunkProvider.mediaChunks(allocator, message, s));
+        }
+    }
+
+    @Override
+    public FanoutFrame touch(Object hint) {
+        message.touch(hint);
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        latency.record(System.nanoTime() - createdNanos, TimeUnit.NANOSECONDS);
+        chunks.release();
+        synchronized (this) {
+            if (otherChunks != null) {
+                otherChunks.values().forEach(ByteBuf::release);
+            }
+        }
+        message.release();
+    }
+}
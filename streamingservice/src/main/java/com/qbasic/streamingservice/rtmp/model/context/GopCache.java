@@ -0,0 +1,140 @@
+package com.qbasic.streamingservice.rtmp.model.context;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+
+import java.util.function.Consumer;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+
+/**
+ * Recent media of a stream kept to start new subscribers from the latest keyframe.
+ * Frames are ref-counted direct buffers in a ring, bounded by total payload size
+ * and by media duration instead of frame count. Positions of keyframes are indexed
+ * by frame sequence number, so lookup of the latest one does not scan the ring
+ * */
+public class GopCache {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final long maxBytes;
+    private final long maxDurationMs;
+
+    private RtmpMediaMessage[] frames = new RtmpMediaMessage[INITIAL_CAPACITY];
+    private int head;
+    private int size;
+    // Sequence number of the frame at head
+    private long firstSequence;
+    private long bytes;
+    private int videoFrames;
+
+    // Sequence numbers of cached keyframes, oldest first
+    private long[] keyframes = new long[16];
+    private int keyframeHead;
+    private int keyframeCount;
+
+    public GopCache(long maxBytes, long maxDurationMs) {
+        this.maxBytes = maxBytes;
+        this.maxDurationMs = maxDurationMs;
+    }
+
+    /** Takes ownership of the message reference, returns sequence number of the frame */
+    public synchronized long add(RtmpMediaMessage message) {
+        if (size == frames.length) {
+            grow();
+        }
+        long sequence = firstSequence + size;
+        frames[(head + size) & (frames.length - 1)] = message;
+        size++;
+        bytes += message.size();
+
+        if (message.header().getType() == RTMP_MSG_USER_CONTROL_TYPE_VIDEO) {
+            videoFrames++;
+            if (message.isKeyframe() && !message.isVideoConfig()) {
+                indexKeyframe(sequence);
+            }
+        }
+        evict(message.header().getTimestamp());
+        return sequence;
+    }
+
+    /**
+     * Passes frames starting from the latest keyframe, consumer must retain frames it keeps.
+     * Returns sequence number of the newest cached frame, later frames are not covered by the replay
+     * */
+    public synchronized long forEachFromLatestKeyframe(Consumer<RtmpMediaMessage> consumer) {
+        int offset;
+        if (keyframeCount > 0) {
+            offset = (int) (keyframes[(keyframeHead + keyframeCount - 1) & (keyframes.length - 1)] - firstSequence);
+        } else if (videoFrames == 0) {
+            // Audio only stream, any frame is a valid start
+            offset = 0;
+        } else {
+            // Keyframe was evicted, nothing decodable to replay until the next one
+            offset = size;
+        }
+        for (int i = offset; i < size; i++) {
+            consumer.accept(frames[(head + i) & (frames.length - 1)]);
+        }
+        return firstSequence + size - 1;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        while (size > 0) {
+            removeFirst();
+        }
+    }
+
+    private void evict(int latestTimestamp) {
+        while (size > 1 && (bytes > maxBytes || latestTimestamp - frames[head].header().getTimestamp() > maxDurationMs)) {
+            removeFirst();
+        }
+    }
+
+    private void removeFirst() {
+        RtmpMediaMessage message = frames[head];
+        frames[head] = null;
+        head = (head + 1) & (frames.length - 1);
+        size--;
+        bytes -= message.size();
+
+        if (message.header().getType() == RTMP_MSG_USER_CONTROL_TYPE_VIDEO) {
+            videoFrames--;
+        }
+        if (keyframeCount > 0 && keyframes[keyframeHead] == firstSequence) {
+            keyframeHead = (keyframeHead + 1) & (keyframes.length - 1);
+            keyframeCount--;
+        }
+        firstSequence++;
+        message.release();
+    }
+
+    private void indexKeyframe(long sequence) {
+        if (keyframeCount == keyframes.length) {
+            long[] resized = new long[keyframes.length * 2];
+            for (int i = 0; i < keyframeCount; i++) {
+                resized[i] = keyframes[(keyframeHead + i) & (keyframes.length - 1)];
+            }
+            keyframes = resized;
+            keyframeHead = 0;
+        }
+        keyframes[(keyframeHead + keyframeCount) & (keyframes.length - 1)] = sequence;
+        keyframeCount++;
+    }
+
+    private void grow() {
+        RtmpMediaMessage[] resized = new RtmpMediaMessage[frames.length * 2];
+        for (int i = 0; i < size; i++) {
+            resized[i] = frames[(head + i) & (frames.length - 1)];
+        }
+        frames = resized;
+        head = 0;
+    }
+}
@@ -1,18 +1,28 @@
 package com.qbasic.streamingservice.rtmp.model.context;
 
+import com.qbasic.streamingservice.dto.SubscriberStats;
+import com.qbasic.streamingservice.dvr.DvrRecorder;
+import com.qbasic.streamingservice.dvr.Recording;
+import com.qbasic.streamingservice.hls.HlsSegmenter;
+import com.qbasic.streamingservice.hls.HlsWriter;
+import com.qbasic.streamingservice.rtmp.config.RtmpProperties;
+import com.qbasic.streamingservice.rtmp.metrics.RtmpMetrics;
+import com.qbasic.streamingservice.rtmp.metrics.StreamMetrics;
 import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
-import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
-import com.qbasic.streamingservice.rtmp.model.util.MessageProvider;
+import com.qbasic.streamingservice.rtmp.model.util.MessageTemplate;
+import com.qbasic.streamingservice.rtmp.model.util.MessageTemplates;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.channel.WriteBufferWaterMark;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
 
@@ -23,95 +33,324 @@ import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
 public class Stream {
 
     private Map<String, Object> metadata;
+    // onMetaData sent to every viewer, encoded once per metadata update
+    private volatile MessageTemplate metadataMessage = metadataTemplate(null);
     private Channel publisher;
 
-    private final Set<Channel> subscribers;
+    // Subscribers sharded by event loop, each group is modified and written on its own loop only
+    private final Map<EventLoop, SubscriberGroup> groups;
+    private final RtmpProperties.SubscriberProperties subscriberProperties;
     private final String streamName;
     private String streamKey;
 
-    // Group of pictures cache to broadcast. Cleared if keyframe is received
-    private final BlockingQueue<RtmpMediaMessage> rtmpGopCache;
+    // Group of pictures cache to broadcast, new subscribers start from its latest keyframe
+    private final GopCache rtmpGopCache;
 
     private RtmpMediaMessage videoConfig;
     private RtmpMediaMessage audioConfig;
 
     private CompletableFuture<Boolean> readyToBroadcast;
+    // Guarded by the stream, no output is started after close
+    @Setter(AccessLevel.NONE)
+    private boolean closed;
 
-    public Stream(String streamName) {
+    private final StreamMetrics metrics;
+
+    private final RtmpProperties.HlsProperties hlsProperties;
+    // Null when segmenting is disabled
+    private final HlsWriter hlsWriter;
+    // Null when recording is disabled
+    private final DvrRecorder dvrRecorder;
+    // Passthrough rendition, created once the stream key is validated
+    @Setter(AccessLevel.NONE)
+    private volatile HlsSegmenter segmenter;
+    // Started with the segmenter
+    @Setter(AccessLevel.NONE)
+    private volatile Recording recording;
+
+    public Stream(String streamName, RtmpProperties properties, RtmpMetrics metrics) {
+        this(streamName, properties, metrics, null);
+    }
+
+    public Stream(String streamName, RtmpProperties properties, RtmpMetrics metrics, HlsWriter hlsWriter) {
+        this(streamName, properties, metrics, hlsWriter, null);
+    }
+
+    public Stream(String streamName, RtmpProperties properties, RtmpMetrics metrics, HlsWriter hlsWriter, DvrRecorder dvrRecorder) {
         this.streamName = streamName;
-        this.subscribers = new LinkedHashSet<>();
-        this.rtmpGopCache = new ArrayBlockingQueue<>(1024);
+        this.groups = new ConcurrentHashMap<>();
+        this.subscriberProperties = properties.getSubscriber();
+        this.rtmpGopCache = new GopCache(
+                properties.getGopCache().getMaxSize().toBytes(),
+                properties.getGopCache().getMaxDuration().toMillis());
         this.readyToBroadcast = new CompletableFuture<>();
+        this.metrics = metrics.forStream(this);
+        this.hlsProperties = properties.getHls();
+        this.hlsWriter = hlsWriter;
+        this.dvrRecorder = dvrRecorder;
+    }
+
+    // Stream name becomes a directory name of the segments and recordings
+    public static boolean isSafePathName(String streamName) {
+        return streamName != null && streamName.matches("[A-Za-z0-9_-]+");
     }
 
+    /**
+     * Starts segmenting and recording once the stream key is validated, a rejected publisher never writes files.
+     * Runs on the publisher event loop, codec configs received before are passed to the outputs first
+     * */
+    public void startOutputs() {
+        try {
+            publisher.eventLoop().execute(this::createOutputs);
+        } catch (RejectedExecutionException e) {
+            log.info("Event loop is shutting down, stream {} is not segmented", streamName);
+        }
+    }
+
+    private synchronized void createOutputs() {
+        if (closed) {
+            return;
+        }
+        if (hlsWriter != null && segmenter == null && isSafePathName(streamName)) {
+            HlsSegmenter created = new HlsSegmenter(
+                    streamName,
+                    hlsWriter,
+                    hlsProperties.getSegmentDuration().toMillis(),
+                    hlsProperties.getPartDuration().toMillis());
+            if (videoConfig != null) {
+                created.onMedia(videoConfig);
+            }
+            if (audioConfig != null) {
+                created.onMedia(audioConfig);
+            }
+            segmenter = created;
+        }
+        if (dvrRecorder != null && recording == null && isSafePathName(streamName)) {
+            Recording started = dvrRecorder.start(streamName, () -> metadataMessage.message());
+            if (videoConfig != null) {
+                started.append(videoConfig);
+            }
+            if (audioConfig != null) {
+                started.append(audioConfig);
+            }
+            recording = started;
+        }
+    }
+
+    // Passthrough rendition is being written, false when disabled or the segmenter gave up on the codecs
+    public boolean isSegmented() {
+        HlsSegmenter segmenter = this.segmenter;
+        return segmenter != null && segmenter.isActive();
+    }
+
+    public void setMetadata(Map<String, Object> metadata) {
+        this.metadata = metadata;
+        this.metadataMessage = metadataTemplate(metadata);
+    }
+
+    private static MessageTemplate metadataTemplate(Map<String, Object> metadata) {
+        List<Object> values = new ArrayList<>();
+        values.add("onMetaData");
+        values.add(metadata);
+        return MessageTemplate.data(values);
+    }
+
+    // Takes ownership of the message reference
     public void addMedia(RtmpMediaMessage message) {
         short type = message.header().getType();
+        metrics.ingest(message.size());
 
         if (type == (short) RTMP_MSG_USER_CONTROL_TYPE_AUDIO) {
             if (message.isAudioConfig()) {
                 log.info("Audio config is set");
-                audioConfig = message;
+                replaceConfig(message, false);
             }
         } else if (type == (short) RTMP_MSG_USER_CONTROL_TYPE_VIDEO) {
             if (message.isVideoConfig()) {
                 log.info("Video config is set");
-                videoConfig = message;
-            }
-            // clear interFrames queue
-            if (message.isKeyframe()) {
-                log.info("Keyframe added. {} frames cleared", rtmpGopCache.size());
-                rtmpGopCache.clear();
+                replaceConfig(message, true);
             }
         }
-        rtmpGopCache.add(message);
-        broadcastMessage(message);
+        HlsSegmenter segmenter = this.segmenter;
+        if (segmenter != null) {
+            segmenter.onMedia(message);
+        }
+        Recording recording = this.recording;
+        if (recording != null) {
+            recording.append(message);
+        }
+        long sequence = rtmpGopCache.add(message.retain());
+        broadcastMessage(message, sequence);
+        message.release();
+    }
+
+    // Configs are read by subscriber event loops
+    private synchronized void replaceConfig(RtmpMediaMessage config, boolean video) {
+        RtmpMediaMessage previous = video ? videoConfig : audioConfig;
+        if (previous != null) {
+            previous.release();
+        }
+        if (video) {
+            videoConfig = config.retain();
+        } else {
+            audioConfig = config.retain();
+        }
     }
 
-    public void broadcastMessage(RtmpMediaMessage message) {
+    public void broadcastMessage(RtmpMediaMessage message, long sequence) {
         // Handle concurrent modification exception
         if (!readyToBroadcast.isDone()) {
             readyToBroadcast.complete(Boolean.TRUE);
         }
-        Iterator<Channel> channelIterator = subscribers.iterator();
-        while (channelIterator.hasNext()) {
-            Channel next = channelIterator.next();
-            if (next.isActive()) {
-                next.writeAndFlush(RtmpMediaMessage.toRtmpMessage(message));
-            } else {
-                log.info("Inactive channel detected");
-                channelIterator.remove();
+        if (getSubscriberCount() == 0) {
+            return;
+        }
+        // Chunked once for the output chunk size negotiated on connect, other sizes on demand
+        FanoutFrame frame = new FanoutFrame(
+                message.retain(), sequence, publisher.alloc(), RTMP_DEFAULT_OUTPUT_CHUNK_SIZE, metrics.getFanout());
+        for (SubscriberGroup group : groups.values()) {
+            if (group.size() == 0) {
+                continue;
+            }
+            EventLoop eventLoop = group.getEventLoop();
+            if (eventLoop.inEventLoop()) {
+                group.deliver(frame);
+                continue;
+            }
+            frame.retain();
+            try {
+                eventLoop.execute(() -> {
+                    try {
+                        group.deliver(frame);
+                    } finally {
+                        frame.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.info("Event loop is shutting down, frame is not delivered");
+                frame.release();
             }
         }
+        frame.release();
     }
 
+    // Called on the event loop of the subscriber channel
     public void addSubscriber(Channel channel) {
+        addSubscriber(channel, true, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Viewer that was sent this stream from its recording up to the timestamp, called on its event loop.
+     * Configs are not sent again and frames of the group of pictures up to the timestamp are skipped,
+     * if the group started after it the viewer continues from its keyframe
+     * */
+    public void resumeSubscriber(Channel channel, int lastTimestamp) {
+        addSubscriber(channel, false, lastTimestamp);
+    }
+
+    private void addSubscriber(Channel channel, boolean sendConfigs, int lastTimestamp) {
         log.info("Subscriber {} added to stream {}", channel.remoteAddress(), streamName);
-        subscribers.add(channel);
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(
+                (int) subscriberProperties.getWriteBufferLowWaterMark().toBytes(),
+                (int) subscriberProperties.getWriteBufferHighWaterMark().toBytes()));
+        Subscriber subscriber = new Subscriber(channel, subscriberProperties);
+        channel.attr(Subscriber.SUBSCRIBER).set(subscriber);
+        // Joins the group before the replay, frames broadcast meanwhile are skipped by sequence number
+        groups.computeIfAbsent(channel.eventLoop(), SubscriberGroup::new).add(subscriber);
 
-        channel.writeAndFlush(RtmpMediaMessage.toRtmpMessage(videoConfig));
-        channel.writeAndFlush(RtmpMediaMessage.toRtmpMessage(audioConfig));
+        if (sendConfigs) {
+            writeConfigs(channel);
+        }
 
         log.info("Sending group of pictures to client");
-        for (RtmpMediaMessage message : rtmpGopCache) {
-            channel.writeAndFlush(RtmpMediaMessage.toRtmpMessage(message));
+        long replayed = rtmpGopCache.forEachFromLatestKeyframe(message -> {
+            subscriber.replayed(message);
+            if (message.header().getTimestamp() > lastTimestamp) {
+                channel.write(RtmpMediaMessage.toRtmpMessage(message));
+            }
+        });
+        subscriber.setReplayedSequence(replayed);
+        // Group delivers on this event loop, no live frame is admitted before the state is set
+        subscriber.replayFinished(hasVideo());
+        channel.flush();
+    }
+
+    private synchronized boolean hasVideo() {
+        return videoConfig != null;
+    }
+
+    private synchronized void writeConfigs(Channel channel) {
+        if (videoConfig != null) {
+            channel.write(RtmpMediaMessage.toRtmpMessage(videoConfig));
+        }
+        if (audioConfig != null) {
+            channel.write(RtmpMediaMessage.toRtmpMessage(audioConfig));
         }
     }
 
+    public int getSubscriberCount() {
+        int count = 0;
+        for (SubscriberGroup group : groups.values()) {
+            count += group.size();
+        }
+        return count;
+    }
+
+    public List<SubscriberStats> subscriberStats() {
+        List<SubscriberStats> stats = new ArrayList<>();
+        for (SubscriberGroup group : groups.values()) {
+            for (Subscriber subscriber : group.getSubscribers()) {
+                stats.add(subscriber.stats());
+            }
+        }
+        return stats;
+    }
+
+    // Called once per publisher connection from any thread, later calls do nothing
     public void closeStream() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
 
         log.info("Closing stream");
-        RtmpMessage eof = MessageProvider.userControlMessageEvent(STREAM_EOF);
+        for (SubscriberGroup group : groups.values()) {
+            try {
+                group.getEventLoop().execute(group::close);
+            } catch (RejectedExecutionException e) {
+                log.info("Event loop is shutting down, subscribers are closed with it");
+            }
+        }
+        groups.clear();
+        HlsSegmenter segmenter = this.segmenter;
+        if (segmenter != null) {
+            segmenter.close();
+        }
+        Recording recording = this.recording;
+        if (recording != null) {
+            recording.close();
+        }
+        releaseMedia();
+        metrics.close();
+    }
 
-        for (Channel channel : subscribers) {
-            channel.writeAndFlush(eof).addListener(ChannelFutureListener.CLOSE);
+    // Releases pooled buffers held by the stream
+    private synchronized void releaseMedia() {
+        rtmpGopCache.clear();
+        if (videoConfig != null) {
+            videoConfig.release();
+            videoConfig = null;
+        }
+        if (audioConfig != null) {
+            audioConfig.release();
+            audioConfig = null;
         }
     }
 
     public void sendPublishMessage() {
-        publisher.writeAndFlush(MessageProvider.onStatus(
-                "status",
-                "NetStream.Publish.Start",
-                "Start publishing"));
+        publisher.writeAndFlush(MessageTemplates.PUBLISH_START.message());
     }
 
 }
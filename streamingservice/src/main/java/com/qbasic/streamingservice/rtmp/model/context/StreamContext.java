@@ -1,20 +1,59 @@
 package com.qbasic.streamingservice.rtmp.model.context;
 
+import com.qbasic.streamingservice.dvr.DvrRecorder;
+import com.qbasic.streamingservice.hls.HlsWriter;
+import com.qbasic.streamingservice.rtmp.config.RtmpProperties;
+import com.qbasic.streamingservice.rtmp.metrics.RtmpMetrics;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
 import java.util.concurrent.ConcurrentHashMap;
 
+@Slf4j
 public class StreamContext {
 
     public final ConcurrentHashMap<String, Stream> context;
+    @Getter
+    private final RtmpProperties properties;
+    private final RtmpMetrics metrics;
+    // Null when in process segmenting is disabled
+    private final HlsWriter hlsWriter;
+    // Null when recording is disabled
+    @Getter
+    private final DvrRecorder dvrRecorder;
 
-    public StreamContext() {
+    public StreamContext(RtmpProperties properties, RtmpMetrics metrics, HlsWriter hlsWriter, DvrRecorder dvrRecorder) {
         this.context = new ConcurrentHashMap<>();
+        this.properties = properties;
+        this.metrics = metrics;
+        this.hlsWriter = hlsWriter;
+        this.dvrRecorder = dvrRecorder;
+        metrics.bind(this);
+    }
+
+    public Stream createStream(String streamName) {
+        return new Stream(streamName, properties, metrics, hlsWriter, dvrRecorder);
     }
 
+    /**
+     * Registers a stream whose key was validated. A stream still registered under the name belongs
+     * to a previous connection of the owner, it is closed and its publisher disconnected
+     * */
     public void addStream(Stream stream) {
-        context.put(stream.getStreamName(), stream);
+        Stream previous = context.put(stream.getStreamName(), stream);
+        if (previous != null && previous != stream) {
+            log.info("Stream {} is published again, closing the previous publisher", stream.getStreamName());
+            previous.closeStream();
+            previous.getPublisher().close();
+        }
+        // Publisher left while its key was validated
+        if (stream.isClosed()) {
+            context.remove(stream.getStreamName(), stream);
+        }
     }
-    public void deleteStream(String streamName) {
-        context.remove(streamName);
+    // Removes the stream only while it is the registered one
+    public void deleteStream(Stream stream) {
+        context.remove(stream.getStreamName(), stream);
     }
     public Stream getStream(String streamName) {
         if (streamName == null) {
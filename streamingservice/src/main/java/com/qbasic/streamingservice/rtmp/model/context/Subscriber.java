@@ -0,0 +1,217 @@
+package com.qbasic.streamingservice.rtmp.model.context;
+
+import com.qbasic.streamingservice.dto.SubscriberStats;
+import com.qbasic.streamingservice.rtmp.config.RtmpProperties;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import com.qbasic.streamingservice.rtmp.model.util.HeaderProvider;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.AttributeKey;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+
+/**
+ * Viewer of a stream with its frame dropping policy.
+ * While the channel is not writable disposable video frames are dropped first,
+ * if the viewer is estimated to be too far behind all video is skipped until the next keyframe,
+ * a channel that stays unwritable for too long is closed. Audio and codec configs are never dropped.
+ * After a drop the next frame of the same type is encoded with a corrected timestamp delta
+ * */
+@Slf4j
+public class Subscriber {
+
+    // Lets the chunk decoder of a viewer connection report acknowledgements
+    public static final AttributeKey<Subscriber> SUBSCRIBER = AttributeKey.valueOf("rtmpSubscriber");
+
+    public enum State {
+        LIVE, DROPPING, WAITING_KEYFRAME
+    }
+
+    public enum Admission {
+        // Write chunks shared with other subscribers
+        SHARED,
+        // Write the message with a timestamp delta corrected for dropped frames
+        RESYNC,
+        DROP
+    }
+
+    @Getter
+    private final Channel channel;
+    private final long maxLagMillis;
+    private final long unwritableTimeoutNanos;
+
+    // Written by the thread delivering media only
+    @Getter
+    private volatile State state = State.LIVE;
+    @Getter
+    private volatile long droppedFrames;
+    @Getter
+    private volatile long keyframeSkips;
+    private long unwritableSince;
+    // Newest frame sent with group of pictures, live frames up to it are skipped
+    @Getter
+    @Setter
+    private long replayedSequence = -1;
+    private boolean replayedKeyframe;
+
+    private boolean audioResync;
+    private boolean videoResync;
+    private int lastAudioTimestamp;
+    private int lastVideoTimestamp;
+    private int resyncDelta;
+
+    // Acknowledgement based throughput estimate, updated on the subscriber event loop
+    private long lastAckSequence = -1;
+    private long lastAckNanos;
+    private volatile double bytesPerSecond;
+
+    public Subscriber(Channel channel, RtmpProperties.SubscriberProperties properties) {
+        this.channel = channel;
+        this.maxLagMillis = properties.getMaxLag().toMillis();
+        this.unwritableTimeoutNanos = properties.getUnwritableTimeout().toNanos();
+    }
+
+    public Admission admit(RtmpMediaMessage message) {
+        boolean video = message.header().getType() == RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+        boolean config = video ? message.isVideoConfig() : message.isAudioConfig();
+        boolean writable = channel.isWritable();
+
+        if (writable) {
+            unwritableSince = 0;
+            if (state == State.DROPPING) {
+                state = State.LIVE;
+            }
+        } else if (!config) {
+            long now = System.nanoTime();
+            if (unwritableSince == 0) {
+                unwritableSince = now;
+            }
+            if (now - unwritableSince > unwritableTimeoutNanos) {
+                log.info("Subscriber {} is not reading, closing connection", channel.remoteAddress());
+                channel.close();
+                return drop(video);
+            }
+            if (state == State.LIVE) {
+                state = State.DROPPING;
+            }
+            if (state == State.DROPPING && getLagMillis() > maxLagMillis) {
+                log.info("Subscriber {} is {} ms behind, skipping to the next keyframe", channel.remoteAddress(), getLagMillis());
+                state = State.WAITING_KEYFRAME;
+                keyframeSkips++;
+            }
+        }
+
+        if (video && !config) {
+            if (state == State.WAITING_KEYFRAME) {
+                if (!writable || !message.isKeyframe()) {
+                    return drop(true);
+                }
+                state = State.LIVE;
+            } else if (state == State.DROPPING && message.isDisposable()) {
+                return drop(true);
+            }
+        }
+        return deliver(message, video);
+    }
+
+    // Message for the RESYNC admission
+    public RtmpMessage resync(RtmpMediaMessage message) {
+        return new RtmpMessage(
+                HeaderProvider.withTimestampDelta(message.header(), resyncDelta),
+                message.payload().retainedDuplicate());
+    }
+
+    // Frames sent outside of the live fan-out keep timestamps continuous
+    public void replayed(RtmpMediaMessage message) {
+        if (message.header().getType() == RTMP_MSG_USER_CONTROL_TYPE_VIDEO) {
+            lastVideoTimestamp = message.header().getTimestamp();
+            if (message.isKeyframe() && !message.isVideoConfig()) {
+                replayedKeyframe = true;
+            }
+        } else {
+            lastAudioTimestamp = message.header().getTimestamp();
+        }
+    }
+
+    // Live inter frames can not be decoded without a keyframe, video of the stream starts at the next one
+    public void replayFinished(boolean hasVideo) {
+        if (hasVideo && !replayedKeyframe) {
+            state = State.WAITING_KEYFRAME;
+        }
+    }
+
+    public void onAcknowledgement(long sequence) {
+        long now = System.nanoTime();
+        if (lastAckSequence >= 0) {
+            // Sequence number wraps around
+            long bytes = (sequence - lastAckSequence) & 0xffffffffL;
+            long elapsed = now - lastAckNanos;
+            if (bytes > 0 && elapsed > 0) {
+                double sample = bytes * 1e9 / elapsed;
+                bytesPerSecond = bytesPerSecond == 0 ? sample : bytesPerSecond * 0.7 + sample * 0.3;
+            }
+        }
+        lastAckSequence = sequence;
+        lastAckNanos = now;
+    }
+
+    public long getPendingBytes() {
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+    }
+
+    /**
+     * Time to drain bytes queued for the viewer at the acknowledged throughput.
+     * Before the first throughput sample it is the time the channel has been unwritable
+     * */
+    public long getLagMillis() {
+        double rate = bytesPerSecond;
+        if (rate > 0) {
+            return (long) (getPendingBytes() * 1000 / rate);
+        }
+        long since = unwritableSince;
+        return since == 0 ? 0 : (System.nanoTime() - since) / 1_000_000;
+    }
+
+    public SubscriberStats stats() {
+        return new SubscriberStats(
+                String.valueOf(channel.remoteAddress()),
+                state.name(),
+                getLagMillis(),
+                getPendingBytes(),
+                (long) bytesPerSecond,
+                droppedFrames,
+                keyframeSkips);
+    }
+
+    private Admission drop(boolean video) {
+        droppedFrames++;
+        if (video) {
+            videoResync = true;
+        } else {
+            audioResync = true;
+        }
+        return Admission.DROP;
+    }
+
+    private Admission deliver(RtmpMediaMessage message, boolean video) {
+        int timestamp = message.header().getTimestamp();
+        boolean resync;
+        if (video) {
+            resync = videoResync;
+            resyncDelta = Math.max(0, timestamp - lastVideoTimestamp);
+            lastVideoTimestamp = timestamp;
+            videoResync = false;
+        } else {
+            resync = audioResync;
+            resyncDelta = Math.max(0, timestamp - lastAudioTimestamp);
+            lastAudioTimestamp = timestamp;
+            audioResync = false;
+        }
+        return resync ? Admission.RESYNC : Admission.SHARED;
+    }
+}
@@ -0,0 +1,82 @@
+package com.qbasic.streamingservice.rtmp.model.context;
+
+import com.qbasic.streamingservice.rtmp.handlers.ChunkEncoder;
+import com.qbasic.streamingservice.rtmp.model.messages.EncodedMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.util.MessageTemplates;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Subscribers of a stream registered on the same event loop.
+ * Membership changes and writes only happen on that loop, so a frame costs
+ * one task per loop instead of one cross thread write per subscriber
+ * */
+@Slf4j
+public class SubscriberGroup {
+
+    @Getter
+    private final EventLoop eventLoop;
+    // Copy on write list lets stats be read from other threads, membership rarely changes
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    public SubscriberGroup(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    public void add(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public List<Subscriber> getSubscribers() {
+        return subscribers;
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    // Runs on the group event loop
+    public void deliver(FanoutFrame frame) {
+        RtmpMediaMessage message = frame.getMessage();
+        for (Subscriber subscriber : subscribers) {
+            Channel channel = subscriber.getChannel();
+            if (!channel.isActive()) {
+                log.info("Inactive channel detected");
+                subscribers.remove(subscriber);
+                continue;
+            }
+            // Frame was already sent with group of pictures
+            if (frame.getSequence() <= subscriber.getReplayedSequence()) {
+                continue;
+            }
+            switch (subscriber.admit(message)) {
+                case SHARED -> {
+                    int chunkSize = ChunkEncoder.chunkSize(channel);
+                    channel.writeAndFlush(new EncodedMediaMessage(
+                            message.retain(),
+                            chunkSize,
+                            frame.chunks(channel.alloc(), chunkSize).retainedDuplicate()));
+                }
+                case RESYNC -> channel.writeAndFlush(subscriber.resync(message));
+                case DROP -> {}
+            }
+        }
+    }
+
+    // Runs on the group event loop
+    public void close() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.getChannel()
+                    .writeAndFlush(MessageTemplates.STREAM_EOF_EVENT.message())
+                    .addListener(ChannelFutureListener.CLOSE);
+        }
+        subscribers.clear();
+    }
+}
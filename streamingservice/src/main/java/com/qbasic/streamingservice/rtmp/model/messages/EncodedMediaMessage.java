@@ -0,0 +1,58 @@
+package com.qbasic.streamingservice.rtmp.model.messages;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
+
+/**
+ * Media message already split into chunks for a given chunk size.
+ * Every subscriber gets its own retained duplicate of the same chunks,
+ * the source message is kept to encode it again if the connection can not use them.
+ * Holds a reference to both the chunks and the source message
+ * */
+public record EncodedMediaMessage(RtmpMediaMessage source, int chunkSize, ByteBuf chunks) implements ReferenceCounted {
+
+    @Override
+    public int refCnt() {
+        return Math.min(chunks.refCnt(), source.refCnt());
+    }
+
+    @Override
+    public EncodedMediaMessage retain() {
+        chunks.retain();
+        source.retain();
+        return this;
+    }
+
+    @Override
+    public EncodedMediaMessage retain(int increment) {
+        chunks.retain(increment);
+        source.retain(increment);
+        return this;
+    }
+
+    @Override
+    public EncodedMediaMessage touch() {
+        chunks.touch();
+        source.touch();
+        return this;
+    }
+
+    @Override
+    public EncodedMediaMessage touch(Object hint) {
+        chunks.touch(hint);
+        source.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        source.release();
+        return chunks.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        source.release(decrement);
+        return chunks.release(decrement);
+    }
+}
@@ -0,0 +1,22 @@
+package com.qbasic.streamingservice.rtmp.model.messages;
+
+import java.nio.channels.FileChannel;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
+
+/**
+ * Media message whose payload stays in a recording, read by the encoder straight from the file.
+ * Timestamp is on the timeline of the live stream when the recording belongs to one.
+ * The file is owned by the playback and stays open until the message is written
+ * */
+public record RecordedMediaMessage(short type, int timestamp, FileChannel file, long position, int length) {
+
+    // Every recorded message starts with a type 0 chunk, chunk streams carry no state between them
+    public int cid() {
+        return switch (type) {
+            case RTMP_MSG_USER_CONTROL_TYPE_AUDIO -> 4;
+            case RTMP_MSG_USER_CONTROL_TYPE_VIDEO -> 6;
+            default -> 3;
+        };
+    }
+}
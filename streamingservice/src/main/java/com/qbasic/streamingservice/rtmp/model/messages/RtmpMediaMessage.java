@@ -1,28 +1,118 @@
 package com.qbasic.streamingservice.rtmp.model.messages;
 
-import io.netty.buffer.ByteBufUtil;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ReferenceCounted;
 
-public record RtmpMediaMessage(RtmpHeader header, byte[] payload) {
+/**
+ * Audio or video message kept by the stream. Payload is a pooled direct buffer
+ * shared between the GOP cache and subscribers, so it is only read with absolute indexes
+ * */
+public record RtmpMediaMessage(RtmpHeader header, ByteBuf payload) implements ReferenceCounted {
 
-    public static RtmpMediaMessage fromRtmpMessage(RtmpMessage message) {
-        return new RtmpMediaMessage(message.header(), ByteBufUtil.getBytes(message.payload()));
+    public static RtmpMediaMessage fromRtmpMessage(ByteBufAllocator allocator, RtmpMessage message) {
+        ByteBuf source = message.payload();
+        ByteBuf payload = allocator.directBuffer(source.readableBytes(), source.readableBytes());
+        payload.writeBytes(source, source.readerIndex(), source.readableBytes());
+        return new RtmpMediaMessage(message.header(), payload);
     }
 
     public static RtmpMessage toRtmpMessage(RtmpMediaMessage message) {
-        return new RtmpMessage(message.header(), Unpooled.wrappedBuffer(message.payload()));
+        return new RtmpMessage(message.header(), message.payload().retainedDuplicate());
+    }
+
+    public int size() {
+        return this.payload.readableBytes();
     }
 
     public boolean isAudioConfig() {
-        return this.payload.length > 1 && this.payload[1] == 0x00;
+        return size() > 1 && byteAt(1) == 0x00;
     }
 
     // Is H.264 keyframe
     public boolean isKeyframe() {
-        return this.payload.length > 1 && this.payload[0] == 0x17;
+        return size() > 1 && byteAt(0) == 0x17;
     }
 
     public boolean isVideoConfig() {
-        return isKeyframe() && this.payload.length > 2 && this.payload[1] == 0x00;
+        return isKeyframe() && size() > 2 && byteAt(1) == 0x00;
+    }
+
+    /**
+     * Frame no other frame is predicted from, it can be dropped without breaking decoding.
+     * Either FLV disposable inter frame or H.264 frame with nal_ref_idc 0 in its first slice.
+     * NAL units are expected with 4 byte length prefix
+     * */
+    public boolean isDisposable() {
+        int size = size();
+        if (size < 1) {
+            return false;
+        }
+        int frameType = (byteAt(0) & 0xf0) >> 4;
+        if (frameType == 3) {
+            return true;
+        }
+        // AVC NALU packet: codec id 7, packet type 1, 3 bytes composition time
+        if ((byteAt(0) & 0x0f) != 7 || frameType != 2 || size < 5 || byteAt(1) != 0x01) {
+            return false;
+        }
+        int offset = 5;
+        while (offset + 4 < size) {
+            int length = this.payload.getInt(this.payload.readerIndex() + offset);
+            int nalHeader = byteAt(offset + 4);
+            int nalType = nalHeader & 0x1f;
+            // Coded slice of a non-IDR or IDR picture
+            if (nalType == 1 || nalType == 5) {
+                return (nalHeader & 0x60) == 0;
+            }
+            if (length <= 0) {
+                return false;
+            }
+            offset += 4 + length;
+        }
+        return false;
+    }
+
+    private byte byteAt(int index) {
+        return this.payload.getByte(this.payload.readerIndex() + index);
+    }
+
+    @Override
+    public int refCnt() {
+        return payload.refCnt();
+    }
+
+    @Override
+    public RtmpMediaMessage retain() {
+        payload.retain();
+        return this;
+    }
+
+    @Override
+    public RtmpMediaMessage retain(int increment) {
+        payload.retain(increment);
+        return this;
+    }
+
+    @Override
+    public RtmpMediaMessage touch() {
+        payload.touch();
+        return this;
+    }
+
+    @Override
+    public RtmpMediaMessage touch(Object hint) {
+        payload.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return payload.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return payload.release(decrement);
     }
 }
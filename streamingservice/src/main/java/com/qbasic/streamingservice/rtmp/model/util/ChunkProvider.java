@@ -0,0 +1,69 @@
+package com.qbasic.streamingservice.rtmp.model.util;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpHeader;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
+
+/**
+ * Chunk stream serialization shared by {@link com.qbasic.streamingservice.rtmp.handlers.ChunkEncoder}
+ * and the stream fan-out, so a media message chunked once for all subscribers
+ * is byte for byte what the per-connection encoder would produce
+ * */
+public class ChunkProvider {
+
+    /**
+     * Chunks a media message as a type 1 chunk followed by type 3 continuation chunks.
+     * Encoding does not depend on connection state except the chunk size,
+     * so the result can be shared between subscribers with the same chunk size
+     * */
+    public static ByteBuf mediaChunks(ByteBufAllocator allocator, RtmpMediaMessage message, int chunkSize) {
+        RtmpHeader header = message.header();
+        ByteBuf payload = message.payload();
+        int index = payload.readerIndex();
+        int length = payload.readableBytes();
+        int chunks = Math.max(1, (length + chunkSize - 1) / chunkSize);
+        // 8 bytes of type 1 header, up to 3 bytes of basic header per continuation chunk
+        ByteBuf buf = allocator.directBuffer(length + 8 + (chunks - 1) * 3);
+
+        writeBasicHeader(buf, RTMP_CHUNK_TYPE_1, header.getCid());
+        buf.writeMedium(header.getTimestampDelta());
+        buf.writeMedium(header.getMessageLength());
+        buf.writeByte(header.getType());
+
+        int offset = Math.min(chunkSize, length);
+        buf.writeBytes(payload, index, offset);
+        while (offset < length) {
+            writeBasicHeader(buf, RTMP_CHUNK_TYPE_3, header.getCid());
+            int min = Math.min(chunkSize, length - offset);
+            buf.writeBytes(payload, index + offset, min);
+            offset += min;
+        }
+        return buf;
+    }
+
+    /** Writes remaining payload as type 3 chunks */
+    public static void encodeFmt3(ByteBuf payload, int cid, int chunkSize, ByteBuf buf) {
+        while (payload.isReadable()) {
+            writeBasicHeader(buf, RTMP_CHUNK_TYPE_3, cid);
+
+            int min = Math.min(chunkSize, payload.readableBytes());
+            buf.writeBytes(payload, min);
+        }
+    }
+
+    public static void writeBasicHeader(ByteBuf buf, int fmt, int cid) {
+        if (cid >= 64 + 255) {
+            buf.writeByte((fmt << 6) | 1);
+            buf.writeByte((cid - 64) & 0xff);
+            buf.writeByte(((cid - 64) >> 8) & 0xff);
+        } else if (cid >= 64) {
+            buf.writeByte(fmt << 6);
+            buf.writeByte((cid - 64) & 0xff);
+        } else {
+            buf.writeByte((fmt << 6) | cid);
+        }
+    }
+}
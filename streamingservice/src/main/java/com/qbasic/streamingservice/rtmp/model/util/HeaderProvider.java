@@ -75,5 +75,22 @@ public class HeaderProvider {
         return header;
     }
 
+    public static RtmpHeader copy(RtmpHeader source) {
+        return withTimestampDelta(source, source.getTimestampDelta());
+    }
+
+    public static RtmpHeader withTimestampDelta(RtmpHeader source, int timestampDelta) {
+        RtmpHeader header = new RtmpHeader();
+        header.setFmt(source.getFmt());
+        header.setCid(source.getCid());
+        header.setTimestamp(source.getTimestamp());
+        header.setMessageLength(source.getMessageLength());
+        header.setType(source.getType());
+        header.setStreamId(source.getStreamId());
+        header.setTimestampDelta(timestampDelta);
+        header.setExtendedTimestamp(source.getExtendedTimestamp());
+        header.setHeaderLength(source.getHeaderLength());
 
+        return header;
+    }
 }
@@ -0,0 +1,68 @@
+package com.qbasic.streamingservice.rtmp.model.util;
+
+import com.qbasic.streamingservice.rtmp.amf0.Amf0Rules;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpHeader;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.util.List;
+
+/**
+ * Message encoded once and sent many times. Payload is read only and never released,
+ * every send gets a duplicate with own indexes. Command templates remember
+ * the offset of the transaction id, which is the only field patched per send
+ * */
+public class MessageTemplate {
+
+    private final RtmpHeader header;
+    private final ByteBuf payload;
+    // Offset of the transaction id double, -1 when the message has none
+    private final int transactionIdOffset;
+
+    private MessageTemplate(RtmpHeader header, ByteBuf payload, int transactionIdOffset) {
+        this.header = header;
+        this.payload = Unpooled.unreleasableBuffer(payload.asReadOnly());
+        this.transactionIdOffset = transactionIdOffset;
+    }
+
+    // Takes ownership of the message payload
+    public static MessageTemplate of(RtmpMessage message) {
+        ByteBuf payload = Unpooled.copiedBuffer(message.payload());
+        message.payload().release();
+        return new MessageTemplate(message.header(), payload, -1);
+    }
+
+    // Command with a transaction id as its second value
+    public static MessageTemplate command(List<Object> values) {
+        ByteBuf payload = Unpooled.buffer();
+        Amf0Rules.encode(payload, values.get(0));
+        // Number marker precedes the double
+        int transactionIdOffset = payload.writerIndex() + 1;
+        Amf0Rules.encodeList(payload, values.subList(1, values.size()));
+        return new MessageTemplate(
+                HeaderProvider.commandMessageHeader(payload.readableBytes()),
+                payload,
+                transactionIdOffset);
+    }
+
+    public static MessageTemplate data(List<Object> values) {
+        return of(MessageProvider.dataMessage(values));
+    }
+
+    public RtmpMessage message() {
+        return new RtmpMessage(HeaderProvider.copy(header), payload.retainedDuplicate());
+    }
+
+    public RtmpMessage message(ByteBufAllocator allocator, double transactionId) {
+        if (transactionIdOffset < 0) {
+            return message();
+        }
+        int length = payload.readableBytes();
+        ByteBuf buf = allocator.buffer(length);
+        buf.writeBytes(payload, payload.readerIndex(), length);
+        buf.setDouble(transactionIdOffset, transactionId);
+        return new RtmpMessage(HeaderProvider.copy(header), buf);
+    }
+}
@@ -0,0 +1,86 @@
+package com.qbasic.streamingservice.rtmp.model.util;
+
+import com.qbasic.streamingservice.rtmp.amf0.Amf0Rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
+
+/**
+ * Registry of messages every session sends with the same content.
+ * Connect, create stream and play responses come from here instead of being encoded per connection
+ * */
+public class MessageTemplates {
+
+    public static final MessageTemplate WINDOW_ACKNOWLEDGEMENT =
+            MessageTemplate.of(MessageProvider.setWindowAcknowledgement(RTMP_DEFAULT_OUTPUT_ACK_SIZE));
+    public static final MessageTemplate PEER_BANDWIDTH =
+            MessageTemplate.of(MessageProvider.setPeerBandwidth(RTMP_DEFAULT_OUTPUT_ACK_SIZE, 2));
+    public static final MessageTemplate CHUNK_SIZE =
+            MessageTemplate.of(MessageProvider.setChunkSize(RTMP_DEFAULT_OUTPUT_CHUNK_SIZE));
+
+    public static final MessageTemplate STREAM_BEGIN_EVENT =
+            MessageTemplate.of(MessageProvider.userControlMessageEvent(STREAM_BEGIN));
+    public static final MessageTemplate STREAM_EOF_EVENT =
+            MessageTemplate.of(MessageProvider.userControlMessageEvent(STREAM_EOF));
+
+    public static final MessageTemplate CONNECT_RESULT = MessageTemplate.command(connectResult());
+    public static final MessageTemplate CREATE_STREAM_RESULT = MessageTemplate.command(createStreamResult());
+
+    public static final MessageTemplate PUBLISH_START =
+            MessageTemplate.of(MessageProvider.onStatus("status", "NetStream.Publish.Start", "Start publishing"));
+    public static final MessageTemplate UNPUBLISH_SUCCESS =
+            MessageTemplate.of(MessageProvider.onStatus("status", "NetStream.Unpublish.Success", "Stop publishing"));
+    public static final MessageTemplate PLAY_START =
+            MessageTemplate.of(MessageProvider.onStatus("status", "NetStream.Play.Start", "Start live"));
+    public static final MessageTemplate PLAY_STREAM_NOT_FOUND =
+            MessageTemplate.of(MessageProvider.onStatus("error", "NetStream.Play.StreamNotFound", "No Such Stream"));
+    public static final MessageTemplate SAMPLE_ACCESS = MessageTemplate.of(MessageProvider.commandMessage(sampleAccess()));
+
+    // Acknowledgement windows requested from viewers, one value per configuration
+    private static final Map<Integer, MessageTemplate> WINDOW_ACKNOWLEDGEMENTS = new ConcurrentHashMap<>();
+
+    public static MessageTemplate windowAcknowledgement(int ackSize) {
+        return WINDOW_ACKNOWLEDGEMENTS.computeIfAbsent(ackSize,
+                size -> MessageTemplate.of(MessageProvider.setWindowAcknowledgement(size)));
+    }
+
+    private static List<Object> connectResult() {
+        Amf0Rules.Amf0Object cmdObj = new Amf0Rules.Amf0Object();
+        cmdObj.put("fmsVer", "FMS/3,0,1,123");
+        cmdObj.put("capabilities", 31);
+
+        Amf0Rules.Amf0Object info = new Amf0Rules.Amf0Object();
+        info.put("level", "status");
+        info.put("code", "NetConnection.Connect.Success");
+        info.put("description", "Connection succeeded");
+        info.put("objectEncoding", 0);
+
+        List<Object> result = new ArrayList<>();
+        result.add("_result");
+        result.add(0.0); // transaction id
+        result.add(cmdObj);
+        result.add(info);
+        return result;
+    }
+
+    private static List<Object> createStreamResult() {
+        List<Object> result = new ArrayList<>();
+        result.add("_result");
+        result.add(0.0); // transaction id
+        result.add(null); // properties
+        result.add(RTMP_DEFAULT_MESSAGE_STREAM_ID_VALUE); // stream id
+        return result;
+    }
+
+    private static List<Object> sampleAccess() {
+        List<Object> args = new ArrayList<>();
+        args.add("|RtmpSampleAccess");
+        args.add(true);
+        args.add(true);
+        return args;
+    }
+}
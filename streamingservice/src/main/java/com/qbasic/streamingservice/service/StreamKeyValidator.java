@@ -0,0 +1,113 @@
+package com.qbasic.streamingservice.service;
+
+import com.qbasic.streamingservice.rtmp.entity.User;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stream key checks against the auth server with a local cache.
+ * Valid and invalid results are cached with separate TTLs, concurrent checks of the same
+ * credentials share one request, an expired valid entry is still accepted during the stale period
+ * while it is refreshed in background, so publishes never wait on the auth server for a known key.
+ * A refresh that finds the key invalid replaces the entry, changed credentials are dropped at once
+ * through invalidate(). Auth server errors are never cached
+ * */
+@Service
+@Slf4j
+public class StreamKeyValidator {
+
+    private record Credentials(String username, String streamKey) {}
+
+    private record Entry(boolean valid, long expiresAt, long staleUntil) {}
+
+    @Autowired
+    private WebClient webClient;
+
+    @Value("${auth.server}")
+    private String authAddress;
+
+    @Value("${auth.cache.positive-ttl:10m}")
+    private Duration positiveTtl;
+
+    @Value("${auth.cache.negative-ttl:5s}")
+    private Duration negativeTtl;
+
+    @Value("${auth.cache.stale-ttl:1h}")
+    private Duration staleTtl;
+
+    @Value("${auth.cache.max-entries:10000}")
+    private int maxEntries;
+
+    private final Map<Credentials, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<Credentials, Mono<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    public Mono<Boolean> validate(String username, String streamKey) {
+        Credentials credentials = new Credentials(username, streamKey);
+        Entry entry = cache.get(credentials);
+        long now = System.nanoTime();
+        if (entry != null) {
+            if (now - entry.expiresAt() < 0) {
+                return Mono.just(entry.valid());
+            }
+            if (entry.valid() && now - entry.staleUntil() < 0) {
+                log.info("Stream key of {} is stale, refreshing", username);
+                // Shares the request of concurrent checks, the next publish gets the refreshed answer
+                check(credentials).subscribe(valid -> {}, error -> log.warn("Refresh of stale stream key of {} failed", username));
+                return Mono.just(Boolean.TRUE);
+            }
+        }
+        return check(credentials)
+                .onErrorReturn(Boolean.FALSE);
+    }
+
+    // Drops cached results of the user, called when credentials change
+    public void invalidate(String username) {
+        log.info("Invalidating cached stream keys of {}", username);
+        cache.keySet().removeIf(credentials -> credentials.username().equals(username));
+    }
+
+    private Mono<Boolean> check(Credentials credentials) {
+        return inFlight.computeIfAbsent(credentials, key -> webClient
+                .post()
+                .uri(authAddress + "/auth/check")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body(Mono.just(new User(key.username(), key.streamKey())), User.class)
+                .retrieve()
+                .bodyToMono(Boolean.class)
+                .defaultIfEmpty(Boolean.FALSE)
+                .retryWhen(Retry.fixedDelay(3, Duration.ofMillis(500)))
+                .doOnNext(valid -> put(key, valid))
+                .doOnError(error -> log.info(error.getMessage()))
+                .doFinally(signal -> inFlight.remove(key))
+                .cache());
+    }
+
+    private void put(Credentials credentials, boolean valid) {
+        if (cache.size() >= maxEntries) {
+            evictExpired();
+        }
+        long now = System.nanoTime();
+        long ttl = (valid ? positiveTtl : negativeTtl).toNanos();
+        cache.put(credentials, new Entry(valid, now + ttl, now + ttl + (valid ? staleTtl.toNanos() : 0)));
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        cache.values().removeIf(entry -> now - entry.staleUntil() >= 0);
+        if (cache.size() >= maxEntries) {
+            // Mostly live entries, start over rather than grow without bound
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.qbasic.streamingservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Asks the transcoding server for capacity before a publish is accepted.
+ * Streams over capacity still get the passthrough rendition, so publishes are only rejected
+ * when configured to. An unreachable transcoding server never rejects a publish
+ * */
+@Service
+@Slf4j
+public class TranscodingAdmission {
+
+    private record Capacity(double budget, double used, int running, int queued, boolean accepting) {}
+
+    @Autowired
+    private WebClient webClient;
+
+    @Value("${transcoding.server}")
+    private String transcodingAddress;
+
+    @Value("${transcoding.admission.reject-when-full:false}")
+    private boolean rejectWhenFull;
+
+    @Value("${transcoding.admission.timeout:500ms}")
+    private Duration timeout;
+
+    public Mono<Boolean> admit(String streamName) {
+        if (!rejectWhenFull) {
+            return Mono.just(Boolean.TRUE);
+        }
+        return webClient
+                .get()
+                .uri(transcodingAddress + "/ffmpeg/capacity")
+                .retrieve()
+                .bodyToMono(Capacity.class)
+                .timeout(timeout)
+                .map(capacity -> {
+                    if (!capacity.accepting()) {
+                        log.info("Transcoding is full ({} of {} cores, {} queued), rejecting publish of {}",
+                                capacity.used(), capacity.budget(), capacity.queued(), streamName);
+                    }
+                    return capacity.accepting();
+                })
+                .doOnError(error -> log.info("Transcoding capacity check failed: {}", error.getMessage()))
+                .onErrorReturn(Boolean.TRUE)
+                .defaultIfEmpty(Boolean.TRUE);
+    }
+}
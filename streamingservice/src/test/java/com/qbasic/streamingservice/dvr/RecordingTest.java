@@ -0,0 +1,235 @@
+package com.qbasic.streamingservice.dvr;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpHeader;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_AUDIO;
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecordingTest {
+
+    private static final byte[] METADATA = {0x02, 0x00, 0x0a, 'o', 'n', 'M', 'e', 't', 'a', 'D', 'a', 't', 'a'};
+
+    @TempDir
+    Path directory;
+
+    private DvrRecorder recorder;
+
+    @AfterEach
+    void tearDown() {
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
+    @Test
+    void writesFlvTagsWithPreviousTagSizes() throws Exception {
+        Recording recording = record(1 << 20, this::metadata);
+        append(recording, video(0x17, 0x00, 1000));
+        append(recording, audio(0x00, 1000));
+        append(recording, video(0x17, 0x01, 1000));
+        append(recording, audio(0x01, 1020));
+        append(recording, video(0x27, 0x01, 1040));
+        finish(recording);
+
+        byte[] file = Files.readAllBytes(recording.getFile());
+        assertThat(Arrays.copyOf(file, 13)).containsExactly('F', 'L', 'V', 1, 0x05, 0, 0, 0, 9, 0, 0, 0, 0);
+
+        List<Tag> tags = tags(file);
+        assertThat(tags).extracting(Tag::type).containsExactly(18, 9, 8, 9, 8, 9);
+        // Timestamps start from the first frame
+        assertThat(tags).extracting(Tag::timestamp).containsExactly(0, 0, 0, 0, 20, 40);
+        assertThat(tags.get(0).payload()).containsExactly(METADATA);
+        assertThat(tags.get(3).payload()).startsWith(0x17, 0x01);
+        assertThat(recording.getBaseTimestamp()).isEqualTo(1000);
+        assertThat(recording.hasMedia()).isTrue();
+    }
+
+    @Test
+    void writesTimestampsPastTwentyFourBits() throws Exception {
+        Recording recording = record(1 << 20, () -> null);
+        append(recording, video(0x17, 0x01, 0));
+        append(recording, video(0x17, 0x01, 0x1234567));
+        finish(recording);
+
+        List<Tag> tags = tags(Files.readAllBytes(recording.getFile()));
+        assertThat(tags).extracting(Tag::timestamp).containsExactly(0, 0x1234567);
+    }
+
+    @Test
+    void skipsFramesBeforeTheFirstKeyframe() throws Exception {
+        Recording recording = record(1 << 20, () -> null);
+        append(recording, video(0x27, 0x01, 960));
+        append(recording, audio(0x01, 980));
+        append(recording, video(0x17, 0x01, 1000));
+        append(recording, audio(0x01, 1020));
+        finish(recording);
+
+        List<Tag> tags = tags(Files.readAllBytes(recording.getFile()));
+        assertThat(tags).extracting(Tag::type).containsExactly(9, 8);
+        assertThat(tags).extracting(Tag::timestamp).containsExactly(0, 20);
+    }
+
+    @Test
+    void indexMapsKeyframeTimestampsToTagOffsets() throws Exception {
+        Recording recording = record(1 << 20, this::metadata);
+        append(recording, video(0x17, 0x00, 500));
+        append(recording, video(0x17, 0x01, 500));
+        for (int timestamp = 540; timestamp <= 2500; timestamp += 40) {
+            append(recording, video(timestamp % 1000 == 500 ? 0x17 : 0x27, 0x01, timestamp));
+            append(recording, audio(0x01, timestamp + 10));
+        }
+        finish(recording);
+
+        List<Tag> keyframes = tags(Files.readAllBytes(recording.getFile())).stream()
+                .filter(tag -> tag.type() == 9 && tag.payload()[0] == 0x17 && tag.payload()[1] == 0x01)
+                .toList();
+        assertThat(keyframes).extracting(Tag::timestamp).containsExactly(0, 1000, 2000);
+
+        try (KeyframeIndex index = KeyframeIndex.open(indexFile(recording))) {
+            assertThat(index.startMillis()).isEqualTo(startMillis(recording));
+            assertThat(index.size()).isEqualTo(keyframes.size());
+            for (int i = 0; i < keyframes.size(); i++) {
+                assertThat(index.timestamp(i)).isEqualTo(keyframes.get(i).timestamp());
+                assertThat(index.offset(i)).isEqualTo(keyframes.get(i).offset());
+            }
+            assertThat(index.floor(1500)).isEqualTo(1);
+            assertThat(index.floor(2000)).isEqualTo(2);
+            assertThat(index.floor(-1)).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    void indexReadWhileRecordingMatchesReopenedIndex() throws Exception {
+        // Every frame is committed as soon as it is queued
+        Recording recording = record(1, () -> null);
+        append(recording, video(0x17, 0x01, 0));
+        append(recording, video(0x27, 0x01, 40));
+        await(() -> Files.exists(indexFile(recording)) && recording.committed() > 0);
+
+        try (KeyframeIndex live = KeyframeIndex.open(indexFile(recording))) {
+            await(() -> size(live) == 1);
+            // Initial capacity is one entry, the writer grows the mapping and the reader remaps it
+            append(recording, video(0x17, 0x01, 1000));
+            append(recording, video(0x17, 0x01, 2000));
+            await(() -> size(live) == 3);
+            finish(recording);
+
+            try (KeyframeIndex reopened = KeyframeIndex.open(indexFile(recording))) {
+                assertThat(reopened.startMillis()).isEqualTo(live.startMillis());
+                assertThat(reopened.size()).isEqualTo(live.size());
+                for (int i = 0; i < live.size(); i++) {
+                    assertThat(reopened.timestamp(i)).isEqualTo(live.timestamp(i));
+                    assertThat(reopened.offset(i)).isEqualTo(live.offset(i));
+                }
+            }
+        }
+    }
+
+    private Recording record(long commitBytes, Supplier<RtmpMessage> metadata) {
+        recorder = new DvrRecorder(directory.toString(), 1, Duration.ofHours(1), commitBytes,
+                1 << 20, 1 << 20, false, 1, new SimpleMeterRegistry());
+        return recorder.start("alice", metadata);
+    }
+
+    private RtmpMessage metadata() {
+        RtmpHeader header = new RtmpHeader();
+        header.setType((short) 18);
+        header.setMessageLength(METADATA.length);
+        return new RtmpMessage(header, Unpooled.wrappedBuffer(METADATA));
+    }
+
+    // The recording retains what it queues, the caller keeps its reference
+    private static void append(Recording recording, RtmpMediaMessage message) {
+        recording.append(message);
+        message.release();
+    }
+
+    private static void finish(Recording recording) throws InterruptedException {
+        recording.close();
+        await(recording::isFinished);
+    }
+
+    private static Path indexFile(Recording recording) {
+        return recording.getFile().resolveSibling(startMillis(recording) + ".idx");
+    }
+
+    private static long startMillis(Recording recording) {
+        String name = recording.getFile().getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - ".flv".length()));
+    }
+
+    private static int size(KeyframeIndex index) {
+        try {
+            return index.size();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    record Tag(long offset, int type, int timestamp, byte[] payload) {
+    }
+
+    // Checks that each tag is followed by its size
+    private static List<Tag> tags(byte[] file) {
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        buffer.position(13);
+        List<Tag> tags = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            long offset = buffer.position();
+            int type = buffer.get() & 0xff;
+            int size = (buffer.get() & 0xff) << 16 | (buffer.get() & 0xff) << 8 | buffer.get() & 0xff;
+            int timestamp = (buffer.get() & 0xff) << 16 | (buffer.get() & 0xff) << 8 | buffer.get() & 0xff;
+            timestamp |= (buffer.get() & 0xff) << 24;
+            int streamId = (buffer.get() & 0xff) << 16 | (buffer.get() & 0xff) << 8 | buffer.get() & 0xff;
+            assertThat(streamId).isZero();
+            byte[] payload = new byte[size];
+            buffer.get(payload);
+            assertThat(buffer.getInt()).isEqualTo(11 + size);
+            tags.add(new Tag(offset, type, timestamp, payload));
+        }
+        return tags;
+    }
+
+    private static RtmpMediaMessage video(int frameType, int packetType, int timestamp) {
+        return message(RTMP_MSG_USER_CONTROL_TYPE_VIDEO, timestamp, new byte[]{(byte) frameType, (byte) packetType, 0, 0, 0, 1, 2, 3});
+    }
+
+    private static RtmpMediaMessage audio(int packetType, int timestamp) {
+        return message(RTMP_MSG_USER_CONTROL_TYPE_AUDIO, timestamp, new byte[]{(byte) 0xaf, (byte) packetType, 4, 5});
+    }
+
+    private static RtmpMediaMessage message(int type, int timestamp, byte[] payload) {
+        RtmpHeader header = new RtmpHeader();
+        header.setType((short) type);
+        header.setTimestamp(timestamp);
+        header.setMessageLength(payload.length);
+        return new RtmpMediaMessage(header, Unpooled.wrappedBuffer(payload));
+    }
+}
@@ -0,0 +1,183 @@
+package com.qbasic.streamingservice.hls;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpHeader;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_AUDIO;
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+
+/**
+ * FLV H.264/AAC messages and a minimal MPEG-TS reader for the HLS tests
+ * */
+final class HlsMedia {
+
+    static final byte[] SPS = {0x67, 0x64, 0x00, 0x1f, (byte) 0xac};
+    static final byte[] PPS = {0x68, (byte) 0xee, 0x3c, (byte) 0x80};
+    static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33};
+    static final byte[] SLICE = {0x41, (byte) 0x9a, 0x02, 0x04};
+    // AAC LC, 44.1 kHz, stereo
+    static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+
+    private HlsMedia() {
+    }
+
+    // AVCDecoderConfigurationRecord with 4 byte NAL lengths
+    static RtmpMediaMessage videoConfig(int timestamp) {
+        ByteBuf payload = Unpooled.buffer();
+        payload.writeBytes(new byte[]{0x17, 0x00, 0, 0, 0});
+        payload.writeBytes(new byte[]{0x01, 0x64, 0x00, 0x1f, (byte) 0xff, (byte) 0xe1});
+        payload.writeShort(SPS.length).writeBytes(SPS);
+        payload.writeByte(1);
+        payload.writeShort(PPS.length).writeBytes(PPS);
+        return message(RTMP_MSG_USER_CONTROL_TYPE_VIDEO, timestamp, payload);
+    }
+
+    static RtmpMediaMessage keyframe(int timestamp, int compositionTime, byte[]... nals) {
+        return video(0x17, timestamp, compositionTime, nals.length == 0 ? new byte[][]{IDR} : nals);
+    }
+
+    static RtmpMediaMessage interframe(int timestamp) {
+        return video(0x27, timestamp, 0, new byte[][]{SLICE});
+    }
+
+    static RtmpMediaMessage video(int frameType, int timestamp, int compositionTime, byte[][] nals) {
+        ByteBuf payload = Unpooled.buffer();
+        payload.writeByte(frameType).writeByte(0x01).writeMedium(compositionTime);
+        for (byte[] nal : nals) {
+            payload.writeInt(nal.length).writeBytes(nal);
+        }
+        return message(RTMP_MSG_USER_CONTROL_TYPE_VIDEO, timestamp, payload);
+    }
+
+    static RtmpMediaMessage audioConfig(int timestamp) {
+        ByteBuf payload = Unpooled.buffer();
+        payload.writeByte(0xaf).writeByte(0x00).writeBytes(AUDIO_SPECIFIC_CONFIG);
+        return message(RTMP_MSG_USER_CONTROL_TYPE_AUDIO, timestamp, payload);
+    }
+
+    static RtmpMediaMessage audio(int timestamp, byte[] raw) {
+        ByteBuf payload = Unpooled.buffer();
+        payload.writeByte(0xaf).writeByte(0x01).writeBytes(raw);
+        return message(RTMP_MSG_USER_CONTROL_TYPE_AUDIO, timestamp, payload);
+    }
+
+    static RtmpMediaMessage message(int type, int timestamp, ByteBuf payload) {
+        RtmpHeader header = new RtmpHeader();
+        header.setType((short) type);
+        header.setTimestamp(timestamp);
+        header.setMessageLength(payload.readableBytes());
+        return new RtmpMediaMessage(header, payload);
+    }
+
+    record Packet(int pid, boolean unitStart, int counter, int adaptationFlags, long pcr, byte[] payload) {
+
+        boolean hasPcr() {
+            return (adaptationFlags & 0x10) != 0;
+        }
+
+        boolean randomAccess() {
+            return (adaptationFlags & 0x40) != 0;
+        }
+    }
+
+    static List<Packet> packets(ByteBuf ts) {
+        byte[] bytes = ByteBufUtil.getBytes(ts);
+        if (bytes.length % TsMuxer.PACKET_SIZE != 0) {
+            throw new AssertionError("Transport stream of " + bytes.length + " bytes is not packet aligned");
+        }
+        List<Packet> packets = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += TsMuxer.PACKET_SIZE) {
+            if (bytes[offset] != 0x47) {
+                throw new AssertionError("Missing sync byte at " + offset);
+            }
+            int pid = ((bytes[offset + 1] & 0x1f) << 8) | (bytes[offset + 2] & 0xff);
+            boolean unitStart = (bytes[offset + 1] & 0x40) != 0;
+            int control = (bytes[offset + 3] >> 4) & 0x03;
+            int counter = bytes[offset + 3] & 0x0f;
+            int start = offset + 4;
+            int flags = 0;
+            long pcr = -1;
+            if ((control & 0x02) != 0) {
+                int length = bytes[start] & 0xff;
+                if (length > 0) {
+                    flags = bytes[start + 1] & 0xff;
+                    if ((flags & 0x10) != 0) {
+                        pcr = ((bytes[start + 2] & 0xffL) << 25) | ((bytes[start + 3] & 0xffL) << 17)
+                                | ((bytes[start + 4] & 0xffL) << 9) | ((bytes[start + 5] & 0xffL) << 1)
+                                | ((bytes[start + 6] & 0x80L) >> 7);
+                    }
+                }
+                start += 1 + length;
+            }
+            byte[] payload = new byte[offset + TsMuxer.PACKET_SIZE - start];
+            System.arraycopy(bytes, start, payload, 0, payload.length);
+            packets.add(new Packet(pid, unitStart, counter, flags, pcr, payload));
+        }
+        return packets;
+    }
+
+    // PES packets of a PID, each reassembled from the packet starting it up to the next start
+    static List<byte[]> pes(List<Packet> packets, int pid) {
+        List<byte[]> units = new ArrayList<>();
+        ByteArrayOutputStream unit = null;
+        for (Packet packet : packets) {
+            if (packet.pid() != pid) {
+                continue;
+            }
+            if (packet.unitStart()) {
+                if (unit != null) {
+                    units.add(unit.toByteArray());
+                }
+                unit = new ByteArrayOutputStream();
+            }
+            if (unit != null) {
+                unit.writeBytes(packet.payload());
+            }
+        }
+        if (unit != null) {
+            units.add(unit.toByteArray());
+        }
+        return units;
+    }
+
+    // 33 bit timestamp in the PES header at the offset
+    static long timestamp(byte[] pes, int offset) {
+        return ((pes[offset] & 0x0eL) << 29) | ((pes[offset + 1] & 0xffL) << 22) | ((pes[offset + 2] & 0xfeL) << 14)
+                | ((pes[offset + 3] & 0xffL) << 7) | ((pes[offset + 4] & 0xfeL) >> 1);
+    }
+
+    // Elementary stream data of a PES packet
+    static byte[] data(byte[] pes) {
+        int start = 9 + (pes[8] & 0xff);
+        byte[] data = new byte[pes.length - start];
+        System.arraycopy(pes, start, data, 0, data.length);
+        return data;
+    }
+
+    // MPEG-2 CRC32 computed bit by bit, a section followed by its CRC gives zero
+    static int crc32(byte[] data, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xff) << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+        }
+        return crc;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
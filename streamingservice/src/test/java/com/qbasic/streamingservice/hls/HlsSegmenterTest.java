@@ -0,0 +1,250 @@
+package com.qbasic.streamingservice.hls;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.qbasic.streamingservice.hls.HlsMedia.*;
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_AUDIO;
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class HlsSegmenterTest {
+
+    private static final String STREAM = "user";
+    private static final int VIDEO_PID = 0x0100;
+    private static final int AUDIO_PID = 0x0101;
+
+    // Calls of the segmenter in order, buffers are copied and released as the writer does
+    private static class RecordingWriter extends HlsWriter {
+
+        record SegmentCall(long index, double duration, byte[] data) {
+        }
+
+        record PartCall(long segment, int part, double duration, boolean independent) {
+        }
+
+        final List<SegmentCall> segments = new ArrayList<>();
+        final List<PartCall> parts = new ArrayList<>();
+        // Part data by segment and part in the order appended
+        final List<String> appended = new ArrayList<>();
+        long targetDuration;
+        boolean finished;
+
+        RecordingWriter() {
+            super("unused", "0", 6, 1, 0);
+        }
+
+        @Override
+        public void start(String stream, long targetDurationSeconds) {
+            assertThat(targetDuration).isZero();
+            targetDuration = targetDurationSeconds;
+        }
+
+        @Override
+        public void appendPart(String stream, long segment, int part, ByteBuf data) {
+            appended.add(segment + "." + part);
+            data.release();
+        }
+
+        @Override
+        public void partComplete(String stream, long segment, int part, double duration, boolean independent) {
+            parts.add(new PartCall(segment, part, duration, independent));
+        }
+
+        @Override
+        public void segment(String stream, long index, double duration, ByteBuf data) {
+            segments.add(new SegmentCall(index, duration, ByteBufUtil.getBytes(data)));
+            data.release();
+        }
+
+        @Override
+        public void finish(String stream) {
+            finished = true;
+        }
+    }
+
+    private final RecordingWriter writer = new RecordingWriter();
+
+    @Test
+    void startsOnFirstKeyframeAndCutsOnKeyframesAfterTarget() {
+        HlsSegmenter segmenter = new HlsSegmenter(STREAM, writer, 1000, 0);
+        feed(segmenter, videoConfig(0), audioConfig(0));
+        // Frames before the first keyframe are not decodable
+        feed(segmenter, interframe(0), interframe(40));
+        // Keyframe every 600 ms, the target of 1000 ms is reached on the second one after a start
+        for (int timestamp = 80; timestamp <= 2440; timestamp += 40) {
+            boolean keyframe = (timestamp - 80) % 600 == 0;
+            feed(segmenter, keyframe ? keyframe(timestamp, 0) : interframe(timestamp));
+        }
+
+        assertThat(writer.segments).hasSize(1);
+        RecordingWriter.SegmentCall segment = writer.segments.get(0);
+        assertThat(segment.duration()).isCloseTo(1.2, within(0.001));
+        // Two keyframe intervals rounded up to whole seconds
+        assertThat(writer.targetDuration).isEqualTo(2);
+
+        List<Packet> packets = packets(Unpooled.wrappedBuffer(segment.data()));
+        // Segment starts with tables and the keyframe
+        assertThat(packets.get(0).pid()).isZero();
+        assertThat(packets.get(1).pid()).isEqualTo(0x1000);
+        assertThat(packets.get(2).pid()).isEqualTo(VIDEO_PID);
+        assertThat(packets.get(2).randomAccess()).isTrue();
+        assertThat(pes(packets, VIDEO_PID)).hasSize(30);
+        assertThat(writer.parts).isEmpty();
+        assertThat(writer.appended).isEmpty();
+
+        segmenter.close();
+        assertThat(writer.segments).hasSize(2);
+        // Last frame lasts as long as the previous frame interval
+        assertThat(writer.segments.get(1).duration()).isCloseTo(1.2, within(0.001));
+        assertThat(writer.segments.get(1).index()).isEqualTo(segment.index() + 1);
+        assertThat(writer.finished).isTrue();
+    }
+
+    @Test
+    void muxesAudioOnlyInsideVideoSegments() {
+        HlsSegmenter segmenter = new HlsSegmenter(STREAM, writer, 1000, 0);
+        feed(segmenter, videoConfig(0), audioConfig(0));
+        // Audio before the first keyframe is dropped
+        feed(segmenter, audio(0, new byte[10]));
+        for (int timestamp = 0; timestamp <= 1000; timestamp += 40) {
+            feed(segmenter, timestamp % 1000 == 0 ? keyframe(timestamp, 0) : interframe(timestamp));
+            feed(segmenter, audio(timestamp + 10, new byte[10]));
+        }
+
+        assertThat(writer.segments).hasSize(1);
+        List<Packet> packets = packets(Unpooled.wrappedBuffer(writer.segments.get(0).data()));
+        assertThat(pes(packets, VIDEO_PID)).hasSize(25);
+        assertThat(pes(packets, AUDIO_PID)).hasSize(25);
+        // Audio frames do not carry the clock while there is video
+        assertThat(packets.stream().filter(packet -> packet.pid() == AUDIO_PID)).noneMatch(Packet::hasPcr);
+    }
+
+    @Test
+    void cutsPartsOnFrameBoundaries() {
+        HlsSegmenter segmenter = new HlsSegmenter(STREAM, writer, 1000, 200);
+        feed(segmenter, videoConfig(0));
+        for (int timestamp = 0; timestamp <= 1000; timestamp += 40) {
+            feed(segmenter, timestamp % 1000 == 0 ? keyframe(timestamp, 0) : interframe(timestamp));
+        }
+
+        assertThat(writer.segments).hasSize(1);
+        long index = writer.segments.get(0).index();
+        // Parts of at most 200 ms, frames of 40 ms
+        assertThat(writer.parts).extracting(RecordingWriter.PartCall::segment).containsOnly(index);
+        assertThat(writer.parts).extracting(RecordingWriter.PartCall::part).containsExactly(0, 1, 2, 3, 4);
+        assertThat(writer.parts).allSatisfy(part -> assertThat(part.duration()).isCloseTo(0.2, within(0.001)));
+        assertThat(writer.parts).extracting(RecordingWriter.PartCall::independent)
+                .containsExactly(true, false, false, false, false);
+        // Data of every part is appended as frames are written, the next segment has started
+        assertThat(writer.appended).startsWith(index + ".0").contains(index + ".4", (index + 1) + ".0");
+        assertThat(writer.appended.stream().filter(part -> part.equals(index + ".1")).count()).isEqualTo(5);
+    }
+
+    @Test
+    void segmentsAudioWithoutVideoOnAudioFrames() {
+        HlsSegmenter segmenter = new HlsSegmenter(STREAM, writer, 1000, 0);
+        feed(segmenter, audioConfig(0));
+        for (int timestamp = 0; timestamp < 3000; timestamp += 20) {
+            feed(segmenter, audio(timestamp, new byte[10]));
+        }
+
+        // Audio only mode starts once a target duration of audio had no video, cut again at 2000 ms
+        assertThat(writer.segments).hasSize(1);
+        assertThat(writer.segments.get(0).duration()).isCloseTo(1.0, within(0.001));
+        assertThat(writer.targetDuration).isEqualTo(1);
+        List<Packet> packets = packets(Unpooled.wrappedBuffer(writer.segments.get(0).data()));
+        byte[] pmt = packets.get(1).payload();
+        // Clock on the audio PID and no video stream
+        assertThat(((pmt[9] & 0x1f) << 8) | (pmt[10] & 0xff)).isEqualTo(AUDIO_PID);
+        assertThat(((pmt[2] & 0x0f) << 8) | (pmt[3] & 0xff)).isEqualTo(18);
+        assertThat(pes(packets, AUDIO_PID)).hasSize(50);
+        assertThat(pes(packets, VIDEO_PID)).isEmpty();
+        assertThat(packets.stream().filter(packet -> packet.pid() == AUDIO_PID && packet.unitStart()))
+                .allMatch(Packet::hasPcr);
+
+        // Late video is ignored, the tables have no video stream
+        feed(segmenter, videoConfig(3000), keyframe(3000, 0));
+        assertThat(segmenter.isActive()).isTrue();
+        segmenter.close();
+        assertThat(pes(packets(Unpooled.wrappedBuffer(writer.segments.get(1).data())), VIDEO_PID)).isEmpty();
+    }
+
+    @Test
+    void pinsTargetDurationOnceFromTheFirstKeyframeInterval() {
+        HlsSegmenter segmenter = new HlsSegmenter(STREAM, writer, 1000, 0);
+        feed(segmenter, videoConfig(0));
+        // Keyframe interval is longer than the target, then grows
+        for (int timestamp : new int[]{0, 2500, 5000, 9000}) {
+            feed(segmenter, keyframe(timestamp, 0));
+        }
+
+        // The last segment is over the pinned target, the writer logs it
+        assertThat(writer.targetDuration).isEqualTo(3);
+        assertThat(writer.segments).extracting(RecordingWriter.SegmentCall::duration).containsExactly(2.5, 2.5, 4.0);
+    }
+
+    @Test
+    void cutsAudioOnlyParts() {
+        HlsSegmenter segmenter = new HlsSegmenter(STREAM, writer, 1000, 200);
+        feed(segmenter, audioConfig(0));
+        for (int timestamp = 0; timestamp <= 2000; timestamp += 20) {
+            feed(segmenter, audio(timestamp, new byte[10]));
+        }
+
+        assertThat(writer.segments).hasSize(1);
+        assertThat(writer.parts).hasSize(5);
+        assertThat(writer.parts).allMatch(RecordingWriter.PartCall::independent);
+    }
+
+    @Test
+    void givesUpOnUnsupportedVideoCodec() {
+        HlsSegmenter segmenter = new HlsSegmenter(STREAM, writer, 1000, 0);
+        ByteBuf hevc = Unpooled.buffer().writeByte(0x1c).writeByte(0x00).writeMedium(0);
+        feed(segmenter, message(RTMP_MSG_USER_CONTROL_TYPE_VIDEO, 0, hevc));
+
+        assertThat(segmenter.isActive()).isFalse();
+        assertThat(writer.finished).isTrue();
+        // Later frames are ignored
+        feed(segmenter, videoConfig(0), keyframe(0, 0));
+        segmenter.close();
+        assertThat(writer.segments).isEmpty();
+    }
+
+    @Test
+    void givesUpOnUnsupportedSoundFormat() {
+        HlsSegmenter segmenter = new HlsSegmenter(STREAM, writer, 1000, 0);
+        // MP3
+        ByteBuf mp3 = Unpooled.buffer().writeByte(0x2f).writeByte(0xff).writeByte(0xfb);
+        feed(segmenter, message(RTMP_MSG_USER_CONTROL_TYPE_AUDIO, 0, mp3));
+
+        assertThat(segmenter.isActive()).isFalse();
+        assertThat(writer.finished).isTrue();
+    }
+
+    @Test
+    void closeWithoutMediaOnlyFinishes() {
+        HlsSegmenter segmenter = new HlsSegmenter(STREAM, writer, 1000, 0);
+        feed(segmenter, videoConfig(0));
+        segmenter.close();
+        segmenter.close();
+
+        assertThat(writer.segments).isEmpty();
+        assertThat(writer.finished).isTrue();
+        assertThat(segmenter.isActive()).isFalse();
+    }
+
+    private static void feed(HlsSegmenter segmenter, RtmpMediaMessage... messages) {
+        for (RtmpMediaMessage message : messages) {
+            segmenter.onMedia(message);
+            message.release();
+        }
+    }
+}
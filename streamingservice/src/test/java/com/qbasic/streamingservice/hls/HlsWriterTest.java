@@ -0,0 +1,180 @@
+package com.qbasic.streamingservice.hls;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HlsWriterTest {
+
+    private static final String STREAM = "user";
+
+    @TempDir
+    Path directory;
+
+    private HlsWriter writer;
+
+    @AfterEach
+    void tearDown() {
+        writer.close();
+    }
+
+    @Test
+    void writesSegmentsAndSlidingPlaylist() throws Exception {
+        writer = new HlsWriter(directory.toString(), "0", 2, 4, 0);
+        writer.start(STREAM, 4);
+        writer.segment(STREAM, 10, 4.0, Unpooled.copiedBuffer("first", StandardCharsets.US_ASCII));
+        writer.segment(STREAM, 11, 4.2, Unpooled.copiedBuffer("second", StandardCharsets.US_ASCII));
+        writer.segment(STREAM, 12, 5.6, Unpooled.copiedBuffer("third", StandardCharsets.US_ASCII));
+
+        String playlist = awaitPlaylist(text -> text.contains("data12.ts"));
+        // Target duration stays as pinned at stream start, the longer segment is only logged
+        assertThat(playlist).isEqualTo("""
+                #EXTM3U
+                #EXT-X-VERSION:3
+                #EXT-X-TARGETDURATION:4
+                #EXT-X-MEDIA-SEQUENCE:11
+                #EXTINF:4.200,
+                user_0/data11.ts
+                #EXTINF:5.600,
+                user_0/data12.ts
+                """);
+        Path renditionDirectory = directory.resolve(STREAM).resolve(STREAM + "_0");
+        assertThat(Files.readString(renditionDirectory.resolve("data10.ts"))).isEqualTo("first");
+        assertThat(Files.readString(renditionDirectory.resolve("data12.ts"))).isEqualTo("third");
+        // Nothing is left under a temporary name
+        try (Stream<Path> files = Files.list(renditionDirectory)) {
+            assertThat(files.map(file -> file.getFileName().toString())).noneMatch(name -> name.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    void endsPlaylistOnFinish() throws Exception {
+        writer = new HlsWriter(directory.toString(), "0", 6, 4, 0);
+        writer.segment(STREAM, 1, 4.0, Unpooled.copiedBuffer("data", StandardCharsets.US_ASCII));
+        writer.finish(STREAM);
+
+        String playlist = awaitPlaylist(text -> text.contains("#EXT-X-ENDLIST"));
+        assertThat(playlist).isEqualTo("""
+                #EXTM3U
+                #EXT-X-VERSION:3
+                #EXT-X-TARGETDURATION:4
+                #EXT-X-MEDIA-SEQUENCE:1
+                #EXTINF:4.000,
+                user_0/data1.ts
+                #EXT-X-ENDLIST
+                """);
+    }
+
+    @Test
+    void listsPartsWithPreloadHint() throws Exception {
+        writer = new HlsWriter(directory.toString(), "0", 6, 1, 0.5);
+        writer.start(STREAM, 1);
+        writer.appendPart(STREAM, 5, 0, Unpooled.copiedBuffer("ab", StandardCharsets.US_ASCII));
+        writer.appendPart(STREAM, 5, 0, Unpooled.copiedBuffer("cd", StandardCharsets.US_ASCII));
+        writer.partComplete(STREAM, 5, 0, 0.5, true);
+        writer.appendPart(STREAM, 5, 1, Unpooled.copiedBuffer("ef", StandardCharsets.US_ASCII));
+        writer.partComplete(STREAM, 5, 1, 0.48, false);
+
+        String playlist = awaitPlaylist(text -> text.contains("data5.2.ts"));
+        assertThat(playlist).isEqualTo("""
+                #EXTM3U
+                #EXT-X-VERSION:6
+                #EXT-X-TARGETDURATION:1
+                #EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=1.500
+                #EXT-X-PART-INF:PART-TARGET=0.500
+                #EXT-X-MEDIA-SEQUENCE:5
+                #EXT-X-PART:DURATION=0.500,URI="user_0/data5.0.ts",INDEPENDENT=YES
+                #EXT-X-PART:DURATION=0.480,URI="user_0/data5.1.ts"
+                #EXT-X-PRELOAD-HINT:TYPE=PART,URI="user_0/data5.2.ts"
+                """);
+        Path renditionDirectory = directory.resolve(STREAM).resolve(STREAM + "_0");
+        assertThat(Files.readString(renditionDirectory.resolve("data5.0.ts"))).isEqualTo("abcd");
+        assertThat(Files.readString(renditionDirectory.resolve("data5.1.ts"))).isEqualTo("ef");
+    }
+
+    @Test
+    void listsPartsOnceTargetDurationIsPinned() throws Exception {
+        writer = new HlsWriter(directory.toString(), "0", 6, 1, 0.5);
+        writer.appendPart(STREAM, 5, 0, Unpooled.copiedBuffer("ab", StandardCharsets.US_ASCII));
+        writer.partComplete(STREAM, 5, 0, 0.5, true);
+        writer.start(STREAM, 3);
+        writer.appendPart(STREAM, 5, 1, Unpooled.copiedBuffer("cd", StandardCharsets.US_ASCII));
+        writer.partComplete(STREAM, 5, 1, 0.5, false);
+        // Already pinned
+        writer.start(STREAM, 5);
+        writer.segment(STREAM, 5, 1.0, Unpooled.copiedBuffer("abcd", StandardCharsets.US_ASCII));
+
+        String playlist = awaitPlaylist(text -> text.contains("data5.ts"));
+        assertThat(playlist).startsWith("""
+                #EXTM3U
+                #EXT-X-VERSION:6
+                #EXT-X-TARGETDURATION:3
+                """);
+        assertThat(playlist).contains("data5.0.ts", "data5.1.ts");
+    }
+
+    @Test
+    void keepsPartsOfLatestSegmentsOnly() throws Exception {
+        writer = new HlsWriter(directory.toString(), "0", 6, 1, 0.5);
+        for (int segment = 0; segment < 3; segment++) {
+            for (int part = 0; part < 2; part++) {
+                writer.appendPart(STREAM, segment, part, Unpooled.copiedBuffer("x", StandardCharsets.US_ASCII));
+                writer.partComplete(STREAM, segment, part, 0.5, part == 0);
+            }
+            writer.segment(STREAM, segment, 1.0, Unpooled.copiedBuffer("xx", StandardCharsets.US_ASCII));
+        }
+
+        String playlist = awaitPlaylist(text -> text.contains("data2.ts"));
+        assertThat(playlist).endsWith("""
+                #EXT-X-MEDIA-SEQUENCE:0
+                #EXTINF:1.000,
+                user_0/data0.ts
+                #EXT-X-PART:DURATION=0.500,URI="user_0/data1.0.ts",INDEPENDENT=YES
+                #EXT-X-PART:DURATION=0.500,URI="user_0/data1.1.ts"
+                #EXTINF:1.000,
+                user_0/data1.ts
+                #EXT-X-PART:DURATION=0.500,URI="user_0/data2.0.ts",INDEPENDENT=YES
+                #EXT-X-PART:DURATION=0.500,URI="user_0/data2.1.ts"
+                #EXTINF:1.000,
+                user_0/data2.ts
+                #EXT-X-PRELOAD-HINT:TYPE=PART,URI="user_0/data3.0.ts"
+                """);
+    }
+
+    @Test
+    void releasesDataAfterClose() {
+        writer = new HlsWriter(directory.toString(), "0", 6, 4, 0);
+        writer.close();
+        ByteBuf data = Unpooled.copiedBuffer("data", StandardCharsets.US_ASCII);
+        writer.segment(STREAM, 1, 4.0, data);
+
+        assertThat(data.refCnt()).isZero();
+    }
+
+    // Writes happen on the writer thread, the playlist is replaced atomically
+    private String awaitPlaylist(Predicate<String> condition) throws IOException, InterruptedException {
+        Path file = directory.resolve(STREAM).resolve(STREAM + "_0.m3u8");
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            if (Files.exists(file)) {
+                String text = Files.readString(file);
+                if (condition.test(text)) {
+                    return text;
+                }
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Playlist " + file + " was not written");
+    }
+}
@@ -0,0 +1,233 @@
+package com.qbasic.streamingservice.hls;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.qbasic.streamingservice.hls.HlsMedia.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TsMuxerTest {
+
+    private static final int PAT_PID = 0x0000;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x0100;
+    private static final int AUDIO_PID = 0x0101;
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final TsMuxer muxer = new TsMuxer();
+    private final ByteBuf out = Unpooled.buffer();
+    private final AvcConfig avc = AvcConfig.parse(videoConfig(0).payload());
+    private final AacConfig aac = AacConfig.parse(audioConfig(0).payload());
+
+    @AfterEach
+    void tearDown() {
+        muxer.release();
+        out.release();
+    }
+
+    @Test
+    void writesPatPointingToPmt() {
+        muxer.writeTables(out, true, true);
+
+        List<Packet> packets = packets(out);
+        assertThat(packets).extracting(Packet::pid).containsExactly(PAT_PID, PMT_PID);
+        Packet pat = packets.get(0);
+        assertThat(pat.unitStart()).isTrue();
+        byte[] section = pat.payload();
+        // Pointer field, table id, section length
+        assertThat(section[0]).isZero();
+        assertThat(section[1]).isZero();
+        int length = ((section[2] & 0x0f) << 8) | (section[3] & 0xff);
+        assertThat(length).isEqualTo(13);
+        assertThat(((section[9] & 0xff) << 8) | (section[10] & 0xff)).isEqualTo(1);
+        assertThat(((section[11] & 0x1f) << 8) | (section[12] & 0xff)).isEqualTo(PMT_PID);
+        assertThat(crc32(section, 1, 3 + length)).isZero();
+        // Rest of the packet is stuffing
+        for (int i = 1 + 3 + length; i < section.length; i++) {
+            assertThat(section[i]).isEqualTo((byte) 0xff);
+        }
+    }
+
+    @Test
+    void writesPmtWithVideoAndAudio() {
+        muxer.writeTables(out, true, true);
+
+        byte[] section = packets(out).get(1).payload();
+        assertThat(section[1]).isEqualTo((byte) 0x02);
+        int length = ((section[2] & 0x0f) << 8) | (section[3] & 0xff);
+        assertThat(length).isEqualTo(23);
+        // Video carries the clock reference
+        assertThat(pid(section, 9)).isEqualTo(VIDEO_PID);
+        assertThat(section[13]).isEqualTo((byte) 0x1b);
+        assertThat(pid(section, 14)).isEqualTo(VIDEO_PID);
+        assertThat(section[18]).isEqualTo((byte) 0x0f);
+        assertThat(pid(section, 19)).isEqualTo(AUDIO_PID);
+        assertThat(crc32(section, 1, 3 + length)).isZero();
+    }
+
+    @Test
+    void writesPmtWithoutAudio() {
+        muxer.writeTables(out, true, false);
+
+        byte[] section = packets(out).get(1).payload();
+        int length = ((section[2] & 0x0f) << 8) | (section[3] & 0xff);
+        assertThat(length).isEqualTo(18);
+        assertThat(section[13]).isEqualTo((byte) 0x1b);
+        assertThat(crc32(section, 1, 3 + length)).isZero();
+    }
+
+    @Test
+    void writesAudioOnlyPmtWithAudioClock() {
+        muxer.writeTables(out, false, true);
+
+        byte[] section = packets(out).get(1).payload();
+        int length = ((section[2] & 0x0f) << 8) | (section[3] & 0xff);
+        assertThat(length).isEqualTo(18);
+        assertThat(pid(section, 9)).isEqualTo(AUDIO_PID);
+        assertThat(section[13]).isEqualTo((byte) 0x0f);
+        assertThat(pid(section, 14)).isEqualTo(AUDIO_PID);
+        assertThat(crc32(section, 1, 3 + length)).isZero();
+    }
+
+    @Test
+    void incrementsTableCountersAcrossSegments() {
+        for (int i = 0; i < 17; i++) {
+            muxer.writeTables(out, true, true);
+        }
+
+        List<Packet> packets = packets(out);
+        for (int i = 0; i < 17; i++) {
+            assertThat(packets.get(2 * i).counter()).isEqualTo(i & 0x0f);
+            assertThat(packets.get(2 * i + 1).counter()).isEqualTo(i & 0x0f);
+        }
+    }
+
+    @Test
+    void convertsKeyframeToAnnexBWithParameterSets() {
+        // Parameter sets inside the frame are replaced by the ones of the configuration
+        muxer.writeVideo(out, keyframe(1000, 40, SPS, IDR), avc);
+
+        List<Packet> packets = packets(out);
+        Packet first = packets.get(0);
+        assertThat(first.pid()).isEqualTo(VIDEO_PID);
+        assertThat(first.unitStart()).isTrue();
+        assertThat(first.randomAccess()).isTrue();
+        assertThat(first.hasPcr()).isTrue();
+        assertThat(first.pcr()).isEqualTo(1000 * 90L);
+
+        byte[] pes = pes(packets, VIDEO_PID).get(0);
+        assertThat(new byte[]{pes[0], pes[1], pes[2], pes[3]}).containsExactly(0, 0, 1, (byte) 0xe0);
+        // Unbounded length, PTS and DTS
+        assertThat(pes[4]).isZero();
+        assertThat(pes[5]).isZero();
+        assertThat(pes[7]).isEqualTo((byte) 0xc0);
+        assertThat(pes[8]).isEqualTo((byte) 10);
+        long dts = 1000 * 90L + 63_000;
+        assertThat(timestamp(pes, 9)).isEqualTo(dts + 40 * 90L);
+        assertThat(timestamp(pes, 14)).isEqualTo(dts);
+        assertThat(data(pes)).containsExactly(concat(
+                ACCESS_UNIT_DELIMITER, START_CODE, SPS, START_CODE, PPS, START_CODE, IDR));
+    }
+
+    @Test
+    void writesInterframeWithClockWithoutRandomAccess() {
+        muxer.writeVideo(out, interframe(2000), avc);
+
+        List<Packet> packets = packets(out);
+        assertThat(packets).hasSize(1);
+        Packet packet = packets.get(0);
+        assertThat(packet.randomAccess()).isFalse();
+        assertThat(packet.hasPcr()).isTrue();
+        assertThat(packet.pcr()).isEqualTo(2000 * 90L);
+
+        byte[] pes = pes(packets, VIDEO_PID).get(0);
+        // Same decoding and presentation time, PTS only
+        assertThat(pes[7]).isEqualTo((byte) 0x80);
+        assertThat(timestamp(pes, 9)).isEqualTo(2000 * 90L + 63_000);
+        assertThat(data(pes)).containsExactly(concat(ACCESS_UNIT_DELIMITER, START_CODE, SLICE));
+    }
+
+    @Test
+    void splitsLargeFrameIntoPacketsWithContinuousCounters() {
+        byte[] slice = new byte[1000];
+        slice[0] = 0x65;
+        for (int i = 1; i < slice.length; i++) {
+            slice[i] = (byte) i;
+        }
+        muxer.writeVideo(out, keyframe(0, 0, slice), avc);
+        for (int i = 1; i <= 20; i++) {
+            muxer.writeVideo(out, interframe(i * 40), avc);
+        }
+
+        List<Packet> packets = packets(out);
+        assertThat(packets).allSatisfy(packet -> assertThat(packet.pid()).isEqualTo(VIDEO_PID));
+        for (int i = 0; i < packets.size(); i++) {
+            assertThat(packets.get(i).counter()).isEqualTo(i & 0x0f);
+        }
+        // The keyframe takes several packets, only the first starts the unit
+        assertThat(packets.stream().filter(Packet::unitStart).count()).isEqualTo(21);
+        assertThat(packets.get(1).unitStart()).isFalse();
+        assertThat(data(pes(packets, VIDEO_PID).get(0))).containsExactly(concat(
+                ACCESS_UNIT_DELIMITER, START_CODE, SPS, START_CODE, PPS, START_CODE, slice));
+    }
+
+    @Test
+    void writesAudioWithAdtsHeader() {
+        byte[] raw = new byte[100];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) (i + 1);
+        }
+        muxer.writeAudio(out, audio(1000, raw), aac, false);
+
+        List<Packet> packets = packets(out);
+        assertThat(packets).hasSize(1);
+        assertThat(packets.get(0).pid()).isEqualTo(AUDIO_PID);
+        assertThat(packets.get(0).hasPcr()).isFalse();
+
+        byte[] pes = pes(packets, AUDIO_PID).get(0);
+        assertThat(pes[3]).isEqualTo((byte) 0xc0);
+        int frameLength = AacConfig.ADTS_HEADER_SIZE + raw.length;
+        assertThat(((pes[4] & 0xff) << 8) | (pes[5] & 0xff)).isEqualTo(3 + 5 + frameLength);
+        assertThat(timestamp(pes, 9)).isEqualTo(1000 * 90L + 63_000);
+        byte[] adts = {
+                (byte) 0xff, (byte) 0xf1,
+                // LC, 44.1 kHz, stereo
+                (byte) 0x50, (byte) (0x80 | (frameLength >> 11)),
+                (byte) (frameLength >> 3), (byte) (((frameLength & 0x07) << 5) | 0x1f), (byte) 0xfc
+        };
+        assertThat(data(pes)).containsExactly(concat(adts, raw));
+    }
+
+    @Test
+    void writesClockOnAudioWithoutVideo() {
+        muxer.writeAudio(out, audio(1000, new byte[20]), aac, true);
+
+        Packet packet = packets(out).get(0);
+        assertThat(packet.hasPcr()).isTrue();
+        assertThat(packet.pcr()).isEqualTo(1000 * 90L);
+        assertThat(packet.randomAccess()).isFalse();
+    }
+
+    @Test
+    void countsAudioAndVideoSeparately() {
+        muxer.writeVideo(out, keyframe(0, 0), avc);
+        muxer.writeAudio(out, audio(0, new byte[20]), aac, false);
+        muxer.writeVideo(out, interframe(40), avc);
+        muxer.writeAudio(out, audio(23, new byte[20]), aac, false);
+
+        List<Packet> packets = packets(out);
+        assertThat(packets.stream().filter(packet -> packet.pid() == VIDEO_PID).map(Packet::counter))
+                .containsExactly(0, 1);
+        assertThat(packets.stream().filter(packet -> packet.pid() == AUDIO_PID).map(Packet::counter))
+                .containsExactly(0, 1);
+    }
+
+    private static int pid(byte[] section, int offset) {
+        return ((section[offset] & 0x1f) << 8) | (section[offset + 1] & 0xff);
+    }
+}
@@ -0,0 +1,239 @@
+package com.qbasic.streamingservice.rtmp.amf0;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Encoding is checked byte for byte against the output of the previous Amf0Rules implementation,
+ * decoding against the values it produced
+ * */
+class Amf0RulesTest {
+
+    // Sent by ffmpeg
+    private static final String CONNECT = ""
+            + "020007636f6e6e656374003ff00000000000000300036170700200046c697665"
+            + "0008666c61736856657202000d4c4e5820392c302c3132342c32000574635572"
+            + "6c02001a72746d703a2f2f6c6f63616c686f73743a313933352f6c6976650004"
+            + "667061640100000c6361706162696c697469657300402e000000000000000b61"
+            + "7564696f436f646563730040afce0000000000000b766964656f436f64656373"
+            + "00406f800000000000000d766964656f46756e6374696f6e003ff00000000000"
+            + "00000009";
+    // Sent by OBS
+    private static final String PUBLISH = ""
+            + "0200077075626c69736800401400000000000005020010303132333435363738"
+            + "396162636465660200046c697665";
+    // Sent by ffmpeg, start -2000 plays a live stream or a recording
+    private static final String PLAY = ""
+            + "020004706c617900401000000000000005020005616c69636500c09f40000000"
+            + "0000";
+
+    @Test
+    void numbers() {
+        assertRoundTrip(1.0, "003ff0000000000000");
+        assertRoundTrip(-0.5, "00bfe0000000000000");
+        assertRoundTrip(44100.0, "0040e5888000000000");
+        // Integers are written as doubles
+        assertThat(hex(encode(5))).isEqualTo("004014000000000000");
+    }
+
+    @Test
+    void booleans() {
+        assertRoundTrip(true, "0101");
+        assertRoundTrip(false, "0100");
+    }
+
+    @Test
+    void strings() {
+        assertRoundTrip("live", "0200046c697665");
+        assertRoundTrip("", "020000");
+        // Cyrillic and CJK, length is in UTF-8 bytes, not characters
+        assertRoundTrip("\u0421\u0442\u0440\u0438\u043c \u76f4\u64ad", "020011d0a1d182d180d0b8d0bc20e79bb4e692ad");
+    }
+
+    @Test
+    void longStrings() {
+        byte[] bytes = "a".repeat(70000).getBytes(StandardCharsets.UTF_8);
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(0x0c).writeInt(bytes.length).writeBytes(bytes);
+
+        assertThat(new Amf0Reader(buf).readString()).isEqualTo("a".repeat(70000));
+    }
+
+    @Test
+    void objects() {
+        Amf0Rules.Amf0Object object = new Amf0Rules.Amf0Object();
+        object.put("level", "status");
+        object.put("count", 2.0);
+        String hex = "03"
+                + "00056c6576656c" + "020006737461747573"
+                + "0005636f756e74" + "004000000000000000"
+                + "000009";
+
+        assertRoundTrip(object, hex);
+        assertThat(decode(hex)).isInstanceOf(Amf0Rules.Amf0Object.class);
+        // Insertion order is kept
+        assertThat(((Map<?, ?>) decode(hex)).keySet()).containsExactly("level", "count");
+    }
+
+    @Test
+    void ecmaArrays() {
+        Map<String, Object> array = new LinkedHashMap<>();
+        array.put("width", 1280.0);
+        array.put("stereo", true);
+        String hex = "08" + "00000002"
+                + "0005776964746800" + "4094000000000000"
+                + "000673746572656f" + "0101"
+                + "000009";
+
+        assertRoundTrip(array, hex);
+    }
+
+    @Test
+    void ecmaArrayCountIsOnlyAHint() {
+        String hex = "08" + "00000000" + "0005776964746800" + "4094000000000000" + "000009";
+
+        assertThat(decode(hex)).isEqualTo(Map.of("width", 1280.0));
+    }
+
+    @Test
+    void knownKeysAreInterned() {
+        Map<?, ?> object = (Map<?, ?>) Amf0Command.read(buffer(CONNECT)).get(2);
+
+        for (Object key : object.keySet()) {
+            assertThat(key).isSameAs(((String) key).intern());
+        }
+        assertThat(Amf0Command.read(buffer(CONNECT)).getName()).isSameAs("connect");
+        // Unknown strings are decoded as usual
+        assertThat(Amf0Command.read(buffer(PUBLISH)).get(3)).isEqualTo("0123456789abcdef");
+    }
+
+    @Test
+    void nullAndUndefined() {
+        assertRoundTrip(null, "05");
+        assertThat(decode("06")).isNull();
+        assertThat(new Amf0Reader(buffer("06")).readString()).isNull();
+        assertThat(new Amf0Reader(buffer("05")).readNumber()).isNaN();
+    }
+
+    @Test
+    void strictArrays() {
+        Object[] array = {1.0, "a", null};
+        String hex = "0a" + "00000003" + "003ff0000000000000" + "02000161" + "05";
+
+        assertThat(hex(encode(array))).isEqualTo(hex);
+        assertThat((Object[]) decode(hex)).containsExactly(1.0, "a", null);
+    }
+
+    @Test
+    void connectPayload() {
+        Amf0Rules.Amf0Object command = new Amf0Rules.Amf0Object();
+        command.put("app", "live");
+        command.put("flashVer", "LNX 9,0,124,2");
+        command.put("tcUrl", "rtmp://localhost:1935/live");
+        command.put("fpad", false);
+        command.put("capabilities", 15.0);
+        command.put("audioCodecs", 4071.0);
+        command.put("videoCodecs", 252.0);
+        command.put("videoFunction", 1.0);
+
+        assertPayload(CONNECT, "connect", 1.0, command);
+    }
+
+    @Test
+    void publishPayload() {
+        assertPayload(PUBLISH, "publish", 5.0, null, "0123456789abcdef", "live");
+    }
+
+    @Test
+    void playPayload() {
+        assertPayload(PLAY, "play", 4.0, null, "alice", -2000.0);
+    }
+
+    @Test
+    void commandDecodesValuesOnAccess() {
+        // Typed object after the stream name is not supported
+        ByteBuf buf = buffer("020004706c617900401000000000000005020005616c696365" + "10");
+        Amf0Command command = Amf0Command.read(buf);
+
+        assertThat(command.getName()).isEqualTo("play");
+        assertThat(command.getTransactionId()).isEqualTo(4.0);
+        assertThat(command.get(3)).isEqualTo("alice");
+        assertThatThrownBy(() -> command.get(4)).isInstanceOf(RuntimeException.class);
+    }
+
+    @Test
+    void commandWithoutTransactionId() {
+        Amf0Command command = Amf0Command.read(buffer("02000a6f6e4d65746144617461"));
+
+        assertThat(command.getName()).isEqualTo("onMetaData");
+        assertThat(command.getTransactionId()).isZero();
+        assertThat(command.get(2)).isNull();
+    }
+
+    @Test
+    void skipsValuesWithoutDecodingThem() {
+        Amf0Reader reader = new Amf0Reader(buffer(CONNECT));
+
+        reader.skipValue();
+        reader.skipValue();
+        reader.skipValue();
+
+        assertThat(reader.hasNext()).isFalse();
+    }
+
+    private static void assertPayload(String hex, Object... values) {
+        List<Object> expected = Arrays.asList(values);
+        ByteBuf buf = Unpooled.buffer();
+        Amf0Rules.encodeList(buf, new ArrayList<>(expected));
+        assertThat(hex(buf)).isEqualTo(hex);
+
+        assertThat(Amf0Rules.decodeAll(buffer(hex))).isEqualTo(expected);
+
+        Amf0Command command = Amf0Command.read(buffer(hex));
+        assertThat(command.getName()).isEqualTo(values[0]);
+        assertThat(command.getTransactionId()).isEqualTo(values[1]);
+        for (int i = 0; i < values.length; i++) {
+            assertThat(command.get(i)).isEqualTo(values[i]);
+        }
+        assertThat(command.get(values.length)).isNull();
+    }
+
+    private static void assertRoundTrip(Object value, String hex) {
+        assertThat(hex(encode(value))).isEqualTo(hex);
+        assertThat(decode(hex)).isEqualTo(value);
+        assertThat(Amf0Command.read(buffer("020000" + "000000000000000000" + hex)).get(2)).isEqualTo(value);
+    }
+
+    private static ByteBuf encode(Object value) {
+        ByteBuf buf = Unpooled.buffer();
+        Amf0Rules.encode(buf, value);
+        return buf;
+    }
+
+    private static Object decode(String hex) {
+        ByteBuf buf = buffer(hex);
+        Object value = Amf0Rules.decode(buf);
+        assertThat(buf.isReadable()).isFalse();
+        return value;
+    }
+
+    private static ByteBuf buffer(String hex) {
+        return Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(hex));
+    }
+
+    private static String hex(ByteBuf buf) {
+        return ByteBufUtil.hexDump(buf);
+    }
+}
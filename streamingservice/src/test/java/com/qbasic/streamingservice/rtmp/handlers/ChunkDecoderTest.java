@@ -0,0 +1,422 @@
+package com.qbasic.streamingservice.rtmp.handlers;
+
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpHeader;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChunkDecoderTest {
+
+    private static final int STREAM_ID = 1;
+
+    private EmbeddedChannel channel;
+    // Every buffer written to the channel, all of them are released once the messages are
+    private final List<ByteBuf> inputs = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        channel = new EmbeddedChannel(new ChunkDecoder(new SimpleMeterRegistry().timer("decode")));
+    }
+
+    @AfterEach
+    void tearDown() {
+        channel.finishAndReleaseAll();
+        for (ByteBuf input : inputs) {
+            assertThat(input.refCnt()).isZero();
+        }
+    }
+
+    @Test
+    void decodesType0Chunk() {
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 4, 1000, 5, RTMP_MSG_USER_CONTROL_TYPE_AUDIO, STREAM_ID);
+        in.writeBytes(payload(5, 1));
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(messages).hasSize(1);
+        RtmpHeader header = messages.get(0).header();
+        assertThat(header.getFmt()).isEqualTo(RTMP_CHUNK_TYPE_0);
+        assertThat(header.getCid()).isEqualTo(4);
+        assertThat(header.getTimestamp()).isEqualTo(1000);
+        assertThat(header.getTimestampDelta()).isZero();
+        assertThat(header.getMessageLength()).isEqualTo(5);
+        assertThat(header.getType()).isEqualTo((short) RTMP_MSG_USER_CONTROL_TYPE_AUDIO);
+        assertThat(header.getStreamId()).isEqualTo(STREAM_ID);
+        assertThat(header.getHeaderLength()).isEqualTo(12);
+        assertPayload(messages.get(0), payload(5, 1));
+        // Only the payload holds the input once the decoder is done with it
+        assertThat(messages.get(0).payload().refCnt()).isEqualTo(1);
+        release(messages);
+    }
+
+    @Test
+    void assemblesMessageFromType3Chunks() {
+        byte[] data = payload(300, 7);
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 6, 40, data.length, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(data, 0, 128);
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 6);
+        in.writeBytes(data, 128, 128);
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 6);
+        in.writeBytes(data, 256, 44);
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(messages).hasSize(1);
+        assertThat(messages.get(0).header().getTimestamp()).isEqualTo(40);
+        assertThat(messages.get(0).header().getMessageLength()).isEqualTo(300);
+        assertPayload(messages.get(0), data);
+        release(messages);
+    }
+
+    @Test
+    void appliesTimestampDeltasOfType1To3Chunks() {
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 6, 1000, 4, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(payload(4, 1));
+        // New length and type
+        type1(in, 6, 40, 3, RTMP_MSG_USER_CONTROL_TYPE_AUDIO);
+        in.writeBytes(payload(3, 2));
+        // Same length and type
+        type2(in, 6, 20);
+        in.writeBytes(payload(3, 3));
+        // Everything from the previous chunk, delta repeated
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 6);
+        in.writeBytes(payload(3, 4));
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(messages).extracting(message -> message.header().getTimestamp())
+                .containsExactly(1000, 1040, 1060, 1080);
+        assertThat(messages).extracting(message -> message.header().getTimestampDelta())
+                .containsExactly(0, 40, 20, 20);
+        assertThat(messages).extracting(message -> message.header().getFmt())
+                .containsExactly(0, 1, 2, 3);
+        assertThat(messages).extracting(message -> message.header().getType())
+                .containsExactly((short) RTMP_MSG_USER_CONTROL_TYPE_VIDEO, (short) RTMP_MSG_USER_CONTROL_TYPE_AUDIO,
+                        (short) RTMP_MSG_USER_CONTROL_TYPE_AUDIO, (short) RTMP_MSG_USER_CONTROL_TYPE_AUDIO);
+        assertThat(messages).allSatisfy(message -> assertThat(message.header().getStreamId()).isEqualTo(STREAM_ID));
+        assertPayload(messages.get(3), payload(3, 4));
+        release(messages);
+    }
+
+    @Test
+    void readsExtendedTimestampRepeatedOnType3Chunks() {
+        byte[] data = payload(200, 5);
+        int timestamp = 0x01000010;
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 6, RTMP_MAX_TIMESTAMP, data.length, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeInt(timestamp);
+        in.writeBytes(data, 0, 128);
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 6);
+        in.writeInt(timestamp);
+        in.writeBytes(data, 128, 72);
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(messages).hasSize(1);
+        RtmpHeader header = messages.get(0).header();
+        assertThat(header.getTimestamp()).isEqualTo(timestamp);
+        assertThat(header.getExtendedTimestamp()).isEqualTo(timestamp);
+        assertThat(header.getHeaderLength()).isEqualTo(1 + 4);
+        assertPayload(messages.get(0), data);
+        release(messages);
+    }
+
+    @Test
+    void readsExtendedTimestampDelta() {
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 6, 100, 2, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(payload(2, 1));
+        type2(in, 6, RTMP_MAX_TIMESTAMP);
+        in.writeInt(0x01000000);
+        in.writeBytes(payload(2, 2));
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(messages).extracting(message -> message.header().getTimestamp())
+                .containsExactly(100, 100 + 0x01000000);
+        release(messages);
+    }
+
+    @Test
+    void decodesTwoAndThreeByteChunkStreamIds() {
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 100, 0, 1, RTMP_MSG_DATA_TYPE_AMF0, STREAM_ID);
+        in.writeByte(1);
+        type0(in, 1000, 0, 1, RTMP_MSG_DATA_TYPE_AMF0, STREAM_ID);
+        in.writeByte(2);
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(messages).extracting(message -> message.header().getCid()).containsExactly(100, 1000);
+        assertThat(messages).extracting(message -> message.header().getHeaderLength()).containsExactly(13, 14);
+        release(messages);
+    }
+
+    @Test
+    void appliesChunkSizeChange() {
+        byte[] data = payload(1000, 3);
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 2, 0, 4, RTMP_MSG_CONTROL_TYPE_SET_CHUNK_SIZE, 0);
+        in.writeInt(4096);
+        type0(in, 6, 0, data.length, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(data);
+
+        List<RtmpMessage> messages = decode(in);
+
+        // Control message is consumed by the decoder
+        assertThat(messages).hasSize(1);
+        assertPayload(messages.get(0), data);
+        release(messages);
+    }
+
+    @Test
+    void closesConnectionOnZeroChunkSize() {
+        assertChunkSizeRejected(0);
+    }
+
+    @Test
+    void closesConnectionOnChunkSizeLargerThanMessages() {
+        assertChunkSizeRejected(0x1000000);
+    }
+
+    @Test
+    void closesConnectionOnChunkSizeOverflowingChunkCount() {
+        // First bit is ignored, the rest is the largest int
+        assertChunkSizeRejected(0xffffffff);
+    }
+
+    @Test
+    void acceptsLargestChunkSize() {
+        byte[] data = payload(70_000, 3);
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 2, 0, 4, RTMP_MSG_CONTROL_TYPE_SET_CHUNK_SIZE, 0);
+        in.writeInt(0xffffff);
+        type0(in, 6, 0, data.length, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(data);
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(channel.isOpen()).isTrue();
+        assertThat(messages).hasSize(1);
+        assertPayload(messages.get(0), data);
+        release(messages);
+    }
+
+    private void assertChunkSizeRejected(int chunkSize) {
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 2, 0, 4, RTMP_MSG_CONTROL_TYPE_SET_CHUNK_SIZE, 0);
+        in.writeInt(chunkSize);
+        type0(in, 6, 0, 200, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(payload(200, 1));
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(channel.isOpen()).isFalse();
+        // Input after the invalid size is discarded
+        assertThat(messages).isEmpty();
+        assertThat(in.refCnt()).isZero();
+    }
+
+    @Test
+    void interleavesChunkStreams() {
+        byte[] video = payload(200, 1);
+        byte[] audio = payload(10, 2);
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 6, 0, video.length, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(video, 0, 128);
+        type0(in, 4, 0, audio.length, RTMP_MSG_USER_CONTROL_TYPE_AUDIO, STREAM_ID);
+        in.writeBytes(audio);
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 6);
+        in.writeBytes(video, 128, 72);
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(messages).extracting(message -> message.header().getCid()).containsExactly(4, 6);
+        assertPayload(messages.get(0), audio);
+        assertPayload(messages.get(1), video);
+        release(messages);
+    }
+
+    @Test
+    void abortDiscardsPartialMessage() {
+        byte[] data = payload(200, 1);
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 6, 0, data.length, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(data, 0, 128);
+        type0(in, 2, 0, 4, RTMP_MSG_CONTROL_TYPE_ABORT, 0);
+        in.writeInt(6);
+        // Next message of the chunk stream starts from scratch
+        type0(in, 6, 40, 3, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(payload(3, 9));
+
+        List<RtmpMessage> messages = decode(in);
+
+        assertThat(messages).hasSize(1);
+        assertThat(messages.get(0).header().getTimestamp()).isEqualTo(40);
+        assertPayload(messages.get(0), payload(3, 9));
+        release(messages);
+    }
+
+    @Test
+    void decodesSameMessagesAtEverySplitPoint() {
+        byte[] stream = ByteBufUtil.getBytes(mixedStream());
+        List<RtmpMessage> expected = decode(Unpooled.wrappedBuffer(stream));
+        List<RtmpHeader> headers = expected.stream().map(RtmpMessage::header).toList();
+        List<byte[]> payloads = expected.stream().map(message -> ByteBufUtil.getBytes(message.payload())).toList();
+        release(expected);
+        assertThat(headers).hasSize(5);
+
+        for (int split = 1; split < stream.length; split++) {
+            channel.finishAndReleaseAll();
+            channel = new EmbeddedChannel(new ChunkDecoder(new SimpleMeterRegistry().timer("decode")));
+            List<RtmpMessage> messages = new ArrayList<>();
+            messages.addAll(decode(Unpooled.copiedBuffer(stream, 0, split)));
+            messages.addAll(decode(Unpooled.copiedBuffer(stream, split, stream.length - split)));
+
+            assertThat(messages).extracting(RtmpMessage::header).as("split at %d", split).isEqualTo(headers);
+            for (int i = 0; i < messages.size(); i++) {
+                assertThat(ByteBufUtil.getBytes(messages.get(i).payload())).as("split at %d", split).isEqualTo(payloads.get(i));
+            }
+            release(messages);
+        }
+    }
+
+    @Test
+    void decodesByteByByte() {
+        byte[] stream = ByteBufUtil.getBytes(mixedStream());
+        List<RtmpMessage> messages = new ArrayList<>();
+        for (byte b : stream) {
+            messages.addAll(decode(Unpooled.buffer(1).writeByte(b)));
+        }
+
+        assertThat(messages).extracting(message -> message.header().getTimestamp())
+                .containsExactly(1000, 1040, 0x01000000, 0x01000000 + 40, 0x01000000 + 80);
+        assertPayload(messages.get(0), payload(300, 1));
+        release(messages);
+    }
+
+    @Test
+    void releasesIncompleteMessageOnRemoval() {
+        ByteBuf in = Unpooled.buffer();
+        type0(in, 6, 0, 200, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(payload(128, 1));
+
+        assertThat(decode(in)).isEmpty();
+        channel.pipeline().removeFirst();
+        // Input is checked on tear down
+    }
+
+    // Multi-chunk video, type 1 and 2 chunks, extended timestamps and a chunk size change
+    private static ByteBuf mixedStream() {
+        ByteBuf in = Unpooled.buffer();
+        byte[] video = payload(300, 1);
+        type0(in, 6, 1000, video.length, RTMP_MSG_USER_CONTROL_TYPE_VIDEO, STREAM_ID);
+        in.writeBytes(video, 0, 128);
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 6);
+        in.writeBytes(video, 128, 128);
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 6);
+        in.writeBytes(video, 256, 44);
+
+        type1(in, 6, 40, 20, RTMP_MSG_USER_CONTROL_TYPE_VIDEO);
+        in.writeBytes(payload(20, 2));
+
+        type0(in, 2, 0, 4, RTMP_MSG_CONTROL_TYPE_SET_CHUNK_SIZE, 0);
+        in.writeInt(256);
+
+        type0(in, 4, RTMP_MAX_TIMESTAMP, 300, RTMP_MSG_USER_CONTROL_TYPE_AUDIO, STREAM_ID);
+        in.writeInt(0x01000000);
+        in.writeBytes(payload(256, 3));
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 4);
+        in.writeInt(0x01000000);
+        in.writeBytes(payload(44, 3));
+
+        type2(in, 4, 40);
+        in.writeBytes(payload(300, 4), 0, 256);
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 4);
+        in.writeBytes(payload(44, 4));
+
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 4);
+        in.writeBytes(payload(256, 5));
+        basicHeader(in, RTMP_CHUNK_TYPE_3, 4);
+        in.writeBytes(payload(44, 5));
+        return in;
+    }
+
+    private List<RtmpMessage> decode(ByteBuf in) {
+        inputs.add(in);
+        channel.writeInbound(in);
+        List<RtmpMessage> messages = new ArrayList<>();
+        RtmpMessage message;
+        while ((message = channel.readInbound()) != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // Slices of an unpooled input share its reference count, leaks are checked on the inputs after release
+    private static void assertPayload(RtmpMessage message, byte[] expected) {
+        assertThat(message.payload().refCnt()).isPositive();
+        assertThat(ByteBufUtil.getBytes(message.payload())).isEqualTo(expected);
+    }
+
+    private static void release(List<RtmpMessage> messages) {
+        for (RtmpMessage message : messages) {
+            message.payload().release();
+        }
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed * 31 + i);
+        }
+        return payload;
+    }
+
+    private static void basicHeader(ByteBuf out, int fmt, int cid) {
+        if (cid < 64) {
+            out.writeByte((fmt << 6) | cid);
+        } else if (cid < 64 + 256) {
+            out.writeByte(fmt << 6);
+            out.writeByte(cid - 64);
+        } else {
+            out.writeByte((fmt << 6) | 1);
+            out.writeShortLE(cid - 64);
+        }
+    }
+
+    private static void type0(ByteBuf out, int cid, int timestamp, int length, int type, int streamId) {
+        basicHeader(out, RTMP_CHUNK_TYPE_0, cid);
+        out.writeMedium(timestamp);
+        out.writeMedium(length);
+        out.writeByte(type);
+        out.writeIntLE(streamId);
+    }
+
+    private static void type1(ByteBuf out, int cid, int delta, int length, int type) {
+        basicHeader(out, RTMP_CHUNK_TYPE_1, cid);
+        out.writeMedium(delta);
+        out.writeMedium(length);
+        out.writeByte(type);
+    }
+
+    private static void type2(ByteBuf out, int cid, int delta) {
+        basicHeader(out, RTMP_CHUNK_TYPE_2, cid);
+        out.writeMedium(delta);
+    }
+}
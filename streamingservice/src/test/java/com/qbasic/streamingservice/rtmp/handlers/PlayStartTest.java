@@ -0,0 +1,28 @@
+package com.qbasic.streamingservice.rtmp.handlers;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlayStartTest {
+
+    @Test
+    void decodesSentinelsInSecondsAndMilliseconds() {
+        assertThat(PlayStart.decode(null)).isEqualTo(PlayStart.ANY);
+        assertThat(PlayStart.decode(-2.0)).isEqualTo(PlayStart.ANY);
+        assertThat(PlayStart.decode(-2000.0)).isEqualTo(PlayStart.ANY);
+        assertThat(PlayStart.decode(-1.0)).isEqualTo(PlayStart.LIVE);
+        assertThat(PlayStart.decode(-1000.0)).isEqualTo(PlayStart.LIVE);
+        // A recording played as any starts from its beginning
+        assertThat(PlayStart.ANY.millis()).isZero();
+    }
+
+    @Test
+    void otherValuesAreOffsetsInMilliseconds() {
+        assertThat(PlayStart.decode(0.0)).isEqualTo(new PlayStart(PlayStart.Mode.RECORDED, 0));
+        assertThat(PlayStart.decode(15000.5)).isEqualTo(new PlayStart(PlayStart.Mode.RECORDED, 15000));
+        // Behind live, not a sentinel once decoded
+        assertThat(PlayStart.decode(-1500.0)).isEqualTo(new PlayStart(PlayStart.Mode.RECORDED, -1500));
+        assertThat(PlayStart.decode(-3000.0)).isEqualTo(new PlayStart(PlayStart.Mode.RECORDED, -3000));
+    }
+}
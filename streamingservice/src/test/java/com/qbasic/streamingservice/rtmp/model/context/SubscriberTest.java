@@ -0,0 +1,83 @@
+package com.qbasic.streamingservice.rtmp.model.context;
+
+import com.qbasic.streamingservice.rtmp.config.RtmpProperties;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpHeader;
+import com.qbasic.streamingservice.rtmp.model.messages.RtmpMediaMessage;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_AUDIO;
+import static com.qbasic.streamingservice.rtmp.model.messages.RtmpConstants.RTMP_MSG_USER_CONTROL_TYPE_VIDEO;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SubscriberTest {
+
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+    private final Subscriber subscriber = new Subscriber(channel, new RtmpProperties.SubscriberProperties());
+
+    @AfterEach
+    void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void waitsForKeyframeWhenReplayHadNone() {
+        // Keyframe of the group was evicted from the cache
+        subscriber.replayed(video(0x27, 40));
+        subscriber.replayFinished(true);
+
+        assertThat(subscriber.getState()).isEqualTo(Subscriber.State.WAITING_KEYFRAME);
+        assertThat(subscriber.admit(video(0x27, 80))).isEqualTo(Subscriber.Admission.DROP);
+        // Audio is not held back
+        assertThat(subscriber.admit(audio(90))).isEqualTo(Subscriber.Admission.SHARED);
+        // Timestamp delta of the keyframe covers the dropped frame
+        assertThat(subscriber.admit(video(0x17, 120))).isEqualTo(Subscriber.Admission.RESYNC);
+        assertThat(subscriber.getState()).isEqualTo(Subscriber.State.LIVE);
+        assertThat(subscriber.admit(video(0x27, 160))).isEqualTo(Subscriber.Admission.SHARED);
+        assertThat(subscriber.getDroppedFrames()).isEqualTo(1);
+    }
+
+    @Test
+    void startsLiveAfterReplayedKeyframe() {
+        subscriber.replayed(video(0x17, 0));
+        subscriber.replayed(video(0x27, 40));
+        subscriber.replayFinished(true);
+
+        assertThat(subscriber.getState()).isEqualTo(Subscriber.State.LIVE);
+        assertThat(subscriber.admit(video(0x27, 80))).isEqualTo(Subscriber.Admission.SHARED);
+    }
+
+    @Test
+    void videoConfigIsNotAKeyframe() {
+        subscriber.replayed(message(RTMP_MSG_USER_CONTROL_TYPE_VIDEO, 0, 0x17, 0x00));
+        subscriber.replayFinished(true);
+
+        assertThat(subscriber.getState()).isEqualTo(Subscriber.State.WAITING_KEYFRAME);
+    }
+
+    @Test
+    void audioOnlyStreamStartsLive() {
+        subscriber.replayed(audio(0));
+        subscriber.replayFinished(false);
+
+        assertThat(subscriber.getState()).isEqualTo(Subscriber.State.LIVE);
+    }
+
+    private static RtmpMediaMessage video(int frameType, int timestamp) {
+        return message(RTMP_MSG_USER_CONTROL_TYPE_VIDEO, timestamp, frameType, 0x01);
+    }
+
+    private static RtmpMediaMessage audio(int timestamp) {
+        return message(RTMP_MSG_USER_CONTROL_TYPE_AUDIO, timestamp, 0xaf, 0x01);
+    }
+
+    private static RtmpMediaMessage message(int type, int timestamp, int first, int second) {
+        RtmpHeader header = new RtmpHeader();
+        header.setType((short) type);
+        header.setTimestamp(timestamp);
+        header.setMessageLength(4);
+        return new RtmpMediaMessage(header, Unpooled.wrappedBuffer(new byte[]{(byte) first, (byte) second, 0, 0}));
+    }
+}
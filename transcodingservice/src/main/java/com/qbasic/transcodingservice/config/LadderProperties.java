@@ -0,0 +1,48 @@
+package com.qbasic.transcodingservice.config;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Declarative ladder of downscaled renditions, the source rendition is segmented by the streaming service.
+ * Renditions at or above the source height are skipped, the GOP is derived from the source frame rate
+ * */
+@ConfigurationProperties(prefix = "transcode.ladder")
+@NoArgsConstructor
+@Getter
+@Setter
+public class LadderProperties {
+
+    private String binary = "ffmpeg";
+    // Passed to every video encoder, split on whitespace
+    private String encoderOptions = "-preset veryfast -tune zerolatency -sc_threshold 0";
+    // Keyframe interval and HLS segment duration of the ladder
+    private Duration keyframeInterval = Duration.ofSeconds(2);
+    // Used when the publisher does not send its frame rate
+    private double defaultFrameRate = 30;
+    private int listSize = 10;
+    // Bandwidth of the source rendition in the master playlist when its bitrate is unknown, kbps
+    private int defaultSourceBitrate = 6000;
+    private List<Rendition> renditions = new ArrayList<>();
+
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class Rendition {
+        // Playlist name suffix, {owner}_{name}.m3u8
+        private String name;
+        // Width used when the source aspect ratio is unknown
+        private int width;
+        private int height;
+        // Kilobits per second, capped by the source bitrate
+        private int videoBitrate;
+        // Zero copies the source audio
+        private int audioBitrate;
+    }
+}
@@ -0,0 +1,9 @@
+package com.qbasic.transcodingservice.config;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableConfigurationProperties(LadderProperties.class)
+public class TranscodeConfig {
+}
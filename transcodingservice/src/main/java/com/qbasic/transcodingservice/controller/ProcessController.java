@@ -1,12 +1,19 @@
 package com.qbasic.transcodingservice.controller;
 
+import com.qbasic.transcodingservice.dto.Capacity;
+import com.qbasic.transcodingservice.dto.JobStatus;
+import com.qbasic.transcodingservice.dto.SourceInfo;
 import com.qbasic.transcodingservice.service.ProcessManagingService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 @RestController
@@ -21,8 +28,34 @@ public class ProcessController {
     }
 
 
+    // Lets the streaming service reject or redirect publishes before a ladder is requested
+    @GetMapping("/capacity")
+    Mono<Capacity> capacity() {
+        return Mono.fromSupplier(service::capacity);
+    }
+
+    // Progress of running ladders
+    @GetMapping("/jobs")
+    Flux<JobStatus> jobs() {
+        return Flux.defer(() -> Flux.fromIterable(service.jobs()));
+    }
+
+    @GetMapping("/jobs/{owner}")
+    Mono<ResponseEntity<JobStatus>> job(@PathVariable("owner") String owner) {
+        return Mono.fromSupplier(() -> service.job(owner)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build()));
+    }
+
+    // Full ladder, the source is not known
     @GetMapping("/{owner}")
     Mono<Long> initiateFfmpeg(@PathVariable("owner") String owner) {
-        return service.startProcess(owner);
+        return service.startProcess(owner, SourceInfo.unknown());
+    }
+
+    // Ladder built for the source described by onMetaData of the publisher
+    @PostMapping("/{owner}")
+    Mono<Long> initiateFfmpeg(@PathVariable("owner") String owner, @RequestBody SourceInfo source) {
+        return service.startProcess(owner, source);
     }
 }
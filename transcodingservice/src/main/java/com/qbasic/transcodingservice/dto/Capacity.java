@@ -0,0 +1,19 @@
+package com.qbasic.transcodingservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * CPU budget of transcoding in cores. Accepting is false when a new ladder
+ * can neither start now nor wait in the queue, publishes then get passthrough only
+ * */
+@Data
+@AllArgsConstructor
+public class Capacity {
+    double budget;
+    double used;
+    double ladderCost;
+    int running;
+    int queued;
+    boolean accepting;
+}
@@ -0,0 +1,29 @@
+package com.qbasic.transcodingservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Latest ffmpeg progress report of a running ladder.
+ * Speed is encoded media time per wall time, below 1.0 the ladder falls behind live
+ * */
+@Data
+@AllArgsConstructor
+public class JobStatus {
+    String owner;
+    long pid;
+    List<String> renditions;
+    int restarts;
+    long frame;
+    double fps;
+    double speed;
+    double bitrateKbps;
+    long droppedFrames;
+    long duplicatedFrames;
+    long encodedMillis;
+    // Time ffmpeg has been below real time, zero when keeping up
+    long slowMillis;
+    long lastReportMillisAgo;
+}
@@ -0,0 +1,29 @@
+package com.qbasic.transcodingservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Published source from onMetaData as sent by the streaming service.
+ * Zero means the publisher did not send the field
+ * */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SourceInfo {
+    int width;
+    int height;
+    double frameRate;
+    // Kilobits per second
+    int videoBitrate;
+    int audioBitrate;
+    boolean audio = true;
+    boolean video = true;
+    // Passthrough rendition {owner}_0 is written by the streaming service
+    boolean sourceRendition = true;
+
+    public static SourceInfo unknown() {
+        return new SourceInfo(0, 0, 0, 0, 0, true, true, true);
+    }
+}
@@ -0,0 +1,139 @@
+package com.qbasic.transcodingservice.service;
+
+import com.qbasic.transcodingservice.config.LadderProperties;
+import com.qbasic.transcodingservice.dto.SourceInfo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the ffmpeg command and the master playlist of a stream from the ladder profile table
+ * and the published source
+ * */
+@Component
+public class LadderCommandBuilder {
+
+    // Rendition written by the streaming service
+    private static final String SOURCE_RENDITION = "0";
+
+    @Autowired
+    private LadderProperties properties;
+
+    /**
+     * Renditions worth encoding for the source, empty when the source is already the smallest one
+     * or has no video. Without the passthrough rendition the smallest one is kept so the stream stays playable
+     * */
+    public List<LadderProperties.Rendition> renditions(SourceInfo source) {
+        List<LadderProperties.Rendition> renditions = new ArrayList<>();
+        if (!source.isVideo()) {
+            return renditions;
+        }
+        for (LadderProperties.Rendition rendition : properties.getRenditions()) {
+            if (source.getHeight() > 0 && rendition.getHeight() >= source.getHeight()) {
+                continue;
+            }
+            renditions.add(rendition);
+        }
+        List<LadderProperties.Rendition> table = properties.getRenditions();
+        if (renditions.isEmpty() && !source.isSourceRendition() && !table.isEmpty()) {
+            renditions.add(table.get(table.size() - 1));
+        }
+        return renditions;
+    }
+
+    public List<String> command(String input, String owner, SourceInfo source, List<LadderProperties.Rendition> renditions) {
+        double frameRate = source.getFrameRate() > 0 ? source.getFrameRate() : properties.getDefaultFrameRate();
+        // Keyframes of every rendition at the same times, segments of the ladder stay aligned
+        long gop = Math.max(1, Math.round(frameRate * properties.getKeyframeInterval().toMillis() / 1000.0));
+
+        List<String> command = new ArrayList<>();
+        command.add(properties.getBinary());
+        // Progress blocks on stdout are parsed by the transcode monitor, stdin is never read
+        command.addAll(List.of("-nostdin", "-nostats", "-progress", "pipe:1", "-y", "-i", input));
+        command.addAll(Arrays.asList(properties.getEncoderOptions().trim().split("\\s+")));
+        command.addAll(List.of("-g", String.valueOf(gop), "-keyint_min", String.valueOf(gop)));
+
+        StringBuilder streamMap = new StringBuilder();
+        for (int i = 0; i < renditions.size(); i++) {
+            LadderProperties.Rendition rendition = renditions.get(i);
+            command.addAll(List.of(
+                    "-map", "v:0",
+                    "-filter:v:" + i, "scale=-2:" + rendition.getHeight(),
+                    "-c:v:" + i, "libx264",
+                    "-b:v:" + i, videoBitrate(rendition, source) + "k"));
+            if (streamMap.length() > 0) {
+                streamMap.append(' ');
+            }
+            streamMap.append("v:").append(i);
+            if (source.isAudio()) {
+                command.addAll(List.of("-map", "a:0"));
+                if (rendition.getAudioBitrate() > 0) {
+                    command.addAll(List.of("-c:a:" + i, "aac", "-b:a:" + i, rendition.getAudioBitrate() + "k", "-ac", "2"));
+                } else {
+                    command.addAll(List.of("-c:a:" + i, "copy"));
+                }
+                streamMap.append(",a:").append(i);
+            }
+            streamMap.append(",name:").append(rendition.getName());
+        }
+
+        command.addAll(List.of(
+                "-var_stream_map", streamMap.toString(),
+                "-f", "hls",
+                "-hls_time", String.valueOf(properties.getKeyframeInterval().toSeconds()),
+                "-hls_list_size", String.valueOf(properties.getListSize()),
+                // Segment numbers start from the publish time, names of a republished stream are never reused
+                "-hls_start_number_source", "epoch",
+                // Segments are renamed when complete, the content service caches every file it sees
+                "-hls_flags", "independent_segments+temp_file",
+                "-strftime_mkdir", "1",
+                "-hls_segment_filename", owner + "_%v/data%d.ts",
+                owner + "_%v.m3u8"));
+        return command;
+    }
+
+    /**
+     * ffmpeg does not know the source rendition written by the streaming service, so the master playlist is built here.
+     * The source rendition is left out when the streaming service does not segment the stream
+     * */
+    public String masterPlaylist(String owner, SourceInfo source, List<LadderProperties.Rendition> renditions) {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n");
+        if (source.isSourceRendition()) {
+            int sourceBitrate = source.getVideoBitrate() > 0
+                    ? source.getVideoBitrate() + source.getAudioBitrate()
+                    : properties.getDefaultSourceBitrate();
+            playlist.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(sourceBitrate * 1000L);
+            if (source.getWidth() > 0 && source.getHeight() > 0) {
+                playlist.append(",RESOLUTION=").append(source.getWidth()).append('x').append(source.getHeight());
+            }
+            playlist.append('\n').append(owner).append('_').append(SOURCE_RENDITION).append(".m3u8\n");
+        }
+
+        for (LadderProperties.Rendition rendition : renditions) {
+            int audioBitrate = rendition.getAudioBitrate() > 0 ? rendition.getAudioBitrate() : source.getAudioBitrate();
+            playlist.append("#EXT-X-STREAM-INF:BANDWIDTH=")
+                    .append((videoBitrate(rendition, source) + (source.isAudio() ? audioBitrate : 0)) * 1000L)
+                    .append(",RESOLUTION=").append(width(rendition, source)).append('x').append(rendition.getHeight())
+                    .append('\n').append(owner).append('_').append(rendition.getName()).append(".m3u8\n");
+        }
+        return playlist.toString();
+    }
+
+    private static int videoBitrate(LadderProperties.Rendition rendition, SourceInfo source) {
+        return source.getVideoBitrate() > 0
+                ? Math.min(rendition.getVideoBitrate(), source.getVideoBitrate())
+                : rendition.getVideoBitrate();
+    }
+
+    // Width produced by scale=-2:height, rounded to even like ffmpeg does
+    private static int width(LadderProperties.Rendition rendition, SourceInfo source) {
+        if (source.getWidth() <= 0 || source.getHeight() <= 0) {
+            return rendition.getWidth();
+        }
+        int width = (int) Math.round((double) source.getWidth() * rendition.getHeight() / source.getHeight());
+        return width + (width & 1);
+    }
+}
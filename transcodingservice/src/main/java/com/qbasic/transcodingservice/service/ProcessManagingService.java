@@ -1,89 +1,229 @@
 package com.qbasic.transcodingservice.service;
 
+import com.qbasic.transcodingservice.config.LadderProperties;
+import com.qbasic.transcodingservice.dto.Capacity;
+import com.qbasic.transcodingservice.dto.JobStatus;
+import com.qbasic.transcodingservice.dto.SourceInfo;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 @Service
 @Slf4j
 public class ProcessManagingService {
-    @Value("${ffmpeg.command}")
-    private String template;
-
     @Value("${rtmp.server}")
     private String address;
 
     @Value("${stream.directory}")
     private String path;
 
+    @Autowired
+    private TranscodeScheduler scheduler;
+
+    @Autowired
+    private LadderCommandBuilder ladder;
+
+    @Autowired
+    private TranscodeMonitor monitor;
+
+    // Stalls restarting the same ladder before renditions are dropped
+    @Value("${transcode.stall.max-restarts:1}")
+    private int maxRestarts;
+
     private final ConcurrentHashMap<String, Process> processMap = new ConcurrentHashMap<>();
+    // Source of every started stream, kept for ladders started from the queue
+    private final ConcurrentHashMap<String, SourceInfo> sources = new ConcurrentHashMap<>();
+    // Stall restarts and renditions dropped from the top of the ladder since the stream started
+    private final ConcurrentHashMap<String, Integer> restarts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> dropped = new ConcurrentHashMap<>();
 
-    public Mono<Long> startProcess(String owner) {
-        if (processMap.containsKey(owner) && processMap.get(owner).isAlive()) {
-            processMap.get(owner).destroyForcibly();
-            processMap.remove(owner);
+    @PostConstruct
+    public void start() {
+        scheduler.addListener(new TranscodeScheduler.Listener() {
+            @Override
+            public void promoted(String owner) {
+                SourceInfo source = sources.getOrDefault(owner, SourceInfo.unknown());
+                launch(owner, source, renditions(owner, source))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .subscribe(pid -> log.info("Started queued ladder of {} with pid {}", owner, pid),
+                                error -> {
+                                    log.error("Failed to start queued ladder of {}", owner, error);
+                                    scheduler.release(owner);
+                                });
+            }
+
+            @Override
+            public void demoted(String owner) {
+                Process process = processMap.remove(owner);
+                if (process != null) {
+                    process.destroy();
+                }
+                try {
+                    SourceInfo source = sources.getOrDefault(owner, SourceInfo.unknown());
+                    writeMasterPlaylist(directory(owner), ladder.masterPlaylist(owner, source, List.of()));
+                } catch (IOException e) {
+                    log.error("Failed to write passthrough playlist of {}", owner, e);
+                }
+            }
+        });
+        monitor.addStallListener(this::onStall);
+    }
+
+    /**
+     * Starts the ladder of the owner built for the source when the CPU budget allows it, returns its pid.
+     * Otherwise, or when the source needs no ladder, the stream is served passthrough only and -1 is returned
+     * */
+    public Mono<Long> startProcess(String owner, SourceInfo source) {
+        log.info("Source of {}: {}", owner, source);
+        sources.put(owner, source);
+        restarts.remove(owner);
+        dropped.remove(owner);
+        List<LadderProperties.Rendition> renditions = ladder.renditions(source);
+        Process previous = processMap.remove(owner);
+        if (previous != null && previous.isAlive()) {
+            previous.destroyForcibly();
         }
-        String command = String.format(template, address + "/" + owner, owner + "_%v/data%d.ts", owner + "_%v.m3u8");
+        scheduler.release(owner);
 
-        ProcessBuilder processBuilder = new ProcessBuilder();
-        log.info(command);
-
-        List<String> splitCommand = new ArrayList<>();
-        Pattern regex = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"|'([^']*)'");
-        Matcher regexMatcher = regex.matcher(command);
-        while (regexMatcher.find()) {
-            if (regexMatcher.group(1) != null) {
-                // Add double-quoted string without the quotes
-                splitCommand.add(regexMatcher.group(1));
-            } else if (regexMatcher.group(2) != null) {
-                // Add single-quoted string without the quotes
-                splitCommand.add(regexMatcher.group(2));
-            } else {
-                // Add unquoted word
-                splitCommand.add(regexMatcher.group());
+        return Mono
+                .defer(() -> {
+                    if (!renditions.isEmpty() && scheduler.tryAcquire(owner)) {
+                        return launch(owner, source, renditions)
+                                .doOnError(error -> scheduler.release(owner));
+                    }
+                    return Mono.fromCallable(() -> {
+                        writeMasterPlaylist(directory(owner), ladder.masterPlaylist(owner, source, List.of()));
+                        return -1L;
+                    });
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    public Capacity capacity() {
+        return scheduler.capacity();
+    }
+
+    public List<JobStatus> jobs() {
+        return monitor.jobs().stream().map(TranscodeJob::status).toList();
+    }
+
+    public Optional<JobStatus> job(String owner) {
+        return Optional.ofNullable(monitor.job(owner)).map(TranscodeJob::status);
+    }
+
+    /**
+     * A ladder below real time is restarted, after the allowed restarts the highest rendition is dropped
+     * on every stall. Without renditions left the stream is passthrough only
+     * */
+    private void onStall(TranscodeJob job) {
+        String owner = job.getOwner();
+        // Replaced or stopped since the stall was detected
+        if (!processMap.remove(owner, job.getProcess())) {
+            return;
+        }
+        job.getProcess().destroy();
+        if (restarts.merge(owner, 1, Integer::sum) > maxRestarts) {
+            dropped.merge(owner, 1, Integer::sum);
+        }
+        SourceInfo source = sources.getOrDefault(owner, SourceInfo.unknown());
+        List<LadderProperties.Rendition> renditions = renditions(owner, source);
+        if (renditions.isEmpty()) {
+            log.warn("Ladder of {} can not keep up with any rendition, falling back to passthrough", owner);
+            scheduler.release(owner);
+            try {
+                writeMasterPlaylist(directory(owner), ladder.masterPlaylist(owner, source, List.of()));
+            } catch (IOException e) {
+                log.error("Failed to write passthrough playlist of {}", owner, e);
             }
+            return;
         }
+        log.warn("Restarting stalled ladder of {} with {} renditions", owner, renditions.size());
+        launch(owner, source, renditions)
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe(pid -> log.info("Restarted ladder of {} with pid {}", owner, pid),
+                        error -> {
+                            log.error("Failed to restart ladder of {}", owner, error);
+                            scheduler.release(owner);
+                        });
+    }
+
+    // Ladder of the source without the renditions dropped after stalls, the table is ordered from the highest.
+    // Without the passthrough rendition the lowest one is never dropped, it is all viewers can play
+    private List<LadderProperties.Rendition> renditions(String owner, SourceInfo source) {
+        List<LadderProperties.Rendition> renditions = ladder.renditions(source);
+        int kept = source.isSourceRendition() ? 0 : Math.min(1, renditions.size());
+        int count = Math.min(dropped.getOrDefault(owner, 0), renditions.size() - kept);
+        return renditions.subList(count, renditions.size());
+    }
+
+    private Mono<Long> launch(String owner, SourceInfo source, List<LadderProperties.Rendition> renditions) {
+        List<String> command = ladder.command(address + "/" + owner, owner, source, renditions);
+
+        ProcessBuilder processBuilder = new ProcessBuilder();
+        log.info(String.join(" ", command));
 
-        processBuilder.command(splitCommand);
-        processBuilder.redirectErrorStream(true);
-        processBuilder.inheritIO();
+        processBuilder.command(command);
+        // Progress is read from stdout, logs of ffmpeg still go to the container output
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
 
         return Mono
                 .fromCallable(() -> {
-                    Path directory = Paths.get(path).resolve(owner);
-                    if (!Files.isDirectory(directory)) {
-                        try {
-                            Files.createDirectory(directory);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
+                    Path directory = directory(owner);
+                    writeMasterPlaylist(directory, ladder.masterPlaylist(owner, source, renditions));
                     processBuilder.directory(new File(directory.toAbsolutePath().toString()));
                     return processBuilder.start();
                 })
-                .flatMap(process -> {
+                .map(process -> {
                     log.info(process.info().toString());
                     log.info(String.valueOf(process.pid()));
+                    processMap.put(owner, process);
+                    scheduler.attach(owner, process.toHandle());
+                    monitor.track(owner, process,
+                            renditions.stream().map(LadderProperties.Rendition::getName).toList(),
+                            restarts.getOrDefault(owner, 0));
                     process.onExit().thenAccept((c) -> {
                         log.info(owner + " exited with code " + c.exitValue());
-                        if (!processMap.get(owner).isAlive()) {
-                            processMap.remove(owner);
+                        // Not removed when the ladder was replaced or demoted
+                        if (processMap.remove(owner, process)) {
+                            sources.remove(owner, source);
+                            scheduler.release(owner);
                         }
                     });
-                    processMap.put(owner, process);
-                    return Mono.just(process.pid());
-                }).subscribeOn(Schedulers.boundedElastic());
+                    return process.pid();
+                });
+    }
+
+    private Path directory(String owner) {
+        Path directory = Paths.get(path).resolve(owner);
+        if (!Files.isDirectory(directory)) {
+            try {
+                Files.createDirectory(directory);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return directory;
+    }
+
+    private void writeMasterPlaylist(Path directory, String content) throws IOException {
+        Path file = directory.resolve("master.m3u8");
+        Path temporary = directory.resolve("master.m3u8.tmp");
+        Files.writeString(temporary, content, StandardCharsets.UTF_8);
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 }
@@ -0,0 +1,333 @@
+package com.qbasic.transcodingservice.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Deletes HLS files of the stream directory that no playlist needs any more, on a thread of its own.
+ * Segments and parts not referenced by a media playlist are deleted once older than the minimum age,
+ * so files written just before the playlist that lists them are kept. Directories of streams whose
+ * playlists have not changed for the grace period are removed. Streams over the per-stream quota lose
+ * their oldest media files, over the global quota ended streams go first and then the oldest media.
+ * At most a batch of files is deleted per pass, the rest waits for the next one.
+ * Segments waiting to be archived are kept, except with their whole stream directory
+ * */
+@Service
+@Slf4j
+public class RetentionJanitor {
+
+    // URI attribute of EXT-X-PART, EXT-X-PRELOAD-HINT and EXT-X-MAP
+    private static final Pattern URI = Pattern.compile("URI=\"([^\"]+)\"");
+
+    private enum Reason {
+        UNREFERENCED, QUOTA, ENDED
+    }
+
+    private record MediaFile(Path path, long size, long lastModified) {}
+
+    private static class StreamUsage {
+        private final Path directory;
+        private final List<MediaFile> media = new ArrayList<>();
+        private final Set<Path> referenced = new HashSet<>();
+        private long bytes;
+        // Newest playlist change, the stream has ended when it is older than the grace period
+        private long lastPlaylistChange;
+
+        private StreamUsage(Path directory) {
+            this.directory = directory;
+        }
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private SegmentArchiver archiver;
+
+    @Value("${stream.directory}")
+    private String path;
+
+    @Value("${retention.enabled:true}")
+    private boolean enabled;
+
+    @Value("${retention.interval:30s}")
+    private Duration interval;
+
+    @Value("${retention.min-age:30s}")
+    private Duration minAge;
+
+    @Value("${retention.ended-grace:10m}")
+    private Duration endedGrace;
+
+    @Value("${retention.stream-quota:2GB}")
+    private DataSize streamQuota;
+
+    @Value("${retention.total-quota:20GB}")
+    private DataSize totalQuota;
+
+    @Value("${retention.batch-size:500}")
+    private int batchSize;
+
+    private final Map<Reason, Counter> reclaimedBytes = new EnumMap<>(Reason.class);
+    private final Map<Reason, Counter> deletedFiles = new EnumMap<>(Reason.class);
+    private final AtomicLong storedBytes = new AtomicLong();
+    private Timer scanTimer;
+
+    @PostConstruct
+    public void start() {
+        for (Reason reason : Reason.values()) {
+            String tag = reason.name().toLowerCase(Locale.ROOT);
+            reclaimedBytes.put(reason, Counter.builder("retention.reclaimed.bytes")
+                    .description("Bytes deleted from the stream directory")
+                    .baseUnit("bytes")
+                    .tag("reason", tag)
+                    .register(meterRegistry));
+            deletedFiles.put(reason, Counter.builder("retention.deleted.files")
+                    .tag("reason", tag)
+                    .register(meterRegistry));
+        }
+        scanTimer = Timer.builder("retention.scan")
+                .description("Time of a retention pass over the stream directory")
+                .register(meterRegistry);
+        Gauge.builder("retention.stored.bytes", storedBytes, AtomicLong::get)
+                .description("Bytes in the stream directory after the last retention pass")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        if (!enabled) {
+            log.info("Segment retention is disabled");
+            return;
+        }
+        Flux.interval(interval, interval, Schedulers.newSingle("retention"))
+                .onBackpressureDrop()
+                .doOnNext(tick -> scanTimer.record(this::pass))
+                .onErrorContinue((error, tick) -> log.error("Retention pass failed", error))
+                .subscribe();
+    }
+
+    // Runs on the retention thread, tests call it directly
+    void pass() {
+        Path root = Paths.get(path);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<StreamUsage> streams = new ArrayList<>();
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path directory : directories) {
+                streams.add(scan(directory));
+            }
+        } catch (IOException e) {
+            log.error("Failed to list {}", root, e);
+            return;
+        }
+
+        int budget = batchSize;
+        long total = 0;
+        List<StreamUsage> ended = new ArrayList<>();
+        for (StreamUsage stream : streams) {
+            if (now - stream.lastPlaylistChange > endedGrace.toMillis()) {
+                ended.add(stream);
+                continue;
+            }
+            budget = deleteUnreferenced(stream, now, budget);
+            budget = enforceQuota(stream, streamQuota.toBytes(), budget);
+            total += stream.bytes;
+        }
+        for (StreamUsage stream : ended) {
+            if (budget > 0) {
+                log.info("Stream directory {} has not changed for {}, removing it", stream.directory, endedGrace);
+                budget = deleteDirectory(stream, budget);
+            }
+            total += stream.bytes;
+        }
+
+        if (total > totalQuota.toBytes()) {
+            log.warn("Stream directory holds {} bytes, over the total quota of {}", total, totalQuota);
+            total = enforceTotalQuota(streams, total, budget);
+        }
+        storedBytes.set(total);
+    }
+
+    private StreamUsage scan(Path directory) {
+        StreamUsage stream = new StreamUsage(directory);
+        try (Stream<Path> files = Files.walk(directory)) {
+            // A stream that has not written a playlist yet is as old as its directory
+            stream.lastPlaylistChange = Files.getLastModifiedTime(directory).toMillis();
+            files.forEach(file -> {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (!attributes.isRegularFile()) {
+                        return;
+                    }
+                    long lastModified = attributes.lastModifiedTime().toMillis();
+                    stream.bytes += attributes.size();
+                    if (file.getFileName().toString().endsWith(".m3u8")) {
+                        stream.lastPlaylistChange = Math.max(stream.lastPlaylistChange, lastModified);
+                        readReferences(file, stream.referenced);
+                    } else {
+                        stream.media.add(new MediaFile(file, attributes.size(), lastModified));
+                    }
+                } catch (IOException e) {
+                    // Replaced or deleted while scanning
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            log.info("Failed to scan {}: {}", directory, e.getMessage());
+        }
+        // Oldest first for quota enforcement
+        stream.media.sort(Comparator.comparingLong(MediaFile::lastModified));
+        return stream;
+    }
+
+    private static void readReferences(Path playlist, Set<Path> referenced) throws IOException {
+        Path directory = playlist.getParent();
+        for (String line : Files.readAllLines(playlist, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            if (!line.startsWith("#")) {
+                referenced.add(directory.resolve(line.trim()).normalize());
+                continue;
+            }
+            Matcher uri = URI.matcher(line);
+            if (uri.find()) {
+                referenced.add(directory.resolve(uri.group(1)).normalize());
+            }
+        }
+    }
+
+    private int deleteUnreferenced(StreamUsage stream, long now, int budget) {
+        Iterator<MediaFile> iterator = stream.media.iterator();
+        while (budget > 0 && iterator.hasNext()) {
+            MediaFile file = iterator.next();
+            if (now - file.lastModified() < minAge.toMillis()
+                    || stream.referenced.contains(file.path().normalize())
+                    || archiver.isPending(file.path())) {
+                continue;
+            }
+            if (delete(file.path(), file.size(), Reason.UNREFERENCED)) {
+                stream.bytes -= file.size();
+                iterator.remove();
+            }
+            budget--;
+        }
+        return budget;
+    }
+
+    private int enforceQuota(StreamUsage stream, long quota, int budget) {
+        if (stream.bytes > quota) {
+            log.warn("Stream directory {} holds {} bytes, over its quota of {}", stream.directory, stream.bytes, quota);
+        }
+        Iterator<MediaFile> iterator = stream.media.iterator();
+        while (budget > 0 && stream.bytes > quota && iterator.hasNext()) {
+            MediaFile file = iterator.next();
+            if (archiver.isPending(file.path())) {
+                continue;
+            }
+            if (delete(file.path(), file.size(), Reason.QUOTA)) {
+                stream.bytes -= file.size();
+                iterator.remove();
+            }
+            budget--;
+        }
+        return budget;
+    }
+
+    // Ended streams within the grace period go first, oldest first, then the oldest media of any stream
+    private long enforceTotalQuota(List<StreamUsage> streams, long total, int budget) {
+        long quota = totalQuota.toBytes();
+        List<StreamUsage> byAge = new ArrayList<>(streams);
+        byAge.sort(Comparator.comparingLong(stream -> stream.lastPlaylistChange));
+        for (StreamUsage stream : byAge) {
+            if (budget <= 0 || total <= quota) {
+                return total;
+            }
+            if (Files.isDirectory(stream.directory) && System.currentTimeMillis() - stream.lastPlaylistChange > interval.toMillis() * 2) {
+                long before = stream.bytes;
+                budget = deleteDirectory(stream, budget);
+                total -= before - stream.bytes;
+            }
+        }
+        List<MediaFile> media = new ArrayList<>();
+        for (StreamUsage stream : streams) {
+            media.addAll(stream.media);
+        }
+        media.sort(Comparator.comparingLong(MediaFile::lastModified));
+        for (MediaFile file : media) {
+            if (budget-- <= 0 || total <= quota) {
+                break;
+            }
+            if (!archiver.isPending(file.path()) && delete(file.path(), file.size(), Reason.QUOTA)) {
+                total -= file.size();
+            }
+        }
+        return total;
+    }
+
+    private int deleteDirectory(StreamUsage stream, int budget) {
+        List<Path> paths;
+        try (Stream<Path> files = Files.walk(stream.directory)) {
+            // Deepest first, directories are empty when they are deleted
+            paths = files.sorted(Comparator.reverseOrder()).toList();
+        } catch (IOException | UncheckedIOException e) {
+            log.info("Failed to list {}: {}", stream.directory, e.getMessage());
+            return budget;
+        }
+        for (Path file : paths) {
+            if (budget <= 0) {
+                break;
+            }
+            try {
+                long size = Files.isRegularFile(file) ? Files.size(file) : 0;
+                if (delete(file, size, Reason.ENDED)) {
+                    stream.bytes -= size;
+                }
+            } catch (IOException e) {
+                // Already deleted
+            }
+            budget--;
+        }
+        stream.media.clear();
+        return budget;
+    }
+
+    private boolean delete(Path file, long size, Reason reason) {
+        try {
+            if (!Files.deleteIfExists(file)) {
+                return false;
+            }
+        } catch (DirectoryNotEmptyException e) {
+            // Written to again, the stream is back
+            return false;
+        } catch (IOException e) {
+            log.info("Failed to delete {}: {}", file, e.getMessage());
+            return false;
+        }
+        reclaimedBytes.get(reason).increment(size);
+        deletedFiles.get(reason).increment();
+        return true;
+    }
+}
@@ -0,0 +1,318 @@
+package com.qbasic.transcodingservice.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Copies finished segments from the live stream directory, which may be a tmpfs, to durable storage.
+ * A scanner thread finds new segments and offers them to a bounded queue, when the queue is full
+ * segments are skipped instead of slowing down the live path. Workers take batches from the queue
+ * and copy them with FileChannel.transferTo through a temporary file. Queued segments are reported
+ * as pending so retention keeps them until they are copied.
+ * The archive holds raw segments only, playlists are not copied. The scanner prunes it periodically,
+ * segments older than the TTL are deleted, then the oldest ones until the archive fits its quota
+ * */
+@Service
+@Slf4j
+public class SegmentArchiver {
+
+    // Complete segments only, parts data{n}.{p}.ts are contained in their segment
+    private static final Pattern SEGMENT = Pattern.compile("data\\d+\\.(ts|m4s)");
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${stream.directory}")
+    private String path;
+
+    @Value("${archive.enabled:false}")
+    private boolean enabled;
+
+    @Value("${archive.directory:/home/archive}")
+    private String archivePath;
+
+    @Value("${archive.scan-interval:5s}")
+    private Duration scanInterval;
+
+    @Value("${archive.concurrency:2}")
+    private int concurrency;
+
+    @Value("${archive.queue-size:1024}")
+    private int queueSize;
+
+    @Value("${archive.batch-size:16}")
+    private int batchSize;
+
+    // Zero keeps segments until the quota needs the space
+    @Value("${archive.ttl:7d}")
+    private Duration ttl;
+
+    // Zero disables the quota
+    @Value("${archive.quota:50GB}")
+    private DataSize quota;
+
+    @Value("${archive.prune-interval:1m}")
+    private Duration pruneInterval;
+
+    private record Archived(Path file, long lastModified, long size) {
+    }
+
+    private Path root;
+    private Path archive;
+    private BlockingQueue<Path> queue;
+    // Queued or being copied
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    // Segments already handled, pruned to the files that still exist on every scan
+    private Set<Path> seen = new HashSet<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running;
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    private Counter copiedBytes;
+    private Counter copiedFiles;
+    private Counter skippedFiles;
+    private Counter failedFiles;
+    private Timer batchTimer;
+    private Counter prunedFiles;
+    private Counter prunedBytes;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        root = Paths.get(path).toAbsolutePath().normalize();
+        archive = Paths.get(archivePath).toAbsolutePath().normalize();
+        queue = new ArrayBlockingQueue<>(queueSize);
+
+        copiedBytes = Counter.builder("archive.copied.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        copiedFiles = Counter.builder("archive.copied.files")
+                .register(meterRegistry);
+        skippedFiles = Counter.builder("archive.skipped.files")
+                .description("Segments not archived because the queue was full")
+                .register(meterRegistry);
+        failedFiles = Counter.builder("archive.failed.files")
+                .register(meterRegistry);
+        batchTimer = Timer.builder("archive.batch")
+                .description("Time to copy a batch of segments to durable storage")
+                .register(meterRegistry);
+        Gauge.builder("archive.queue.size", this, archiver -> archiver.queue.size())
+                .register(meterRegistry);
+        prunedFiles = Counter.builder("archive.pruned.files")
+                .description("Archived segments deleted for the TTL or quota")
+                .register(meterRegistry);
+        prunedBytes = Counter.builder("archive.pruned.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("archive.stored.bytes", storedBytes, AtomicLong::get)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        log.info("Archiving segments of {} to {}", root, archive);
+        running = true;
+        start(new Thread(this::scan, "archive-scanner"));
+        for (int i = 0; i < Math.max(1, concurrency); i++) {
+            start(new Thread(this::copy, "archive-worker-" + i));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        threads.forEach(Thread::interrupt);
+    }
+
+    // Retention must not delete a segment before it is copied
+    public boolean isPending(Path file) {
+        return enabled && pending.contains(file.toAbsolutePath().normalize());
+    }
+
+    private void start(Thread thread) {
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void scan() {
+        long nextPrune = System.nanoTime();
+        while (running) {
+            try {
+                Thread.sleep(scanInterval.toMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (System.nanoTime() - nextPrune >= 0) {
+                prune();
+                nextPrune = System.nanoTime() + pruneInterval.toNanos();
+            }
+            Set<Path> current = new HashSet<>();
+            try (Stream<Path> tree = Files.walk(root)) {
+                for (Path file : (Iterable<Path>) tree::iterator) {
+                    if (!SEGMENT.matcher(file.getFileName().toString()).matches()) {
+                        continue;
+                    }
+                    current.add(file);
+                    if (seen.contains(file)) {
+                        continue;
+                    }
+                    // Left from before a restart
+                    if (Files.exists(archive.resolve(root.relativize(file)))) {
+                        continue;
+                    }
+                    pending.add(file);
+                    if (!queue.offer(file)) {
+                        pending.remove(file);
+                        skippedFiles.increment();
+                        log.warn("Archive queue is full, skipping {}", file);
+                    }
+                }
+            } catch (IOException | UncheckedIOException e) {
+                log.info("Archive scan of {} failed: {}", root, e.getMessage());
+                continue;
+            }
+            seen = current;
+        }
+    }
+
+    // Runs on the scanner thread, tests call it directly
+    void prune() {
+        List<Archived> files = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> tree = Files.walk(archive)) {
+            for (Path file : (Iterable<Path>) tree::iterator) {
+                // Copies in progress are not counted until they are moved in place
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    continue;
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (attributes.isRegularFile()) {
+                    files.add(new Archived(file, attributes.lastModifiedTime().toMillis(), attributes.size()));
+                    total += attributes.size();
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing archived yet
+            return;
+        } catch (IOException | UncheckedIOException e) {
+            log.info("Archive prune of {} failed: {}", archive, e.getMessage());
+            return;
+        }
+
+        files.sort(Comparator.comparingLong(Archived::lastModified));
+        long expiredBefore = ttl.isZero() ? Long.MIN_VALUE : System.currentTimeMillis() - ttl.toMillis();
+        long limit = quota.toBytes() == 0 ? Long.MAX_VALUE : quota.toBytes();
+        Set<Path> directories = new HashSet<>();
+        for (Archived file : files) {
+            if (file.lastModified() >= expiredBefore && total <= limit) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(file.file());
+                total -= file.size();
+                prunedFiles.increment();
+                prunedBytes.increment(file.size());
+                directories.add(file.file().getParent());
+            } catch (IOException e) {
+                log.warn("Failed to prune archived segment {}: {}", file.file(), e.getMessage());
+            }
+        }
+        storedBytes.set(total);
+        removeEmpty(directories);
+    }
+
+    // Directories of streams whose segments were all pruned
+    private void removeEmpty(Set<Path> directories) {
+        for (Path directory : directories) {
+            while (directory != null && directory.startsWith(archive) && !directory.equals(archive)) {
+                try {
+                    Files.delete(directory);
+                } catch (DirectoryNotEmptyException | NoSuchFileException e) {
+                    break;
+                } catch (IOException e) {
+                    log.warn("Failed to remove archive directory {}: {}", directory, e.getMessage());
+                    break;
+                }
+                directory = directory.getParent();
+            }
+        }
+    }
+
+    private void copy() {
+        List<Path> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            long start = System.nanoTime();
+            for (Path file : batch) {
+                try {
+                    copy(file);
+                } catch (NoSuchFileException e) {
+                    // Deleted by retention before it was queued as pending
+                    failedFiles.increment();
+                } catch (IOException e) {
+                    failedFiles.increment();
+                    log.warn("Failed to archive {}: {}", file, e.getMessage());
+                } finally {
+                    pending.remove(file);
+                }
+            }
+            batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            batch.clear();
+        }
+    }
+
+    private void copy(Path file) throws IOException {
+        Path target = archive.resolve(root.relativize(file));
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.createDirectories(target.getParent());
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel destination = FileChannel.open(temporary,
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = source.size();
+            long position = 0;
+            // transferTo may copy less than requested
+            while (position < size) {
+                position += source.transferTo(position, size - position, destination);
+            }
+            destination.force(false);
+            copiedBytes.increment(size);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        copiedFiles.increment();
+    }
+}
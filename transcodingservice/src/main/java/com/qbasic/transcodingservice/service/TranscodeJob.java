@@ -0,0 +1,195 @@
+package com.qbasic.transcodingservice.service;
+
+import com.qbasic.transcodingservice.dto.JobStatus;
+import io.micrometer.core.instrument.*;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Running ffmpeg ladder and its progress parsed from -progress output.
+ * Progress comes in blocks of key=value lines terminated by progress=continue or progress=end,
+ * fields are published when a block completes. Meters are tagged with the owner
+ * and removed from the registry when the job is closed
+ * */
+public class TranscodeJob {
+
+    @Getter
+    private final String owner;
+    @Getter
+    private final Process process;
+    @Getter
+    private final List<String> renditions;
+    @Getter
+    private final int restarts;
+
+    private final MeterRegistry registry;
+    private final List<Meter> meters = new ArrayList<>();
+    private final long startedAt = System.nanoTime();
+
+    // Block being read, touched by the reader thread only
+    private long pendingFrame;
+    private double pendingFps;
+    private double pendingSpeed = -1;
+    private double pendingBitrate;
+    private long pendingDropped;
+    private long pendingDuplicated;
+    private long pendingOutTimeMicros;
+
+    private volatile long frame;
+    private volatile double fps;
+    private volatile double speed = -1;
+    private volatile double bitrate;
+    private volatile long dropped;
+    private volatile long duplicated;
+    private volatile long outTimeMicros;
+    private volatile long lastReport;
+    // Time speed went below the minimum, zero while keeping up
+    private volatile long slowSince;
+    @Getter
+    private volatile boolean stalled;
+
+    TranscodeJob(String owner, Process process, List<String> renditions, int restarts, MeterRegistry registry) {
+        this.owner = owner;
+        this.process = process;
+        this.renditions = List.copyOf(renditions);
+        this.restarts = restarts;
+        this.registry = registry;
+        this.lastReport = startedAt;
+        Tags tags = Tags.of("owner", owner);
+
+        register(Gauge.builder("transcode.job.speed", this, job -> Math.max(0, job.speed))
+                .description("Encoded media time per wall time, below 1 the ladder falls behind live")
+                .tags(tags)
+                .register(registry));
+        register(Gauge.builder("transcode.job.fps", this, job -> job.fps)
+                .tags(tags)
+                .register(registry));
+        register(Gauge.builder("transcode.job.bitrate", this, job -> job.bitrate * 1000)
+                .description("Output bitrate of all renditions")
+                .baseUnit("bits")
+                .tags(tags)
+                .register(registry));
+        register(Gauge.builder("transcode.job.renditions", this, job -> job.renditions.size())
+                .tags(tags)
+                .register(registry));
+        register(FunctionCounter.builder("transcode.job.dropped.frames", this, job -> job.dropped)
+                .tags(tags)
+                .register(registry));
+        register(FunctionCounter.builder("transcode.job.duplicated.frames", this, job -> job.duplicated)
+                .tags(tags)
+                .register(registry));
+    }
+
+    // Called by the reader thread for every line of progress output
+    void onLine(String line, double minSpeed) {
+        int separator = line.indexOf('=');
+        if (separator <= 0) {
+            return;
+        }
+        String key = line.substring(0, separator).trim();
+        String value = line.substring(separator + 1).trim();
+        switch (key) {
+            case "frame"        -> pendingFrame = parseLong(value, pendingFrame);
+            case "fps"          -> pendingFps = parseDouble(value, pendingFps);
+            case "bitrate"      -> pendingBitrate = parseDouble(strip(value, "kbits/s"), pendingBitrate);
+            case "speed"        -> pendingSpeed = parseDouble(strip(value, "x"), -1);
+            case "drop_frames"  -> pendingDropped = parseLong(value, pendingDropped);
+            case "dup_frames"   -> pendingDuplicated = parseLong(value, pendingDuplicated);
+            // out_time_ms is in microseconds as well
+            case "out_time_us"  -> pendingOutTimeMicros = parseLong(value, pendingOutTimeMicros);
+            case "progress"     -> publish(minSpeed);
+            default             -> { }
+        }
+    }
+
+    /**
+     * Marks the job stalled once it has been below the minimum speed, or silent, for the window.
+     * Returns true only on the check that marked it
+     * */
+    boolean checkStall(long windowNanos) {
+        if (stalled) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long since = slowSince;
+        if (now - lastReport > windowNanos || (since != 0 && now - since > windowNanos)) {
+            stalled = true;
+            return true;
+        }
+        return false;
+    }
+
+    public JobStatus status() {
+        long now = System.nanoTime();
+        long since = slowSince;
+        return new JobStatus(
+                owner,
+                process.pid(),
+                renditions,
+                restarts,
+                frame,
+                fps,
+                Math.max(0, speed),
+                bitrate,
+                dropped,
+                duplicated,
+                outTimeMicros / 1000,
+                since == 0 ? 0 : (now - since) / 1_000_000,
+                (now - lastReport) / 1_000_000);
+    }
+
+    void close() {
+        for (Meter meter : meters) {
+            registry.remove(meter);
+        }
+        meters.clear();
+    }
+
+    private void publish(double minSpeed) {
+        frame = pendingFrame;
+        fps = pendingFps;
+        bitrate = pendingBitrate;
+        dropped = pendingDropped;
+        duplicated = pendingDuplicated;
+        outTimeMicros = pendingOutTimeMicros;
+        speed = pendingSpeed;
+        long now = System.nanoTime();
+        lastReport = now;
+        // Speed is N/A until ffmpeg has encoded anything, that is covered by the report timeout
+        if (pendingSpeed >= 0 && pendingSpeed < minSpeed) {
+            if (slowSince == 0) {
+                slowSince = now;
+            }
+        } else if (pendingSpeed >= 0) {
+            slowSince = 0;
+        }
+    }
+
+    private <T extends Meter> T register(T meter) {
+        meters.add(meter);
+        return meter;
+    }
+
+    private static String strip(String value, String suffix) {
+        return value.endsWith(suffix) ? value.substring(0, value.length() - suffix.length()) : value;
+    }
+
+    // Fields are N/A while ffmpeg has nothing to report
+    private static long parseLong(String value, long fallback) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static double parseDouble(String value, double fallback) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.qbasic.transcodingservice.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Reads -progress output of every running ladder on a thread of its own, ffmpeg blocks when it is not drained.
+ * A ladder below the minimum speed, or without a progress report, for the stall window is reported
+ * to listeners once, they decide whether to restart or degrade it
+ * */
+@Service
+@Slf4j
+public class TranscodeMonitor {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${transcode.stall.min-speed:1.0}")
+    private double minSpeed;
+
+    @Value("${transcode.stall.window:30s}")
+    private Duration stallWindow;
+
+    private final ConcurrentHashMap<String, TranscodeJob> jobs = new ConcurrentHashMap<>();
+    private final List<Consumer<TranscodeJob>> stallListeners = new CopyOnWriteArrayList<>();
+    private Counter stalls;
+
+    @PostConstruct
+    public void start() {
+        stalls = Counter.builder("transcode.stalls")
+                .description("Ladders that stayed below real time for the stall window")
+                .register(meterRegistry);
+        Duration interval = stallWindow.dividedBy(10);
+        Flux.interval(interval, interval)
+                .onBackpressureDrop()
+                .doOnNext(tick -> checkStalls())
+                .onErrorContinue((error, tick) -> log.error("Transcode stall check failed", error))
+                .subscribe();
+    }
+
+    public void addStallListener(Consumer<TranscodeJob> listener) {
+        stallListeners.add(listener);
+    }
+
+    // Starts reading progress of a launched ladder, replaces the job of a previous ladder of the owner
+    public TranscodeJob track(String owner, Process process, List<String> renditions, int restarts) {
+        TranscodeJob job = new TranscodeJob(owner, process, renditions, restarts, meterRegistry);
+        TranscodeJob previous = jobs.put(owner, job);
+        if (previous != null) {
+            previous.close();
+        }
+        Thread reader = new Thread(() -> read(job), "ffmpeg-progress-" + owner);
+        reader.setDaemon(true);
+        reader.start();
+        return job;
+    }
+
+    public TranscodeJob job(String owner) {
+        return jobs.get(owner);
+    }
+
+    public Collection<TranscodeJob> jobs() {
+        return jobs.values();
+    }
+
+    private void read(TranscodeJob job) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(job.getProcess().getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                job.onLine(line, minSpeed);
+            }
+        } catch (IOException e) {
+            log.info("Progress of {} is no longer readable: {}", job.getOwner(), e.getMessage());
+        } finally {
+            if (jobs.remove(job.getOwner(), job)) {
+                job.close();
+            }
+        }
+    }
+
+    private void checkStalls() {
+        long window = stallWindow.toNanos();
+        for (TranscodeJob job : jobs.values()) {
+            if (!job.checkStall(window)) {
+                continue;
+            }
+            stalls.increment();
+            log.warn("Ladder of {} is stalled: {}", job.getOwner(), job.status());
+            for (Consumer<TranscodeJob> listener : stallListeners) {
+                try {
+                    listener.accept(job);
+                } catch (RuntimeException e) {
+                    log.error("Stall listener failed for {}", job.getOwner(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.qbasic.transcodingservice.service;
+
+import com.qbasic.transcodingservice.dto.Capacity;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Admission of ffmpeg ladders against a CPU budget in cores.
+ * A ladder is charged the learned cost of a ladder when it starts, then its own cost measured
+ * from CPU time of the process. Streams over the budget are served passthrough only and wait
+ * in a queue for a ladder, while measured usage is over the budget the newest ladders give way.
+ * Listeners are told about promotions and demotions outside of the scheduler lock
+ * */
+@Service
+@Slf4j
+public class TranscodeScheduler {
+
+    public interface Listener {
+        void promoted(String owner);
+
+        void demoted(String owner);
+    }
+
+    private static class Job {
+        private ProcessHandle process;
+        // Cores, the ladder estimate until the first sample
+        private double cost;
+        private boolean measured;
+        private long lastCpuNanos;
+        private long lastSampleNanos;
+
+        private Job(double cost) {
+            this.cost = cost;
+        }
+    }
+
+    // Zero uses all available processors
+    @Value("${transcode.cpu-budget:0}")
+    private double configuredBudget;
+
+    // Cores of one ladder before any has been measured
+    @Value("${transcode.ladder-cost:2.0}")
+    private double initialLadderCost;
+
+    @Value("${transcode.max-queued:16}")
+    private int maxQueued;
+
+    @Value("${transcode.queue-timeout:2m}")
+    private Duration queueTimeout;
+
+    @Value("${transcode.sample-interval:5s}")
+    private Duration sampleInterval;
+
+    private double budget;
+    private double ladderCost;
+    // Start order, the newest ladder is the last one
+    private final Map<String, Job> running = new LinkedHashMap<>();
+    // Owner to time it was queued at
+    private final Map<String, Long> queue = new LinkedHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void start() {
+        budget = configuredBudget > 0 ? configuredBudget : Runtime.getRuntime().availableProcessors();
+        ladderCost = initialLadderCost;
+        log.info("Transcoding CPU budget {} cores, ladder estimate {} cores", budget, ladderCost);
+        Flux.interval(sampleInterval, sampleInterval)
+                .onBackpressureDrop()
+                .doOnNext(tick -> tick())
+                .onErrorContinue((error, tick) -> log.error("Transcode scheduler tick failed", error))
+                .subscribe();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Reserves a ladder for the owner, returns false when the budget is exhausted
+     * and the owner is queued or, with a full queue, left at passthrough
+     * */
+    public synchronized boolean tryAcquire(String owner) {
+        queue.remove(owner);
+        // A budget smaller than one ladder still runs one at a time
+        if (running.isEmpty() || used() + ladderCost <= budget) {
+            running.put(owner, new Job(ladderCost));
+            return true;
+        }
+        if (queue.size() < maxQueued) {
+            log.info("CPU budget exhausted, {} is queued for a ladder", owner);
+            queue.put(owner, System.nanoTime());
+        } else {
+            log.warn("CPU budget exhausted and queue is full, {} stays passthrough", owner);
+        }
+        return false;
+    }
+
+    public synchronized void attach(String owner, ProcessHandle process) {
+        Job job = running.get(owner);
+        if (job != null) {
+            // A restarted ladder is a new process, its CPU time starts over
+            job.process = process;
+            job.lastSampleNanos = 0;
+        }
+    }
+
+    // Called when the ladder of the owner exits or the stream is restarted
+    public void release(String owner) {
+        List<String> promoted;
+        synchronized (this) {
+            running.remove(owner);
+            queue.remove(owner);
+            promoted = promote();
+        }
+        promoted.forEach(this::notifyPromoted);
+    }
+
+    public synchronized Capacity capacity() {
+        double used = used();
+        boolean ladderFits = running.isEmpty() || used + ladderCost <= budget;
+        return new Capacity(budget, used, ladderCost, running.size(), queue.size(),
+                ladderFits || queue.size() < maxQueued);
+    }
+
+    private void tick() {
+        List<String> demoted = new ArrayList<>();
+        List<String> promoted = new ArrayList<>();
+        synchronized (this) {
+            sample();
+            expireQueued();
+            while (running.size() > 1 && used() > budget) {
+                String newest = null;
+                for (String owner : running.keySet()) {
+                    newest = owner;
+                }
+                running.remove(newest);
+                queue.put(newest, System.nanoTime());
+                demoted.add(newest);
+            }
+            // A demoted ladder is not promoted again in the same tick
+            if (demoted.isEmpty()) {
+                promoted = promote();
+            }
+        }
+        for (String owner : demoted) {
+            log.warn("Transcoding is over CPU budget, {} falls back to passthrough", owner);
+            for (Listener listener : listeners) {
+                try {
+                    listener.demoted(owner);
+                } catch (RuntimeException e) {
+                    log.error("Transcode scheduler listener failed for {}", owner, e);
+                }
+            }
+        }
+        promoted.forEach(this::notifyPromoted);
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        double measuredTotal = 0;
+        int measuredJobs = 0;
+        for (Job job : running.values()) {
+            if (job.process == null) {
+                continue;
+            }
+            Optional<Duration> cpu = job.process.info().totalCpuDuration();
+            if (cpu.isEmpty()) {
+                continue;
+            }
+            long cpuNanos = cpu.get().toNanos();
+            if (job.lastSampleNanos != 0 && now > job.lastSampleNanos) {
+                double cores = (double) (cpuNanos - job.lastCpuNanos) / (now - job.lastSampleNanos);
+                job.cost = job.measured ? job.cost * 0.5 + cores * 0.5 : cores;
+                job.measured = true;
+                measuredTotal += job.cost;
+                measuredJobs++;
+            }
+            job.lastCpuNanos = cpuNanos;
+            job.lastSampleNanos = now;
+        }
+        if (measuredJobs > 0) {
+            ladderCost = ladderCost * 0.8 + measuredTotal / measuredJobs * 0.2;
+        }
+    }
+
+    private void expireQueued() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Long>> iterator = queue.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (now - entry.getValue() > queueTimeout.toNanos()) {
+                log.info("{} waited too long for a ladder, staying passthrough", entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    // Called with the lock held, oldest queued owners first
+    private List<String> promote() {
+        List<String> promoted = new ArrayList<>();
+        Iterator<String> iterator = queue.keySet().iterator();
+        while (iterator.hasNext() && (running.isEmpty() || used() + ladderCost <= budget)) {
+            String owner = iterator.next();
+            iterator.remove();
+            running.put(owner, new Job(ladderCost));
+            promoted.add(owner);
+        }
+        return promoted;
+    }
+
+    private void notifyPromoted(String owner) {
+        log.info("CPU budget available, starting ladder of {}", owner);
+        for (Listener listener : listeners) {
+            try {
+                listener.promoted(owner);
+            } catch (RuntimeException e) {
+                log.error("Transcode scheduler listener failed for {}", owner, e);
+            }
+        }
+    }
+
+    private double used() {
+        double used = 0;
+        for (Job job : running.values()) {
+            used += job.cost;
+        }
+        return used;
+    }
+}
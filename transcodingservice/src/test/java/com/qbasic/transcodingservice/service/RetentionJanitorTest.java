@@ -0,0 +1,221 @@
+package com.qbasic.transcodingservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RetentionJanitorTest {
+
+    @TempDir
+    Path root;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SegmentArchiver archiver = mock(SegmentArchiver.class);
+    private RetentionJanitor janitor;
+
+    @BeforeEach
+    void setUp() {
+        janitor = new RetentionJanitor();
+        ReflectionTestUtils.setField(janitor, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(janitor, "archiver", archiver);
+        ReflectionTestUtils.setField(janitor, "path", root.toString());
+        // Passes are run by the test
+        ReflectionTestUtils.setField(janitor, "enabled", false);
+        ReflectionTestUtils.setField(janitor, "interval", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(janitor, "minAge", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(janitor, "endedGrace", Duration.ofMinutes(10));
+        ReflectionTestUtils.setField(janitor, "streamQuota", DataSize.ofGigabytes(1));
+        ReflectionTestUtils.setField(janitor, "totalQuota", DataSize.ofGigabytes(1));
+        ReflectionTestUtils.setField(janitor, "batchSize", 500);
+        when(archiver.isPending(any())).thenReturn(false);
+        janitor.start();
+    }
+
+    @Test
+    void deletesUnreferencedMediaOlderThanMinAge() throws IOException {
+        playlist("user", "user_0.m3u8", Duration.ZERO, """
+                #EXTM3U
+                #EXT-X-MEDIA-SEQUENCE:3
+                #EXTINF:4.000,
+                user_0/data3.ts
+                #EXT-X-PART:DURATION=0.333,URI="user_0/data4.0.ts",INDEPENDENT=YES
+                #EXT-X-PRELOAD-HINT:TYPE=PART,URI="user_0/data4.1.ts"
+                """);
+        Path old = media("user", "user_0/data2.ts", 100, Duration.ofMinutes(1));
+        Path oldPart = media("user", "user_0/data2.0.ts", 100, Duration.ofMinutes(1));
+        Path young = media("user", "user_0/data5.ts", 100, Duration.ofSeconds(5));
+        Path listed = media("user", "user_0/data3.ts", 100, Duration.ofMinutes(1));
+        Path listedPart = media("user", "user_0/data4.0.ts", 100, Duration.ofMinutes(1));
+        Path hinted = media("user", "user_0/data4.1.ts", 100, Duration.ofMinutes(1));
+
+        janitor.pass();
+
+        assertThat(old).doesNotExist();
+        assertThat(oldPart).doesNotExist();
+        // Written before the playlist that lists it
+        assertThat(young).exists();
+        assertThat(listed).exists();
+        assertThat(listedPart).exists();
+        assertThat(hinted).exists();
+        assertThat(meterRegistry.get("retention.deleted.files").tag("reason", "unreferenced").counter().count())
+                .isEqualTo(2);
+        assertThat(meterRegistry.get("retention.reclaimed.bytes").tag("reason", "unreferenced").counter().count())
+                .isEqualTo(200);
+    }
+
+    @Test
+    void keepsSegmentsPendingArchive() throws IOException {
+        playlist("user", "user_0.m3u8", Duration.ZERO, "#EXTM3U\n");
+        Path pending = media("user", "user_0/data1.ts", 100, Duration.ofMinutes(1));
+        Path archived = media("user", "user_0/data2.ts", 100, Duration.ofMinutes(1));
+        when(archiver.isPending(pending)).thenReturn(true);
+
+        janitor.pass();
+
+        assertThat(pending).exists();
+        assertThat(archived).doesNotExist();
+    }
+
+    @Test
+    void enforcesStreamQuotaOldestFirst() throws IOException {
+        ReflectionTestUtils.setField(janitor, "streamQuota", DataSize.ofBytes(1000));
+        String playlist = """
+                #EXTM3U
+                #EXTINF:4.000,
+                user_0/data1.ts
+                #EXTINF:4.000,
+                user_0/data2.ts
+                #EXTINF:4.000,
+                user_0/data3.ts
+                #EXTINF:4.000,
+                user_0/data4.ts
+                """;
+        playlist("user", "user_0.m3u8", Duration.ZERO, playlist);
+        Path first = media("user", "user_0/data1.ts", 300, Duration.ofSeconds(40));
+        Path second = media("user", "user_0/data2.ts", 300, Duration.ofSeconds(30));
+        Path third = media("user", "user_0/data3.ts", 300, Duration.ofSeconds(20));
+        Path fourth = media("user", "user_0/data4.ts", 300, Duration.ofSeconds(10));
+        // Other streams have their own quota
+        playlist("other", "other_0.m3u8", Duration.ZERO, playlist.replace("user", "other"));
+        Path other = media("other", "other_0/data1.ts", 800, Duration.ofSeconds(50));
+        when(archiver.isPending(first)).thenReturn(true);
+
+        janitor.pass();
+
+        // 1200 bytes of media and the playlist, pending segment is skipped
+        assertThat(first).exists();
+        assertThat(second).doesNotExist();
+        assertThat(third).doesNotExist();
+        assertThat(fourth).exists();
+        assertThat(other).exists();
+        assertThat(meterRegistry.get("retention.deleted.files").tag("reason", "quota").counter().count())
+                .isEqualTo(2);
+    }
+
+    @Test
+    void enforcesTotalQuotaStartingWithIdleStreams() throws IOException {
+        ReflectionTestUtils.setField(janitor, "totalQuota", DataSize.ofBytes(1000));
+        playlist("live", "live_0.m3u8", Duration.ZERO, """
+                #EXTM3U
+                live_0/data1.ts
+                live_0/data2.ts
+                live_0/data3.ts
+                """);
+        Path oldest = media("live", "live_0/data1.ts", 400, Duration.ofMinutes(3));
+        Path middle = media("live", "live_0/data2.ts", 400, Duration.ofMinutes(2));
+        Path newest = media("live", "live_0/data3.ts", 400, Duration.ofMinutes(1));
+        // Within the ended grace period but idle for longer than two passes
+        playlist("idle", "idle_0.m3u8", Duration.ofMinutes(2), """
+                #EXTM3U
+                idle_0/data1.ts
+                """);
+        media("idle", "idle_0/data1.ts", 400, Duration.ofMinutes(2));
+        Files.setLastModifiedTime(root.resolve("idle"), age(Duration.ofMinutes(2)));
+
+        janitor.pass();
+
+        assertThat(root.resolve("idle")).doesNotExist();
+        assertThat(oldest).doesNotExist();
+        assertThat(middle).exists();
+        assertThat(newest).exists();
+        assertThat(meterRegistry.get("retention.stored.bytes").gauge().value()).isLessThanOrEqualTo(1000);
+    }
+
+    @Test
+    void removesDirectoriesOfEndedStreams() throws IOException {
+        playlist("ended", "ended_0.m3u8", Duration.ofMinutes(11), """
+                #EXTM3U
+                ended_0/data1.ts
+                #EXT-X-ENDLIST
+                """);
+        media("ended", "ended_0/data1.ts", 100, Duration.ofMinutes(11));
+        Files.setLastModifiedTime(root.resolve("ended"), age(Duration.ofMinutes(11)));
+        playlist("live", "live_0.m3u8", Duration.ZERO, "#EXTM3U\nlive_0/data1.ts\n");
+        Path live = media("live", "live_0/data1.ts", 100, Duration.ofMinutes(11));
+
+        janitor.pass();
+
+        assertThat(root.resolve("ended")).doesNotExist();
+        assertThat(live).exists();
+        // Segment, rendition directory, playlist and stream directory
+        assertThat(meterRegistry.get("retention.deleted.files").tag("reason", "ended").counter().count())
+                .isEqualTo(4);
+    }
+
+    @Test
+    void deletesAtMostBatchPerPass() throws IOException {
+        ReflectionTestUtils.setField(janitor, "batchSize", 2);
+        playlist("user", "user_0.m3u8", Duration.ZERO, "#EXTM3U\n");
+        Path[] files = new Path[5];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = media("user", "user_0/data" + i + ".ts", 100, Duration.ofMinutes(10 - i));
+        }
+
+        janitor.pass();
+        assertThat(files[0]).doesNotExist();
+        assertThat(files[1]).doesNotExist();
+        assertThat(files[2]).exists();
+
+        janitor.pass();
+        janitor.pass();
+        for (Path file : files) {
+            assertThat(file).doesNotExist();
+        }
+        assertThat(meterRegistry.get("retention.deleted.files").tag("reason", "unreferenced").counter().count())
+                .isEqualTo(5);
+    }
+
+    private Path playlist(String stream, String name, Duration age, String text) throws IOException {
+        Path file = root.resolve(stream).resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, text);
+        Files.setLastModifiedTime(file, age(age));
+        return file;
+    }
+
+    private Path media(String stream, String name, int size, Duration age) throws IOException {
+        Path file = root.resolve(stream).resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+        Files.setLastModifiedTime(file, age(age));
+        return file;
+    }
+
+    private static FileTime age(Duration age) {
+        return FileTime.fromMillis(System.currentTimeMillis() - age.toMillis());
+    }
+}
@@ -0,0 +1,116 @@
+package com.qbasic.transcodingservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SegmentArchiverTest {
+
+    @TempDir
+    Path directory;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private SegmentArchiver archiver;
+    private Path archive;
+
+    @BeforeEach
+    void setUp() {
+        archive = directory.resolve("archive");
+        archiver = new SegmentArchiver();
+        ReflectionTestUtils.setField(archiver, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(archiver, "path", directory.resolve("live").toString());
+        ReflectionTestUtils.setField(archiver, "enabled", true);
+        ReflectionTestUtils.setField(archiver, "archivePath", archive.toString());
+        // Scans and prunes are run by the test
+        ReflectionTestUtils.setField(archiver, "scanInterval", Duration.ofHours(1));
+        ReflectionTestUtils.setField(archiver, "pruneInterval", Duration.ofHours(1));
+        ReflectionTestUtils.setField(archiver, "concurrency", 1);
+        ReflectionTestUtils.setField(archiver, "queueSize", 16);
+        ReflectionTestUtils.setField(archiver, "batchSize", 4);
+        ReflectionTestUtils.setField(archiver, "ttl", Duration.ofDays(1));
+        ReflectionTestUtils.setField(archiver, "quota", DataSize.ofGigabytes(1));
+        archiver.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        archiver.stop();
+    }
+
+    @Test
+    void deletesSegmentsOlderThanTtl() throws IOException {
+        Path expired = segment("user/user_0/data1.ts", 100, Duration.ofDays(2));
+        Path kept = segment("user/user_0/data2.ts", 100, Duration.ofHours(1));
+
+        archiver.prune();
+
+        assertThat(expired).doesNotExist();
+        assertThat(kept).exists();
+        assertThat(meterRegistry.get("archive.pruned.files").counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("archive.stored.bytes").gauge().value()).isEqualTo(100);
+    }
+
+    @Test
+    void deletesOldestSegmentsOverQuota() throws IOException {
+        ReflectionTestUtils.setField(archiver, "ttl", Duration.ZERO);
+        ReflectionTestUtils.setField(archiver, "quota", DataSize.ofBytes(250));
+        Path first = segment("user/user_0/data1.ts", 100, Duration.ofMinutes(4));
+        Path second = segment("user/user_1/data1.ts", 100, Duration.ofMinutes(3));
+        Path third = segment("user/user_0/data2.ts", 100, Duration.ofMinutes(2));
+        Path fourth = segment("other/other_0/data1.ts", 100, Duration.ofMinutes(1));
+        // Copy in progress
+        Path temporary = segment("user/user_0/data3.ts.tmp", 1000, Duration.ofMinutes(5));
+
+        archiver.prune();
+
+        assertThat(first).doesNotExist();
+        assertThat(second).doesNotExist();
+        assertThat(third).exists();
+        assertThat(fourth).exists();
+        assertThat(temporary).exists();
+        assertThat(meterRegistry.get("archive.pruned.bytes").counter().count()).isEqualTo(200);
+        assertThat(meterRegistry.get("archive.stored.bytes").gauge().value()).isEqualTo(200);
+    }
+
+    @Test
+    void removesDirectoriesLeftEmpty() throws IOException {
+        segment("ended/ended_0/data1.ts", 100, Duration.ofDays(3));
+        segment("ended/ended_1/data1.ts", 100, Duration.ofDays(3));
+        segment("live/live_0/data1.ts", 100, Duration.ofDays(3));
+        Path live = segment("live/live_0/data2.ts", 100, Duration.ofMinutes(1));
+
+        archiver.prune();
+
+        assertThat(archive.resolve("ended")).doesNotExist();
+        assertThat(live).exists();
+        assertThat(archive).exists();
+    }
+
+    @Test
+    void ignoresMissingArchive() {
+        archiver.prune();
+
+        assertThat(archive).doesNotExist();
+        assertThat(meterRegistry.get("archive.pruned.files").counter().count()).isZero();
+    }
+
+    private Path segment(String name, int size, Duration age) throws IOException {
+        Path file = archive.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - age.toMillis()));
+        return file;
+    }
+}